@@ -0,0 +1,91 @@
+package beast.benchmark;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic trees and alignments for the benchmarks, generated from a seed so that every run sees the same data.
+ */
+public class BenchmarkData {
+    public static final long SEED = 127L;
+    private static final char[] NUCLEOTIDES = {'A', 'C', 'G', 'T'};
+
+    /*
+     * Creates an alignment in which every sequence is a copy of a common ancestor
+     * with each site mutated with the given probability, so that the sites compress into patterns as real data do.
+     */
+    public static Alignment createAlignment(int taxonCount, int siteCount, double mutationProbability, long seed) throws Exception{
+        Random random = new Random(seed);
+        char[] ancestor = new char[siteCount];
+        for(int i = 0; i < siteCount; i++){
+            ancestor[i] = NUCLEOTIDES[random.nextInt(4)];
+        }
+
+        Alignment alignment = new Alignment();
+        char[] sequence = new char[siteCount];
+        for(int i = 0; i < taxonCount; i++){
+            for(int j = 0; j < siteCount; j++){
+                sequence[j] = random.nextDouble() < mutationProbability ? NUCLEOTIDES[random.nextInt(4)] : ancestor[j];
+            }
+            alignment.setInputValue("sequence", new Sequence(getTaxonName(i), new String(sequence)));
+        }
+        alignment.setInputValue("dataType", "nucleotide");
+        alignment.initAndValidate();
+        return alignment;
+    }
+
+    public static Alignment createAlignment(int taxonCount, int siteCount) throws Exception{
+        return createAlignment(taxonCount, siteCount, 0.1, SEED);
+    }
+
+    /*
+     * Creates a tree by joining random pairs of lineages at exponentially distributed intervals, as under a coalescent.
+     */
+    public static Tree createTree(Alignment alignment, long seed) throws Exception{
+        Random random = new Random(seed);
+        List<String> lineages = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        for(int i = 0; i < alignment.getTaxonCount(); i++){
+            lineages.add(alignment.getTaxaNames().get(i));
+            heights.add(0.0);
+        }
+
+        double height = 0.0;
+        while(lineages.size() > 1){
+            int lineageCount = lineages.size();
+            height += -Math.log(random.nextDouble()) * 0.1 / (lineageCount * (lineageCount - 1) / 2.0);
+            int i = random.nextInt(lineageCount);
+            int j = random.nextInt(lineageCount - 1);
+            if(j >= i){
+                j++;
+            }
+            String newick = "(" + lineages.get(i) + ":" + (height - heights.get(i)) + "," +
+                    lineages.get(j) + ":" + (height - heights.get(j)) + ")";
+            lineages.remove(Math.max(i, j));
+            heights.remove(Math.max(i, j));
+            lineages.set(Math.min(i, j), newick);
+            heights.set(Math.min(i, j), height);
+        }
+
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", alignment,
+                "newick", lineages.get(0) + ";"
+        );
+        return tree;
+    }
+
+    public static Tree createTree(Alignment alignment) throws Exception{
+        return createTree(alignment, SEED);
+    }
+
+    public static String getTaxonName(int index){
+        return "taxon" + index;
+    }
+}
@@ -0,0 +1,168 @@
+package beast.benchmark;
+
+import beast.core.parameter.DPPointer;
+import beast.core.parameter.DPValuable;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.ParameterList;
+import beast.core.parameter.QuietRealParameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bookkeeping of the DP partitioning done on every proposal: changing the pointers of some sites by a point,
+ * swap or split move, querying the clusters from the incremental membership of the pointers, and storing and
+ * restoring the pointers. Every benchmark restores the pointers, so the partitioning is the same on each call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DPBookkeepingBenchmark {
+    public static final String POINT = "point";
+    public static final String SWAP = "swap";
+    public static final String SPLIT = "split";
+
+    @Param({"1000", "10000", "100000"})
+    public int siteCount;
+
+    @Param({"5", "50"})
+    public int clusterCount;
+
+    // The number of sites changed by each proposal.
+    @Param({"1", "100"})
+    public int moveCount;
+
+    @Param({POINT, SWAP, SPLIT})
+    public String move;
+
+    private DPPointer pointers;
+    private ParameterList paramList;
+    private DPValuable dpValuable;
+    private Random random;
+
+    // The parameter that the split moves sites to, which no site points to initially.
+    private QuietRealParameter splitParameter;
+    // The sites moved by a split, taken from the first cluster.
+    private int[] splitSites;
+    // The sites changed by the last move, and how many of them there are.
+    private int[] changedSites;
+    private int changedSiteCount;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception{
+        random = new Random(BenchmarkData.SEED);
+        QuietRealParameter[] parameters = new QuietRealParameter[clusterCount];
+        paramList = new ParameterList();
+        pointers = new DPPointer();
+        for(int i = 0; i < clusterCount; i++){
+            parameters[i] = new QuietRealParameter(new Double[]{(double)i});
+            paramList.setInputValue("parameter", parameters[i]);
+            pointers.setInputValue("uniqueParameter", parameters[i]);
+        }
+        splitParameter = new QuietRealParameter(new Double[]{(double)clusterCount});
+        paramList.setInputValue("parameter", splitParameter);
+        paramList.initAndValidate();
+
+        //Every cluster has at least one site
+        Integer[] assignment = new Integer[siteCount];
+        for(int i = 0; i < siteCount; i++){
+            assignment[i] = i < clusterCount ? i : random.nextInt(clusterCount);
+        }
+        pointers.setInputValue("initialAssignment", new IntegerParameter(assignment));
+        pointers.initAndValidate();
+
+        dpValuable = new DPValuable(paramList, pointers);
+
+        // At least one site stays in the first cluster.
+        int[] firstClusterSites = pointers.getClusterSites(parameters[0]);
+        splitSites = Arrays.copyOf(firstClusterSites, Math.min(moveCount, firstClusterSites.length - 1));
+        changedSites = new int[2 * moveCount];
+    }
+
+    /*
+     * Changes the pointers of the sites by the move and records the changed sites.
+     */
+    private void moveSites(){
+        changedSiteCount = 0;
+        if(POINT.equals(move)){
+            for(int i = 0; i < moveCount; i++){
+                int site = random.nextInt(siteCount);
+                pointers.point(site, paramList.getParameter(random.nextInt(clusterCount)));
+                changedSites[changedSiteCount++] = site;
+            }
+        }else if(SWAP.equals(move)){
+            for(int i = 0; i < moveCount; i++){
+                int site1 = random.nextInt(siteCount);
+                int site2 = random.nextInt(siteCount);
+                pointers.swapPointers(site1, site2);
+                changedSites[changedSiteCount++] = site1;
+                changedSites[changedSiteCount++] = site2;
+            }
+        }else{
+            pointers.multiPointerChanges(splitSites, splitParameter);
+            System.arraycopy(splitSites, 0, changedSites, 0, splitSites.length);
+            changedSiteCount = splitSites.length;
+        }
+    }
+
+    @Benchmark
+    public DPPointer storeMoveRestore(){
+        pointers.store();
+        moveSites();
+        pointers.restore();
+        return pointers;
+    }
+
+    @Benchmark
+    public int[] clusterCounts(){
+        pointers.store();
+        moveSites();
+        int[] clusterCounts = dpValuable.getClusterCounts();
+        pointers.restore();
+        return clusterCounts;
+    }
+
+    /*
+     * The current and stored members of the cluster that the first changed site now points to.
+     */
+    @Benchmark
+    public int clusterSites(){
+        pointers.store();
+        moveSites();
+        QuietRealParameter parameter = pointers.getParameter(changedSites[0]);
+        int count = pointers.getClusterSites(parameter).length + pointers.getStoredClusterSites(parameter).length;
+        pointers.restore();
+        return count;
+    }
+
+    /*
+     * The current and stored cluster indices of the changed sites.
+     */
+    @Benchmark
+    public int indexInList(){
+        pointers.store();
+        moveSites();
+        int sum = 0;
+        for(int i = 0; i < changedSiteCount; i++){
+            sum += pointers.indexInList(changedSites[i], paramList) + pointers.storedIndexInList(changedSites[i], paramList);
+        }
+        pointers.restore();
+        return sum;
+    }
+}
@@ -0,0 +1,126 @@
+package beast.benchmark;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.likelihood.WVLikelihoodCore4;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Partial likelihood pruning of the whole tree by WVLikelihoodCore4 when only a fraction of the patterns are unmasked,
+ * as in the likelihood of a cluster that holds some of the sites.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LikelihoodCoreBenchmark {
+    @Param({"20", "100", "500"})
+    public int taxonCount;
+
+    @Param({"1000", "10000", "100000"})
+    public int siteCount;
+
+    @Param({"0.01", "0.1", "1.0"})
+    public double unmaskedFraction;
+
+    private WVLikelihoodCore4 core;
+    // The children and parent of each internal node in post-order.
+    private int[] children1;
+    private int[] children2;
+    private int[] parents;
+    private int rootNr;
+    private double[] rootPartials;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception{
+        Alignment alignment = BenchmarkData.createAlignment(taxonCount, siteCount);
+        Tree tree = BenchmarkData.createTree(alignment);
+        int patternCount = alignment.getPatternCount();
+        int nodeCount = tree.getNodeCount();
+
+        Random random = new Random(BenchmarkData.SEED);
+        boolean[] unmasked = new boolean[patternCount];
+        for(int i = 0; i < patternCount; i++){
+            unmasked[i] = random.nextDouble() < unmaskedFraction;
+        }
+        core = new WVLikelihoodCore4(unmasked);
+        core.initialize(nodeCount, patternCount, 1, true, false);
+
+        for(int i = 0; i < nodeCount; i++){
+            Node node = tree.getNode(i);
+            if(node.isLeaf()){
+                int taxonIndex = alignment.getTaxonIndex(node.getID());
+                int[] states = new int[patternCount];
+                for(int j = 0; j < patternCount; j++){
+                    states[j] = alignment.getPattern(taxonIndex, j);
+                }
+                core.setNodeStates(node.getNr(), states);
+            }else{
+                core.createNodePartials(node.getNr());
+            }
+            if(!node.isRoot()){
+                core.setNodeMatrixForUpdate(node.getNr());
+                core.setNodeMatrix(node.getNr(), 0, getJC69Matrix(node.getLength()));
+            }
+        }
+
+        int internalNodeCount = tree.getInternalNodeCount();
+        children1 = new int[internalNodeCount];
+        children2 = new int[internalNodeCount];
+        parents = new int[internalNodeCount];
+        addInternalNodes(tree.getRoot(), 0);
+        rootNr = tree.getRoot().getNr();
+        rootPartials = new double[patternCount * 4];
+    }
+
+    private int addInternalNodes(Node node, int index){
+        if(node.isLeaf()){
+            return index;
+        }
+        index = addInternalNodes(node.getLeft(), index);
+        index = addInternalNodes(node.getRight(), index);
+        children1[index] = node.getLeft().getNr();
+        children2[index] = node.getRight().getNr();
+        parents[index] = node.getNr();
+        return index + 1;
+    }
+
+    private static double[] getJC69Matrix(double distance){
+        double sameProbability = 0.25 + 0.75 * Math.exp(-4.0 / 3.0 * distance);
+        double otherProbability = (1.0 - sameProbability) / 3.0;
+        double[] matrix = new double[16];
+        for(int i = 0; i < 4; i++){
+            for(int j = 0; j < 4; j++){
+                matrix[i * 4 + j] = i == j ? sameProbability : otherProbability;
+            }
+        }
+        return matrix;
+    }
+
+    @Benchmark
+    public double[] prune(){
+        for(int i = 0; i < parents.length; i++){
+            core.setNodePartialsForUpdate(parents[i]);
+            core.calculatePartials(children1[i], children2[i], parents[i]);
+        }
+        core.getNodePartials(rootNr, rootPartials);
+        return rootPartials;
+    }
+}
@@ -0,0 +1,276 @@
+package beast.benchmark;
+
+import beast.app.BeastMCMC;
+import beast.core.Operator;
+import beast.evolution.likelihood.SharedForkJoinPools;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs an MCMC analysis, such as one of the examples, for a fixed number of warm-up and measured states
+ * with a fixed seed and without logging, and reports the throughput of the measured states as JSON.
+ *
+ * The XML is changed before it is parsed:
+ * the chain length is set to warm-up + measured states,
+ * all loggers but the first are removed and the first one only logs to the screen at the first state,
+ * and the operator schedule is replaced by a ThroughputOperatorSchedule, which times every step.
+ * The time of a step is attributed to the operator selected in that step, so it includes the proposal,
+ * the calculation of the posterior and the store and restore of the state.
+ *
+ * Usage: MCMCThroughputBenchmark -xml file [-warmup n] [-states n] [-seed n] [-threads n] [-useThreads true|false] [-out file]
+ *
+ * -threads sets the number of threads available to BEAST and -useThreads sets the useThreads input of every DPTreeLikelihood,
+ * so that threaded and unthreaded configurations of the same example can be compared.
+ */
+public class MCMCThroughputBenchmark {
+    public static final long DEFAULT_WARMUP = 1000;
+    public static final long DEFAULT_STATES = 10000;
+
+    private String xmlFileName;
+    private long warmup = DEFAULT_WARMUP;
+    private long states = DEFAULT_STATES;
+    private long seed = BenchmarkData.SEED;
+    private int threads = 1;
+    // Leave the useThreads inputs in the XML as they are if null.
+    private Boolean useThreads = null;
+    private String outFileName = null;
+
+    public MCMCThroughputBenchmark(String[] args){
+        for(int i = 0; i < args.length; i++){
+            if(i + 1 == args.length){
+                throw new RuntimeException("No value given for " + args[i] + ".");
+            }
+            String arg = args[i];
+            String value = args[++i];
+            if(arg.equals("-xml")){
+                xmlFileName = value;
+            }else if(arg.equals("-warmup")){
+                warmup = Long.parseLong(value);
+            }else if(arg.equals("-states")){
+                states = Long.parseLong(value);
+            }else if(arg.equals("-seed")){
+                seed = Long.parseLong(value);
+            }else if(arg.equals("-threads")){
+                threads = Integer.parseInt(value);
+            }else if(arg.equals("-useThreads")){
+                useThreads = Boolean.parseBoolean(value);
+            }else if(arg.equals("-out")){
+                outFileName = value;
+            }else{
+                throw new RuntimeException("Unknown argument: " + arg);
+            }
+        }
+        if(xmlFileName == null){
+            throw new RuntimeException("Usage: MCMCThroughputBenchmark -xml file [-warmup n] [-states n] [-seed n] " +
+                    "[-threads n] [-useThreads true|false] [-out file]");
+        }
+        if(warmup < 0 || states < 1 || threads < 1){
+            throw new RuntimeException("The warm-up must be non-negative, and the measured states and threads must be positive.");
+        }
+    }
+
+    /*
+     * Makes the changes to the XML described above and returns it as a string.
+     */
+    private String prepareXML() throws Exception{
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(xmlFileName));
+        Element run = null;
+        NodeList children = doc.getDocumentElement().getChildNodes();
+        for(int i = 0; i < children.getLength(); i++){
+            if(children.item(i) instanceof Element && ((Element)children.item(i)).getTagName().equals("run")){
+                run = (Element) children.item(i);
+            }
+        }
+        if(run == null){
+            throw new RuntimeException("No run element in " + xmlFileName + ".");
+        }
+
+        long chainLength = warmup + states;
+        run.setAttribute("chainLength", "" + chainLength);
+        run.setAttribute("storeEvery", "" + (chainLength + 1));
+
+        List<Element> loggers = new ArrayList<Element>();
+        Element schedule = null;
+        children = run.getChildNodes();
+        for(int i = 0; i < children.getLength(); i++){
+            if(children.item(i) instanceof Element){
+                Element child = (Element) children.item(i);
+                if(child.getTagName().equals("logger")){
+                    loggers.add(child);
+                }else if(child.getTagName().equals("operatorschedule")){
+                    schedule = child;
+                }
+            }
+        }
+        if(loggers.size() > 0){
+            //MCMC requires a logger, the first one is kept but only logs the first state to the screen
+            Element logger = loggers.get(0);
+            logger.removeAttribute("fileName");
+            logger.removeAttribute("mode");
+            logger.setAttribute("logEvery", "" + (chainLength + 1));
+            for(int i = 1; i < loggers.size(); i++){
+                run.removeChild(loggers.get(i));
+            }
+        }
+        if(schedule == null){
+            schedule = doc.createElement("operatorschedule");
+            run.appendChild(schedule);
+        }
+        schedule.setAttribute("spec", ThroughputOperatorSchedule.class.getName());
+        schedule.setAttribute("warmup", "" + warmup);
+
+        if(useThreads != null){
+            setUseThreads(doc.getDocumentElement());
+        }
+
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        StringWriter writer = new StringWriter();
+        transformer.transform(new DOMSource(doc), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    private void setUseThreads(Element element){
+        if(element.getAttribute("spec").endsWith("DPTreeLikelihood")){
+            element.setAttribute("useThreads", "" + useThreads);
+        }
+        NodeList children = element.getChildNodes();
+        for(int i = 0; i < children.getLength(); i++){
+            if(children.item(i).getNodeType() == Node.ELEMENT_NODE){
+                setUseThreads((Element) children.item(i));
+            }
+        }
+    }
+
+    public void run() throws Exception{
+        BeastMCMC.m_nThreads = threads;
+        BeastMCMC.g_exec = Executors.newFixedThreadPool(threads);
+        Randomizer.setSeed(seed);
+
+        beast.core.Runnable mcmc = new XMLParser().parseFromString(prepareXML());
+        File stateFile = File.createTempFile("throughput", ".state");
+        mcmc.setStateFile(stateFile.getAbsolutePath(), false);
+        ThroughputOperatorSchedule schedule = (ThroughputOperatorSchedule) mcmc.getInput("operatorschedule").get();
+
+        //The screen output of the chain is not part of the measurement
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream(){
+            public void write(int b){
+            }
+
+            public void write(byte[] b, int off, int len){
+            }
+        }));
+        try{
+            mcmc.run();
+            schedule.finishMeasuring();
+        }finally{
+            System.setOut(out);
+            BeastMCMC.g_exec.shutdown();
+            SharedForkJoinPools.shutdown();
+            stateFile.delete();
+            new File(stateFile.getAbsolutePath() + ".state").delete();
+        }
+
+        String json = toJSON(schedule);
+        if(outFileName == null){
+            System.out.println(json);
+        }else{
+            PrintStream outFile = new PrintStream(new FileOutputStream(outFileName));
+            outFile.println(json);
+            outFile.close();
+        }
+    }
+
+    private String toJSON(ThroughputOperatorSchedule schedule){
+        long endAllocatedBytes = ThroughputOperatorSchedule.getAllocatedBytes();
+        long peakHeapBytes = ThroughputOperatorSchedule.getPeakHeapBytes();
+        long measuredTime = schedule.getMeasuredTime();
+        double seconds = measuredTime / 1e9;
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"xml\": ").append(quote(xmlFileName)).append(",\n");
+        json.append("  \"seed\": ").append(seed).append(",\n");
+        json.append("  \"threads\": ").append(threads).append(",\n");
+        json.append("  \"useThreads\": ").append(useThreads == null ? "null" : useThreads.toString()).append(",\n");
+        json.append("  \"warmupStates\": ").append(warmup).append(",\n");
+        json.append("  \"measuredStates\": ").append(schedule.getMeasuredStepCount()).append(",\n");
+        json.append("  \"measuredSeconds\": ").append(format(seconds)).append(",\n");
+        json.append("  \"statesPerSecond\": ").append(format(schedule.getMeasuredStepCount() / seconds)).append(",\n");
+        if(endAllocatedBytes < 0 || schedule.getStartAllocatedBytes() < 0){
+            json.append("  \"allocatedBytes\": null,\n");
+            json.append("  \"allocationBytesPerSecond\": null,\n");
+        }else{
+            long allocatedBytes = endAllocatedBytes - schedule.getStartAllocatedBytes();
+            json.append("  \"allocatedBytes\": ").append(allocatedBytes).append(",\n");
+            json.append("  \"allocationBytesPerSecond\": ").append(format(allocatedBytes / seconds)).append(",\n");
+        }
+        json.append("  \"peakHeapBytes\": ").append(peakHeapBytes).append(",\n");
+        json.append("  \"gcCount\": ").append(ThroughputOperatorSchedule.getGCCount() - schedule.getStartGCCount()).append(",\n");
+        json.append("  \"gcMilliseconds\": ").append(ThroughputOperatorSchedule.getGCTime() - schedule.getStartGCTime()).append(",\n");
+        json.append("  \"operators\": [");
+        List<Operator> operators = schedule.getTimedOperators();
+        for(int i = 0; i < operators.size(); i++){
+            Operator operator = operators.get(i);
+            long time = schedule.getOperatorTime(operator);
+            long steps = schedule.getOperatorStepCount(operator);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"id\": ").append(quote(operator.getID() == null ? operator.getClass().getSimpleName() : operator.getID()));
+            json.append(", \"class\": ").append(quote(operator.getClass().getName()));
+            json.append(", \"steps\": ").append(steps);
+            json.append(", \"timeShare\": ").append(format(measuredTime == 0 ? 0.0 : (double) time / measuredTime));
+            json.append(", \"meanMicroseconds\": ").append(format(time / 1e3 / steps));
+            json.append("}");
+        }
+        json.append("\n  ]\n");
+        json.append("}");
+        return json.toString();
+    }
+
+    private static String format(double value){
+        if(Double.isNaN(value) || Double.isInfinite(value)){
+            return "null";
+        }
+        return String.format(Locale.US, "%.6g", value);
+    }
+
+    private static String quote(String value){
+        StringBuilder quoted = new StringBuilder("\"");
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\'){
+                quoted.append('\\').append(c);
+            }else if(c < 0x20){
+                quoted.append(String.format("\\u%04x", (int) c));
+            }else{
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    public static void main(String[] args) throws Exception{
+        new MCMCThroughputBenchmark(args).run();
+    }
+}
@@ -0,0 +1,76 @@
+package beast.benchmark;
+
+import beast.core.parameter.QuietRealParameter;
+import beast.evolution.substitutionmodel.NtdBMA;
+import beast.evolution.substitutionmodel.SwitchingNtdBMA;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transition probabilities of NtdBMA and SwitchingNtdBMA for each of the nested models,
+ * both with the decomposition of the rate matrix already known and when the parameters have just changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SubstitutionModelBenchmark {
+    @Param({"NtdBMA", "SwitchingNtdBMA"})
+    public String modelClass;
+
+    // JC69, K80, F81, HKY85, TN93 and GTR.
+    @Param({"0", "1", "2", "3", "4", "5"})
+    public int modelCode;
+
+    private NtdBMA substModel;
+    private final double[] matrix = new double[16];
+    private double distance = 0.01;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        QuietRealParameter logKappa = new QuietRealParameter(new Double[]{Math.log(2.0)});
+        QuietRealParameter logTN = new QuietRealParameter(new Double[]{Math.log(1.5)});
+        QuietRealParameter logAC = new QuietRealParameter(new Double[]{Math.log(0.5)});
+        QuietRealParameter logAT = new QuietRealParameter(new Double[]{Math.log(0.8)});
+        QuietRealParameter logGC = new QuietRealParameter(new Double[]{Math.log(0.6)});
+        QuietRealParameter modelChoose = new QuietRealParameter(new Double[]{(double)modelCode});
+        QuietRealParameter freqs = new QuietRealParameter(new Double[]{0.1, 0.2, 0.3, 0.4});
+        if(modelClass.equals("SwitchingNtdBMA")){
+            substModel = new SwitchingNtdBMA(logKappa, logTN, logAC, logAT, logGC, modelChoose, freqs);
+        }else{
+            substModel = new NtdBMA(logKappa, logTN, logAC, logAT, logGC, modelChoose, freqs);
+        }
+    }
+
+    private double nextDistance(){
+        distance = distance < 0.5 ? distance * 1.01 : 0.01;
+        return distance;
+    }
+
+    @Benchmark
+    public double[] knownDecomposition(){
+        substModel.getTransitionProbabilities(null, nextDistance(), 0.0, 1.0, matrix);
+        return matrix;
+    }
+
+    @Benchmark
+    public double[] changedParameters(){
+        substModel.setUpdateMatrix(true);
+        substModel.getTransitionProbabilities(null, nextDistance(), 0.0, 1.0, matrix);
+        return matrix;
+    }
+}
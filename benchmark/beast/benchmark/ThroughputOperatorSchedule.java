@@ -0,0 +1,161 @@
+package beast.benchmark;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.util.InstrumentedOperatorSchedule;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Times the steps of the chain once the warm-up is over, and takes a snapshot of the allocation and garbage
+ * collection counters of the JVM at that point, so that MCMCThroughputBenchmark can report them for the measured
+ * states only.
+ */
+@Description("Operator schedule that measures the time of the steps of the chain after a warm-up, " +
+        "and the memory use of the JVM during the measured steps.")
+public class ThroughputOperatorSchedule extends InstrumentedOperatorSchedule {
+    public Input<Long> warmupInput = new Input<Long>(
+            "warmup",
+            "The number of steps before the measurement starts (default 0)",
+            0L
+    );
+
+    private long warmup;
+    private long selectionCount = 0;
+    private boolean measuring = false;
+    private long measureStartTime;
+    private long measuredTime = 0;
+    private long measuredStepCount = 0;
+
+    private long startAllocatedBytes = -1;
+    private long startGCCount;
+    private long startGCTime;
+
+    @Override
+    public void initAndValidate(){
+        super.initAndValidate();
+        warmup = warmupInput.get();
+    }
+
+    @Override
+    protected boolean isTimedStep(long now){
+        selectionCount++;
+        if(!measuring && selectionCount > warmup){
+            measuring = true;
+            measureStartTime = now;
+            startMeasuring();
+        }
+        return measuring;
+    }
+
+    @Override
+    protected void stepEnded(long stepTime){
+        measuredTime += stepTime;
+        measuredStepCount++;
+    }
+
+    /*
+     * Ends the last step of the chain, so that it is measured like the others.
+     * The step then also includes the end of the run, such as closing the loggers.
+     */
+    public void finishMeasuring(){
+        endStep(System.nanoTime());
+    }
+
+    private void startMeasuring(){
+        startAllocatedBytes = getAllocatedBytes();
+        startGCCount = getGCCount();
+        startGCTime = getGCTime();
+        for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP && pool.isValid()){
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /*
+     * The bytes allocated by all live threads, or -1 if the JVM does not support measuring allocation.
+     */
+    static long getAllocatedBytes(){
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if(!(threadBean instanceof com.sun.management.ThreadMXBean)){
+            return -1;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        if(!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled()){
+            return -1;
+        }
+        long[] allocatedBytes = allocationBean.getThreadAllocatedBytes(allocationBean.getAllThreadIds());
+        long sum = 0;
+        for(long bytes: allocatedBytes){
+            //-1 for threads that have terminated since their ids were taken
+            if(bytes > 0){
+                sum += bytes;
+            }
+        }
+        return sum;
+    }
+
+    static long getGCCount(){
+        long count = 0;
+        for(GarbageCollectorMXBean gcBean: ManagementFactory.getGarbageCollectorMXBeans()){
+            count += Math.max(gcBean.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    static long getGCTime(){
+        long time = 0;
+        for(GarbageCollectorMXBean gcBean: ManagementFactory.getGarbageCollectorMXBeans()){
+            time += Math.max(gcBean.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    /*
+     * The sum of the peak usages of the heap pools since the warm-up ended.
+     * The pools peak at different times, so this is an upper bound of the peak of the whole heap.
+     */
+    static long getPeakHeapBytes(){
+        long peak = 0;
+        for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP && pool.isValid()){
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    public boolean isMeasuring(){
+        return measuring;
+    }
+
+    // The time of the measured steps, in nanoseconds.
+    public long getMeasuredTime(){
+        return measuredTime;
+    }
+
+    public long getMeasuredStepCount(){
+        return measuredStepCount;
+    }
+
+    public long getMeasureStartTime(){
+        return measureStartTime;
+    }
+
+    public long getStartAllocatedBytes(){
+        return startAllocatedBytes;
+    }
+
+    public long getStartGCCount(){
+        return startGCCount;
+    }
+
+    public long getStartGCTime(){
+        return startGCTime;
+    }
+}
@@ -0,0 +1,132 @@
+package beast.benchmark;
+
+import beast.core.MCMCNodeFactory;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.likelihood.NewWVTreeLikelihood;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.substitutionmodel.HKY;
+import beast.evolution.tree.Tree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NewWVTreeLikelihood.calculateLogP after a few sites have been moved into or out of a cluster,
+ * followed by a rejection so that every invocation starts from the same state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WVTreeLikelihoodBenchmark {
+    @Param({"20", "100", "500"})
+    public int taxonCount;
+
+    @Param({"1000", "10000", "100000"})
+    public int siteCount;
+
+    // The fraction of the patterns that have weights in the cluster.
+    @Param({"0.1", "0.5"})
+    public double clusterFraction;
+
+    // The number of patterns whose weights are changed by each proposal.
+    @Param({"1", "10"})
+    public int changeCount;
+
+    private NewWVTreeLikelihood treeLik;
+    private int[] inPatterns;
+    private int[] outPatterns;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception{
+        Alignment alignment = BenchmarkData.createAlignment(taxonCount, siteCount);
+        Tree tree = BenchmarkData.createTree(alignment);
+
+        Frequencies freqs = new Frequencies();
+        freqs.initByName(
+                "frequencies", new RealParameter(new Double[]{0.25, 0.25, 0.25, 0.25}),
+                "estimate", false
+        );
+        HKY hky = new HKY();
+        hky.initByName(
+                "kappa", "2.0",
+                "frequencies", freqs
+        );
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", hky);
+
+        random = new Random(BenchmarkData.SEED);
+        int patternCount = alignment.getPatternCount();
+        int[] weights = new int[patternCount];
+        int inCount = 0;
+        for(int i = 0; i < patternCount; i++){
+            if(random.nextDouble() < clusterFraction){
+                weights[i] = alignment.getPatternWeight(i);
+                inCount++;
+            }
+        }
+        inPatterns = new int[inCount];
+        outPatterns = new int[patternCount - inCount];
+        int k = 0;
+        int l = 0;
+        for(int i = 0; i < patternCount; i++){
+            if(weights[i] > 0){
+                inPatterns[k++] = i;
+            }else{
+                outPatterns[l++] = i;
+            }
+        }
+
+        treeLik = new NewWVTreeLikelihood(weights);
+        treeLik.initByName(
+                "data", alignment,
+                "tree", tree,
+                "siteModel", siteModel
+        );
+        treeLik.calculateLogP();
+    }
+
+    @Benchmark
+    public double addWeight(){
+        treeLik.store();
+        for(int i = 0; i < changeCount && outPatterns.length > 0; i++){
+            treeLik.addWeight(outPatterns[random.nextInt(outPatterns.length)], 1);
+        }
+        MCMCNodeFactory.checkDirtiness(treeLik);
+        double logP = treeLik.calculateLogP();
+        treeLik.restore();
+        return logP;
+    }
+
+    @Benchmark
+    public double removeWeight(){
+        treeLik.store();
+        for(int i = 0; i < changeCount && inPatterns.length > 0; i++){
+            int pattern = inPatterns[random.nextInt(inPatterns.length)];
+            if(treeLik.getWeight(pattern) > 0){
+                treeLik.removeWeight(pattern, 1);
+            }
+        }
+        MCMCNodeFactory.checkDirtiness(treeLik);
+        double logP = treeLik.calculateLogP();
+        treeLik.restore();
+        return logP;
+    }
+}
@@ -5,6 +5,7 @@ import beast.core.StateNode;
 import beast.core.Description;
 
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.PrintStream;
@@ -43,6 +44,29 @@ public class DPPointer extends StateNode {
     private int storedLastDirty = -1;
     protected ChangeType changeType;
 
+    /*
+     * The sites that point to each parameter, kept up to date as the pointers change.
+     * A site is removed from a cluster by moving the last site of the cluster into its position.
+     */
+    private IdentityHashMap<QuietRealParameter, Cluster> clusters;
+    // The position of each site in the member array of its cluster.
+    private int[] sitePositions;
+    // The sites changed since the last store and the parameters they pointed to before the change.
+    private int[] journalSites = new int[16];
+    private QuietRealParameter[] journalParameters = new QuietRealParameter[16];
+    private int journalSize = 0;
+    // Set when more sites have changed than there are sites, then all the pointers are copied.
+    private boolean journalOverflow = false;
+    // Marks the sites in the journal while the stored members of a cluster are collected.
+    private boolean[] journalMarks;
+    // The sum over the clusters of log((n-1)!), where n is the size of a cluster, updated as the sites move.
+    private double logCountFactorialSum = 0.0;
+    private double storedLogCountFactorialSum = 0.0;
+    // The sum is calculated from the cluster sizes after this many updates, so that rounding errors do not build up.
+    public static final int MAX_UPDATE_COUNT = 100000;
+    private int logCountFactorialUpdateCount = 0;
+    private int storedLogCountFactorialUpdateCount = 0;
+
     public DPPointer(){
         
     }
@@ -50,6 +74,7 @@ public class DPPointer extends StateNode {
         parameters = new QuietRealParameter[dim];
         storedParameters = new QuietRealParameter[dim];
         lastSwappedSites = new int[2];
+        initClusters();
 
     }
 
@@ -76,19 +101,231 @@ public class DPPointer extends StateNode {
 
         System.arraycopy(parameters,0,storedParameters,0,parameters.length);
         lastSwappedSites = new int[2];
+        initClusters();
+    }
+
+    private void initClusters(){
+        clusters = new IdentityHashMap<QuietRealParameter, Cluster>();
+        sitePositions = new int[parameters.length];
+        journalMarks = new boolean[parameters.length];
+        logCountFactorialSum = 0.0;
+        for(int i = 0; i < parameters.length; i++){
+            if(parameters[i] != null){
+                addToCluster(i, parameters[i]);
+            }
+        }
+        logCountFactorialUpdateCount = 0;
+        storedLogCountFactorialSum = logCountFactorialSum;
+        storedLogCountFactorialUpdateCount = 0;
+        clearJournal();
+    }
+
+    /*
+     * Points the site to the parameter and updates the cluster membership.
+     */
+    private void setPointer(int site, QuietRealParameter parameter){
+        QuietRealParameter prevParameter = parameters[site];
+        if(prevParameter == parameter){
+            return;
+        }
+        if(!journalOverflow){
+            journal(site, prevParameter);
+        }
+        moveSite(site, prevParameter, parameter);
+    }
+
+    private void journal(int site, QuietRealParameter prevParameter){
+        if(journalSize >= parameters.length){
+            clearJournal();
+            journalOverflow = true;
+            return;
+        }
+        if(journalSize == journalSites.length){
+            journalSites = Arrays.copyOf(journalSites, journalSize * 2);
+            journalParameters = Arrays.copyOf(journalParameters, journalSize * 2);
+        }
+        journalSites[journalSize] = site;
+        journalParameters[journalSize] = prevParameter;
+        journalSize++;
+    }
+
+    private void moveSite(int site, QuietRealParameter from, QuietRealParameter to){
+        if(from != null){
+            removeFromCluster(site, from);
+        }
+        parameters[site] = to;
+        if(to != null){
+            addToCluster(site, to);
+        }
+    }
+
+    private void addToCluster(int site, QuietRealParameter parameter){
+        Cluster cluster = clusters.get(parameter);
+        if(cluster == null){
+            cluster = new Cluster();
+            clusters.put(parameter, cluster);
+        }
+        if(cluster.size == cluster.sites.length){
+            cluster.sites = Arrays.copyOf(cluster.sites, Math.max(4, cluster.size * 2));
+        }
+        cluster.sites[cluster.size] = site;
+        sitePositions[site] = cluster.size;
+        if(cluster.size > 0){
+            logCountFactorialSum += Math.log(cluster.size);
+            logCountFactorialUpdateCount++;
+        }
+        cluster.size++;
+    }
+
+    private void removeFromCluster(int site, QuietRealParameter parameter){
+        Cluster cluster = clusters.get(parameter);
+        int position = sitePositions[site];
+        cluster.size--;
+        if(cluster.size > 0){
+            logCountFactorialSum -= Math.log(cluster.size);
+            logCountFactorialUpdateCount++;
+        }
+        int lastSite = cluster.sites[cluster.size];
+        cluster.sites[position] = lastSite;
+        sitePositions[lastSite] = position;
+        if(cluster.size == 0){
+            // Do not keep references to parameters that nothing points to.
+            clusters.remove(parameter);
+        }
+    }
+
+    /*
+     * Returns the number of sites that point to the parameter.
+     */
+    public int getClusterSize(QuietRealParameter parameter){
+        Cluster cluster = clusters.get(parameter);
+        return cluster == null ? 0 : cluster.size;
+    }
+
+    /*
+     * Returns the sites that point to the parameter, in ascending order.
+     * The order of the members depends on the proposals made since the pointers were initialised,
+     * including the rejected ones, so it is not exposed.
+     */
+    public int[] getClusterSites(QuietRealParameter parameter){
+        Cluster cluster = clusters.get(parameter);
+        if(cluster == null){
+            return new int[0];
+        }
+        int[] sites = Arrays.copyOf(cluster.sites, cluster.size);
+        Arrays.sort(sites);
+        return sites;
+    }
+
+    /*
+     * Returns the number of parameters that at least one site points to.
+     */
+    public int getClusterCount(){
+        return clusters.size();
+    }
+
+    /*
+     * Returns the sum over the clusters of log((n-1)!), where n is the number of sites in a cluster.
+     * This is the part of the Dirichlet process prior that depends on the cluster sizes.
+     */
+    public double getLogCountFactorialSum(){
+        if(logCountFactorialUpdateCount > MAX_UPDATE_COUNT){
+            recalculateLogCountFactorialSum();
+        }
+        return logCountFactorialSum;
+    }
+
+    /*
+     * Calculates the sum from the cluster sizes.
+     */
+    private void recalculateLogCountFactorialSum(){
+        double sum = 0.0;
+        for(Cluster cluster : clusters.values()){
+            for(int k = 1; k < cluster.size; k++){
+                sum += Math.log(k);
+            }
+        }
+        logCountFactorialSum = sum;
+        logCountFactorialUpdateCount = 0;
+    }
+
+    /*
+     * Returns the first site that points to the parameter.
+     */
+    public int getOneClusterSite(QuietRealParameter parameter){
+        Cluster cluster = clusters.get(parameter);
+        int site = cluster.sites[0];
+        for(int k = 1; k < cluster.size; k++){
+            site = Math.min(site, cluster.sites[k]);
+        }
+        return site;
+    }
+
+    /*
+     * Returns the sites that pointed to the parameter when the pointers were last stored, in ascending order.
+     * These are the current members that have not changed since the store,
+     * and the sites in the journal whose pointer before their first change was the parameter.
+     */
+    public int[] getStoredClusterSites(QuietRealParameter parameter){
+        if(journalOverflow){
+            int count = 0;
+            for(QuietRealParameter storedParameter : storedParameters){
+                if(storedParameter == parameter){
+                    count++;
+                }
+            }
+            int[] sites = new int[count];
+            count = 0;
+            for(int i = 0; i < storedParameters.length; i++){
+                if(storedParameters[i] == parameter){
+                    sites[count++] = i;
+                }
+            }
+            return sites;
+        }
+
+        Cluster cluster = clusters.get(parameter);
+        int clusterSize = cluster == null ? 0 : cluster.size;
+        int[] sites = new int[clusterSize + journalSize];
+        int count = 0;
+        for(int i = 0; i < journalSize; i++){
+            int site = journalSites[i];
+            if(!journalMarks[site]){
+                journalMarks[site] = true;
+                if(journalParameters[i] == parameter){
+                    sites[count++] = site;
+                }
+            }
+        }
+        for(int k = 0; k < clusterSize; k++){
+            if(!journalMarks[cluster.sites[k]]){
+                sites[count++] = cluster.sites[k];
+            }
+        }
+        for(int i = 0; i < journalSize; i++){
+            journalMarks[journalSites[i]] = false;
+        }
+        sites = Arrays.copyOf(sites, count);
+        Arrays.sort(sites);
+        return sites;
+    }
+
+    static class Cluster {
+        int[] sites = new int[4];
+        int size = 0;
     }
 
     public void point(int dim, QuietRealParameter parameter){
         //System.out.println("pointer: "+dim);
         startEditing(null);
         lastDirty = dim;
-        parameters[dim] = parameter;
+        setPointer(dim, parameter);
         changeType = ChangeType.POINTER_CHANGED;
 
     }
 
     public void pointQuitely(int dim, QuietRealParameter parameter){
-        parameters[dim] = parameter;
+        setPointer(dim, parameter);
 
     }
 
@@ -97,8 +334,8 @@ public class DPPointer extends StateNode {
         lastSwappedSites[0] = siteIndex1;
         lastSwappedSites[1] = siteIndex2;
         QuietRealParameter temp = parameters[siteIndex1];
-        parameters[siteIndex1] = parameters[siteIndex2];
-        parameters[siteIndex2] = temp;
+        setPointer(siteIndex1, parameters[siteIndex2]);
+        setPointer(siteIndex2, temp);
         changeType = ChangeType.POINTERS_SWAPPED;
 
     }
@@ -107,7 +344,7 @@ public class DPPointer extends StateNode {
         //System.out.println("pointer: "+dim);
         startEditing(null);
         lastDirty = dim;
-        parameters[dim] = parameter;
+        setPointer(dim, parameter);
         changeType = ChangeType.MULTIPLE_POINTERS_CHANGED;
 
     }
@@ -118,7 +355,7 @@ public class DPPointer extends StateNode {
         for(int fromSite: fromSites){
 
             //if(fromSite == toSite) throw new RuntimeException("Same site! fromSite: "+fromSite+" "+toSite);
-            parameters[fromSite] = parameter;
+            setPointer(fromSite, parameter);
         }
         //System.out.println();
         lastDirtySites = new int[fromSites.length];
@@ -132,7 +369,7 @@ public class DPPointer extends StateNode {
         for(int fromSite: fromSites){
 
             //if(fromSite == toSite) throw new RuntimeException("Same site! fromSite: "+fromSite+" "+toSite);
-            parameters[fromSite] = parameters[toSite];
+            setPointer(fromSite, parameters[toSite]);
         }
         //System.out.println();
         lastDirtySites = new int[fromSites.length];
@@ -144,7 +381,7 @@ public class DPPointer extends StateNode {
         startEditing(null);
 
         for(int i = 0; i < fromSites.length; i++){
-            parameters[fromSites[i]] = storedParameters[toSites[i]];
+            setPointer(fromSites[i], storedParameters[toSites[i]]);
         }
         //System.out.println();
         lastDirtySites = new int[fromSites.length];
@@ -160,7 +397,7 @@ public class DPPointer extends StateNode {
 
         for(int i = 0; i < fromSites.length; i++){
             for(int j  = 0; j < fromSites[i].length; j++){
-                parameters[fromSites[i][j]] = ref[i];
+                setPointer(fromSites[i][j], ref[i]);
                 //System.out.print(fromSites[i][j]+" ");
             }
 
@@ -201,7 +438,7 @@ public class DPPointer extends StateNode {
 
         for(int i = 0; i < fromSites.length; i++){
             for(int j  = 0; j < fromSites[i].length; j++){
-                parameters[fromSites[i][j]] = toSitePointers[i];
+                setPointer(fromSites[i][j], toSitePointers[i]);
             }
         }
         //System.out.println();
@@ -260,7 +497,17 @@ public class DPPointer extends StateNode {
     public void store(){
         //System.out.println("store?");
         storedLastDirty = lastDirty;
-        System.arraycopy(parameters,0,storedParameters,0,parameters.length);
+        // Only the sites that have changed since the last store are copied.
+        if(journalOverflow){
+            System.arraycopy(parameters,0,storedParameters,0,parameters.length);
+        }else{
+            for(int i = 0; i < journalSize; i++){
+                storedParameters[journalSites[i]] = parameters[journalSites[i]];
+            }
+        }
+        storedLogCountFactorialSum = logCountFactorialSum;
+        storedLogCountFactorialUpdateCount = logCountFactorialUpdateCount;
+        clearJournal();
         /*for(int i = 0; i < storedParameters.length; i++){
             System.out.println(getID()+" stored param "+i+": "+storedParameters[i]);
         }*/
@@ -271,11 +518,30 @@ public class DPPointer extends StateNode {
         setEverythingDirty(false);
         //System.err.println("restore?");
         lastDirty = storedLastDirty;
-        QuietRealParameter[] temp = parameters;
-        parameters = storedParameters;
-        storedParameters = temp;
+        // Undo the changes in reverse order, the stored pointers are left as they are.
+        if(journalOverflow){
+            for(int i = 0; i < parameters.length; i++){
+                if(parameters[i] != storedParameters[i]){
+                    moveSite(i, parameters[i], storedParameters[i]);
+                }
+            }
+        }else{
+            for(int i = journalSize - 1; i >= 0; i--){
+                moveSite(journalSites[i], parameters[journalSites[i]], journalParameters[i]);
+            }
+        }
+        // Undoing the moves gives the same sum up to rounding, so the stored sum is used.
+        logCountFactorialSum = storedLogCountFactorialSum;
+        logCountFactorialUpdateCount = storedLogCountFactorialUpdateCount;
+        clearJournal();
 	}
 
+    private void clearJournal(){
+        Arrays.fill(journalParameters, 0, journalSize, null);
+        journalSize = 0;
+        journalOverflow = false;
+    }
+
     public int storedIndexInList(int index, ParameterList paramList){
         /*for(int i = 0; i < storedParameters.length; i++){
             System.out.println(getID()+" param "+i+": "+storedParameters[i]);
@@ -3,7 +3,6 @@ package beast.core.parameter;
 import beast.core.*;
 
 import java.io.PrintStream;
-import java.util.Arrays;
 
 /**
  * @author Chieh-Hsi Wu
@@ -30,16 +29,12 @@ public class DPValuable extends CalculationNode implements Function, Loggable{
     private ParameterList paramList;
     private DPPointer pointers;
     private boolean pointersChanged;
-    private int[] clusterCounts;
-    private int[] storedClusterCounts;
-    private int[][] storedClusterSites;
 
 
     public void initAndValidate(){
         paramList = paramListInput.get();
         pointers = pointersInput.get();
         pointersChanged = true;
-        getClusterCounts();
     }
 
     public DPValuable(){
@@ -57,30 +52,13 @@ public class DPValuable extends CalculationNode implements Function, Loggable{
 
 
     /** CalculationNode methods **/
-    // smarter vesions to be computed
+    // The cluster membership is maintained by the pointers, so there is nothing to store here.
 	@Override
 	public void store() {
-
-        storedClusterCounts = new int[clusterCounts.length];
-        System.arraycopy(clusterCounts,0,storedClusterCounts,0,clusterCounts.length);
-        storedClusterSites = new int[clusterCounts.length][];
-        for(int i = 0;i < clusterCounts.length;i++){
-            storedClusterSites[i] = new int[clusterCounts[i]];
-            System.arraycopy(clusterSites[i],0,storedClusterSites[i],0,clusterCounts[i]);
-        }
 		super.store();
 	}
 	@Override
 	public void restore() {
-        int[] tmp1 = clusterCounts;
-        clusterCounts = storedClusterCounts;
-        storedClusterCounts = tmp1;
-
-        int[][] tmp2 = clusterSites;
-        clusterSites = storedClusterSites;
-        storedClusterSites = tmp2;
-
-
         super.restore();
 	}
 
@@ -102,11 +80,11 @@ public class DPValuable extends CalculationNode implements Function, Loggable{
 
     @Override
 	public double getArrayValue() {
-		return clusterCounts[0];
+		return getClusterSize(0);
 	}
 
     public double getArrayValue(int dim){
-        return clusterCounts[dim];
+        return getClusterSize(dim);
     }
 
     public int getSiteID(int index){
@@ -114,7 +92,7 @@ public class DPValuable extends CalculationNode implements Function, Loggable{
     }
 
     public int getOneClusterSite(int clusterIndex){
-        return clusterSites[clusterIndex][0];
+        return pointers.getOneClusterSite(paramList.getParameter(clusterIndex));
     }
 
     public int[] getLastDirtySites(){
@@ -126,46 +104,39 @@ public class DPValuable extends CalculationNode implements Function, Loggable{
 
     }*/
 
-    private int[][] clusterSites;
+    /*
+     * Returns the sites in the cluster. The sites are not in any particular order.
+     */
     public int[] getClusterSites(int index){
-        /*if(pointersChanged){
-            update();
-        }*/
-
-        
-        int[] clusterSites = new int[clusterCounts[index]];
-        System.arraycopy(this.clusterSites[index],0,clusterSites,0,clusterSites.length);
-        return clusterSites;
+        return pointers.getClusterSites(paramList.getParameter(index));
     }
 
     public int[] getMergedSites(){
-        int index = paramList.getDirtyIndex();
-        int[] storedClusterSites = new int[storedClusterCounts[index]];
-        System.arraycopy(this.storedClusterSites[index],0,storedClusterSites,0,storedClusterSites.length);
-        return storedClusterSites;
+        return getStoredClusterSites(paramList.getDirtyIndex());
 
     }
 
     public int[] getStoredClusterSites(int index){
-        int[] storedClusterSites = new int[storedClusterCounts[index]];
-        System.arraycopy(this.storedClusterSites[index],0,storedClusterSites,0,storedClusterSites.length);
-        return storedClusterSites;
+        return pointers.getStoredClusterSites(paramList.getStoredParameter(index));
     }
 
     public int[] getClusterCounts(){
-        if(pointersChanged){
-            update();
+        int[] clusterCounts = new int[paramList.getDimension()];
+        for(int i = 0; i < clusterCounts.length; i++){
+            clusterCounts[i] = getClusterSize(i);
         }
+        return clusterCounts;
+    }
 
-        return Arrays.copyOf(clusterCounts, clusterCounts.length);
+    /*
+     * Returns the sum over the clusters of log((n-1)!), where n is the size of a cluster.
+     */
+    public double getLogCountFactorialSum(){
+        return pointers.getLogCountFactorialSum();
     }
 
     public int getClusterSize(int clusterIndex){
-        if(pointersChanged){
-            update();
-        }
-
-        return clusterCounts[clusterIndex];
+        return pointers.getClusterSize(paramList.getParameter(clusterIndex));
     }
 
     public int getCategoryCount(){
@@ -183,26 +154,7 @@ public class DPValuable extends CalculationNode implements Function, Loggable{
 
 
     public void update(){
-        //System.out.println("dpval update");
-        clusterCounts = new int[paramList.getDimension()];
-
-        clusterSites = new int[paramList.getDimension()][pointers.getDimension()];
-        int index;
-        for(int i = 0; i < pointers.getDimension();i++ ){
-            index = pointers.indexInList(i,paramList);
-            if(index == -1){
-                System.out.println(i+" "+pointers.getParameter(i)+" "+paramList);
-            }
-            clusterSites[index][clusterCounts[index]] = i;
-            clusterCounts[index]++;
-        }
-
-        /*for(int i = 0; i < clusterSites.length;i++){
-            for(int j = 0; j < clusterSites[i].length;j++){
-                System.out.print(clusterSites[i][j]+" ");
-            }
-            System.out.println();
-        }*/
+        // The pointers keep the cluster membership up to date as they change.
         pointersChanged = false;
     }
 
@@ -232,22 +184,6 @@ public class DPValuable extends CalculationNode implements Function, Loggable{
     }
 
     public void log(int nSample, PrintStream out){
-        //
-        /*System.out.println(clusterSites.length);
-        String s ="{";
-        for(int i =0; i < clusterSites.length;i++){
-            s+=clusterSites[i].length+": ";
-            for(int j = 0; j < clusterCounts[i]; j++){
-                s+=clusterSites[i][j];
-                if(j == clusterSites[i].length - 1){
-                    s+=";";
-                } else{
-                    s+=",";
-                }
-            }
-
-        }
-        System.out.println(s);*/
         out.print(paramList.getDimension() + "\t");
     }
 
@@ -1,9 +1,14 @@
 package beast.core.parameter;
 
 import beast.core.*;
+import beast.core.util.JournaledList;
+import beast.core.util.ObjectPool;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.io.PrintStream;
 
 import org.omg.CORBA.PUBLIC_MEMBER;
@@ -21,16 +26,25 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
                         new ArrayList<QuietRealParameter>()
                 );
 
-    private ArrayList<QuietRealParameter> parameterList;
-    private ArrayList<QuietRealParameter> storedParameterList;
+    // Only the parameters added and removed since the last store are replayed on store and restore.
+    private JournaledList<QuietRealParameter> parameterList;
+    // The parameters whose values have been stored since the last store of the list.
+    private Set<QuietRealParameter> storedValueParameters =
+            Collections.newSetFromMap(new IdentityHashMap<QuietRealParameter, Boolean>());
+    // The parameters removed by accepted proposals or added by rejected ones.
+    private ObjectPool<QuietRealParameter> parameterPool = new ObjectPool<QuietRealParameter>();
+    // The position of each parameter in the list, built when it is needed after the list has changed.
+    private IdentityHashMap<RealParameter, Integer> positions;
+    private IdentityHashMap<RealParameter, Integer> storedPositions;
     private int changedIndex = -1;
     private int removedIndex = -1;
+    // The sums of the parameter vectors, only kept up to date once they have been asked for.
+    private ParameterListStatistics statistics;
 
     ChangeType changeType = ChangeType.ALL;
     
     public ParameterList(){
-        parameterList = new ArrayList<QuietRealParameter>();
-        storedParameterList = new ArrayList<QuietRealParameter>();
+        parameterList = new JournaledList<QuietRealParameter>();
     }
 
 
@@ -41,7 +55,10 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         for(QuietRealParameter parameter: parameterList){
             parameter.setIDNumber(createID());
             this.parameterList.add(parameter);
+            positions = null;
         }
+        this.parameterList.store();
+        idPool.store();
     }
 
     private int lastAddedIndex;
@@ -51,6 +68,8 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         parameter.setIDNumber(createID());
         lastAddedIndex = parameterList.size();
         parameterList.add(parameter);
+        addToStatistics(parameter);
+        positions = null;
         changeType = ChangeType.ADDED;
 
         //System.out.println("add parameter: "+getID()+" "+getDimension());//+" " +toString());
@@ -63,16 +82,31 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         parameter.setIDNumber(createID());
         lastAddedIndex = pIndex;
         parameterList.add(pIndex,parameter);
+        addToStatistics(parameter);
+        positions = null;
         changeType = ChangeType.ADDED;
 
     }
 
+    /*
+     * Creates a parameter for a new cluster with the bounds of the list,
+     * reusing a parameter that is no longer in the list if there is one.
+     */
+    public QuietRealParameter createParameter(Double[] values){
+        QuietRealParameter parameter = parameterPool.take();
+        if(parameter == null || !parameter.reuse(values)){
+            parameter = new QuietRealParameter(values);
+        }
+        parameter.setBounds(getLower(), getUpper());
+        return parameter;
+    }
+
     public int getLastAddedIndex(){
         //System.out.println(getID()+": "+lastAddedIndex+" "+parameterList.get(lastAddedIndex).getIDNumber());
         return lastAddedIndex;
     }
 
-    ArrayList<Integer> idPool = new ArrayList<Integer>();
+    JournaledList<Integer> idPool = new JournaledList<Integer>();
     private int newIDCount = 0;
     private int createID(){
         //Recycle id
@@ -101,6 +135,8 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public void addParameterQuietly(QuietRealParameter parameter){
         parameterList.add(parameter);
+        addToStatistics(parameter);
+        positions = null;
         changeType = ChangeType.ADDED;
         //System.err.println(getID()+":added");
 
@@ -110,9 +146,12 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         startEditing(null);
         //System.out.println("size: "+parameterList.size());
         storeID(p.getIDNumber());
-        parameterList.remove(p);
+        if(parameterList.remove(p)){
+            subtractFromStatistics(p);
+        }
+        positions = null;
         changeType = ChangeType.REMOVED;
-        removedIndex = storedParameterList.indexOf(p);
+        removedIndex = parameterList.getStoredList().indexOf(p);
         //System.out.println(getID()+": removed "+getDimension()+" "+toString());
     }
 
@@ -121,7 +160,8 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         startEditing(null);
         //System.out.println("size: "+parameterList.size());
         storeID(parameterList.get(pIndex).getIDNumber());
-        parameterList.remove(pIndex);
+        subtractFromStatistics(parameterList.remove(pIndex));
+        positions = null;
         changeType = ChangeType.REMOVED;
         removedIndex = pIndex;
         //System.out.println(getID()+": removed "+getDimension()+" "+toString());
@@ -129,14 +169,18 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public void removeParameterQuietly(int pIndex){
         storeID(parameterList.get(pIndex).getIDNumber());
-        parameterList.remove(pIndex);
+        subtractFromStatistics(parameterList.remove(pIndex));
+        positions = null;
         removedIndex = pIndex;
     }
 
     public void setValue(int pIndex, int dim, double value) {
         startEditing(null);
+        storeValues(parameterList.get(pIndex));
+        subtractFromStatistics(parameterList.get(pIndex));
 
         parameterList.get(pIndex).setValueQuietly(dim,value);
+        addToStatistics(parameterList.get(pIndex));
         parameterList.get(pIndex).setEverythingDirty(true);
         changedIndex = pIndex;
         changeType = ChangeType.VALUE_CHANGED;
@@ -145,9 +189,12 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public void setValues(int pIndex, Double[] values) {
         startEditing(null);
+        storeValues(parameterList.get(pIndex));
+        subtractFromStatistics(parameterList.get(pIndex));
         for(int i = 0; i < values.length; i++){
             parameterList.get(pIndex).setValueQuietly(i,values[i]);
         }
+        addToStatistics(parameterList.get(pIndex));
         parameterList.get(pIndex).setEverythingDirty(true);
         changedIndex = pIndex;
         changeType = ChangeType.VALUE_CHANGED;
@@ -158,6 +205,8 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         startEditing(null);
         parameter.setIDNumber(createID());
         parameterList.add(parameter);
+        addToStatistics(parameter);
+        positions = null;
         changedIndex = pIndex;
         lastAddedIndex = parameterList.size() - 1;
         changeType = ChangeType.SPLIT;
@@ -166,11 +215,12 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public void splitParameter(int pIndex, int newPIndex, double newValue)throws Exception{
         startEditing(null);
-        QuietRealParameter newParameter = new QuietRealParameter(new Double[]{newValue});
-        newParameter.setBounds(getLower(), getUpper());
+        QuietRealParameter newParameter = createParameter(new Double[]{newValue});
 
         newParameter.setIDNumber(createID());
         parameterList.add(newPIndex,newParameter);
+        addToStatistics(newParameter);
+        positions = null;
         changedIndex = pIndex;
         lastAddedIndex = newPIndex;
         //System.out.println("newPIndexID:  "+newParameter.getIDNumber());
@@ -180,11 +230,12 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public void splitParameter(int pIndex, int newPIndex, Double[] newValue) throws Exception{
         startEditing(null);
-        QuietRealParameter newParameter = new QuietRealParameter(newValue);
-        newParameter.setBounds(getLower(), getUpper());
+        QuietRealParameter newParameter = createParameter(newValue);
 
         newParameter.setIDNumber(createID());
         parameterList.add(newPIndex, newParameter);
+        addToStatistics(newParameter);
+        positions = null;
         changedIndex = pIndex;
         lastAddedIndex = newPIndex;
         changeType = ChangeType.SPLIT;
@@ -193,12 +244,13 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public void splitParameter(int pIndex, double value1, int newPIndex, double value2) throws Exception{
         startEditing(null);
-        QuietRealParameter newParameter = new QuietRealParameter(new Double[]{value2});
-        newParameter.setBounds(getLower(), getUpper());
+        QuietRealParameter newParameter = createParameter(new Double[]{value2});
 
         newParameter.setIDNumber(createID());
         setValue(pIndex,0, value1);
         parameterList.add(newPIndex, newParameter);
+        addToStatistics(newParameter);
+        positions = null;
         //System.out.println("newPIndexID:  "+newParameter.getIDNumber()+" "+newPIndex);
         changedIndex = pIndex;
         lastAddedIndex = newPIndex;
@@ -210,11 +262,12 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public void splitParameter(int pIndex, int dim, double value1, int newPIndex, Double[] values2) throws Exception{
         startEditing(null);
-        QuietRealParameter newParameter = new QuietRealParameter(values2);
-        newParameter.setBounds(getLower(), getUpper());
+        QuietRealParameter newParameter = createParameter(values2);
         newParameter.setIDNumber(createID());
         setValue(pIndex,dim, value1);
         parameterList.add(newPIndex, newParameter);
+        addToStatistics(newParameter);
+        positions = null;
         changedIndex = pIndex;
         lastAddedIndex = newPIndex;
         changeType = ChangeType.SPLIT_AND_VALUE_CHANGE;
@@ -223,12 +276,13 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public void splitParameter(int pIndex,  Double[] values1, int newPIndex, Double[] values2) throws Exception{
         startEditing(null);
-        QuietRealParameter newParameter = new QuietRealParameter(values2);
-        newParameter.setBounds(getLower(), getUpper());
+        QuietRealParameter newParameter = createParameter(values2);
 
         newParameter.setIDNumber(createID());
         setValues(pIndex,values1);
         parameterList.add(newPIndex, newParameter);
+        addToStatistics(newParameter);
+        positions = null;
 
         changedIndex = pIndex;
         lastAddedIndex = newPIndex;
@@ -242,7 +296,8 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
     public void mergeParameter(int pIndex1, int pIndex2){
         startEditing(null);
         storeID(parameterList.get(pIndex1).getIDNumber());
-        parameterList.remove(pIndex1);
+        subtractFromStatistics(parameterList.remove(pIndex1));
+        positions = null;
         changedIndex = pIndex2 < pIndex1? pIndex2:(pIndex2-1);
         removedIndex = pIndex1;
         changeType = ChangeType.MERGE;
@@ -252,7 +307,8 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         startEditing(null);
         storeID(parameterList.get(pIndex1).getIDNumber());
         setValue(pIndex2,0,newValue);
-        parameterList.remove(pIndex1);
+        subtractFromStatistics(parameterList.remove(pIndex1));
+        positions = null;
         changedIndex = pIndex2 < pIndex1? pIndex2:(pIndex2-1);
         removedIndex = pIndex1;
         changeType = ChangeType.MERGE_AND_VALUE_CHANGE;
@@ -262,7 +318,8 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         startEditing(null);
         storeID(parameterList.get(pIndex1).getIDNumber());
         setValue(pIndex2,dim,newValue);
-        parameterList.remove(pIndex1);
+        subtractFromStatistics(parameterList.remove(pIndex1));
+        positions = null;
         changedIndex = pIndex2 < pIndex1? pIndex2:(pIndex2-1);
         removedIndex = pIndex1;
         changeType = ChangeType.MERGE_AND_VALUE_CHANGE;
@@ -272,7 +329,8 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         startEditing(null);
         storeID(parameterList.get(pIndex1).getIDNumber());
         setValues(pIndex2, newValues);
-        parameterList.remove(pIndex1);
+        subtractFromStatistics(parameterList.remove(pIndex1));
+        positions = null;
         changedIndex = pIndex2 < pIndex1? pIndex2:(pIndex2-1);
         removedIndex = pIndex1;
         changeType = ChangeType.MERGE_AND_VALUE_CHANGE;
@@ -353,26 +411,82 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         return parameterList.get(pIndex);
     }
 
+    /*
+     * Returns the parameters that have been added to the list since it was last stored.
+     */
+    public List<QuietRealParameter> getAddedParameters(){
+        return parameterList.getAddedElements();
+    }
+
+    /*
+     * Returns the parameters that have been removed from the list since it was last stored.
+     */
+    public List<QuietRealParameter> getRemovedParameters(){
+        return parameterList.getRemovedElements();
+    }
+
+    /*
+     * Returns the parameters whose values have been changed through the list since it was last stored.
+     */
+    public Set<QuietRealParameter> getValueChangedParameters(){
+        return Collections.unmodifiableSet(storedValueParameters);
+    }
+
     public int getParameterDimension(){
         return getParameter(0).getDimension();
     }
 
+    /*
+     * Stores the values of the parameter before they are first changed after the list is stored.
+     */
+    private void storeValues(QuietRealParameter parameter){
+        if(storedValueParameters.add(parameter)){
+            parameter.store();
+        }
+    }
+
+    /*
+     * Returns the sum and the sum of outer products of the parameter vectors in the list.
+     * The sums are calculated when they are first asked for and are then updated with every change made through the list.
+     */
+    public ParameterListStatistics getStatistics(){
+        if(statistics == null){
+            statistics = new ParameterListStatistics(getParameterDimension());
+        }
+        if(!statistics.isKnown()){
+            statistics.recalculate(this);
+        }
+        return statistics;
+    }
+
+    private void addToStatistics(QuietRealParameter parameter){
+        if(statistics != null){
+            statistics.add(parameter);
+        }
+    }
+
+    private void subtractFromStatistics(QuietRealParameter parameter){
+        if(statistics != null){
+            statistics.subtract(parameter);
+        }
+    }
+
     int storedNewIDCount;
-    ArrayList<Integer> storedIDPool;
     protected void store(){
         storedNewIDCount = newIDCount;
-        storedParameterList = new ArrayList<QuietRealParameter>();
-
-        for(QuietRealParameter parameter:parameterList){
-            parameter.store();
-            storedParameterList.add(parameter);
+        // The parameters removed by the accepted proposal can be reused.
+        if(parameterList.hasChanged()){
+            parameterPool.releaseAll(parameterList.getRemovedElements());
         }
-        storedIDPool = new ArrayList<Integer>();
-        for(int id:idPool){
-            storedIDPool.add(id);
-
+        parameterList.store();
+        // The positions are never modified once built, so they can be shared.
+        storedPositions = positions;
+        idPool.store();
+        storedValueParameters.clear();
+        if(statistics != null){
+            statistics.store();
         }
-        //System.out.println("storing "+storedParameterList.size());
+        //System.out.println("storing "+getDimension());
 
     }
 
@@ -383,15 +497,21 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
         //System.err.println("restore, storedListSize: "+storedParameterList.size());
         hasStartedEditing = false;
         newIDCount = storedNewIDCount;
-        ArrayList<QuietRealParameter> tempList = storedParameterList;
-        storedParameterList = parameterList;
-        parameterList = tempList;
-        for(RealParameter parameter:parameterList){
+        // The parameters added by the rejected proposal can be reused.
+        if(parameterList.hasChanged()){
+            parameterPool.releaseAll(parameterList.getAddedElements());
+        }
+        parameterList.restore();
+        positions = storedPositions;
+        for(RealParameter parameter:storedValueParameters){
             parameter.restore();
         }
+        storedValueParameters.clear();
+        if(statistics != null){
+            statistics.restore();
+        }
         changeType = ChangeType.ALL;
-        idPool = storedIDPool;
-        storedIDPool = null;
+        idPool.restore();
 
 
     }
@@ -422,14 +542,36 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
     }
 
     public int indexOf(RealParameter param){
-        return parameterList.indexOf(param);
+        if(positions == null){
+            positions = getPositions(parameterList);
+        }
+        Integer position = positions.get(param);
+        return position == null ? -1 : position;
     }
 
     public int storedIndexOf(RealParameter param){
-        if(somethingIsDirty())
-            return storedParameterList.indexOf(param);
-        else
-            return parameterList.indexOf(param);
+        if(somethingIsDirty()){
+            if(storedPositions == null){
+                storedPositions = getPositions(parameterList.getStoredList());
+            }
+            Integer position = storedPositions.get(param);
+            return position == null ? -1 : position;
+        }else{
+            return indexOf(param);
+        }
+    }
+
+    private static IdentityHashMap<RealParameter, Integer> getPositions(List<QuietRealParameter> parameters){
+        IdentityHashMap<RealParameter, Integer> positions = new IdentityHashMap<RealParameter, Integer>();
+        for(int i = parameters.size() - 1; i >= 0; i--){
+            // The first occurrence is kept, as in List.indexOf.
+            positions.put(parameters.get(i), i);
+        }
+        return positions;
+    }
+
+    public QuietRealParameter getStoredParameter(int pIndex){
+        return somethingIsDirty() ? parameterList.getStoredList().get(pIndex) : parameterList.get(pIndex);
     }
 
 
@@ -531,9 +673,13 @@ public class ParameterList extends StateNode implements PluginList, Recycle {
 
     public int scale(double fScale) {
         if(parameterList.size() > 0){
-            for(RealParameter parameter:parameterList){
+            for(QuietRealParameter parameter:parameterList){
+                storeValues(parameter);
                 parameter.scale(fScale);
             }
+            if(statistics != null){
+                statistics.invalidate();
+            }
             changeType = ChangeType.ALL;
             return getDimension()*getParameterDimension();
         }else{
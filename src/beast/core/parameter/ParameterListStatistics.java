@@ -0,0 +1,127 @@
+package beast.core.parameter;
+
+/**
+ * The sum and the sum of outer products of the parameter vectors in a parameter list. These are updated as the
+ * parameters are added, removed or changed through the list and reverted when it is restored, so that the
+ * conjugate samplers of the hyperparameters do not iterate over the clusters.
+ */
+public class ParameterListStatistics {
+    // The sums are calculated from scratch after this many updates, so that rounding errors do not build up.
+    public static final int MAX_UPDATE_COUNT = 100000;
+
+    private final int dim;
+    private final double[] sum;
+    private final double[] outerProductSum;
+    private final double[] storedSum;
+    private final double[] storedOuterProductSum;
+    private boolean known = false;
+    private boolean storedKnown = false;
+    // Whether the sums have been changed since the last store.
+    private boolean changed = false;
+    private int updateCount = 0;
+    private int storedUpdateCount = 0;
+
+    public ParameterListStatistics(int dim){
+        this.dim = dim;
+        sum = new double[dim];
+        outerProductSum = new double[dim * dim];
+        storedSum = new double[dim];
+        storedOuterProductSum = new double[dim * dim];
+    }
+
+    public int getDimension(){
+        return dim;
+    }
+
+    public boolean isKnown(){
+        return known;
+    }
+
+    /*
+     * Calculates the sums over all the parameters in the list.
+     */
+    void recalculate(ParameterList list){
+        for(int i = 0; i < sum.length; i++){
+            sum[i] = 0.0;
+        }
+        for(int i = 0; i < outerProductSum.length; i++){
+            outerProductSum[i] = 0.0;
+        }
+        for(int i = 0; i < list.getDimension(); i++){
+            QuietRealParameter parameter = list.getParameter(i);
+            if(parameter.getDimension() != dim){
+                throw new RuntimeException("All the parameters in the list must have dimension " + dim + ".");
+            }
+            accumulate(parameter, 1.0);
+        }
+        known = true;
+        changed = true;
+        updateCount = 0;
+    }
+
+    void add(QuietRealParameter parameter){
+        update(parameter, 1.0);
+    }
+
+    void subtract(QuietRealParameter parameter){
+        update(parameter, -1.0);
+    }
+
+    private void update(QuietRealParameter parameter, double sign){
+        if(!known){
+            return;
+        }
+        accumulate(parameter, sign);
+        changed = true;
+        if(++updateCount > MAX_UPDATE_COUNT){
+            known = false;
+        }
+    }
+
+    private void accumulate(QuietRealParameter parameter, double sign){
+        int k = 0;
+        for(int i = 0; i < dim; i++){
+            double value = sign * parameter.getValue(i);
+            sum[i] += value;
+            for(int j = 0; j < dim; j++){
+                outerProductSum[k++] += value * parameter.getValue(j);
+            }
+        }
+    }
+
+    /*
+     * The sums have to be calculated again before they are next used.
+     */
+    void invalidate(){
+        known = false;
+        changed = true;
+    }
+
+    public double getSum(int i){
+        return sum[i];
+    }
+
+    public double getOuterProductSum(int i, int j){
+        return outerProductSum[i * dim + j];
+    }
+
+    void store(){
+        if(changed){
+            System.arraycopy(sum, 0, storedSum, 0, dim);
+            System.arraycopy(outerProductSum, 0, storedOuterProductSum, 0, outerProductSum.length);
+            storedKnown = known;
+            storedUpdateCount = updateCount;
+            changed = false;
+        }
+    }
+
+    void restore(){
+        if(changed){
+            System.arraycopy(storedSum, 0, sum, 0, dim);
+            System.arraycopy(storedOuterProductSum, 0, outerProductSum, 0, outerProductSum.length);
+            known = storedKnown;
+            updateCount = storedUpdateCount;
+            changed = false;
+        }
+    }
+}
@@ -7,6 +7,8 @@ import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.ContinuousDistribution;
 import org.apache.commons.math.distribution.IntegerDistribution;
 
+import java.util.Arrays;
+
 /**
  * @author Chieh-Hsi Wu
  */
@@ -40,6 +42,22 @@ public class QuietRealParameter extends RealParameter{
         m_nLastDirty = dim;
     }
 
+    /*
+     * Re-initialises a parameter that has been removed from its list with the values of a new cluster.
+     * Returns false if the number of values is different.
+     */
+    public boolean reuse(Double[] values){
+        if(values.length != this.values.length){
+            return false;
+        }
+        System.arraycopy(values, 0, this.values, 0, values.length);
+        System.arraycopy(values, 0, storedValues, 0, values.length);
+        Arrays.fill(m_bIsDirty, false);
+        m_nLastDirty = 0;
+        idNumber = -1;
+        return true;
+    }
+
     public void setIDNumber(int idNumber){
         this.idNumber = idNumber;
     }
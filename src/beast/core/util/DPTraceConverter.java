@@ -0,0 +1,152 @@
+package beast.core.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts a binary trace written by DPTraceLogger to the text logs of the pointers and parameter lists. For
+ * every pointer it writes the ID numbers of the sites as PrintPointerIDNumber does and, if the list of its
+ * parameters is in the trace, the values of the sites as DPPointer does. For every parameter list it writes the
+ * values as ParameterList does and the ID numbers as PrintListIDNumber does.
+ *
+ * Usage: DPTraceConverter trace [prefix]
+ */
+public class DPTraceConverter {
+    private final DPTraceReader reader;
+    private final String prefix;
+
+    public DPTraceConverter(DPTraceReader reader, String prefix){
+        this.reader = reader;
+        this.prefix = prefix;
+    }
+
+    public void convert() throws IOException{
+        List<PrintStream> outs = new ArrayList<PrintStream>();
+        try{
+            PrintStream[] pointerIDOuts = new PrintStream[reader.getPointerCount()];
+            PrintStream[] pointerOuts = new PrintStream[reader.getPointerCount()];
+            for(int i = 0; i < reader.getPointerCount(); i++){
+                pointerIDOuts[i] = open(reader.getPointerName(i) + ".idNum.log", outs);
+                if(reader.getPointerListIndex(i) > -1){
+                    pointerOuts[i] = open(reader.getPointerName(i) + ".log", outs);
+                }
+            }
+            PrintStream[] listOuts = new PrintStream[reader.getListCount()];
+            PrintStream[] listIDOuts = new PrintStream[reader.getListCount()];
+            for(int i = 0; i < reader.getListCount(); i++){
+                listOuts[i] = open(reader.getListName(i) + ".log", outs);
+                listIDOuts[i] = open(reader.getListName(i) + ".idNum.log", outs);
+            }
+
+            boolean first = true;
+            while(reader.next()){
+                // As in the loggers, the headers are written from the first sample.
+                if(first){
+                    writeHeaders(pointerIDOuts, pointerOuts, listOuts, listIDOuts);
+                    first = false;
+                }
+                long sampleNumber = reader.getSampleNumber();
+                for(int i = 0; i < reader.getPointerCount(); i++){
+                    int[] assignment = reader.getAssignment(i);
+                    pointerIDOuts[i].print(sampleNumber + "\t");
+                    for(int id: assignment){
+                        pointerIDOuts[i].print(id + "\t");
+                    }
+                    pointerIDOuts[i].println();
+                    if(pointerOuts[i] != null){
+                        pointerOuts[i].print(sampleNumber + "\t");
+                        for(int id: assignment){
+                            printValues(reader.getParameterValues(reader.getPointerListIndex(i), id), pointerOuts[i]);
+                        }
+                        pointerOuts[i].println();
+                    }
+                }
+                for(int i = 0; i < reader.getListCount(); i++){
+                    int[] ids = reader.getParameterIDs(i);
+                    listOuts[i].print(sampleNumber + "\t");
+                    listIDOuts[i].print(sampleNumber + "\t");
+                    if(ids.length == 0){
+                        listOuts[i].print("-\t");
+                    }
+                    for(int id: ids){
+                        printValues(reader.getParameterValues(i, id), listOuts[i]);
+                        listIDOuts[i].print(id + "\t");
+                    }
+                    listOuts[i].println();
+                    listIDOuts[i].println();
+                }
+            }
+        }finally{
+            for(PrintStream out: outs){
+                out.close();
+            }
+        }
+    }
+
+    private PrintStream open(String fileName, List<PrintStream> outs) throws IOException{
+        PrintStream out = new PrintStream(new FileOutputStream(prefix + fileName));
+        outs.add(out);
+        return out;
+    }
+
+    private void writeHeaders(PrintStream[] pointerIDOuts, PrintStream[] pointerOuts, PrintStream[] listOuts, PrintStream[] listIDOuts){
+        for(int i = 0; i < reader.getPointerCount(); i++){
+            String name = reader.getPointerName(i);
+            int[] assignment = reader.getAssignment(i);
+            pointerIDOuts[i].print("Sample\t");
+            for(int j = 0; j < assignment.length; j++){
+                pointerIDOuts[i].print(name + ".idNum." + j + "\t");
+            }
+            pointerIDOuts[i].println();
+            if(pointerOuts[i] != null){
+                pointerOuts[i].print("Sample\t");
+                for(int j = 0; j < assignment.length; j++){
+                    int dim = reader.getParameterValues(reader.getPointerListIndex(i), assignment[j]).length;
+                    for(int k = 0; k < dim; k++){
+                        pointerOuts[i].print(name + "." + j + "." + k + "\t");
+                    }
+                }
+                pointerOuts[i].println();
+            }
+        }
+        for(int i = 0; i < reader.getListCount(); i++){
+            String name = reader.getListName(i);
+            int[] ids = reader.getParameterIDs(i);
+            listOuts[i].print("Sample\t");
+            if(ids.length == 0){
+                listOuts[i].print(name + "\t");
+            }
+            for(int j = 0; j < ids.length; j++){
+                int dim = reader.getParameterValues(i, ids[j]).length;
+                for(int k = 0; k < dim; k++){
+                    listOuts[i].print(name + "." + j + "." + k + "\t");
+                }
+            }
+            listOuts[i].println();
+            listIDOuts[i].println("Sample\tIDNumber(" + name + ")\t");
+        }
+    }
+
+    private static void printValues(double[] values, PrintStream out){
+        for(double value: values){
+            out.print(value + "\t");
+        }
+    }
+
+    public static void main(String[] args) throws IOException{
+        if(args.length < 1 || args.length > 2){
+            System.err.println("Usage: DPTraceConverter trace [prefix]");
+            System.exit(1);
+        }
+        String prefix = args.length == 2 ? args[1] : args[0].replaceAll("\\.[^./\\\\]*$", "") + "_";
+        DPTraceReader reader = new DPTraceReader(args[0]);
+        try{
+            new DPTraceConverter(reader, prefix).convert();
+        }finally{
+            reader.close();
+        }
+    }
+}
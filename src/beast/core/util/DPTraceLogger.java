@@ -0,0 +1,139 @@
+package beast.core.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Logger;
+import beast.core.Loggable;
+import beast.core.parameter.DPPointer;
+import beast.core.parameter.ParameterList;
+import beast.core.parameter.QuietRealParameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+@Description("Logs the cluster ID numbers of the sites in DP pointers and the parameters in parameter lists to a binary trace, " +
+        "which is much smaller and faster to write than the text logs. " +
+        "It writes nothing to the log it is in, which only sets how often the state is logged. " +
+        "DPTraceConverter converts the trace to the text logs. When the chain is resumed, the samples are added to the trace.")
+public class DPTraceLogger extends BEASTObject implements Loggable {
+    public Input<String> fileNameInput = new Input<String>(
+            "fileName",
+            "The name of the binary trace file",
+            Input.Validate.REQUIRED
+    );
+
+    public Input<List<DPPointer>> pointersInput = new Input<List<DPPointer>>(
+            "pointers",
+            "DP pointers whose cluster ID numbers are logged",
+            new ArrayList<DPPointer>()
+    );
+
+    public Input<List<ParameterList>> paramListsInput = new Input<List<ParameterList>>(
+            "paramList",
+            "Parameter lists whose parameters are logged",
+            new ArrayList<ParameterList>()
+    );
+
+    public Input<Integer> blockSizeInput = new Input<Integer>(
+            "blockSize",
+            "The number of samples compressed together (default 100)",
+            DPTraceWriter.DEFAULT_BLOCK_SIZE
+    );
+
+    private List<DPPointer> pointers;
+    private List<ParameterList> paramLists;
+    private DPTraceWriter writer;
+
+    private int[][] assignments;
+    private int[][] parameterIDs;
+    private double[][][] parameterValues;
+
+    public void initAndValidate(){
+        pointers = pointersInput.get();
+        paramLists = paramListsInput.get();
+        if(pointers.size() == 0 && paramLists.size() == 0){
+            throw new RuntimeException("Nothing to log in " + getID() + ".");
+        }
+    }
+
+    public void init(PrintStream out){
+        String[] pointerNames = new String[pointers.size()];
+        int[] siteCounts = new int[pointers.size()];
+        int[] pointerListIndices = new int[pointers.size()];
+        assignments = new int[pointers.size()][];
+        for(int i = 0; i < pointers.size(); i++){
+            DPPointer pointer = pointers.get(i);
+            pointerNames[i] = pointer.getID();
+            siteCounts[i] = pointer.getDimension();
+            assignments[i] = new int[siteCounts[i]];
+            pointerListIndices[i] = -1;
+            for(int j = 0; j < paramLists.size(); j++){
+                if(siteCounts[i] > 0 && paramLists.get(j).indexOf(pointer.getParameter(0)) > -1){
+                    pointerListIndices[i] = j;
+                }
+            }
+        }
+
+        String[] listNames = new String[paramLists.size()];
+        parameterIDs = new int[paramLists.size()][];
+        parameterValues = new double[paramLists.size()][][];
+        for(int i = 0; i < paramLists.size(); i++){
+            listNames[i] = paramLists.get(i).getID();
+        }
+
+        // As with the other logs, an existing trace is only added to when resuming and only replaced when overwriting.
+        String fileName = fileNameInput.get();
+        boolean resume = Logger.FILE_MODE == Logger.LogFileMode.resume;
+        if(!resume && Logger.FILE_MODE != Logger.LogFileMode.overwrite && new File(fileName).exists()){
+            throw new RuntimeException("The DP trace " + fileName + " already exists, use -resume to add to it or -overwrite to replace it.");
+        }
+        try{
+            writer = new DPTraceWriter(fileName, pointerNames, siteCounts, pointerListIndices, listNames, blockSizeInput.get(), resume);
+        }catch(IOException e){
+            throw new RuntimeException("Cannot open the DP trace " + fileNameInput.get(), e);
+        }
+    }
+
+    public void log(int nSample, PrintStream out){
+        for(int i = 0; i < pointers.size(); i++){
+            DPPointer pointer = pointers.get(i);
+            for(int j = 0; j < assignments[i].length; j++){
+                assignments[i][j] = pointer.getParameterIDNumber(j);
+            }
+        }
+
+        for(int i = 0; i < paramLists.size(); i++){
+            ParameterList paramList = paramLists.get(i);
+            int dim = paramList.getDimension();
+            parameterIDs[i] = new int[dim];
+            parameterValues[i] = new double[dim][];
+            for(int k = 0; k < dim; k++){
+                QuietRealParameter parameter = paramList.getParameter(k);
+                parameterIDs[i][k] = parameter.getIDNumber();
+                double[] values = new double[parameter.getDimension()];
+                for(int l = 0; l < values.length; l++){
+                    values[l] = parameter.getArrayValue(l);
+                }
+                parameterValues[i][k] = values;
+            }
+        }
+
+        try{
+            writer.writeSample(nSample, assignments, parameterIDs, parameterValues);
+        }catch(IOException e){
+            throw new RuntimeException("Cannot write to the DP trace " + fileNameInput.get(), e);
+        }
+    }
+
+    public void close(PrintStream out){
+        try{
+            writer.close();
+        }catch(IOException e){
+            throw new RuntimeException("Cannot close the DP trace " + fileNameInput.get(), e);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package beast.core.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a binary trace written by DPTraceWriter one sample at a time. The blocks are indexed when the trace is
+ * opened, so that it can be read from any sample number.
+ */
+public class DPTraceReader {
+    private final RandomAccessFile file;
+    private final String[] pointerNames;
+    private final int[] siteCounts;
+    private final int[] pointerListIndices;
+    private final String[] listNames;
+
+    // The file offset, first sample number and sample count of each block.
+    private final ArrayList<long[]> blocks = new ArrayList<long[]>();
+    private long sampleCount = 0;
+    // The file offset after the last complete block.
+    private long dataEnd;
+
+    private final Inflater inflater = new Inflater();
+    private byte[] raw = new byte[0];
+    private int position;
+    private int nextBlock = 0;
+    private int remainingInBlock = 0;
+    // True if the current sample has been decoded by seek but not yet returned by next.
+    private boolean pending = false;
+
+    // The current sample.
+    private long sampleNumber = -1;
+    private final int[][] assignments;
+    private final int[][] parameterIDs;
+    private final HashMap<Integer, double[]>[] parameterValues;
+
+    @SuppressWarnings("unchecked")
+    public DPTraceReader(String fileName) throws IOException{
+        file = new RandomAccessFile(fileName, "r");
+        if(file.readInt() != DPTraceWriter.MAGIC){
+            throw new RuntimeException(fileName + " is not a DP trace.");
+        }
+        int version = file.readInt();
+        if(version != DPTraceWriter.VERSION){
+            throw new RuntimeException("Unsupported version of the DP trace: " + version);
+        }
+        int pointerCount = file.readInt();
+        pointerNames = new String[pointerCount];
+        siteCounts = new int[pointerCount];
+        pointerListIndices = new int[pointerCount];
+        assignments = new int[pointerCount][];
+        for(int i = 0; i < pointerCount; i++){
+            pointerNames[i] = file.readUTF();
+            siteCounts[i] = file.readInt();
+            pointerListIndices[i] = file.readInt();
+            assignments[i] = new int[siteCounts[i]];
+        }
+        int listCount = file.readInt();
+        listNames = new String[listCount];
+        parameterIDs = new int[listCount][];
+        parameterValues = new HashMap[listCount];
+        for(int i = 0; i < listCount; i++){
+            listNames[i] = file.readUTF();
+            parameterIDs[i] = new int[0];
+            parameterValues[i] = new HashMap<Integer, double[]>();
+        }
+
+        indexBlocks();
+    }
+
+    /*
+     * Reads the headers of the blocks. A block that was not completely written, e.g. because the chain was stopped, is ignored.
+     */
+    private void indexBlocks() throws IOException{
+        long offset = file.getFilePointer();
+        long length = file.length();
+        // first sample number, sample count, raw length and compressed length
+        int headerLength = 8 + 4 + 4 + 4;
+        while(offset + headerLength <= length){
+            file.seek(offset);
+            long firstSampleNumber = file.readLong();
+            int blockSampleCount = file.readInt();
+            file.readInt();
+            int compressedLength = file.readInt();
+            if(offset + headerLength + compressedLength > length){
+                break;
+            }
+            blocks.add(new long[]{offset, firstSampleNumber, blockSampleCount});
+            sampleCount += blockSampleCount;
+            offset += headerLength + compressedLength;
+        }
+        dataEnd = offset;
+    }
+
+    private void readBlock(int blockIndex) throws IOException{
+        file.seek(blocks.get(blockIndex)[0]);
+        file.readLong();
+        remainingInBlock = file.readInt();
+        int rawLength = file.readInt();
+        byte[] compressed = new byte[file.readInt()];
+        file.readFully(compressed);
+        if(raw.length < rawLength){
+            raw = new byte[rawLength];
+        }
+        inflater.reset();
+        inflater.setInput(compressed);
+        try{
+            int length = 0;
+            while(length < rawLength && !inflater.finished()){
+                length += inflater.inflate(raw, length, rawLength - length);
+            }
+        }catch(DataFormatException e){
+            throw new IOException("Corrupt block " + blockIndex + " in the DP trace.", e);
+        }
+        position = 0;
+        nextBlock = blockIndex + 1;
+    }
+
+    /*
+     * Moves to the next sample, returns false if there are no more samples.
+     */
+    public boolean next() throws IOException{
+        if(pending){
+            pending = false;
+            return true;
+        }
+        if(remainingInBlock == 0){
+            if(nextBlock >= blocks.size()){
+                return false;
+            }
+            readBlock(nextBlock);
+        }
+        readSample();
+        remainingInBlock--;
+        return true;
+    }
+
+    /*
+     * Positions the reader so that next() moves to the first sample with a sample number not less than the given one.
+     * Returns false if there is no such sample.
+     */
+    public boolean seek(long targetSampleNumber) throws IOException{
+        pending = false;
+        int blockIndex = 0;
+        int low = 0;
+        int high = blocks.size() - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            if(blocks.get(mid)[1] <= targetSampleNumber){
+                blockIndex = mid;
+                low = mid + 1;
+            }else{
+                high = mid - 1;
+            }
+        }
+        if(blocks.isEmpty()){
+            return false;
+        }
+        readBlock(blockIndex);
+        while(next()){
+            if(sampleNumber >= targetSampleNumber){
+                pending = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readSample(){
+        sampleNumber = readVarLong();
+        for(int i = 0; i < assignments.length; i++){
+            int[] assignment = assignments[i];
+            if(readVarLong() == DPTraceWriter.FULL){
+                for(int j = 0; j < assignment.length; j++){
+                    assignment[j] = readVarInt();
+                }
+            }else{
+                int changeCount = (int) readVarLong();
+                int site = 0;
+                for(int k = 0; k < changeCount; k++){
+                    site += (int) readVarLong();
+                    assignment[site] = readVarInt();
+                }
+            }
+        }
+
+        for(int i = 0; i < parameterIDs.length; i++){
+            int dim = (int) readVarLong();
+            if(parameterIDs[i].length != dim){
+                parameterIDs[i] = new int[dim];
+            }
+            for(int k = 0; k < dim; k++){
+                parameterIDs[i][k] = readVarInt();
+            }
+            int changeCount = (int) readVarLong();
+            for(int k = 0; k < changeCount; k++){
+                int id = readVarInt();
+                double[] values = new double[(int) readVarLong()];
+                for(int l = 0; l < values.length; l++){
+                    values[l] = Double.longBitsToDouble(readLong());
+                }
+                parameterValues[i].put(id, values);
+            }
+            // Parameters that have left the list are no longer needed.
+            if(parameterValues[i].size() > dim){
+                HashMap<Integer, double[]> currValues = new HashMap<Integer, double[]>();
+                for(int id: parameterIDs[i]){
+                    currValues.put(id, parameterValues[i].get(id));
+                }
+                parameterValues[i] = currValues;
+            }
+        }
+    }
+
+    private long readVarLong(){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do{
+            b = raw[position++];
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        }while((b & 0x80) != 0);
+        return value;
+    }
+
+    // Reads a zigzag encoded ID number.
+    private int readVarInt(){
+        long value = readVarLong();
+        return (int)((value >>> 1) ^ -(value & 1));
+    }
+
+    private long readLong(){
+        long value = 0;
+        for(int i = 0; i < 8; i++){
+            value = (value << 8) | (raw[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public long getSampleCount(){
+        return sampleCount;
+    }
+
+    // The length of the trace without the block that was not completely written, if there is one.
+    public long getDataEnd(){
+        return dataEnd;
+    }
+
+    public long getSampleNumber(){
+        return sampleNumber;
+    }
+
+    public int getPointerCount(){
+        return pointerNames.length;
+    }
+
+    public String getPointerName(int pointerIndex){
+        return pointerNames[pointerIndex];
+    }
+
+    public int getSiteCount(int pointerIndex){
+        return siteCounts[pointerIndex];
+    }
+
+    // The index of the list that holds the parameters of the pointer, or -1 if that list is not in the trace.
+    public int getPointerListIndex(int pointerIndex){
+        return pointerListIndices[pointerIndex];
+    }
+
+    public int getListCount(){
+        return listNames.length;
+    }
+
+    public String getListName(int listIndex){
+        return listNames[listIndex];
+    }
+
+    // The ID numbers of the parameters of each site in the current sample.
+    public int[] getAssignment(int pointerIndex){
+        return assignments[pointerIndex];
+    }
+
+    // The ID numbers of the parameters in the list in the current sample, in the order of the list.
+    public int[] getParameterIDs(int listIndex){
+        return parameterIDs[listIndex];
+    }
+
+    // The values of the parameter with the given ID number in the current sample, or null if it is not in the list.
+    public double[] getParameterValues(int listIndex, int idNumber){
+        return parameterValues[listIndex].get(idNumber);
+    }
+
+    public void close() throws IOException{
+        inflater.end();
+        file.close();
+    }
+
+    @Override
+    public String toString(){
+        return "DP trace of " + Arrays.toString(pointerNames) + " and " + Arrays.toString(listNames) +
+                " with " + sampleCount + " samples in " + blocks.size() + " blocks";
+    }
+}
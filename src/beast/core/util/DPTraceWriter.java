@@ -0,0 +1,273 @@
+package beast.core.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the states of DP pointers and parameter lists to a compact binary trace. The samples are written in
+ * blocks that are compressed separately, so that the trace can be read from any block. Within a block, the
+ * cluster ID numbers of the sites and the values of the parameters are only written when they differ from the
+ * previous sample.
+ */
+public class DPTraceWriter {
+    public static final int MAGIC = 0x44505452;
+    public static final int VERSION = 1;
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    // How the ID numbers of a pointer are written.
+    static final int FULL = 0;
+    static final int CHANGES = 1;
+
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final int listCount;
+
+    private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    private final DataOutputStream block = new DataOutputStream(blockBytes);
+    private final Deflater deflater = new Deflater();
+    private byte[] compressed = new byte[4096];
+    private long firstSampleNumber;
+    private int blockSampleCount = 0;
+
+    // The previous sample in the block, the values of the parameters are keyed by their ID numbers.
+    private final int[][] prevAssignments;
+    private final HashMap<Integer, double[]>[] prevValues;
+
+    public DPTraceWriter(String fileName, String[] pointerNames, int[] siteCounts, int[] pointerListIndices,
+                         String[] listNames, int blockSize) throws IOException{
+        this(fileName, pointerNames, siteCounts, pointerListIndices, listNames, blockSize, false);
+    }
+
+    /*
+     * pointerListIndices holds the index of the list with the parameters of each pointer, or -1 if the list is not traced.
+     * If append is true and the file is a trace of the same pointers and lists, the samples are added to it,
+     * after dropping the block that was not completely written when the previous run stopped.
+     */
+    @SuppressWarnings("unchecked")
+    public DPTraceWriter(String fileName, String[] pointerNames, int[] siteCounts, int[] pointerListIndices,
+                         String[] listNames, int blockSize, boolean append) throws IOException{
+        if(blockSize < 1){
+            throw new RuntimeException("The block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        listCount = listNames.length;
+        prevAssignments = new int[pointerNames.length][];
+        for(int i = 0; i < pointerNames.length; i++){
+            prevAssignments[i] = new int[siteCounts[i]];
+        }
+        prevValues = new HashMap[listCount];
+        for(int i = 0; i < listCount; i++){
+            prevValues[i] = new HashMap<Integer, double[]>();
+        }
+
+        if(append && new File(fileName).length() > 0){
+            long dataEnd = checkTrace(fileName, pointerNames, siteCounts, pointerListIndices, listNames);
+            RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+            try{
+                file.setLength(dataEnd);
+            }finally{
+                file.close();
+            }
+            // Every block starts with a full sample, so nothing of the previous run is needed.
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName, true)));
+            return;
+        }
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(pointerNames.length);
+        for(int i = 0; i < pointerNames.length; i++){
+            out.writeUTF(pointerNames[i]);
+            out.writeInt(siteCounts[i]);
+            out.writeInt(pointerListIndices[i]);
+        }
+        out.writeInt(listCount);
+        for(String listName: listNames){
+            out.writeUTF(listName);
+        }
+    }
+
+    /*
+     * Checks that the trace is of the given pointers and lists, and returns the length of its complete blocks.
+     */
+    private static long checkTrace(String fileName, String[] pointerNames, int[] siteCounts, int[] pointerListIndices,
+                                   String[] listNames) throws IOException{
+        DPTraceReader reader = new DPTraceReader(fileName);
+        try{
+            String[] tracedPointerNames = new String[reader.getPointerCount()];
+            int[] tracedSiteCounts = new int[reader.getPointerCount()];
+            int[] tracedPointerListIndices = new int[reader.getPointerCount()];
+            for(int i = 0; i < tracedPointerNames.length; i++){
+                tracedPointerNames[i] = reader.getPointerName(i);
+                tracedSiteCounts[i] = reader.getSiteCount(i);
+                tracedPointerListIndices[i] = reader.getPointerListIndex(i);
+            }
+            String[] tracedListNames = new String[reader.getListCount()];
+            for(int i = 0; i < tracedListNames.length; i++){
+                tracedListNames[i] = reader.getListName(i);
+            }
+            if(!Arrays.equals(pointerNames, tracedPointerNames) || !Arrays.equals(siteCounts, tracedSiteCounts) ||
+                    !Arrays.equals(pointerListIndices, tracedPointerListIndices) || !Arrays.equals(listNames, tracedListNames)){
+                throw new RuntimeException("Cannot resume the DP trace " + fileName + ", it is a " + reader +
+                        " instead of the pointers " + Arrays.toString(pointerNames) + " and the lists " + Arrays.toString(listNames) + ".");
+            }
+            return reader.getDataEnd();
+        }finally{
+            reader.close();
+        }
+    }
+
+    /*
+     * assignments[i][j] is the ID number of the parameter of site j in pointer i,
+     * parameterIDs[i] and parameterValues[i] are the ID numbers and values of the parameters in list i, in the order of the list.
+     */
+    public void writeSample(long sampleNumber, int[][] assignments, int[][] parameterIDs, double[][][] parameterValues) throws IOException{
+        boolean blockStart = blockSampleCount == 0;
+        if(blockStart){
+            firstSampleNumber = sampleNumber;
+        }
+        writeVarLong(block, sampleNumber);
+
+        for(int i = 0; i < assignments.length; i++){
+            writeAssignment(assignments[i], prevAssignments[i], blockStart);
+        }
+
+        for(int i = 0; i < listCount; i++){
+            writeParameters(parameterIDs[i], parameterValues[i], prevValues[i], blockStart);
+        }
+
+        blockSampleCount++;
+        if(blockSampleCount == blockSize){
+            writeBlock();
+        }
+    }
+
+    private void writeAssignment(int[] assignment, int[] prevAssignment, boolean blockStart) throws IOException{
+        int changeCount = 0;
+        if(!blockStart){
+            for(int j = 0; j < assignment.length; j++){
+                if(assignment[j] != prevAssignment[j]){
+                    changeCount++;
+                }
+            }
+        }
+        // A change takes at least two varints, so many changes are written in full.
+        if(blockStart || changeCount * 2 >= assignment.length){
+            writeVarLong(block, FULL);
+            for(int id: assignment){
+                writeVarLong(block, zigZag(id));
+            }
+        }else{
+            writeVarLong(block, CHANGES);
+            writeVarLong(block, changeCount);
+            int lastSite = 0;
+            for(int j = 0; j < assignment.length; j++){
+                if(assignment[j] != prevAssignment[j]){
+                    writeVarLong(block, j - lastSite);
+                    writeVarLong(block, zigZag(assignment[j]));
+                    lastSite = j;
+                }
+            }
+        }
+        System.arraycopy(assignment, 0, prevAssignment, 0, assignment.length);
+    }
+
+    private void writeParameters(int[] ids, double[][] values, HashMap<Integer, double[]> prevValues, boolean blockStart) throws IOException{
+        writeVarLong(block, ids.length);
+        int changeCount = 0;
+        for(int k = 0; k < ids.length; k++){
+            writeVarLong(block, zigZag(ids[k]));
+            if(blockStart || !equals(prevValues.get(ids[k]), values[k])){
+                changeCount++;
+            }
+        }
+
+        writeVarLong(block, changeCount);
+        HashMap<Integer, double[]> currValues = new HashMap<Integer, double[]>();
+        for(int k = 0; k < ids.length; k++){
+            double[] prev = prevValues.get(ids[k]);
+            if(blockStart || !equals(prev, values[k])){
+                writeVarLong(block, zigZag(ids[k]));
+                writeVarLong(block, values[k].length);
+                for(double value: values[k]){
+                    block.writeDouble(value);
+                }
+                prev = values[k].clone();
+            }
+            currValues.put(ids[k], prev);
+        }
+        prevValues.clear();
+        prevValues.putAll(currValues);
+    }
+
+    private static boolean equals(double[] values1, double[] values2){
+        if(values1 == null || values1.length != values2.length){
+            return false;
+        }
+        for(int i = 0; i < values1.length; i++){
+            if(Double.doubleToLongBits(values1[i]) != Double.doubleToLongBits(values2[i])){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeBlock() throws IOException{
+        block.flush();
+        byte[] raw = blockBytes.toByteArray();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int length = 0;
+        while(!deflater.finished()){
+            if(length == compressed.length){
+                byte[] larger = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, larger, 0, length);
+                compressed = larger;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        out.writeLong(firstSampleNumber);
+        out.writeInt(blockSampleCount);
+        out.writeInt(raw.length);
+        out.writeInt(length);
+        out.write(compressed, 0, length);
+        out.flush();
+
+        blockBytes.reset();
+        blockSampleCount = 0;
+    }
+
+    /*
+     * Writes the samples of the incomplete block and closes the file.
+     */
+    public void close() throws IOException{
+        if(blockSampleCount > 0){
+            writeBlock();
+        }
+        deflater.end();
+        out.close();
+    }
+
+    static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException{
+        while((value & ~0x7FL) != 0){
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,103 @@
+package beast.core.util;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.Operator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+@Description("Logs the timings collected by an InstrumentedOperatorSchedule and TimedDistributions over each logging interval. " +
+        "For every operator it logs the number of steps and acceptances, and the milliseconds spent in the proposal, " +
+        "the evaluation, after an acceptance and after a rejection (the restore of the state). " +
+        "For every distribution it logs the number of calculations and the milliseconds they took. " +
+        "It should be logged by a single logger.")
+public class InstrumentationLogger extends BEASTObject implements Loggable {
+    public Input<InstrumentedOperatorSchedule> scheduleInput = new Input<InstrumentedOperatorSchedule>(
+            "schedule",
+            "The operator schedule that times the operators"
+    );
+
+    public Input<List<TimedDistribution>> distributionsInput = new Input<List<TimedDistribution>>(
+            "distribution",
+            "Distributions that are timed",
+            new ArrayList<TimedDistribution>()
+    );
+
+    private static final int OPERATOR_COLUMN_COUNT = 6;
+    private static final int DISTRIBUTION_COLUMN_COUNT = 2;
+
+    private InstrumentedOperatorSchedule schedule;
+    private List<TimedDistribution> distributions;
+    private List<Operator> operators;
+
+    // The totals at the previous log, so that the values of each interval can be logged.
+    private long[] lastOperatorValues;
+    private long[] lastDistributionValues;
+
+    public void initAndValidate(){
+        schedule = scheduleInput.get();
+        distributions = distributionsInput.get();
+    }
+
+    public void init(PrintStream out){
+        operators = schedule == null ? new ArrayList<Operator>() : new ArrayList<Operator>(schedule.getScheduledOperators());
+        lastOperatorValues = new long[operators.size() * OPERATOR_COLUMN_COUNT];
+        lastDistributionValues = new long[distributions.size() * DISTRIBUTION_COLUMN_COUNT];
+        for(Operator operator: operators){
+            String name = getName(operator);
+            out.print(name + ".steps\t" + name + ".accepted\t" + name + ".proposalTime\t" + name + ".evaluationTime\t" +
+                    name + ".acceptTime\t" + name + ".rejectTime\t");
+        }
+        for(TimedDistribution distribution: distributions){
+            String name = distribution.getID() == null ? distribution.getDistribution().getID() : distribution.getID();
+            out.print(name + ".calls\t" + name + ".time\t");
+        }
+    }
+
+    private static String getName(Operator operator){
+        return operator.getID() == null ? operator.getClass().getSimpleName() : operator.getID();
+    }
+
+    public void log(int nSample, PrintStream out){
+        for(int i = 0; i < operators.size(); i++){
+            TimedOperator timedOperator = schedule.getTimedOperator(operators.get(i));
+            int k = i * OPERATOR_COLUMN_COUNT;
+            if(timedOperator == null){
+                for(int j = 0; j < OPERATOR_COLUMN_COUNT; j++){
+                    out.print("0\t");
+                }
+                continue;
+            }
+            logCount(timedOperator.getStepCount(), k, lastOperatorValues, out);
+            logCount(timedOperator.getAcceptCount(), k + 1, lastOperatorValues, out);
+            logTime(timedOperator.getProposalTime(), k + 2, lastOperatorValues, out);
+            logTime(timedOperator.getEvaluationTime(), k + 3, lastOperatorValues, out);
+            logTime(timedOperator.getAfterAcceptTime(), k + 4, lastOperatorValues, out);
+            logTime(timedOperator.getAfterRejectTime(), k + 5, lastOperatorValues, out);
+        }
+        for(int i = 0; i < distributions.size(); i++){
+            TimedDistribution distribution = distributions.get(i);
+            int k = i * DISTRIBUTION_COLUMN_COUNT;
+            logCount(distribution.getCallCount(), k, lastDistributionValues, out);
+            logTime(distribution.getTime(), k + 1, lastDistributionValues, out);
+        }
+    }
+
+    private static void logCount(long total, int index, long[] lastValues, PrintStream out){
+        out.print((total - lastValues[index]) + "\t");
+        lastValues[index] = total;
+    }
+
+    // Times are logged in milliseconds.
+    private static void logTime(long total, int index, long[] lastValues, PrintStream out){
+        out.print((total - lastValues[index]) / 1e6 + "\t");
+        lastValues[index] = total;
+    }
+
+    public void close(PrintStream out){
+    }
+}
@@ -0,0 +1,118 @@
+package beast.core.util;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.OperatorSchedule;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+@Description("Operator schedule that returns the selected operator wrapped in a TimedOperator, which measures the phases of " +
+        "the step: the proposal, the calculation of the posterior and the store and restore of the state. " +
+        "A step lasts from one selection of an operator to the next.")
+public class InstrumentedOperatorSchedule extends OperatorSchedule {
+    public Input<Boolean> enabledInput = new Input<Boolean>(
+            "enabled",
+            "Whether the steps are timed; if false this is a plain operator schedule (default true)",
+            true
+    );
+
+    private boolean enabled;
+
+    // The operator selected in the current step, or null if the step is not timed.
+    private TimedOperator currentOperator;
+
+    private final IdentityHashMap<Operator, TimedOperator> timedOperatorMap = new IdentityHashMap<Operator, TimedOperator>();
+    private final List<Operator> timedOperators = new ArrayList<Operator>();
+    private final List<Operator> scheduledOperators = new ArrayList<Operator>();
+
+    @Override
+    public void initAndValidate(){
+        super.initAndValidate();
+        enabled = enabledInput.get();
+    }
+
+    @Override
+    public void addOperator(Operator operator){
+        super.addOperator(operator);
+        scheduledOperators.add(operator);
+    }
+
+    @Override
+    public Operator selectOperator(){
+        if(!enabled){
+            return super.selectOperator();
+        }
+        long now = System.nanoTime();
+        endStep(now);
+        boolean timed = isTimedStep(now);
+        Operator operator = super.selectOperator();
+        if(!timed){
+            return operator;
+        }
+        currentOperator = timedOperatorMap.get(operator);
+        if(currentOperator == null){
+            currentOperator = new TimedOperator(operator);
+            timedOperatorMap.put(operator, currentOperator);
+            timedOperators.add(operator);
+        }
+        currentOperator.startStep(System.nanoTime());
+        return currentOperator;
+    }
+
+    /*
+     * Ends the current step if it is timed. This is done when the next operator is selected,
+     * and has to be done once the chain has finished for its last step to be counted.
+     */
+    public void endStep(long now){
+        if(currentOperator != null){
+            stepEnded(currentOperator.endStep(now));
+            currentOperator = null;
+        }
+    }
+
+    /*
+     * Called once for every step, before its operator is selected. Returns whether the step is timed.
+     */
+    protected boolean isTimedStep(long now){
+        return true;
+    }
+
+    /*
+     * Called when a timed step has ended, with its time in nanoseconds.
+     */
+    protected void stepEnded(long stepTime){
+    }
+
+    /*
+     * The operators added to this schedule, in the order they were added.
+     */
+    public List<Operator> getScheduledOperators(){
+        return scheduledOperators;
+    }
+
+    /*
+     * The operators that have been selected in at least one timed step, in the order they were first selected.
+     */
+    public List<Operator> getTimedOperators(){
+        return timedOperators;
+    }
+
+    // The wrapper of the operator, or null if it has not been selected in a timed step.
+    public TimedOperator getTimedOperator(Operator operator){
+        return timedOperatorMap.get(operator);
+    }
+
+    // The total time of the timed steps in which the operator was selected, in nanoseconds.
+    public long getOperatorTime(Operator operator){
+        TimedOperator timedOperator = timedOperatorMap.get(operator);
+        return timedOperator == null ? 0 : timedOperator.getStepTime();
+    }
+
+    public long getOperatorStepCount(Operator operator){
+        TimedOperator timedOperator = timedOperatorMap.get(operator);
+        return timedOperator == null ? 0 : timedOperator.getStepCount();
+    }
+}
@@ -0,0 +1,270 @@
+package beast.core.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * An array list that records the elements added and removed since it was last stored, so that store and restore
+ * only replay those changes instead of copying the whole list.
+ */
+public class JournaledList<E> extends ArrayList<E> {
+    // Beyond this many changes it is cheaper to copy the whole list.
+    public static final int MAX_JOURNAL_SIZE = 1024;
+
+    private static final int ADDED = 0;
+    private static final int REMOVED = 1;
+
+    private final ArrayList<E> storedList = new ArrayList<E>();
+    private final List<E> storedView = Collections.unmodifiableList(storedList);
+    private int[] journalChanges = new int[16];
+    private int[] journalIndices = new int[16];
+    private Object[] journalElements = new Object[16];
+    private int journalSize = 0;
+    private boolean journalOverflow = false;
+
+    public JournaledList(){
+    }
+
+    public JournaledList(Collection<? extends E> elements){
+        super(elements);
+        storedList.addAll(elements);
+    }
+
+    private void record(int change, int index, Object element){
+        if(journalOverflow){
+            return;
+        }
+        if(journalSize == MAX_JOURNAL_SIZE){
+            overflow();
+            return;
+        }
+        if(journalSize == journalChanges.length){
+            int capacity = Math.min(journalSize * 2, MAX_JOURNAL_SIZE);
+            int[] changes = new int[capacity];
+            int[] indices = new int[capacity];
+            Object[] elements = new Object[capacity];
+            System.arraycopy(journalChanges, 0, changes, 0, journalSize);
+            System.arraycopy(journalIndices, 0, indices, 0, journalSize);
+            System.arraycopy(journalElements, 0, elements, 0, journalSize);
+            journalChanges = changes;
+            journalIndices = indices;
+            journalElements = elements;
+        }
+        journalChanges[journalSize] = change;
+        journalIndices[journalSize] = index;
+        journalElements[journalSize] = element;
+        journalSize++;
+    }
+
+    /*
+     * Stops recording the changes, the whole list is copied at the next store or restore.
+     */
+    private void overflow(){
+        clearJournal();
+        journalOverflow = true;
+    }
+
+    private void clearJournal(){
+        for(int i = 0; i < journalSize; i++){
+            journalElements[i] = null;
+        }
+        journalSize = 0;
+        journalOverflow = false;
+    }
+
+    /*
+     * Makes the current content of the list the stored content.
+     */
+    @SuppressWarnings("unchecked")
+    public void store(){
+        if(journalOverflow){
+            storedList.clear();
+            storedList.addAll(this);
+        }else{
+            for(int i = 0; i < journalSize; i++){
+                if(journalChanges[i] == ADDED){
+                    storedList.add(journalIndices[i], (E)journalElements[i]);
+                }else{
+                    storedList.remove(journalIndices[i]);
+                }
+            }
+        }
+        clearJournal();
+    }
+
+    /*
+     * Undoes the changes made since the last store.
+     */
+    @SuppressWarnings("unchecked")
+    public void restore(){
+        if(journalOverflow){
+            super.clear();
+            super.addAll(storedList);
+        }else{
+            for(int i = journalSize - 1; i >= 0; i--){
+                if(journalChanges[i] == ADDED){
+                    super.remove(journalIndices[i]);
+                }else{
+                    super.add(journalIndices[i], (E)journalElements[i]);
+                }
+            }
+        }
+        clearJournal();
+    }
+
+    /*
+     * Returns a read-only view of the list as it was when it was last stored.
+     */
+    public List<E> getStoredList(){
+        return storedView;
+    }
+
+    /*
+     * Returns the elements that are in the stored list but no longer in the list,
+     * these are dropped when the list is stored.
+     */
+    public List<E> getRemovedElements(){
+        return getChangedElements(REMOVED, storedList, this);
+    }
+
+    /*
+     * Returns the elements that are in the list but not in the stored list,
+     * these are dropped when the list is restored.
+     */
+    public List<E> getAddedElements(){
+        return getChangedElements(ADDED, this, storedList);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<E> getChangedElements(int change, List<E> from, List<E> to){
+        ArrayList<E> elements = new ArrayList<E>();
+        IdentityHashMap<Object, Integer> counts = new IdentityHashMap<Object, Integer>();
+        if(journalOverflow){
+            for(E element: from){
+                Integer count = counts.get(element);
+                counts.put(element, count == null ? 1 : count + 1);
+            }
+            for(E element: to){
+                Integer count = counts.get(element);
+                counts.put(element, count == null ? -1 : count - 1);
+            }
+        }else{
+            // Only the elements in the journal can have been added or removed.
+            for(int i = 0; i < journalSize; i++){
+                Integer count = counts.get(journalElements[i]);
+                int delta = journalChanges[i] == change ? 1 : -1;
+                counts.put(journalElements[i], count == null ? delta : count + delta);
+            }
+        }
+        for(Map.Entry<Object, Integer> entry: counts.entrySet()){
+            if(entry.getValue() > 0){
+                elements.add((E)entry.getKey());
+            }
+        }
+        return elements;
+    }
+
+    public boolean hasChanged(){
+        return journalSize > 0 || journalOverflow;
+    }
+
+    @Override
+    public boolean add(E element){
+        record(ADDED, size(), element);
+        return super.add(element);
+    }
+
+    @Override
+    public void add(int index, E element){
+        super.add(index, element);
+        record(ADDED, index, element);
+    }
+
+    @Override
+    public E remove(int index){
+        E element = super.remove(index);
+        record(REMOVED, index, element);
+        return element;
+    }
+
+    @Override
+    public boolean remove(Object element){
+        int index = indexOf(element);
+        if(index < 0){
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public E set(int index, E element){
+        E prevElement = super.set(index, element);
+        record(REMOVED, index, prevElement);
+        record(ADDED, index, element);
+        return prevElement;
+    }
+
+    /* The bulk changes are not recorded element by element. */
+
+    @Override
+    public void clear(){
+        overflow();
+        super.clear();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> elements){
+        overflow();
+        return super.addAll(elements);
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends E> elements){
+        overflow();
+        return super.addAll(index, elements);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> elements){
+        overflow();
+        return super.removeAll(elements);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> elements){
+        overflow();
+        return super.retainAll(elements);
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super E> filter){
+        overflow();
+        return super.removeIf(filter);
+    }
+
+    @Override
+    public void replaceAll(UnaryOperator<E> operator){
+        overflow();
+        super.replaceAll(operator);
+    }
+
+    @Override
+    public void sort(Comparator<? super E> comparator){
+        overflow();
+        super.sort(comparator);
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex){
+        overflow();
+        super.removeRange(fromIndex, toIndex);
+    }
+}
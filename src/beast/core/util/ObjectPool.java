@@ -0,0 +1,69 @@
+package beast.core.util;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+
+/**
+ * A bounded pool of objects that are no longer used by the model, so that they can be re-initialised for a new
+ * cluster instead of being allocated again.
+ */
+public class ObjectPool<T> {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final ArrayDeque<T> objects = new ArrayDeque<T>();
+    private final int capacity;
+    private long takenCount = 0;
+
+    public ObjectPool(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ObjectPool(int capacity){
+        this.capacity = capacity;
+    }
+
+    /*
+     * Returns the object released last, or null if the pool is empty.
+     */
+    public T take(){
+        T object = objects.pollLast();
+        if(object != null){
+            takenCount++;
+        }
+        return object;
+    }
+
+    /*
+     * Adds the object to the pool, it is left to the garbage collector if the pool is full.
+     */
+    public boolean release(T object){
+        if(object == null || objects.size() >= capacity){
+            return false;
+        }
+        objects.addLast(object);
+        return true;
+    }
+
+    public void releaseAll(Collection<? extends T> objects){
+        for(T object: objects){
+            release(object);
+        }
+    }
+
+    public int size(){
+        return objects.size();
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    // The number of objects that have been reused.
+    public long getTakenCount(){
+        return takenCount;
+    }
+
+    public void clear(){
+        objects.clear();
+    }
+}
@@ -0,0 +1,86 @@
+package beast.core.util;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.State;
+
+import java.util.List;
+import java.util.Random;
+
+@Description("Wraps a distribution, such as a tree likelihood or a prior, and measures the time spent calculating it. " +
+        "It can be put in place of the distribution anywhere it is used, e.g. in the posterior.")
+public class TimedDistribution extends Distribution {
+    public Input<Distribution> distributionInput = new Input<Distribution>(
+            "distribution",
+            "The distribution that is timed",
+            Input.Validate.REQUIRED
+    );
+
+    public Input<Boolean> enabledInput = new Input<Boolean>(
+            "enabled",
+            "Whether the calculations are timed (default true)",
+            true
+    );
+
+    private Distribution distribution;
+    private boolean enabled;
+
+    // The total time spent in calculateLogP in nanoseconds, and the number of calls.
+    private long time = 0;
+    private long callCount = 0;
+
+    public void initAndValidate(){
+        distribution = distributionInput.get();
+        enabled = enabledInput.get();
+    }
+
+    @Override
+    public double calculateLogP() throws Exception{
+        if(!enabled){
+            logP = distribution.calculateLogP();
+            return logP;
+        }
+        long start = System.nanoTime();
+        logP = distribution.calculateLogP();
+        time += System.nanoTime() - start;
+        callCount++;
+        return logP;
+    }
+
+    @Override
+    public boolean requiresRecalculation(){
+        return distribution.isDirtyCalculation();
+    }
+
+    public Distribution getDistribution(){
+        return distribution;
+    }
+
+    public long getTime(){
+        return time;
+    }
+
+    public long getCallCount(){
+        return callCount;
+    }
+
+    @Override
+    public List<String> getArguments(){
+        return distribution.getArguments();
+    }
+
+    @Override
+    public List<String> getConditions(){
+        return distribution.getConditions();
+    }
+
+    @Override
+    public void sample(State state, Random random){
+        try{
+            distribution.sample(state, random);
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+}
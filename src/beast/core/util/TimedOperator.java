@@ -0,0 +1,184 @@
+package beast.core.util;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Evaluator;
+import beast.core.Operator;
+import beast.core.StateNode;
+
+import java.util.List;
+
+@Description("Wraps an operator and measures the phases of the steps in which it is selected. " +
+        "It is created by InstrumentedOperatorSchedule and returned instead of the operator in the steps that are timed.")
+public class TimedOperator extends Operator {
+    private final Operator operator;
+
+    // Phases of a step, in nanoseconds.
+    private long proposalTime = 0;
+    private long evaluationTime = 0;
+    private long afterAcceptTime = 0;
+    private long afterRejectTime = 0;
+    private long stepTime = 0;
+    private long stepCount = 0;
+    private long acceptCount = 0;
+
+    private long stepStartTime;
+    private long proposalEndTime;
+    private long decisionTime;
+    private boolean decided;
+    private boolean accepted;
+
+    public TimedOperator(Operator operator){
+        this.operator = operator;
+        setID(operator.getID());
+    }
+
+    public void initAndValidate(){
+    }
+
+    public Operator getOperator(){
+        return operator;
+    }
+
+    /*
+     * Called by the schedule when the operator is selected.
+     */
+    void startStep(long now){
+        stepStartTime = now;
+        proposalEndTime = now;
+        decided = false;
+    }
+
+    /*
+     * Called by the schedule when the next operator is selected.
+     * The time since the decision is the restore of the state after a rejection, or the accept path and logging after an acceptance.
+     * Returns the time of the whole step.
+     */
+    long endStep(long now){
+        if(decided){
+            if(accepted){
+                afterAcceptTime += now - decisionTime;
+            }else{
+                afterRejectTime += now - decisionTime;
+            }
+        }
+        stepTime += now - stepStartTime;
+        stepCount++;
+        return now - stepStartTime;
+    }
+
+    @Override
+    public double proposal(){
+        long start = System.nanoTime();
+        double logHastingsRatio = operator.proposal();
+        proposalEndTime = System.nanoTime();
+        proposalTime += proposalEndTime - start;
+        return logHastingsRatio;
+    }
+
+    @Override
+    public double proposal(Evaluator evaluator){
+        long start = System.nanoTime();
+        double logHastingsRatio = operator.proposal(evaluator);
+        proposalEndTime = System.nanoTime();
+        proposalTime += proposalEndTime - start;
+        return logHastingsRatio;
+    }
+
+    /*
+     * The evaluation lasts from the end of the proposal to the decision,
+     * which includes storing the calculation nodes, calculating the posterior and accepting the calculation nodes on acceptance.
+     */
+    private void decide(boolean accepted){
+        decisionTime = System.nanoTime();
+        evaluationTime += decisionTime - proposalEndTime;
+        decided = true;
+        this.accepted = accepted;
+        if(accepted){
+            acceptCount++;
+        }
+    }
+
+    @Override
+    public void accept(){
+        decide(true);
+        operator.accept();
+    }
+
+    @Override
+    public void reject(){
+        decide(false);
+        operator.reject();
+    }
+
+    @Override
+    public void reject(int reason){
+        decide(false);
+        operator.reject(reason);
+    }
+
+    @Override
+    public void optimize(double logAlpha){
+        operator.optimize(logAlpha);
+    }
+
+    @Override
+    public double getWeight(){
+        return operator.getWeight();
+    }
+
+    public boolean requiresStateInitialisation(){
+        return operator.requiresStateInitialisation();
+    }
+
+    public Distribution getEvaluatorDistribution(){
+        return operator.getEvaluatorDistribution();
+    }
+
+    public List<StateNode> listStateNodes(){
+        try{
+            return operator.listStateNodes();
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String getName(){
+        return operator.getName();
+    }
+
+    @Override
+    public String toString(){
+        return operator.toString();
+    }
+
+    public long getProposalTime(){
+        return proposalTime;
+    }
+
+    public long getEvaluationTime(){
+        return evaluationTime;
+    }
+
+    public long getAfterAcceptTime(){
+        return afterAcceptTime;
+    }
+
+    public long getAfterRejectTime(){
+        return afterRejectTime;
+    }
+
+    // The time of the whole steps, from the selection of this operator to the selection of the next one.
+    public long getStepTime(){
+        return stepTime;
+    }
+
+    public long getStepCount(){
+        return stepCount;
+    }
+
+    public long getAcceptCount(){
+        return acceptCount;
+    }
+}
@@ -76,58 +76,98 @@ public class SynchronizableUCRelaxedClock extends BranchRateModel.Base {
     }
 
     public double getRateForBranch(Node node) {
-        synchronized (this){
-            if (node.isRoot()) {
-                // root has no rate
-                return 1;
-            }
-            if (recompute) {
-                prepare();
-                recompute = false;
-            }
-            if (renormalize) {
-                if (normalize) {
-                    computeFactor();
-                }
-                renormalize = false;
-            }
+        if (node.isRoot()) {
+            // root has no rate
+            return 1;
+        }
+        // The rates are brought up to date once per state, so the threads evaluating the likelihood read them without locking
+        if (!ratesKnown) {
+            publishBranchRates();
+        }
+        return branchRates[node.getNr()] * scaleFactor * meanRateValue;
+    }
+
+    /*
+     * Brings the rates of the branches up to date with the current state. The category rate of each branch
+     * is kept between states and updated by requiresRecalculation, so only the scale factor and the mean rate
+     * are set here, unless the rate distribution or the root has changed.
+     */
+    private synchronized void publishBranchRates() {
+        if (ratesKnown) {
+            return;
+        }
+        if (recompute) {
+            prepare();
+            recompute = false;
+            categoryRatesKnown = false;
+        }
+        if (!categoryRatesKnown) {
+            setCategoryRates();
+        }
+        if (normalize) {
+            computeFactor();
         }
+        meanRateValue = meanRate.getValue();
+        ratesKnown = true;
+    }
 
-        int nodeNumber = node.getNr();
+    /*
+     * Sets the category rate of every branch from scratch.
+     */
+    private void setCategoryRates() {
+        int nodeCount = tree.getNodeCount();
+        if (branchRates == null || branchRates.length != nodeCount) {
+            branchRates = new double[nodeCount];
+            storedBranchRates = new double[nodeCount];
+        }
+        ratesRootNr = tree.getRoot().getNr();
+        for (int i = 0; i < nodeCount; i++) {
+            setCategoryRate(i);
+        }
+        categoryRatesKnown = true;
+        factorKnown = false;
+    }
 
+    private void setCategoryRate(int nodeNr) {
+        if (nodeNr == ratesRootNr) {
+            branchRates[nodeNr] = 1;
+            return;
+        }
+        int nodeNumber = nodeNr;
         if (nodeNumber == categories.getDimension()) {
             // root node has nr less than #categories, so use that nr
-            nodeNumber = node.getTree().getRoot().getNr();
+            nodeNumber = ratesRootNr;
         }
-
-        int rateCategory = categories.getValue(nodeNumber);
-
-        return rates[rateCategory] * scaleFactor * meanRate.getValue();
+        branchRates[nodeNr] = rates[categories.getValue(nodeNumber)];
     }
 
     // compute scale factor
 
+    /*
+     * The rate times length of each branch is kept, so that the sums are only calculated from scratch
+     * when the root or the rates have changed. Otherwise they are kept up to date by updateDirtyBranches.
+     */
     private void computeFactor() {
 
         //scale mean rate to 1.0 or separate parameter
 
-        double treeRate = 0.0;
-        double treeTime = 0.0;
-
-        for (int i = 0; i < tree.getNodeCount(); i++) {
-            Node node = tree.getNode(i);
-            if (!node.isRoot()) {
-                int nodeNumber = node.getNr();
-                if (nodeNumber == categories.getDimension()) {
-                    // root node has nr less than #categories, so use that nr
-                    nodeNumber = node.getTree().getRoot().getNr();
-                }
-                int rateCategory = categories.getValue(nodeNumber);
-                treeRate += rates[rateCategory] * node.getLength();
-                treeTime += node.getLength();
-
-                //System.out.println("rates and time\t" + rates[rateCategory] + "\t" + node.getLength());
+        int nodeCount = tree.getNodeCount();
+        if (!factorKnown || branchRateTimes == null || branchRateTimes.length != nodeCount) {
+            if (branchRateTimes == null || branchRateTimes.length != nodeCount) {
+                branchRateTimes = new double[nodeCount];
+                branchTimes = new double[nodeCount];
+                storedBranchRateTimes = new double[nodeCount];
+                storedBranchTimes = new double[nodeCount];
+            }
+            treeRate = 0.0;
+            treeTime = 0.0;
+            for (int i = 0; i < nodeCount; i++) {
+                setBranchRateTime(tree.getNode(i));
+                treeRate += branchRateTimes[i];
+                treeTime += branchTimes[i];
             }
+            factorKnown = true;
+            factorUpdateCount = 0;
         }
         //treeRate /= treeTime;
 
@@ -137,6 +177,72 @@ public class SynchronizableUCRelaxedClock extends BranchRateModel.Base {
         //System.out.println("scaleFactor\t\t\t\t\t" + scaleFactor);
     }
 
+    /*
+     * Updates the category rates, and the sums for the normalisation, of the branches whose category or length
+     * has been changed by the proposal. This is done while the inputs are still marked dirty.
+     * The tree is not visited when only the mean rate has changed, and the nodes are only checked
+     * for changed lengths when the rates are normalised.
+     */
+    private void updateDirtyBranches() {
+        boolean treeDirty = tree.somethingIsDirty();
+        boolean categoriesDirty = categories.somethingIsDirty();
+        if (!treeDirty && !categoriesDirty) {
+            return;
+        }
+        int rootNr = tree.getRoot().getNr();
+        if (rootNr != ratesRootNr) {
+            categoryRatesKnown = false;
+            return;
+        }
+        boolean updateFactor = normalize && factorKnown;
+        if (updateFactor && factorUpdateCount > MAX_FACTOR_UPDATE_COUNT) {
+            factorKnown = false;
+            updateFactor = false;
+        }
+        if (categoriesDirty) {
+            int categoryCount = categories.getDimension();
+            for (int i = 0; i < categoryCount; i++) {
+                if (categories.isDirty(i)) {
+                    // the category of the root nr belongs to the node numbered #categories
+                    int nodeNr = i == rootNr ? categoryCount : i;
+                    setCategoryRate(nodeNr);
+                    if (updateFactor) {
+                        updateBranchRateTime(tree.getNode(nodeNr));
+                    }
+                }
+            }
+        }
+        if (treeDirty && updateFactor) {
+            for (int i = 0; i < branchRateTimes.length; i++) {
+                Node node = tree.getNode(i);
+                if (node.isDirty() != Tree.IS_CLEAN) {
+                    updateBranchRateTime(node);
+                }
+            }
+        }
+    }
+
+    private void updateBranchRateTime(Node node) {
+        int i = node.getNr();
+        double prevRateTime = branchRateTimes[i];
+        double prevTime = branchTimes[i];
+        setBranchRateTime(node);
+        treeRate += branchRateTimes[i] - prevRateTime;
+        treeTime += branchTimes[i] - prevTime;
+        factorUpdateCount++;
+    }
+
+    private void setBranchRateTime(Node node) {
+        int i = node.getNr();
+        if (node.isRoot()) {
+            branchRateTimes[i] = 0.0;
+            branchTimes[i] = 0.0;
+            return;
+        }
+        branchRateTimes[i] = branchRates[i] * node.getLength();
+        branchTimes[i] = node.getLength();
+    }
+
 
     private void prepare() {
 
@@ -166,7 +272,8 @@ public class SynchronizableUCRelaxedClock extends BranchRateModel.Base {
     @Override
     protected boolean requiresRecalculation() {
         recompute = false;
-        renormalize = true;
+        // The rates are brought up to date again at the next request
+        ratesKnown = false;
 
 //        if (treeInput.get().somethingIsDirty()) {
 //        	recompute = true;
@@ -177,6 +284,9 @@ public class SynchronizableUCRelaxedClock extends BranchRateModel.Base {
             recompute = true;
             return true;
         }
+        if (categoryRatesKnown) {
+            updateDirtyBranches();
+        }
         // NOT processed as trait on the tree, so DO mark as dirty
         if (categoryInput.get().somethingIsDirty()) {
             //recompute = true;
@@ -193,6 +303,21 @@ public class SynchronizableUCRelaxedClock extends BranchRateModel.Base {
     public void store() {
         System.arraycopy(rates, 0, storedRates, 0, rates.length);
         storedScaleFactor = scaleFactor;
+        storedMeanRateValue = meanRateValue;
+        if (branchRates != null) {
+            System.arraycopy(branchRates, 0, storedBranchRates, 0, branchRates.length);
+        }
+        if (branchRateTimes != null) {
+            System.arraycopy(branchRateTimes, 0, storedBranchRateTimes, 0, branchRateTimes.length);
+            System.arraycopy(branchTimes, 0, storedBranchTimes, 0, branchTimes.length);
+        }
+        storedTreeRate = treeRate;
+        storedTreeTime = treeTime;
+        storedFactorKnown = factorKnown;
+        storedFactorUpdateCount = factorUpdateCount;
+        storedCategoryRatesKnown = categoryRatesKnown;
+        storedRatesRootNr = ratesRootNr;
+        storedRatesKnown = ratesKnown;
         super.store();
     }
 
@@ -202,6 +327,27 @@ public class SynchronizableUCRelaxedClock extends BranchRateModel.Base {
         rates = storedRates;
         storedRates = tmp;
         scaleFactor = storedScaleFactor;
+        meanRateValue = storedMeanRateValue;
+        if (branchRates != null) {
+            tmp = branchRates;
+            branchRates = storedBranchRates;
+            storedBranchRates = tmp;
+        }
+        if (branchRateTimes != null) {
+            tmp = branchRateTimes;
+            branchRateTimes = storedBranchRateTimes;
+            storedBranchRateTimes = tmp;
+            tmp = branchTimes;
+            branchTimes = storedBranchTimes;
+            storedBranchTimes = tmp;
+        }
+        treeRate = storedTreeRate;
+        treeTime = storedTreeTime;
+        factorKnown = storedFactorKnown;
+        factorUpdateCount = storedFactorUpdateCount;
+        categoryRatesKnown = storedCategoryRatesKnown;
+        ratesRootNr = storedRatesRootNr;
+        ratesKnown = storedRatesKnown;
         super.restore();
     }
 
@@ -209,13 +355,43 @@ public class SynchronizableUCRelaxedClock extends BranchRateModel.Base {
     IntegerParameter categories;
     Tree tree;
 
+    // The sums for the normalisation are calculated from scratch after this many branches have been updated.
+    private static final int MAX_FACTOR_UPDATE_COUNT = 100000;
+
     private boolean normalize = false;
     private boolean recompute = true;
-    private boolean renormalize = true;
 
     private double[] rates;
     private double[] storedRates;
     private double scaleFactor = 1.0;
     private double storedScaleFactor = 1.0;
+    private double meanRateValue = 1.0;
+    private double storedMeanRateValue = 1.0;
+
+    // True if the rates of the branches are up to date with the current state.
+    private volatile boolean ratesKnown = false;
+    private boolean storedRatesKnown = false;
+
+    // The rate of the category of each branch, indexed by node number. It is kept between states.
+    private double[] branchRates;
+    private double[] storedBranchRates;
+    private boolean categoryRatesKnown = false;
+    private boolean storedCategoryRatesKnown = false;
+    private int ratesRootNr = -1;
+    private int storedRatesRootNr = -1;
+
+    // The rate times length and the length of each branch that make up the sums for the normalisation.
+    private double[] branchRateTimes;
+    private double[] branchTimes;
+    private double[] storedBranchRateTimes;
+    private double[] storedBranchTimes;
+    private double treeRate;
+    private double treeTime;
+    private double storedTreeRate;
+    private double storedTreeTime;
+    private boolean factorKnown = false;
+    private boolean storedFactorKnown = false;
+    private int factorUpdateCount = 0;
+    private int storedFactorUpdateCount = 0;
 
 }
@@ -0,0 +1,136 @@
+package beast.evolution.likelihood;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates the likelihoods of the clusters in a DP mixture on a persistent work-stealing thread pool. Each
+ * dirty cluster is a task weighted by its number of unmasked patterns. The pool is shared by all the evaluators
+ * with the same number of threads, so the threads persist across the MCMC steps.
+ */
+public class ClusterLikelihoodEvaluator {
+    private final int threadCount;
+    // The shared pool with threadCount threads.
+    private ForkJoinPool pool;
+
+    // Ranges with a total cost below this are evaluated without further splitting.
+    private final int minCostPerTask;
+
+    private NewWVTreeLikelihood[] dirtyTreeLiks = new NewWVTreeLikelihood[0];
+    private long[] cumulativeCosts = new long[1];
+    private int dirtyCount;
+
+    public ClusterLikelihoodEvaluator(int threadCount){
+        this(threadCount, 1);
+    }
+
+    public ClusterLikelihoodEvaluator(int threadCount, int minCostPerTask){
+        this.threadCount = Math.max(1, threadCount);
+        this.minCostPerTask = minCostPerTask;
+        pool = SharedForkJoinPools.getPool(this.threadCount);
+    }
+
+    public int getThreadCount(){
+        return threadCount;
+    }
+
+    /*
+     * Returns the shared pool, which is created again if it has been shut down.
+     */
+    private ForkJoinPool getPool(){
+        if(pool.isShutdown()){
+            pool = SharedForkJoinPools.getPool(threadCount);
+        }
+        return pool;
+    }
+
+    /*
+     * Recalculates the dirty tree likelihoods in parallel and returns the sum of the log-likelihoods.
+     * The sum is always taken sequentially in the order of the list,
+     * so the result does not depend on how the work was scheduled.
+     */
+    public double calculateLogP(List<NewWVTreeLikelihood> treeLiks){
+        collectDirty(treeLiks);
+
+        if(dirtyCount == 1){
+            dirtyTreeLiks[0].calculateLogP();
+        }else if(dirtyCount > 1){
+            getPool().invoke(new ClusterTask(0, dirtyCount));
+        }
+
+        double logP = 0.0;
+        for(NewWVTreeLikelihood treeLik : treeLiks){
+            logP += treeLik.getCurrentLogP();
+        }
+
+        // Do not keep references to likelihoods that may be discarded.
+        for(int i = 0; i < dirtyCount; i++){
+            dirtyTreeLiks[i] = null;
+        }
+        return logP;
+    }
+
+    private void collectDirty(List<NewWVTreeLikelihood> treeLiks){
+        int size = treeLiks.size();
+        if(dirtyTreeLiks.length < size){
+            dirtyTreeLiks = new NewWVTreeLikelihood[size];
+            cumulativeCosts = new long[size + 1];
+        }
+
+        dirtyCount = 0;
+        for(NewWVTreeLikelihood treeLik : treeLiks){
+            if(treeLik.isDirtyCalculation()){
+                dirtyTreeLiks[dirtyCount] = treeLik;
+                // Every task costs at least one unit so that empty clusters are still spread out.
+                cumulativeCosts[dirtyCount + 1] = cumulativeCosts[dirtyCount] + Math.max(1, treeLik.getUnmaskedPatternCount());
+                dirtyCount++;
+            }
+        }
+    }
+
+    /*
+     * Returns the index in (start, end) that best halves the cost of the range [start, end).
+     */
+    private int findSplit(int start, int end){
+        long target = (cumulativeCosts[start] + cumulativeCosts[end]) / 2;
+        int lo = start + 1;
+        int hi = end - 1;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(cumulativeCosts[mid] < target){
+                lo = mid + 1;
+            }else{
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    class ClusterTask extends RecursiveAction {
+        private final int start;
+        private final int end;
+
+        ClusterTask(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute(){
+            if(end - start == 1 || cumulativeCosts[end] - cumulativeCosts[start] <= minCostPerTask){
+                for(int i = start; i < end; i++){
+                    NewWVTreeLikelihood treeLik = dirtyTreeLiks[i];
+                    try{
+                        treeLik.calculateLogP();
+                    }catch(RuntimeException e){
+                        throw new RuntimeException("Something went wrong in a calculation of " + treeLik.getID(), e);
+                    }
+                }
+            }else{
+                int split = findSplit(start, end);
+                invokeAll(new ClusterTask(start, split), new ClusterTask(split, end));
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package beast.evolution.likelihood;
+
+/**
+ * Counts the work done by the cluster likelihoods of a DPTreeLikelihood: the clusters recalculated, the
+ * patterns, partials and transition matrices recomputed, the times scaling was switched and the tree likelihoods
+ * created and destroyed.
+ */
+public class ClusterLikelihoodStatistics {
+    // Calls of calculateLogP of the DPTreeLikelihood.
+    public static final int EVALUATIONS = 0;
+    // Cluster likelihoods that were recalculated, i.e. dirty clusters.
+    public static final int DIRTY_CLUSTERS = 1;
+    // The patterns whose partials were recomputed, summed over the traversals.
+    public static final int PATTERNS_RECOMPUTED = 2;
+    // Internal nodes whose partials were recomputed.
+    public static final int NODES_TRAVERSED = 3;
+    // Transition probability matrices recomputed, one per branch and rate category.
+    public static final int MATRICES_RECOMPUTED = 4;
+    public static final int SCALING_TOGGLES = 5;
+    // Tree likelihoods of new clusters, including those reused from the pool.
+    public static final int TREE_LIKELIHOODS_CREATED = 6;
+    public static final int TREE_LIKELIHOODS_REUSED = 7;
+    // Tree likelihoods of clusters removed by an accepted proposal or added by a rejected one.
+    public static final int TREE_LIKELIHOODS_DESTROYED = 8;
+    public static final int COUNT_TYPES = 9;
+
+    public static final String[] NAMES = new String[]{
+            "evaluations",
+            "dirtyClusters",
+            "patternsRecomputed",
+            "nodesTraversed",
+            "matricesRecomputed",
+            "scalingToggles",
+            "treeLikelihoodsCreated",
+            "treeLikelihoodsReused",
+            "treeLikelihoodsDestroyed"
+    };
+
+    private final long[] counts = new long[COUNT_TYPES];
+
+    public void increment(int type){
+        counts[type]++;
+    }
+
+    public void add(int type, long count){
+        counts[type] += count;
+    }
+
+    public long get(int type){
+        return counts[type];
+    }
+
+    /*
+     * Adds the counts of a cluster likelihood accumulated since they were last collected.
+     */
+    public void collect(NewWVTreeLikelihood treeLik){
+        treeLik.collectStatistics(this);
+    }
+}
@@ -0,0 +1,50 @@
+package beast.evolution.likelihood;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+
+import java.io.PrintStream;
+
+@Description("Logs the work done by the cluster likelihoods of a DPTreeLikelihood over each logging interval: " +
+        "the evaluations, dirty clusters, patterns recomputed, nodes traversed, transition matrices recomputed, " +
+        "scaling toggles, and tree likelihoods created, reused from the pool and destroyed. " +
+        "The statistics are only collected when this logger is used, and it should be logged by a single logger.")
+public class ClusterLikelihoodStatisticsLogger extends BEASTObject implements Loggable {
+    public Input<DPTreeLikelihood> treeLikelihoodInput = new Input<DPTreeLikelihood>(
+            "treeLikelihood",
+            "The DP tree likelihood whose cluster likelihoods are monitored",
+            Input.Validate.REQUIRED
+    );
+
+    private ClusterLikelihoodStatistics statistics;
+    private String prefix;
+
+    // The counts at the previous log, so that the counts of each interval can be logged.
+    private final long[] lastCounts = new long[ClusterLikelihoodStatistics.COUNT_TYPES];
+
+    public void initAndValidate(){
+        DPTreeLikelihood treeLik = treeLikelihoodInput.get();
+        statistics = treeLik.getStatistics();
+        prefix = treeLik.getID() == null ? "" : treeLik.getID() + ".";
+    }
+
+    public void init(PrintStream out){
+        for(int i = 0; i < ClusterLikelihoodStatistics.COUNT_TYPES; i++){
+            out.print(prefix + ClusterLikelihoodStatistics.NAMES[i] + "\t");
+            lastCounts[i] = statistics.get(i);
+        }
+    }
+
+    public void log(int nSample, PrintStream out){
+        for(int i = 0; i < ClusterLikelihoodStatistics.COUNT_TYPES; i++){
+            long count = statistics.get(i);
+            out.print((count - lastCounts[i]) + "\t");
+            lastCounts[i] = count;
+        }
+    }
+
+    public void close(PrintStream out){
+    }
+}
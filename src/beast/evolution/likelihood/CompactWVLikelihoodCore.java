@@ -0,0 +1,371 @@
+package beast.evolution.likelihood;
+
+import java.util.Arrays;
+
+/**
+ * A likelihood core that stores the partials of the internal nodes only for the patterns that are unmasked.
+ * Each unmasked pattern is given a slot in a dense array of partials, so the memory used by a cluster
+ * scales with the number of patterns the cluster owns rather than the number of patterns in the alignment.
+ *
+ * Slots are given to patterns when they are unmasked. Masked patterns keep their slots until the next store,
+ * so their partials are still available if the state is restored. Slots given out since the last store are
+ * released on restore. The slots are repacked on store when more than half of them are unused.
+ *
+ * The leaf states, scaling factors and the integrated partials remain indexed by the patterns.
+ * Leaf partials (i.e. when ambiguities are used) are not supported, in which case all patterns are given slots.
+ */
+public class CompactWVLikelihoodCore extends WVLikelihoodCore{
+    public static final int MIN_SLOT_CAPACITY = 16;
+
+    private double m_fScalingThreshold = 1.0E-100;
+
+    // The slot of each pattern, -1 if the pattern has no slot.
+    private int[] patternSlots;
+    // The pattern in each slot, -1 if the slot is free.
+    private int[] slotPatterns;
+    // All slots from slotCount onwards are free and unused.
+    private int slotCount;
+    private int slotCapacity;
+    private int[] freeSlots;
+    private int freeSlotCount;
+
+    // Patterns that have been given slots since the last store.
+    private int[] newSlotPatterns;
+    private int newSlotPatternCount;
+
+    private boolean useAmbiguities;
+
+    public CompactWVLikelihoodCore(int nStateCount, boolean[] unmasked) {
+        super(nStateCount, unmasked);
+    }
+
+    public void initialize(int nNodeCount, int nPatternCount, int nMatrixCount, boolean bIntegrateCategories, boolean useAmbiguities){
+        super.initialize(nNodeCount, nPatternCount, nMatrixCount, bIntegrateCategories, useAmbiguities);
+        this.useAmbiguities = useAmbiguities;
+
+        patternSlots = new int[nrOfPatterns];
+        Arrays.fill(patternSlots, -1);
+        newSlotPatterns = new int[nrOfPatterns];
+
+        int unmaskedCount = 0;
+        for(int i = 0; i < nrOfPatterns; i++){
+            if(unmasked[i] || useAmbiguities){
+                unmaskedCount++;
+            }
+        }
+        slotCapacity = useAmbiguities ? nrOfPatterns : Math.min(nrOfPatterns, Math.max(MIN_SLOT_CAPACITY, unmaskedCount));
+        slotPatterns = new int[slotCapacity];
+        Arrays.fill(slotPatterns, -1);
+        freeSlots = new int[slotCapacity];
+        freeSlotCount = 0;
+        slotCount = 0;
+        for(int i = 0; i < nrOfPatterns; i++){
+            if(unmasked[i] || useAmbiguities){
+                patternSlots[i] = slotCount;
+                slotPatterns[slotCount++] = i;
+            }
+        }
+        partialsSize = slotCapacity * nrOfStates * nrOfMatrices;
+    }
+
+    /*
+     * The number of patterns the partials are currently allocated for.
+     */
+    public int getSlotCapacity(){
+        return slotCapacity;
+    }
+
+    public int getSlot(int patID){
+        return patternSlots[patID];
+    }
+
+    @Override
+    public void createNodePartials(int iNodeIndex) {
+        partials[0][iNodeIndex] = new double[partialsSize];
+        partials[1][iNodeIndex] = new double[partialsSize];
+    }
+
+    @Override
+    public void createPreOrderPartials(){
+        throw new RuntimeException("Pre-order partials are not supported with compact partials.");
+    }
+
+    @Override
+    public void setNodePartials(int iNodeIndex, double[] fPartials) {
+        if(!useAmbiguities){
+            throw new RuntimeException("Leaf partials are only supported when ambiguities are used.");
+        }
+        // All patterns have slots in their own order, so this is the same as the full storage.
+        super.setNodePartials(iNodeIndex, fPartials);
+    }
+
+    @Override
+    public void setUnmasked(int patID, boolean unmasked){
+        super.setUnmasked(patID, unmasked);
+        if(unmasked){
+            ensureSlot(patID);
+        }
+    }
+
+    @Override
+    public void setUnmasked(boolean[] unmasked){
+        super.setUnmasked(unmasked);
+        if(patternSlots != null){
+            for(int i = 0; i < unmasked.length; i++){
+                if(unmasked[i]){
+                    ensureSlot(i);
+                }
+            }
+        }
+    }
+
+    private void ensureSlot(int patID){
+        if(patternSlots == null || patternSlots[patID] > -1){
+            return;
+        }
+
+        int slot;
+        if(freeSlotCount > 0){
+            slot = freeSlots[--freeSlotCount];
+        }else{
+            if(slotCount == slotCapacity){
+                resize(Math.min(nrOfPatterns, Math.max(MIN_SLOT_CAPACITY, slotCapacity * 2)), false);
+            }
+            slot = slotCount++;
+        }
+        patternSlots[patID] = slot;
+        slotPatterns[slot] = patID;
+        newSlotPatterns[newSlotPatternCount++] = patID;
+    }
+
+    private void releaseSlot(int patID){
+        int slot = patternSlots[patID];
+        patternSlots[patID] = -1;
+        slotPatterns[slot] = -1;
+        freeSlots[freeSlotCount++] = slot;
+    }
+
+    /*
+     * Changes the number of slots of the partials.
+     * If repack is true, the used slots are moved to the front in the order of the patterns,
+     * and only the current partials are carried over.
+     * Otherwise the slots keep their positions and both the current and stored partials are carried over.
+     */
+    private void resize(int newCapacity, boolean repack){
+        int[] newSlots = new int[slotCapacity];
+        int newSlotCount = 0;
+        if(repack){
+            for(int i = 0; i < nrOfPatterns; i++){
+                if(patternSlots[i] > -1){
+                    newSlots[patternSlots[i]] = newSlotCount++;
+                }
+            }
+        }else{
+            for(int i = 0; i < slotCount; i++){
+                newSlots[i] = i;
+            }
+            newSlotCount = slotCount;
+        }
+
+        int newPartialsSize = newCapacity * nrOfStates * nrOfMatrices;
+        for(int iNode = 0; iNode < nrOfNodes; iNode++){
+            if(partials[0][iNode] == null){
+                continue;
+            }
+            for(int iBuffer = 0; iBuffer < 2; iBuffer++){
+                double[] oldPartials = partials[iBuffer][iNode];
+                double[] newPartials = new double[newPartialsSize];
+                if(!repack || iBuffer == currentPartialsIndex[iNode]){
+                    for(int s = 0; s < slotCount; s++){
+                        if(slotPatterns[s] < 0){
+                            continue;
+                        }
+                        for(int l = 0; l < nrOfMatrices; l++){
+                            System.arraycopy(
+                                    oldPartials, (l * slotCapacity + s) * nrOfStates,
+                                    newPartials, (l * newCapacity + newSlots[s]) * nrOfStates,
+                                    nrOfStates);
+                        }
+                    }
+                }
+                partials[iBuffer][iNode] = newPartials;
+            }
+        }
+
+        int[] newSlotPatterns = new int[newCapacity];
+        Arrays.fill(newSlotPatterns, -1);
+        for(int s = 0; s < slotCount; s++){
+            if(slotPatterns[s] > -1){
+                newSlotPatterns[newSlots[s]] = slotPatterns[s];
+                patternSlots[slotPatterns[s]] = newSlots[s];
+            }
+        }
+
+        if(repack){
+            freeSlotCount = 0;
+        }
+        int[] newFreeSlots = new int[newCapacity];
+        System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeSlotCount);
+
+        slotPatterns = newSlotPatterns;
+        freeSlots = newFreeSlots;
+        slotCount = newSlotCount;
+        slotCapacity = newCapacity;
+        partialsSize = newPartialsSize;
+    }
+
+    /*
+     * Calculates the partials of node 3 from its children nodes 1 and 2 for the patterns that have slots.
+     * A child with a gap or unknown state contributes a factor of one.
+     */
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        int[] iStates1 = states[nodeIndex1];
+        int[] iStates2 = states[nodeIndex2];
+        double[] fMatrices1 = matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1];
+        double[] fMatrices2 = matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2];
+        double[] fPartials1 = partials[currentPartialsIndex[nodeIndex1]][nodeIndex1];
+        double[] fPartials2 = partials[currentPartialsIndex[nodeIndex2]][nodeIndex2];
+        double[] fPartials3 = partials[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+
+        double value1, value2;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            for (int s = 0; s < slotCount; s++) {
+                int k = slotPatterns[s];
+                if(k < 0 || !unmasked[k]){
+                    continue;
+                }
+
+                int u = (l * slotCapacity + s) * nrOfStates;
+                int w = l * matrixSize;
+                for (int i = 0; i < nrOfStates; i++) {
+                    if(iStates1 != null){
+                        int state1 = iStates1[k];
+                        value1 = state1 < nrOfStates ? fMatrices1[w + state1] : 1.0;
+                    }else{
+                        value1 = 0.0;
+                        for (int j = 0; j < nrOfStates; j++) {
+                            value1 += fMatrices1[w + j] * fPartials1[u + j];
+                        }
+                    }
+
+                    if(iStates2 != null){
+                        int state2 = iStates2[k];
+                        value2 = state2 < nrOfStates ? fMatrices2[w + state2] : 1.0;
+                    }else{
+                        value2 = 0.0;
+                        for (int j = 0; j < nrOfStates; j++) {
+                            value2 += fMatrices2[w + j] * fPartials2[u + j];
+                        }
+                    }
+
+                    fPartials3[u + i] = value1 * value2;
+                    w += nrOfStates;
+                }
+            }
+        }
+
+        if (useScaling) {
+            scalePartials(nodeIndex3);
+        }
+    }
+
+    @Override
+    protected void scalePartials(int iNodeIndex) {
+        double[] fPartials = partials[currentPartialsIndex[iNodeIndex]][iNodeIndex];
+        for (int s = 0; s < slotCount; s++) {
+            int k = slotPatterns[s];
+            if(k < 0 || !unmasked[k]){
+                continue;
+            }
+
+            double scaleFactor = 0.0;
+            for (int l = 0; l < nrOfMatrices; l++) {
+                int v = (l * slotCapacity + s) * nrOfStates;
+                for (int j = 0; j < nrOfStates; j++) {
+                    if (fPartials[v + j] > scaleFactor) {
+                        scaleFactor = fPartials[v + j];
+                    }
+                }
+            }
+
+            if (scaleFactor < m_fScalingThreshold && scaleFactor > 0.0) {
+                for (int l = 0; l < nrOfMatrices; l++) {
+                    int v = (l * slotCapacity + s) * nrOfStates;
+                    for (int j = 0; j < nrOfStates; j++) {
+                        fPartials[v + j] /= scaleFactor;
+                    }
+                }
+                scalingFactors[currentPartialsIndex[iNodeIndex]][iNodeIndex][k] = Math.log(scaleFactor);
+            } else {
+                scalingFactors[currentPartialsIndex[iNodeIndex]][iNodeIndex][k] = 0.0;
+            }
+        }
+    }
+
+    /*
+     * Integrates the partials across categories.
+     * The input partials are indexed by slots and the output partials by patterns.
+     */
+    @Override
+    protected void calculateIntegratePartials(double[] fInPartials, double[] fProportions, double[] fOutPartials) {
+        for (int s = 0; s < slotCount; s++) {
+            int k = slotPatterns[s];
+            if(k < 0 || !unmasked[k]){
+                continue;
+            }
+
+            int u = k * nrOfStates;
+            for (int i = 0; i < nrOfStates; i++) {
+                double sum = 0.0;
+                for (int l = 0; l < nrOfMatrices; l++) {
+                    sum += fInPartials[(l * slotCapacity + s) * nrOfStates + i] * fProportions[l];
+                }
+                fOutPartials[u + i] = sum;
+            }
+        }
+    }
+
+    public void store(){
+        super.store();
+        newSlotPatternCount = 0;
+        if(useAmbiguities){
+            return;
+        }
+
+        // Masked patterns no longer need their partials.
+        int usedSlotCount = 0;
+        for(int s = 0; s < slotCount; s++){
+            int k = slotPatterns[s];
+            if(k > -1){
+                if(unmasked[k]){
+                    usedSlotCount++;
+                }else{
+                    releaseSlot(k);
+                }
+            }
+        }
+
+        if(2 * usedSlotCount < slotCount){
+            resize(Math.min(nrOfPatterns, Math.max(MIN_SLOT_CAPACITY, 2 * usedSlotCount)), true);
+        }
+    }
+
+    public void restore(){
+        releaseNewSlots();
+        super.restore();
+    }
+
+    public void restoreUnmaskedOnly(){
+        releaseNewSlots();
+        super.restoreUnmaskedOnly();
+    }
+
+    private void releaseNewSlots(){
+        for(int i = 0; i < newSlotPatternCount; i++){
+            releaseSlot(newSlotPatterns[i]);
+        }
+        newSlotPatternCount = 0;
+    }
+
+}
@@ -49,6 +49,7 @@ public class DPMultiAlignmentTreeLikelihood extends DPTreeLikelihood {
     }
 
     public void initAndValidate () {
+        initThreading();
         dpSiteModel = dpMultiAlignSiteModelInput.get();
         alignments = alignmentsInput.get();
         dpVal = dpValInput.get();
@@ -109,14 +110,7 @@ public class DPMultiAlignmentTreeLikelihood extends DPTreeLikelihood {
             //System.out.println(i+" "+(treeLikelihoodMap[i] == null));         DP
             for(int j = 0; j < clusterPatternWeights[i].length; j++){
                 if(clusterPatternWeights[i][j] != null){
-                    NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                            clusterPatternWeights[i][j],
-                            alignment,
-                            (Tree) treeInput.get(),
-                            useAmbiguitiesInput.get(),
-                            dpSiteModel.getSiteModel(i, dpVal.getCategoryIDNumber(j)),
-                            branchRateModelInput.get()
-                    );
+                    NewWVTreeLikelihood treeLik = createTreeLikelihood(clusterPatternWeights[i][j], alignment, (Tree) treeInput.get(), dpSiteModel.getSiteModel(i, dpVal.getCategoryIDNumber(j)));
 
                     treeLik.calculateLogP();
                     treeLik.store();
@@ -206,12 +200,7 @@ public class DPMultiAlignmentTreeLikelihood extends DPTreeLikelihood {
         int[] patternWeights = new int[alignments.get(alignmentIndex).getPatternCount()];
 
         try{
-            NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(patternWeights,
-                    alignments.get(alignmentIndex),
-                    (Tree) treeInput.get(),
-                    useAmbiguitiesInput.get(),
-                    siteModel,
-                    branchRateModelInput.get());
+            NewWVTreeLikelihood treeLik = createTreeLikelihood(patternWeights, alignments.get(alignmentIndex), (Tree) treeInput.get(), siteModel);
 
             treeLik.calculateLogP();
             treeLik.store();
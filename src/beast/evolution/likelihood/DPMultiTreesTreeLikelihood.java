@@ -47,6 +47,7 @@ public class DPMultiTreesTreeLikelihood extends DPTreeLikelihood{
     private HashMap<Integer, Integer>[] likelihoodWeight;     //todo store restore
     private HashMap<Integer, Integer>[] storedLikelihoodWeight;
     public void initAndValidate(){
+        initThreading();
         //Get the required DPSiteModel
         if(!(siteModelInput.get() instanceof DPSiteModel)){
             throw new RuntimeException("DPSiteModel required for site model.");
@@ -132,14 +133,7 @@ public class DPMultiTreesTreeLikelihood extends DPTreeLikelihood{
                 //System.out.println(i+" "+(treeLikelihoodMap[i] == null));         DP
                 for(int j = 0; j < clusterPatternWeights[i].length; j++){
                     if(clusterPatternWeights[i][j] != null){
-                        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                                clusterPatternWeights[i][j],
-                                alignment,
-                                trees.get(i),
-                                useAmbiguitiesInput.get(),
-                                dpSiteModel.getSiteModel(i),
-                                branchRateModelInput.get()
-                        );
+                        NewWVTreeLikelihood treeLik = createTreeLikelihood(clusterPatternWeights[i][j], alignment, trees.get(i), dpSiteModel.getSiteModel(i));
 
                         treeLik.calculateLogP();
                         treeLik.store();
@@ -266,12 +260,7 @@ public class DPMultiTreesTreeLikelihood extends DPTreeLikelihood{
         int[] patternWeights = new int[alignments.get(alignmentIndex).getPatternCount()];
 
         try{
-            NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(patternWeights,
-                    alignments.get(alignmentIndex),
-                    trees.get(alignmentIndex),
-                    useAmbiguitiesInput.get(),
-                    siteModel,
-                    branchRateModelInput.get());
+            NewWVTreeLikelihood treeLik = createTreeLikelihood(patternWeights, alignments.get(alignmentIndex), trees.get(alignmentIndex), siteModel);
 
             treeLik.calculateLogP();
             treeLik.store();
@@ -56,8 +56,10 @@ public class DPSepMultiTreesTreeLikelihood extends DPSepTreeLikelihood {
     private int[] alignmentStartingIndex;
     private int[] alignmentIndexBySite;
     public void initAndValidate() {
-        useThreads = useThreadsInput.get() && (BeastMCMC.m_nThreads > 1);
-        useThreadsEvenly = useThreadsEvenlyInput.get() && (BeastMCMC.m_nThreads > 1);
+        initThreading();
+        if(shareTransitionMatricesInput.get()){
+            matrixCache = new TransitionMatrixCache();
+        }
 
         alignments = alignmentsInput.get();
         alignmentStartingIndex = new int[alignments.size()];
@@ -134,15 +136,7 @@ public class DPSepMultiTreesTreeLikelihood extends DPSepTreeLikelihood {
             for(int j = 0; j < clusterWeights[i].length; j++){
                 for(int k = 0; k < clusterWeights[i][j].length; k++){
                     if(treeLikWeightMatrix[i][j][k] > 0){
-                        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                                clusterWeights[i][j][k],
-                                alignments.get(i),
-                                trees.get(i),
-                                useAmbiguitiesInput.get(),
-                                dpSiteModel.getSiteModel(i,j),
-                                branchRateModelInput.get()
-
-                        );
+                        NewWVTreeLikelihood treeLik = createTreeLikelihood(clusterWeights[i][j][k], alignments.get(i), trees.get(i), dpSiteModel.getSiteModel(i,j));
 
                         treeLiks.add(treeLik);
                         treeLiksMatrix[i][j][k] = treeLik;
@@ -264,13 +258,7 @@ public class DPSepMultiTreesTreeLikelihood extends DPSepTreeLikelihood {
 
         //WVTreeLikelihood treeLik = new WVTreeLikelihood(patternWeights);
         //NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(patternWeights);
-        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                    patternWeights,
-                    alignment,
-                    (Tree) treeInput.get(),
-                    useAmbiguitiesInput.get(),
-                    siteModel,
-                    branchRateModelInput.get());
+        NewWVTreeLikelihood treeLik = createTreeLikelihood(patternWeights, alignment, (Tree) treeInput.get(), siteModel);
         try{
 
 
@@ -3,6 +3,7 @@ package beast.evolution.likelihood;
 import beast.app.BeastMCMC;
 import beast.core.Description;
 import beast.core.MCMCNodeFactory;
+import beast.evolution.alignment.Alignment;
 import beast.evolution.sitemodel.DPNtdRateSepSiteModel;
 import beast.evolution.sitemodel.QuietSiteModel;
 import beast.evolution.sitemodel.SiteModel;
@@ -24,6 +25,13 @@ public class DPSepTreeLikelihood extends DPTreeLikelihood{
     protected NewWVTreeLikelihood[][] storedTreeLiksMatrix;
     protected ChangeType changeType = ChangeType.ALL;
 
+    public Input<Boolean> shareTransitionMatricesInput = new Input<Boolean>(
+            "shareTransitionMatrices",
+            "whether the tree likelihoods share a cache of transition probabilities keyed by substitution model and effective branch length (default false)",
+            false
+    );
+    protected TransitionMatrixCache matrixCache;
+
 
 
     public DPSepTreeLikelihood(){
@@ -36,11 +44,14 @@ public class DPSepTreeLikelihood extends DPTreeLikelihood{
     }
 
     public void initAndValidate() {
-        useThreads = useThreadsInput.get() && (BeastMCMC.m_nThreads > 1);
-        useThreadsEvenly = useThreadsEvenlyInput.get() && (BeastMCMC.m_nThreads > 1);
+        initThreading();
+        if(shareTransitionMatricesInput.get()){
+            matrixCache = new TransitionMatrixCache();
+        }
 
         alignment = dataInput.get();
         int patternCount = alignment.getPatternCount();
+        siteLogLikTable = new SiteLogLikelihoodTable(patternCount);
         if(!(siteModelInput.get() instanceof DPNtdRateSepSiteModel)){
             throw new RuntimeException("DPNtdRateSepSiteModel required for site model.");
         }
@@ -75,13 +86,7 @@ public class DPSepTreeLikelihood extends DPTreeLikelihood{
             //Create the tree likelihood
             //WVTreeLikelihood treeLik = new WVTreeLikelihood(clusterWeights[ntdBMAId][ratesId]);
 
-            NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                    clusterWeights[ntdBMAId][ratesId],
-                    alignment,
-                    (Tree) treeInput.get(),
-                    useAmbiguitiesInput.get(),
-                    dpSiteModel.getSiteModel(i),
-                    branchRateModelInput.get());
+            NewWVTreeLikelihood treeLik = createTreeLikelihood(clusterWeights[ntdBMAId][ratesId], alignment, (Tree) treeInput.get(), dpSiteModel.getSiteModel(i));
 
             //Add to list and matrix for the convenience of processesing
             treeLiks.add(treeLik);
@@ -92,6 +97,15 @@ public class DPSepTreeLikelihood extends DPTreeLikelihood{
 
     }
 
+    @Override
+    protected NewWVTreeLikelihood createTreeLikelihood(int[] patternWeights, Alignment alignment, Tree tree, SiteModel siteModel){
+        NewWVTreeLikelihood treeLik = super.createTreeLikelihood(patternWeights, alignment, tree, siteModel);
+        if(matrixCache != null){
+            treeLik.setTransitionMatrixCache(matrixCache);
+        }
+        return treeLik;
+    }
+
     /*public double calculateLogP() throws Exception{
         int sum = getSumWeight();
         if(sum != alignment.getSiteCount()){
@@ -285,13 +299,7 @@ int fixedIndex = -1;
 
         //WVTreeLikelihood treeLik = new WVTreeLikelihood(patternWeights);
         //NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(patternWeights);
-        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                    patternWeights,
-                    alignment,
-                    (Tree) treeInput.get(),
-                    useAmbiguitiesInput.get(),
-                    siteModel,
-                    branchRateModelInput.get());
+        NewWVTreeLikelihood treeLik = createTreeLikelihood(patternWeights, alignment, (Tree) treeInput.get(), siteModel);
         try{
 
 
@@ -326,7 +334,10 @@ int fixedIndex = -1;
                 NewWVTreeLikelihood tmpTL = treeLiksMatrix[clusterID][currClusters[DPNtdRateSepSiteModel.RATES]];
                 //System.out.println("clusterID: "+clusterID+" "+prevClusters[DPNtdRateSepSiteModel.RATES]+" "+alignment.getPatternIndex(siteIndex));
                 //tmpTL.printThings();
-                return tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(siteIndex));
+                double siteLogLik = tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(siteIndex));
+                if(!Double.isNaN(siteLogLik)){
+                    return siteLogLik;
+                }
 
             }
         }else{
@@ -335,14 +346,31 @@ int fixedIndex = -1;
                 //WVTreeLikelihood tmpTL = treeLiksMatrix[prevClusters[DPNtdRateSepSiteModel.NTDBMA]][clusterID];
                 //System.out.println("hi!!");
                 NewWVTreeLikelihood tmpTL = treeLiksMatrix[currClusters[DPNtdRateSepSiteModel.NTDBMA]][clusterID];
-                return tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(siteIndex));
+                double siteLogLik = tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(siteIndex));
+                if(!Double.isNaN(siteLogLik)){
+                    return siteLogLik;
+                }
             }
+            return lookUpSiteLogLikelihood(currClusters[DPNtdRateSepSiteModel.NTDBMA], clusterID, alignment.getPatternIndex(siteIndex));
         }
 
-        return Double.NaN;
+        // The site is not in this combination of clusters, but it may have been evaluated before.
+        return lookUpSiteLogLikelihood(clusterID, currClusters[DPNtdRateSepSiteModel.RATES], alignment.getPatternIndex(siteIndex));
 
     }
 
+    /*
+     * Memoizes the log-likelihood of a site under the given cluster and the current cluster of the site for the other input.
+     */
+    public void setSiteLogLikelihood(int inputType, int clusterID, int siteIndex, double siteLogLik){
+        int[] currClusters = dpSiteModel.getCurrClusters(siteIndex);
+        if(inputType == DPNtdRateSepSiteModel.NTDBMA){
+            memoizeSiteLogLikelihood(clusterID, currClusters[DPNtdRateSepSiteModel.RATES], alignment.getPatternIndex(siteIndex), siteLogLik);
+        }else{
+            memoizeSiteLogLikelihood(currClusters[DPNtdRateSepSiteModel.NTDBMA], clusterID, alignment.getPatternIndex(siteIndex), siteLogLik);
+        }
+    }
+
 
 
 
@@ -443,6 +471,7 @@ int fixedIndex = -1;
                 //System.out.println(treeLik.m_siteModel.isDirtyCalculation());
 
             }
+            invalidateSiteLogLikelihoods(changeType);
 
 
         }
@@ -3,9 +3,12 @@ package beast.evolution.likelihood;
 import beast.app.BeastMCMC;
 import beast.core.*;
 import beast.core.parameter.ChangeType;
+import beast.core.util.JournaledList;
+import beast.core.util.ObjectPool;
 import beast.core.parameter.DPValuable;
 import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.sitemodel.DPSiteModel;
+import beast.evolution.sitemodel.QuietSiteModel;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.tree.Tree;
 
@@ -27,8 +30,8 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
     protected DPSiteModel dpSiteModel;
     //protected ArrayList<WVTreeLikelihood> treeLiks = new ArrayList<WVTreeLikelihood>();
-    protected ArrayList<NewWVTreeLikelihood> treeLiks = new ArrayList<NewWVTreeLikelihood>();
-    protected ArrayList<NewWVTreeLikelihood> storedTreeLiks = new ArrayList<NewWVTreeLikelihood>();
+    // Only the tree likelihoods added and removed since the last store are replayed on store and restore.
+    protected JournaledList<NewWVTreeLikelihood> treeLiks = new JournaledList<NewWVTreeLikelihood>();
     protected ChangeType changeType = ChangeType.ALL;
 
     public Input<Boolean> useAmbiguitiesInput = new Input<Boolean>(
@@ -45,8 +48,38 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
     public Input<Boolean> useThreadsInput = new Input<Boolean>("useThreads", "calculated the distributions in parallel using threads (default false)", false);
     public Input<Boolean> useThreadsEvenlyInput = new Input<Boolean>("useThreadsEvenly", "calculated the distributions in parallel using threads (default false)", false);
+    public Input<Boolean> useWorkStealingInput = new Input<Boolean>(
+            "useWorkStealing",
+            "calculate the cluster likelihoods in parallel on a persistent work-stealing pool, " +
+                    "where each cluster is weighted by its number of unmasked patterns (default false)",
+            false
+    );
+    public Input<Integer> clusterThreadsInput = new Input<Integer>(
+            "clusterThreads",
+            "number of threads on which the cluster likelihoods are calculated with useWorkStealing; " +
+                    "if not positive, the number of threads given to BEAST (default 0)",
+            0
+    );
+    public Input<Integer> patternThreadsInput = new Input<Integer>(
+            "patternThreads",
+            "number of threads used to split the patterns of each cluster likelihood into blocks, on a pool with that many threads. " +
+                    "When the likelihood is calculated on the threads of useWorkStealing, the blocks run on those threads instead (default 1)",
+            1
+    );
+    public Input<Boolean> compactPartialsInput = new Input<Boolean>(
+            "compactPartials",
+            "whether each cluster likelihood only stores the partials of the patterns in that cluster (default false)",
+            false
+    );
+    public Input<Integer> treeLikelihoodPoolSizeInput = new Input<Integer>(
+            "treeLikelihoodPoolSize",
+            "the maximum number of tree likelihoods of removed or rejected clusters kept for reuse by new clusters (default 16)",
+            ObjectPool.DEFAULT_CAPACITY
+    );
     boolean useThreads;
     boolean useThreadsEvenly;
+    boolean useWorkStealing;
+    protected ClusterLikelihoodEvaluator clusterEvaluator;
     /** calculation engine **/
 
     //private ArrayList<int[]> clusterWeights;
@@ -54,9 +87,36 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
     protected Alignment alignment;
     protected DPValuable dpVal;
 
+    // The site log-likelihoods of patterns outside the clusters evaluated by the operators; null if not used.
+    protected SiteLogLikelihoodTable siteLogLikTable;
+    // The cluster likelihoods recalculated by the current calculation, whose pattern log-likelihoods are memoized.
+    private List<NewWVTreeLikelihood> dirtyTreeLiks = new ArrayList<NewWVTreeLikelihood>();
+
+    // The tree likelihoods that are no longer used by any cluster, with their likelihood cores.
+    private ObjectPool<NewWVTreeLikelihood> treeLikPool;
+
+    // Counts of the work done by the cluster likelihoods; null unless requested by a logger.
+    protected ClusterLikelihoodStatistics statistics;
+
+    /*
+     * Returns the statistics of the cluster likelihoods, which are only collected once this has been called.
+     */
+    public ClusterLikelihoodStatistics getStatistics(){
+        if(statistics == null){
+            statistics = new ClusterLikelihoodStatistics();
+        }
+        return statistics;
+    }
+
+    protected ObjectPool<NewWVTreeLikelihood> getTreeLikelihoodPool(){
+        if(treeLikPool == null){
+            treeLikPool = new ObjectPool<NewWVTreeLikelihood>(treeLikelihoodPoolSizeInput.get());
+        }
+        return treeLikPool;
+    }
+
     public void initAndValidate() {
-        useThreads = useThreadsInput.get() && (BeastMCMC.m_nThreads > 1);
-        useThreadsEvenly = useThreadsEvenlyInput.get() && (BeastMCMC.m_nThreads > 1);
+        initThreading();
         dpVal = dpValInput.get();
         if(!(siteModelInput.get() instanceof DPSiteModel)){
             throw new RuntimeException("DPSiteModel required for site model.");
@@ -66,6 +126,7 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
         alignment = dataInput.get();
         int patternCount = alignment.getPatternCount();
+        siteLogLikTable = new SiteLogLikelihoodTable(patternCount);
 
 
 
@@ -90,13 +151,7 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
             }
             System.out.println(); */
-            NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                    clusterWeights[i],
-                    alignment,
-                    (Tree) treeInput.get(),
-                    useAmbiguitiesInput.get(),
-                    dpSiteModel.getSiteModel(i),
-                    branchRateModelInput.get());
+            NewWVTreeLikelihood treeLik = createTreeLikelihood(clusterWeights[i], alignment, (Tree) treeInput.get(), dpSiteModel.getSiteModel(i));
             /*treeLik.initByName(
                     "data", alignment,
                     "tree", treeInput.get(),
@@ -112,6 +167,45 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
     }
 
+    /*
+     * Sets up the mode of parallel calculation of the cluster likelihoods.
+     */
+    protected void initThreading(){
+        useThreads = useThreadsInput.get() && (BeastMCMC.m_nThreads > 1);
+        useThreadsEvenly = useThreadsEvenlyInput.get() && (BeastMCMC.m_nThreads > 1);
+        int clusterThreadCount = clusterThreadsInput.get() > 0 ? clusterThreadsInput.get() : BeastMCMC.m_nThreads;
+        useWorkStealing = useWorkStealingInput.get() && (clusterThreadCount > 1);
+        if(useWorkStealing){
+            clusterEvaluator = new ClusterLikelihoodEvaluator(clusterThreadCount);
+        }
+    }
+
+    /*
+     * Creates the likelihood of a single cluster.
+     */
+    protected NewWVTreeLikelihood createTreeLikelihood(int[] patternWeights, Alignment alignment, Tree tree, SiteModel siteModel){
+        if(statistics != null){
+            statistics.increment(ClusterLikelihoodStatistics.TREE_LIKELIHOODS_CREATED);
+        }
+        NewWVTreeLikelihood pooledTreeLik = getTreeLikelihoodPool().take();
+        if(pooledTreeLik != null && pooledTreeLik.reuse(patternWeights, alignment, tree, siteModel)){
+            if(statistics != null){
+                statistics.increment(ClusterLikelihoodStatistics.TREE_LIKELIHOODS_REUSED);
+            }
+            return pooledTreeLik;
+        }
+        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
+                patternWeights,
+                alignment,
+                tree,
+                useAmbiguitiesInput.get(),
+                siteModel,
+                branchRateModelInput.get(),
+                compactPartialsInput.get());
+        treeLik.setPatternThreadCount(patternThreadsInput.get());
+        return treeLik;
+    }
+
     public int getDimension(){
         return treeLiks.size();
     }
@@ -154,6 +248,7 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
     public double calculateLogP() {
 
         logP = 0.0;
+        collectDirtyTreeLikelihoods();
 
         int nrOfDirtyDistrs = 0;
         /*for (Distribution dists : treeLiks) {
@@ -162,10 +257,12 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
                 }
             }
         System.out.println("nrOfDirtyDistrs:"+nrOfDirtyDistrs); */
-        if(useThreadsEvenly){
+        if(useWorkStealing){
+            logP = clusterEvaluator.calculateLogP(treeLiks);
+        }else if(useThreadsEvenly){
             logP = calculateLogPUsingThreadsEvenly();
 
-        }if (useThreads) {
+        }else if (useThreads) {
 
             logP = calculateLogPUsingThreads();
         }else{
@@ -201,6 +298,15 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
         }
 
+        memoizeClusterLogLikelihoods();
+
+        if(statistics != null){
+            statistics.increment(ClusterLikelihoodStatistics.EVALUATIONS);
+            for(NewWVTreeLikelihood treeLik : treeLiks){
+                statistics.collect(treeLik);
+            }
+        }
+
     //System.out.println("End Compute Likelihood");
         /*if(changeType == ChangeType.SPLIT){
             System.out.println("p: "+logP+" "+storedLogP);
@@ -328,8 +434,8 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
         public void run() {
             Distribution distr = null;
             try {
-                System.out.println("start: "+start+" end: "+end);
-                for(int i = start; i < end; i++){
+                //System.out.println("start: "+start+" end: "+end);
+                for(int i = start; i <= end; i++){
                     distr = dists.get(i);
                     if (distr.isDirtyCalculation()) {
 
@@ -384,16 +490,178 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
     } // CoreRunnable
 
+    /*
+     * Returns the log-likelihood of a site under the given cluster.
+     * The likelihood of a site in the cluster comes from the last calculation of the cluster likelihood,
+     * otherwise it comes from the memoized site log-likelihoods (NaN if it has not been evaluated).
+     */
     public double getSiteLogLikelihood(int iCluster, int iSite){
-        return treeLiks.get(iCluster).getPatternLogLikelihood(alignment.getPatternIndex(iSite));
+        NewWVTreeLikelihood treeLik = treeLiks.get(iCluster);
+        int patternIndex = alignment.getPatternIndex(iSite);
+        double siteLogLik = treeLik.getPatternLogLikelihood(patternIndex);
+        if(Double.isNaN(siteLogLik) && treeLik.getSiteModel() instanceof QuietSiteModel){
+            QuietSiteModel siteModel = (QuietSiteModel)treeLik.getSiteModel();
+            siteLogLik = lookUpSiteLogLikelihood(siteModel.getSubstModelIDNumber(), siteModel.getRateIDNumber(), patternIndex);
+        }
+        return siteLogLik;
+    }
+
+    /*
+     * Memoizes the log-likelihood of a site under the given cluster,
+     * which has been evaluated by an operator at the current state.
+     */
+    public void setSiteLogLikelihood(int iCluster, int iSite, double siteLogLik){
+        if(treeLiks.get(iCluster).getSiteModel() instanceof QuietSiteModel){
+            QuietSiteModel siteModel = (QuietSiteModel)treeLiks.get(iCluster).getSiteModel();
+            memoizeSiteLogLikelihood(siteModel.getSubstModelIDNumber(), siteModel.getRateIDNumber(), alignment.getPatternIndex(iSite), siteLogLik);
+        }
+    }
+
+    protected double lookUpSiteLogLikelihood(int substModelIDNumber, int rateIDNumber, int patternIndex){
+        if(siteLogLikTable == null || !SiteLogLikelihoodTable.isValidKey(substModelIDNumber, rateIDNumber)){
+            return Double.NaN;
+        }
+        return siteLogLikTable.getLogLikelihood(SiteLogLikelihoodTable.getKey(substModelIDNumber, rateIDNumber), patternIndex);
+    }
+
+    /*
+     * Keeps the cluster likelihoods that are about to be recalculated,
+     * so that their pattern log-likelihoods can be memoized afterwards.
+     */
+    protected void collectDirtyTreeLikelihoods(){
+        dirtyTreeLiks.clear();
+        if(siteLogLikTable == null){
+            return;
+        }
+        for(NewWVTreeLikelihood treeLik : treeLiks){
+            if(treeLik.isDirtyCalculation()){
+                dirtyTreeLiks.add(treeLik);
+            }
+        }
+    }
+
+    /*
+     * Memoizes the pattern log-likelihoods of the cluster likelihoods that have just been recalculated.
+     */
+    protected void memoizeClusterLogLikelihoods(){
+        for(NewWVTreeLikelihood treeLik : dirtyTreeLiks){
+            if(treeLik.getSiteModel() instanceof QuietSiteModel){
+                QuietSiteModel siteModel = (QuietSiteModel)treeLik.getSiteModel();
+                int substModelIDNumber = siteModel.getSubstModelIDNumber();
+                int rateIDNumber = siteModel.getRateIDNumber();
+                if(SiteLogLikelihoodTable.isValidKey(substModelIDNumber, rateIDNumber)){
+                    siteLogLikTable.setLogLikelihoods(SiteLogLikelihoodTable.getKey(substModelIDNumber, rateIDNumber), treeLik);
+                }
+            }
+        }
+        // Do not keep references to likelihoods that may be discarded.
+        dirtyTreeLiks.clear();
+    }
+
+    protected void memoizeSiteLogLikelihood(int substModelIDNumber, int rateIDNumber, int patternIndex, double siteLogLik){
+        if(siteLogLikTable != null && SiteLogLikelihoodTable.isValidKey(substModelIDNumber, rateIDNumber)){
+            siteLogLikTable.setLogLikelihood(SiteLogLikelihoodTable.getKey(substModelIDNumber, rateIDNumber), patternIndex, siteLogLik);
+        }
+    }
+
+    /*
+     * Discards the memoized site log-likelihoods that depend on what has changed.
+     * This is called after the dirtiness of the cluster likelihoods has been checked.
+     */
+    protected void invalidateSiteLogLikelihoods(ChangeType changeType){
+        if(siteLogLikTable == null){
+            return;
+        }
+
+        if(treeInput.get().somethingIsDirty() ||
+                (branchRateModelInput.get() != null && branchRateModelInput.get().isDirtyCalculation()) ||
+                changeType == ChangeType.ALL){
+            siteLogLikTable.invalidateAll();
+            return;
+        }
+
+        // The ID numbers of removed clusters may be reused by added clusters.
+        if(treeLiks.hasChanged()){
+            for(NewWVTreeLikelihood treeLik : treeLiks.getRemovedElements()){
+                if(!invalidateCluster(treeLik.getSiteModel())){
+                    return;
+                }
+            }
+            for(NewWVTreeLikelihood treeLik : treeLiks.getAddedElements()){
+                if(!invalidateCluster(treeLik.getSiteModel())){
+                    return;
+                }
+            }
+        }
+
+        for(NewWVTreeLikelihood treeLik : treeLiks){
+            if(!treeLik.getSiteModel().isDirtyCalculation()){
+                continue;
+            }
+            if(!(treeLik.getSiteModel() instanceof QuietSiteModel)){
+                siteLogLikTable.invalidateAll();
+                return;
+            }
+
+            QuietSiteModel siteModel = (QuietSiteModel)treeLik.getSiteModel();
+            int substModelIDNumber = siteModel.getSubstModelIDNumber();
+            int rateIDNumber = siteModel.getRateIDNumber();
+            boolean substModelChanged = substModelIDNumber > -1 && siteModel.getSubstitutionModel().isDirtyCalculation();
+            boolean rateChanged = rateIDNumber > -1 && siteModel.getRateParameter().somethingIsDirty();
+            if(substModelChanged){
+                siteLogLikTable.invalidateSubstModel(substModelIDNumber);
+            }
+            if(rateChanged){
+                siteLogLikTable.invalidateRate(rateIDNumber);
+            }
+            if(!substModelChanged && !rateChanged){
+                // Some other parameter of the site model has changed.
+                invalidateCluster(siteModel);
+            }
+        }
+    }
+
+    /*
+     * Discards the memoized site log-likelihoods of every cluster that shares the substitution model
+     * or the rate of the given site model. Everything is discarded if the site model is not identified
+     * by ID numbers, in which case false is returned.
+     */
+    private boolean invalidateCluster(SiteModel.Base siteModel){
+        if(!(siteModel instanceof QuietSiteModel)){
+            siteLogLikTable.invalidateAll();
+            return false;
+        }
+        int substModelIDNumber = ((QuietSiteModel)siteModel).getSubstModelIDNumber();
+        int rateIDNumber = ((QuietSiteModel)siteModel).getRateIDNumber();
+        if(!SiteLogLikelihoodTable.isValidKey(substModelIDNumber, rateIDNumber)){
+            siteLogLikTable.invalidateAll();
+            return false;
+        }
+        if(substModelIDNumber > -1){
+            siteLogLikTable.invalidateSubstModel(substModelIDNumber);
+        }
+        if(rateIDNumber > -1){
+            siteLogLikTable.invalidateRate(rateIDNumber);
+        }
+        return true;
     }
 
 
     public void store(){
-        storedTreeLiks = new ArrayList<NewWVTreeLikelihood>();
+        // The tree likelihoods removed by the accepted proposal can be reused.
+        if(treeLiks.hasChanged()){
+            List<NewWVTreeLikelihood> removedTreeLiks = treeLiks.getRemovedElements();
+            getTreeLikelihoodPool().releaseAll(removedTreeLiks);
+            if(statistics != null){
+                statistics.add(ClusterLikelihoodStatistics.TREE_LIKELIHOODS_DESTROYED, removedTreeLiks.size());
+            }
+        }
+        treeLiks.store();
+        if(siteLogLikTable != null){
+            siteLogLikTable.store();
+        }
         for(NewWVTreeLikelihood treeLik : treeLiks) {
             //System.out.println("siteModel id: "+ ((SwitchingNtdBMA)treeLik.m_substitutionModel).getIDNumber());
-            storedTreeLiks.add(treeLik);
             treeLik.store();
         }
 
@@ -402,8 +670,18 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
     }
 
     public void restore(){
-        treeLiks = storedTreeLiks;
-        storedTreeLiks = null;
+        // The tree likelihoods added by the rejected proposal can be reused.
+        if(treeLiks.hasChanged()){
+            List<NewWVTreeLikelihood> addedTreeLiks = treeLiks.getAddedElements();
+            getTreeLikelihoodPool().releaseAll(addedTreeLiks);
+            if(statistics != null){
+                statistics.add(ClusterLikelihoodStatistics.TREE_LIKELIHOODS_DESTROYED, addedTreeLiks.size());
+            }
+        }
+        treeLiks.restore();
+        if(siteLogLikTable != null){
+            siteLogLikTable.restore();
+        }
         for(NewWVTreeLikelihood treeLik : treeLiks) {
             treeLik.restore();
         }
@@ -429,13 +707,7 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
         //OldWVAlignment wvalign = new OldWVAlignment(alignment, patternWeights);
         //WVTreeLikelihood treeLik = new WVTreeLikelihood(patternWeights);
-        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                patternWeights,
-                alignment,
-                (Tree) treeInput.get(),
-                useAmbiguitiesInput.get(),
-                siteModel,
-                branchRateModelInput.get());
+        NewWVTreeLikelihood treeLik = createTreeLikelihood(patternWeights, alignment, (Tree) treeInput.get(), siteModel);
         try{
             /*treeLik.initByName(
                     "data", alignment,
@@ -486,13 +758,7 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
         }
         //OldWVAlignment wvalign = new OldWVAlignment(alignment, patternWeights);
         //WVTreeLikelihood treeLik = new WVTreeLikelihood(patternWeights);
-        NewWVTreeLikelihood treeLik = new NewWVTreeLikelihood(
-                patternWeights,
-                alignment,
-                (Tree) treeInput.get(),
-                useAmbiguitiesInput.get(),
-                siteModel,
-                branchRateModelInput.get());
+        NewWVTreeLikelihood treeLik = createTreeLikelihood(patternWeights, alignment, (Tree) treeInput.get(), siteModel);
         try{
             /*treeLik.initByName(
                     "data", alignment,
@@ -696,6 +962,7 @@ public class DPTreeLikelihood extends GenericTreeLikelihood implements PluginLis
 
                 MCMCNodeFactory.checkDirtiness(treeLik);
             }
+            invalidateSiteLogLikelihoods(this.changeType);
         }
         //System.out.println("changeType: "+changeType);
         return recalculate;
@@ -37,4 +37,16 @@ public class DummyTempTreeLikelihood extends TempTreeLikelihood{
         return 0.0;
     }
 
+    public void calculateLogPs(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCodes,
+            RealParameter[] freqs,
+            RealParameter[] rateParameters,
+            int start,
+            int end,
+            int site,
+            double[] logPs){
+        calculateLogPsSequentially(modelParameters, modelCodes, freqs, rateParameters, start, end, site, logPs);
+    }
+
 }
@@ -72,6 +72,18 @@ public class DummyTempWVTreeLikelihood extends TempWVTreeLikelihood{
         return siteLogP;
     }
 
+    public void calculateLogP(
+            RealParameter paramParameter,
+            RealParameter modelParameter,
+            RealParameter freqsParameter,
+            int[] sites,
+            int siteCount,
+            double[] siteLogP){
+        for(int i = 0; i < siteCount;i++){
+            siteLogP[i] = 0.0;
+        }
+    }
+
     public double[] calculateLogP(
             RealParameter rateParameter,
             int[] sites){
@@ -48,8 +48,11 @@ public class MultiAlignmentTempTreeLikelihood extends TempTreeLikelihood {
     List<DummySiteModel> siteModels;
     List<Alignment> alignments;
     DPMultiAlignSiteModel dpMultiAlignSiteModel;
-    int[] prevPatternCount;
     int[] siteIndexWithinAlignment;
+    // The first site of each pattern in each alignment.
+    int[][] firstPatternOccurs;
+    // One tree likelihood per alignment, shared by the patterns of that alignment and created on first use.
+    TempSiteTreeLikelihood[] alignmentTreeLiks;
     public void initAndValidate() {
         defaultMu = new RealParameter(new Double[]{1.0});
         alignments = alignmentsInput.get();
@@ -59,61 +62,15 @@ public class MultiAlignmentTempTreeLikelihood extends TempTreeLikelihood {
                     ") provided != the number of site models ("+siteModels.size()+").");
         }
 
-        //int siteCount = 0;
-        int patternCount = 0;
-        prevPatternCount = new int[alignments.size()];
-        for(int i = 1; i < prevPatternCount.length; i++){
-            prevPatternCount[i] = prevPatternCount[i - 1]+ alignments.get(i - 1).getPatternCount();
-        }
-        patternCount = prevPatternCount[prevPatternCount.length - 1]+ alignments.get(alignments.size() - 1).getPatternCount();
-
-
-        treeLiks = new TempSiteTreeLikelihood[patternCount];
-
-
-        //
-        int[] firstPatternOccur = new int[patternCount];
-        for(int iPat = 0; iPat < firstPatternOccur.length; iPat++){
-            firstPatternOccur[iPat] = -1;
-        }
-
-        int prevPatternCount = 0;
-        int[] patternAlignmentMap = new int[patternCount];
+        firstPatternOccurs = new int[alignments.size()][];
         for(int iAlign = 0; iAlign < alignments.size(); iAlign++){
-            Alignment alignment = alignments.get(iAlign);
-
-            for(int iSite = 0; iSite < alignment.getSiteCount(); iSite++){
-                int iPat = alignment.getPatternIndex(iSite);
-                if(firstPatternOccur[prevPatternCount+iPat] == -1){
-                    firstPatternOccur[prevPatternCount+iPat] = iSite;
-                    patternAlignmentMap[prevPatternCount+iPat] = iAlign;
-                }
-
-            }
-
-            prevPatternCount += alignment.getPatternCount();
+            firstPatternOccurs[iAlign] = getFirstPatternOccurrences(alignments.get(iAlign));
         }
-
-        //for(int iAlign = 0; iAlign < alignments.size(); iAlign++){
-            //System.out.println(iAlign+" patternCount: "+alignments.get(iAlign).getPatternCount());
-
-            BranchRateModel.Base brModel = branchRateModelInput.get() != null
+        alignmentTreeLiks = new TempSiteTreeLikelihood[alignments.size()];
+        branchRateModel = branchRateModelInput.get() != null
                 ? branchRateModelInput.get()
                 : trueLikelihoodInput.get().branchRateModelInput.get();
 
-            for(int i = 0; i < firstPatternOccur.length; i++){
-                //System.out.println("i: "+i+" "+firstPatternOccur[i]);
-                AlignmentSubset sitePattern = new AlignmentSubset(alignments.get(patternAlignmentMap[i]),firstPatternOccur[i]);
-                TempSiteTreeLikelihood treeLik = new TempSiteTreeLikelihood(
-                        sitePattern,
-                        treeInput.get(),
-                        useAmbiguitiesInput.get(),
-                        siteModels.get(patternAlignmentMap[i]),
-                        brModel
-                );
-                treeLiks[i] = treeLik;
-            }
-        //}
         dpMultiAlignSiteModel = dpMultiAlignSiteModelInput.get();
 
 
@@ -163,7 +120,7 @@ public class MultiAlignmentTempTreeLikelihood extends TempTreeLikelihood {
             int iPat = alignments.get(alignmentIndex).getPatternIndex(siteIndexWithinAlignment[site]);
             //System.out.println("site: "+site+" "+iPat);
             //System.out.println("site: "+site+" "+alignmentIndex);
-            logP = treeLiks[iPat+ prevPatternCount[alignmentIndex]].calculateLogP();
+            logP = getSiteTreeLikelihood(alignmentIndex, iPat).calculateLogP();
         }catch(Exception e){
             throw new RuntimeException(e);
 
@@ -171,4 +128,35 @@ public class MultiAlignmentTempTreeLikelihood extends TempTreeLikelihood {
         return logP;
     }
 
+    /*
+     * Returns the tree likelihood of a pattern of the given alignment.
+     */
+    protected TempSiteTreeLikelihood getSiteTreeLikelihood(int alignmentIndex, int iPat){
+        int siteIndex = firstPatternOccurs[alignmentIndex][iPat];
+        if(alignmentTreeLiks[alignmentIndex] == null){
+            alignmentTreeLiks[alignmentIndex] = new TempSiteTreeLikelihood(
+                    new AlignmentSubset(alignments.get(alignmentIndex), siteIndex),
+                    treeInput.get(),
+                    useAmbiguitiesInput.get(),
+                    siteModels.get(alignmentIndex),
+                    branchRateModel
+            );
+        }else{
+            alignmentTreeLiks[alignmentIndex].setSite(siteIndex);
+        }
+        return alignmentTreeLiks[alignmentIndex];
+    }
+
+    public void calculateLogPs(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCodes,
+            RealParameter[] freqs,
+            RealParameter[] rateParameters,
+            int start,
+            int end,
+            int site,
+            double[] logPs){
+        calculateLogPsSequentially(modelParameters, modelCodes, freqs, rateParameters, start, end, site, logPs);
+    }
+
 }
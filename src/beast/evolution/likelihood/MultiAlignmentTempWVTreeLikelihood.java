@@ -74,6 +74,10 @@ public class MultiAlignmentTempWVTreeLikelihood extends TempWVTreeLikelihood{
     }
 
     private ArrayList<Integer> alignmentPatternWeightChanged;
+    public void setupPatternWeightsFromSites(int[] sites, int siteCount){
+        setupPatternWeightsFromSites(Arrays.copyOf(sites, siteCount));
+    }
+
     public void setupPatternWeightsFromSites(int[] sites){
 
         int[][] tempWeights = new int[tempWVTreeLikelihoods.length][];
@@ -155,8 +159,34 @@ public class MultiAlignmentTempWVTreeLikelihood extends TempWVTreeLikelihood{
             RealParameter modelCode,
             RealParameter freqs,
         int[] sites) throws Exception{
+        double[] siteLogP = new double[sites.length];
+        calculateLogP(modelParameters,modelCode,freqs,sites,sites.length,siteLogP);
+        return siteLogP;
+    }
 
-        throw new RuntimeException("Not yet properly implemented");
+    /*
+     * Calculates the log-likelihoods of the first siteCount sites and stores them in siteLogP.
+     * The sites must be those given to setupPatternWeightsFromSites, so that only the likelihoods
+     * of the alignments with these sites are calculated.
+     */
+    public void calculateLogP(
+            RealParameter modelParameters,
+            RealParameter modelCode,
+            RealParameter freqs,
+            int[] sites,
+            int siteCount,
+            double[] siteLogP) throws Exception{
+
+        for(int i = 0; i < alignmentPatternWeightChanged.size(); i++){
+            tempWVTreeLikelihoods[alignmentPatternWeightChanged.get(i)].calculateLogP(modelParameters, modelCode, freqs);
+        }
+        int alignmentIndex;
+        int patternIndex;
+        for(int i = 0; i < siteCount; i++){
+            alignmentIndex = dpMultiAlignSiteModel.getAlignmentIndex(sites[i]);
+            patternIndex = tempWVTreeLikelihoods[alignmentIndex].dataInput.get().getPatternIndex(siteIndexWithinAlignment[sites[i]]);
+            siteLogP[i] = tempWVTreeLikelihoods[alignmentIndex].patternLogLikelihoods[patternIndex];
+        }
     }
 
     public double calculateLogP(
@@ -0,0 +1,291 @@
+package beast.evolution.likelihood;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * Calculates the likelihood of a single site pattern under a number of candidate models in one traversal. The
+ * transition matrices of all the candidates are set up first, then the partials of all the candidates are pruned
+ * together, with the candidates stored next to each other for each category.
+ */
+public class MultiCandidateSiteLikelihood {
+    private double scalingThreshold = 1.0E-100;
+
+    private Alignment alignment;
+    private Tree tree;
+    private boolean useAmbiguities;
+    private int stateCount;
+    private int matrixSize;
+
+    // The taxon index of each leaf node.
+    private int[] taxonIndices;
+
+    private int candidateCount;
+    private int candidateCapacity;
+    private int categoryCount;
+
+    // matrices[node][(category * candidateCapacity + candidate) * matrixSize + i * stateCount + j]
+    private double[][] matrices;
+    // partials[node][(category * candidateCapacity + candidate) * stateCount + i]
+    private double[][] partials;
+    private double[] frequencies;
+    private double[] proportions;
+    private double[] proportionInvariant;
+    private double[] logScalingFactors;
+    private double[] probabilities;
+
+    // The state of each leaf for the current pattern, and the partials of the leaves when ambiguities are used.
+    private int[] leafStates;
+    private double[][] leafPartials;
+    private boolean[] isInvariant;
+
+    public MultiCandidateSiteLikelihood(Alignment alignment, Tree tree, boolean useAmbiguities){
+        this.alignment = alignment;
+        this.tree = tree;
+        this.useAmbiguities = useAmbiguities;
+        stateCount = alignment.getMaxStateCount();
+        matrixSize = stateCount * stateCount;
+        probabilities = new double[matrixSize];
+        isInvariant = new boolean[stateCount];
+
+        int nodeCount = tree.getNodeCount();
+        int leafCount = tree.getLeafNodeCount();
+        taxonIndices = new int[leafCount];
+        leafStates = new int[leafCount];
+        leafPartials = new double[leafCount][stateCount];
+        for(Node node : tree.getExternalNodes()){
+            taxonIndices[node.getNr()] = alignment.getTaxonIndex(node.getID());
+        }
+
+        matrices = new double[nodeCount][];
+        partials = new double[nodeCount][];
+    }
+
+    /*
+     * Prepares the storage for the given number of candidates.
+     */
+    public void setCandidateCount(int candidateCount, int categoryCount){
+        if(candidateCount > candidateCapacity || categoryCount != this.categoryCount){
+            candidateCapacity = Math.max(candidateCount, candidateCapacity);
+            this.categoryCount = categoryCount;
+            int nodeCount = tree.getNodeCount();
+            for(int i = 0; i < nodeCount; i++){
+                matrices[i] = new double[categoryCount * candidateCapacity * matrixSize];
+                partials[i] = new double[categoryCount * candidateCapacity * stateCount];
+            }
+            frequencies = new double[candidateCapacity * stateCount];
+            proportions = new double[candidateCapacity * categoryCount];
+            proportionInvariant = new double[candidateCapacity];
+            logScalingFactors = new double[candidateCapacity];
+        }
+        this.candidateCount = candidateCount;
+    }
+
+    /*
+     * Sets up the transition matrices, frequencies and category proportions of a candidate
+     * from the current state of the given models.
+     */
+    public void setCandidateModel(int candidate,
+                                  SubstitutionModel substModel,
+                                  SiteModel.Base siteModel,
+                                  BranchRateModel.Base branchRateModel){
+        Node root = tree.getRoot();
+        setCandidateMatrices(candidate, root, substModel, siteModel, branchRateModel);
+
+        double[] freqs = substModel.getFrequencies();
+        System.arraycopy(freqs, 0, frequencies, candidate * stateCount, stateCount);
+
+        double[] categoryProportions = siteModel.getCategoryProportions(root);
+        System.arraycopy(categoryProportions, 0, proportions, candidate * categoryCount, categoryCount);
+        proportionInvariant[candidate] = siteModel.getProportionInvariant();
+    }
+
+    private void setCandidateMatrices(int candidate,
+                                      Node node,
+                                      SubstitutionModel substModel,
+                                      SiteModel.Base siteModel,
+                                      BranchRateModel.Base branchRateModel){
+        if(!node.isRoot()){
+            int iNode = node.getNr();
+            Node parent = node.getParent();
+            double branchRate = branchRateModel == null ? 1.0 : branchRateModel.getRateForBranch(node);
+            for(int l = 0; l < categoryCount; l++){
+                double jointBranchRate = siteModel.getRateForCategory(l, node) * branchRate;
+                substModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                System.arraycopy(probabilities, 0, matrices[iNode], (l * candidateCapacity + candidate) * matrixSize, matrixSize);
+            }
+        }
+
+        if(!node.isLeaf()){
+            setCandidateMatrices(candidate, node.getLeft(), substModel, siteModel, branchRateModel);
+            setCandidateMatrices(candidate, node.getRight(), substModel, siteModel, branchRateModel);
+        }
+    }
+
+    /*
+     * Calculates the log-likelihoods of the pattern under each of the candidates
+     * and writes them to logLiks from the given offset.
+     */
+    public void calculateLogLikelihoods(int patternIndex, double[] logLiks, int offset){
+        setLeaves(patternIndex);
+        for(int c = 0; c < candidateCount; c++){
+            logScalingFactors[c] = 0.0;
+        }
+
+        Node root = tree.getRoot();
+        traverse(root);
+
+        double[] rootPartials = partials[root.getNr()];
+        for(int c = 0; c < candidateCount; c++){
+            double sum = 0.0;
+            double invariantSum = 0.0;
+            for(int i = 0; i < stateCount; i++){
+                double partial = rootPartials[c * stateCount + i] * proportions[c * categoryCount];
+                for(int l = 1; l < categoryCount; l++){
+                    partial += rootPartials[(l * candidateCapacity + c) * stateCount + i] * proportions[c * categoryCount + l];
+                }
+                sum += frequencies[c * stateCount + i] * partial;
+                if(isInvariant[i]){
+                    invariantSum += frequencies[c * stateCount + i] * proportionInvariant[c];
+                }
+            }
+            if(logScalingFactors[c] == 0.0 || invariantSum == 0.0){
+                logLiks[offset + c] = Math.log(sum + invariantSum) + logScalingFactors[c];
+            }else{
+                // The partials have been scaled but the invariant sites have not, so the two are added on the log scale.
+                double logVariant = Math.log(sum) + logScalingFactors[c];
+                double logInvariant = Math.log(invariantSum);
+                double max = Math.max(logVariant, logInvariant);
+                logLiks[offset + c] = max + Math.log(Math.exp(logVariant - max) + Math.exp(logInvariant - max));
+            }
+        }
+    }
+
+    private void setLeaves(int patternIndex){
+        for(int i = 0; i < stateCount; i++){
+            isInvariant[i] = true;
+        }
+
+        for(int iLeaf = 0; iLeaf < leafStates.length; iLeaf++){
+            int state = alignment.getPattern(taxonIndices[iLeaf], patternIndex);
+            leafStates[iLeaf] = state;
+            boolean[] stateSet = alignment.getStateSet(state);
+            if(useAmbiguities){
+                for(int i = 0; i < stateCount; i++){
+                    leafPartials[iLeaf][i] = stateSet[i] ? 1.0 : 0.0;
+                }
+            }
+            if(useAmbiguities || !alignment.getDataType().isAmbiguousState(state)){
+                for(int i = 0; i < stateCount; i++){
+                    isInvariant[i] &= stateSet[i];
+                }
+            }
+        }
+    }
+
+    private void traverse(Node node){
+        if(node.isLeaf()){
+            return;
+        }
+
+        Node child1 = node.getLeft();
+        Node child2 = node.getRight();
+        traverse(child1);
+        traverse(child2);
+
+        int iNode = node.getNr();
+        int iChild1 = child1.getNr();
+        int iChild2 = child2.getNr();
+        double[] matrices1 = matrices[iChild1];
+        double[] matrices2 = matrices[iChild2];
+        double[] partials3 = partials[iNode];
+
+        // A known state picks a column of the matrix, an unknown state contributes one.
+        int state1 = -1;
+        int state2 = -1;
+        double[] partials1 = null;
+        double[] partials2 = null;
+        if(!child1.isLeaf()){
+            partials1 = partials[iChild1];
+        }else if(useAmbiguities){
+            partials1 = leafPartials[iChild1];
+        }else{
+            state1 = leafStates[iChild1];
+        }
+        if(!child2.isLeaf()){
+            partials2 = partials[iChild2];
+        }else if(useAmbiguities){
+            partials2 = leafPartials[iChild2];
+        }else{
+            state2 = leafStates[iChild2];
+        }
+        boolean leafPartials1 = child1.isLeaf() && useAmbiguities;
+        boolean leafPartials2 = child2.isLeaf() && useAmbiguities;
+
+        for(int l = 0; l < categoryCount; l++){
+            for(int c = 0; c < candidateCount; c++){
+                int v = (l * candidateCapacity + c) * stateCount;
+                int w = (l * candidateCapacity + c) * matrixSize;
+                for(int i = 0; i < stateCount; i++){
+                    double value1;
+                    if(partials1 == null){
+                        value1 = state1 < stateCount ? matrices1[w + state1] : 1.0;
+                    }else{
+                        int u1 = leafPartials1 ? 0 : v;
+                        value1 = 0.0;
+                        for(int j = 0; j < stateCount; j++){
+                            value1 += matrices1[w + j] * partials1[u1 + j];
+                        }
+                    }
+
+                    double value2;
+                    if(partials2 == null){
+                        value2 = state2 < stateCount ? matrices2[w + state2] : 1.0;
+                    }else{
+                        int u2 = leafPartials2 ? 0 : v;
+                        value2 = 0.0;
+                        for(int j = 0; j < stateCount; j++){
+                            value2 += matrices2[w + j] * partials2[u2 + j];
+                        }
+                    }
+
+                    partials3[v + i] = value1 * value2;
+                    w += stateCount;
+                }
+            }
+        }
+
+        scalePartials(partials3);
+    }
+
+    /*
+     * Rescales the partials of each candidate when they become small, to avoid underflow in large trees.
+     */
+    private void scalePartials(double[] fPartials){
+        for(int c = 0; c < candidateCount; c++){
+            double scaleFactor = 0.0;
+            for(int l = 0; l < categoryCount; l++){
+                int v = (l * candidateCapacity + c) * stateCount;
+                for(int i = 0; i < stateCount; i++){
+                    if(fPartials[v + i] > scaleFactor){
+                        scaleFactor = fPartials[v + i];
+                    }
+                }
+            }
+
+            if(scaleFactor < scalingThreshold && scaleFactor > 0.0){
+                for(int l = 0; l < categoryCount; l++){
+                    int v = (l * candidateCapacity + c) * stateCount;
+                    for(int i = 0; i < stateCount; i++){
+                        fPartials[v + i] /= scaleFactor;
+                    }
+                }
+                logScalingFactors[c] += Math.log(scaleFactor);
+            }
+        }
+    }
+}
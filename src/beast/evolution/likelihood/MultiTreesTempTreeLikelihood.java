@@ -63,23 +63,27 @@ public class MultiTreesTempTreeLikelihood extends Distribution {
     public void initAndValidate(){
         alignments = alignmentsInput.get();
         trees = treesInput.get();
+        // The temporary likelihood of an alignment is created when a site of that alignment is first evaluated.
         tempTreeLikelihoods = new TempTreeLikelihood[alignments.size()];
-        for(int i = 0; i < tempTreeLikelihoods.length; i++){
-            tempTreeLikelihoods[i] = new TempTreeLikelihood(
-                    alignments.get(i),
-                    trees.get(i),
-                    useAmbiguitiesInput.get(),
-                    siteModelsInput.get().get(i),
-                    branchRateModelInput.get()
-
-            );
-        }
         dpMultiTreesTreeLikelihood = dpMultiTreesTreeLikelihoodInput.get();
 
 
 
     }
 
+    private TempTreeLikelihood getTempTreeLikelihood(int alignmentIndex){
+        if(tempTreeLikelihoods[alignmentIndex] == null){
+            tempTreeLikelihoods[alignmentIndex] = new TempTreeLikelihood(
+                    alignments.get(alignmentIndex),
+                    trees.get(alignmentIndex),
+                    useAmbiguitiesInput.get(),
+                    siteModelsInput.get().get(alignmentIndex),
+                    branchRateModelInput.get()
+            );
+        }
+        return tempTreeLikelihoods[alignmentIndex];
+    }
+
     public double calculateLogP(
             RealParameter modelParameters,
             RealParameter modelCode,
@@ -87,7 +91,7 @@ public class MultiTreesTempTreeLikelihood extends Distribution {
             int siteIndex){
         int alignmentIndex = dpMultiTreesTreeLikelihood.getAlignmentIndexBySite(siteIndex);
 
-        logP = tempTreeLikelihoods[alignmentIndex].calculateLogP(
+        logP = getTempTreeLikelihood(alignmentIndex).calculateLogP(
                 modelParameters,
                 modelCode,freqs,
                 siteIndex
@@ -103,7 +107,7 @@ public class MultiTreesTempTreeLikelihood extends Distribution {
             int siteIndex){
         int alignmentIndex = dpMultiTreesTreeLikelihood.getAlignmentIndexBySite(siteIndex);
 
-        logP = tempTreeLikelihoods[alignmentIndex].calculateLogP(
+        logP = getTempTreeLikelihood(alignmentIndex).calculateLogP(
                 modelParameters,
                 modelCode,
                 freqs,
@@ -119,7 +123,7 @@ public class MultiTreesTempTreeLikelihood extends Distribution {
             int siteIndex){
         int alignmentIndex = dpMultiTreesTreeLikelihood.getAlignmentIndexBySite(siteIndex);
 
-        logP = tempTreeLikelihoods[alignmentIndex].calculateLogP(
+        logP = getTempTreeLikelihood(alignmentIndex).calculateLogP(
                 rate,
                 siteIndex
         );
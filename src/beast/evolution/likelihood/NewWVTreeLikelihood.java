@@ -2,6 +2,7 @@ package beast.evolution.likelihood;
 
 import beast.core.Citation;
 import beast.core.Description;
+import beast.core.Input;
 import beast.core.parameter.QuietRealParameter;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.alignment.AscertainedAlignment;
@@ -37,6 +38,43 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
     //protected boolean nonZeroPatternIncreased;
     protected double[] storedPatternLogLikelihoods;
 
+    public Input<Integer> patternThreadsInput = new Input<Integer>(
+            "patternThreads",
+            "number of threads used to process blocks of patterns in parallel within a traversal, on a pool with that many threads (default 1)",
+            1
+    );
+
+    public Input<Boolean> compactPartialsInput = new Input<Boolean>(
+            "compactPartials",
+            "whether the partials of the internal nodes are only stored for the unmasked patterns (default false)",
+            false
+    );
+
+    protected boolean compactPartials;
+    protected TransitionMatrixCache matrixCache;
+
+    // The nodes whose matrices or partials have changed since the pre-order partials were last calculated.
+    protected boolean[] preOrderMatrixChanged;
+    protected boolean[] preOrderPartialsChanged;
+    protected boolean preOrderValid = false;
+    protected int preOrderRootNr = -1;
+    protected double[] preOrderFrequencies;
+    protected boolean[] preOrderUnmasked;
+    protected int[] preOrderAncestors;
+    // The likelihood of the invariant sites for each pattern, refilled for each pre-order calculation.
+    protected double[] invariantLikelihoods;
+
+    // The work done since the counts were last collected by ClusterLikelihoodStatistics.
+    protected long calculationCount = 0;
+    protected long patternsRecomputedCount = 0;
+    protected long partialsUpdateCount = 0;
+    protected long matrixUpdateCount = 0;
+    protected long scalingToggleCount = 0;
+
+    // The number of patterns with positive weights, kept up to date by the weight changes; negative when it has to be counted.
+    protected int unmaskedPatternCount = -1;
+    protected int storedUnmaskedPatternCount = -1;
+
     public NewWVTreeLikelihood(){
 
     }
@@ -53,6 +91,16 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
                                boolean useAmbiguities,
                                SiteModel siteModel,
                                BranchRateModel.Base branchRateModel){
+        this(patternWeights, data, tree, useAmbiguities, siteModel, branchRateModel, false);
+    }
+
+    public NewWVTreeLikelihood(int[] patternWeights,
+                               Alignment data,
+                               Tree tree,
+                               boolean useAmbiguities,
+                               SiteModel siteModel,
+                               BranchRateModel.Base branchRateModel,
+                               boolean compactPartials){
         this.patternWeights = patternWeights;
         storedPatternWeights = new int[patternWeights.length];
         this.data = data;
@@ -61,6 +109,7 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
         m_siteModel = siteModel;
         this.branchRateModel = branchRateModel;
         this.substitutionModel = (SubstitutionModel.Base)m_siteModel.getSubstitutionModel();
+        this.compactPartials = compactPartials;
         setup();
     }
 
@@ -69,16 +118,73 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
     }
 
     public void initAndValidate() {
-
+        compactPartials = compactPartialsInput.get();
         super.initAndValidate();
         //setup();
+        setPatternThreadCount(patternThreadsInput.get());
+
+    }
 
+    /*
+     * Sets a cache of transition probabilities shared with other tree likelihoods.
+     * The cache is only used with the NtdBMA substitution models.
+     */
+    public void setTransitionMatrixCache(TransitionMatrixCache matrixCache){
+        this.matrixCache = substitutionModel instanceof NtdBMA ? matrixCache : null;
+    }
+
+    /*
+     * Sets the number of threads the likelihood core uses to split the patterns into blocks.
+     */
+    public void setPatternThreadCount(int threadCount){
+        m_likelihoodCore.setThreadCount(threadCount);
     }
 
 
 
 
 
+    /*
+     * Re-initialises a tree likelihood that is no longer used by any cluster for a new cluster,
+     * keeping the buffers of the likelihood core.
+     * Returns false if the tree likelihood cannot be used with the given data, tree and site model.
+     */
+    public boolean reuse(int[] patternWeights, Alignment data, Tree tree, SiteModel siteModel){
+        if(data != this.data || tree != this.tree ||
+                patternWeights.length != this.patternWeights.length ||
+                siteModel.getCategoryCount() != m_siteModel.getCategoryCount()){
+            return false;
+        }
+        System.arraycopy(patternWeights, 0, this.patternWeights, 0, patternWeights.length);
+        m_siteModel = siteModel;
+        m_siteModel.setDataType(data.getDataType());
+        substitutionModel = (SubstitutionModel.Base)m_siteModel.getSubstitutionModel();
+        matrixCache = null;
+
+        proportionInvariant = m_siteModel.getProportionInvariant();
+        m_siteModel.setPropInvariantIsCategory(false);
+        if(constantPattern == null && (m_siteModel instanceof QuietGammaSiteBMA || proportionInvariant > 0)){
+            calcConstantPatternIndices(data.getPatternCount(), data.getMaxStateCount());
+        }
+
+        boolean[] unmasked = m_likelihoodCore.getUnmasked();
+        unmaskedPatternCount = 0;
+        for(int i = 0; i < unmasked.length; i++){
+            unmasked[i] = patternWeights[i] > 0;
+            if(unmasked[i]){
+                unmaskedPatternCount++;
+            }
+        }
+        m_likelihoodCore.setUnmasked(unmasked);
+
+        addedPatternIdCount = 0;
+        weightsChanged = false;
+        valueChanged = false;
+        hasDirt = Tree.IS_FILTHY;
+        preOrderValid = false;
+        return true;
+    }
+
     @Override
     protected void setup() {
         int nodeCount = tree.getNodeCount();
@@ -106,7 +212,9 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
                 unmasked[i] = patternWeights[i] > 0;
             }
 
-        if (nStateCount == 4) {
+        if (compactPartials) {
+            m_likelihoodCore = new CompactWVLikelihoodCore(nStateCount,unmasked);
+        } else if (nStateCount == 4) {
 
             m_likelihoodCore = new WVLikelihoodCore4(unmasked);
         } else {
@@ -163,6 +271,11 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
         for (int i = 0; i < intNodeCount; i++) {
             m_likelihoodCore.createNodePartials(extNodeCount + i);
         }
+        preOrderMatrixChanged = new boolean[nodeCount];
+        preOrderPartialsChanged = new boolean[nodeCount];
+        preOrderAncestors = new int[nodeCount];
+        invariantLikelihoods = new double[patternWeights.length];
+        preOrderValid = false;
     }
 
     /**
@@ -220,6 +333,7 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
 
         //((NtdBMA)m_substitutionModel).printDetails();
         boolean[] trueUnmasked = m_likelihoodCore.getUnmasked();
+        calculationCount++;
         //System.out.println("m_nHasDirt: "+m_nHasDirt);
         //System.out.println("valueChanged: "+valueChanged);
         if(hasDirt > -1){
@@ -265,6 +379,7 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
             /*for(int i = 0; i < patternWeights.length;i++){
                 System.out.println(i+" "+m_likelihoodCore.getUnmasked(i));
             } */
+            patternsRecomputedCount += addedPatternIdCount > 0 && !valueChanged ? addedPatternIdCount : getUnmaskedPatternCount();
        	    traverse(tree.getRoot());
         }
 
@@ -285,6 +400,8 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
             m_likelihoodCore.unstore();
             hasDirt = Tree.IS_FILTHY;
             X *= 2;
+            scalingToggleCount++;
+            patternsRecomputedCount += getUnmaskedPatternCount();
            	traverse(tree.getRoot());
             calcLogP();
         } else if (logP == Double.NEGATIVE_INFINITY && m_fScale < 10) { // && !m_likelihoodCore.getUseScaling()) {
@@ -294,6 +411,8 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
             m_likelihoodCore.setUseScaling(m_fScale);
             m_likelihoodCore.unstore();
             hasDirt = Tree.IS_FILTHY;
+            scalingToggleCount++;
+            patternsRecomputedCount += getUnmaskedPatternCount();
            	traverse(tree.getRoot());
             calcLogP();
         }
@@ -359,11 +478,17 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
         if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != storedBranchLengths[iNode])) {
             Node parent = node.getParent();
             m_likelihoodCore.setNodeMatrixForUpdate(iNode);
+            preOrderMatrixChanged[iNode] = true;
+            matrixUpdateCount += m_siteModel.getCategoryCount();
             for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
                 double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
                 //System.out.println(getID()+" mu: "+m_siteModel.getRateForCategory(i, node)+" "+branchRate);
                 //System.out.println(m_data.get()+ " update node: "+jointBranchRate);
-                substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                if(matrixCache == null){
+                    substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                }else{
+                    matrixCache.getTransitionProbabilities((NtdBMA) substitutionModel, node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+                }
                 m_likelihoodCore.setNodeMatrix(iNode, i, probabilities);
             }
             update |= Tree.IS_DIRTY;
@@ -396,6 +521,8 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
                 if (m_siteModel.integrateAcrossCategories()) {
 
                     m_likelihoodCore.calculatePartials(childNum1, childNum2, iNode);
+                    preOrderPartialsChanged[iNode] = true;
+                    partialsUpdateCount++;
                 } else {
                     throw new RuntimeException("Error TreeLikelihood 201: Site categories not supported");
                     //m_pLikelihoodCore->calculatePartials(childNum1, childNum2, nodeNum, siteCategories);
@@ -435,6 +562,105 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
         return update;
     }
 
+    /*
+     * Brings the pre-order partials up to date with the current partials, so it should be called after calculateLogP.
+     * Only the nodes below a branch whose matrices changed, or below the parent of a subtree whose partials changed,
+     * are recalculated.
+     */
+    public void calculatePreOrderPartials(){
+        Node root = tree.getRoot();
+        double[] frequencies = substitutionModel.getFrequencies();
+        boolean[] unmasked = m_likelihoodCore.getUnmasked();
+        boolean rootChanged = !preOrderValid || root.getNr() != preOrderRootNr ||
+                !Arrays.equals(frequencies, preOrderFrequencies) || !Arrays.equals(unmasked, preOrderUnmasked);
+        if(rootChanged){
+            m_likelihoodCore.calculateRootPreOrderPartials(root.getNr(), frequencies);
+            preOrderRootNr = root.getNr();
+            preOrderFrequencies = frequencies.clone();
+            preOrderUnmasked = unmasked.clone();
+        }
+
+        traversePreOrder(root.getLeft(), root.getRight(), rootChanged);
+        traversePreOrder(root.getRight(), root.getLeft(), rootChanged);
+
+        Arrays.fill(preOrderMatrixChanged, false);
+        Arrays.fill(preOrderPartialsChanged, false);
+        preOrderValid = true;
+    }
+
+    private void traversePreOrder(Node node, Node sibling, boolean parentChanged){
+        int iNode = node.getNr();
+        int iSibling = sibling.getNr();
+        boolean changed = parentChanged || preOrderMatrixChanged[iNode] ||
+                preOrderMatrixChanged[iSibling] || preOrderPartialsChanged[iSibling];
+        if(changed){
+            m_likelihoodCore.calculatePreOrderPartials(node.getParent().getNr(), iSibling, iNode);
+        }
+
+        if(!node.isLeaf()){
+            traversePreOrder(node.getLeft(), node.getRight(), changed);
+            traversePreOrder(node.getRight(), node.getLeft(), changed);
+        }
+    }
+
+    /*
+     * Calculates the log-likelihoods of the unmasked patterns from the pre-order partials and the partials of a node.
+     * The result is the same at every node, and calculatePreOrderPartials needs to be called first.
+     */
+    public void calculatePreOrderPatternLogLikelihoods(Node node, double[] logLiks){
+        int ancestorCount = collectAncestors(node);
+        m_likelihoodCore.calculatePreOrderLogLikelihoods(node.getNr(), preOrderAncestors, ancestorCount,
+                m_siteModel.getCategoryProportions(tree.getRoot()), getInvariantLikelihoods(), logLiks);
+    }
+
+    /*
+     * Calculates the log-likelihoods of the unmasked patterns if the branch above the node had the given
+     * transition matrices (one for each category, one after another), without changing the state of the likelihood.
+     * Only the partials of the node, its sibling and the pre-order partials of its parent are used,
+     * so the cost does not depend on the size of the tree.
+     */
+    public void calculateBranchPatternLogLikelihoods(Node node, double[] matrices, double[] logLiks){
+        if(node.isRoot()){
+            throw new RuntimeException("There is no branch above the root.");
+        }
+        Node parent = node.getParent();
+        Node sibling = parent.getLeft() == node ? parent.getRight() : parent.getLeft();
+        int ancestorCount = collectAncestors(node);
+        m_likelihoodCore.calculateBranchLogLikelihoods(parent.getNr(), sibling.getNr(), node.getNr(),
+                preOrderAncestors, ancestorCount,
+                matrices, m_siteModel.getCategoryProportions(tree.getRoot()), getInvariantLikelihoods(), logLiks);
+    }
+
+    private int collectAncestors(Node node){
+        int ancestorCount = 0;
+        Node ancestor = node.getParent();
+        while(ancestor != null){
+            preOrderAncestors[ancestorCount++] = ancestor.getNr();
+            ancestor = ancestor.getParent();
+        }
+        return ancestorCount;
+    }
+
+    /*
+     * The likelihood contributed by the invariant sites to each pattern, or null if there are none.
+     */
+    private double[] getInvariantLikelihoods(){
+        if(constantPattern == null){
+            return null;
+        }
+        double proportionInvariant = m_siteModel.getProportionInvariant();
+        if(proportionInvariant == 0.0){
+            return null;
+        }
+        int stateCount = data.getMaxStateCount();
+        double[] frequencies = substitutionModel.getFrequencies();
+        Arrays.fill(invariantLikelihoods, 0.0);
+        for(int i : constantPattern){
+            invariantLikelihoods[i / stateCount] += proportionInvariant * frequencies[i % stateCount];
+        }
+        return invariantLikelihoods;
+    }
+
     public double getPatternLogLikelihood(int iPat){
         //System.out.println(iPat+" "+m_fPatternLogLikelihoods[iPat]);
         if(patternWeights[iPat] == 0){
@@ -497,6 +723,9 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
         if(patternWeights[patId] == 0 && dweight > 0){
             //System.out.println("patId: "+patId);
             addedPatternIds[addedPatternIdCount++] = patId;
+            if(unmaskedPatternCount > -1){
+                unmaskedPatternCount++;
+            }
         }
         patternWeights[patId] += dweight;
         //System.err.println("patId: "+patId+", patternWeights[patId]: "+patternWeights[patId]);
@@ -511,6 +740,9 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
 
         if(patternWeights[patId] == 0){
             m_likelihoodCore.setUnmasked(patId,false);
+            if(unmaskedPatternCount > -1 && dweight > 0){
+                unmaskedPatternCount--;
+            }
         }else if(patternWeights[patId] < 0){
             /*for(int i = 0; i < patternWeights.length;i++){
                 System.out.print(patternWeights[i]+" ");
@@ -523,6 +755,9 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
     }
 
     public void setWeight(int patId, int weight){
+        if(unmaskedPatternCount > -1 && (patternWeights[patId] > 0) != (weight > 0)){
+            unmaskedPatternCount += weight > 0 ? 1 : -1;
+        }
         patternWeights[patId] = weight;
         weightsChanged = true;
     }
@@ -538,6 +773,7 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
         addedPatternIdCount = 0;
         System.arraycopy(patternWeights,0,storedPatternWeights,0,patternWeights.length);
         System.arraycopy(patternLogLikelihoods,0,storedPatternLogLikelihoods,0,patternLogLikelihoods.length);
+        storedUnmaskedPatternCount = unmaskedPatternCount;
         super.store();
     }
 
@@ -553,6 +789,7 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
         int[] temp1 = patternWeights;
         patternWeights = storedPatternWeights;
         storedPatternWeights = temp1;
+        unmaskedPatternCount = storedUnmaskedPatternCount;
 
         double[] temp2 = patternLogLikelihoods;
         patternLogLikelihoods = storedPatternLogLikelihoods;
@@ -561,6 +798,8 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
         weightsChanged = false;
         valueChanged = false;
         addedPatternIdCount = 0;
+        // The pre-order partials are not stored, so they are recalculated from the root next time.
+        preOrderValid = false;
         super.restore();
     }
 
@@ -571,12 +810,50 @@ public class NewWVTreeLikelihood extends QuietTreeLikelihood {
     public void setPatternWeights(int[] newPatternWeights){
         System.arraycopy(newPatternWeights, 0, patternWeights, 0, newPatternWeights.length);
         boolean[] unmasked = new boolean[patternWeights.length];
+        unmaskedPatternCount = 0;
         for(int i = 0;i < patternWeights.length;i++){
             unmasked[i] = patternWeights[i] > 0;
+            if(unmasked[i]){
+                unmaskedPatternCount++;
+            }
         }
         m_likelihoodCore.setUnmasked(unmasked);
     }
 
+    /*
+     * The number of patterns with positive weights,
+     * which is a measure of the cost of a traversal of this likelihood.
+     * The patterns are only counted when the weights have been replaced in bulk.
+     */
+    public int getUnmaskedPatternCount(){
+        if(unmaskedPatternCount < 0){
+            int count = 0;
+            for(int weight:patternWeights){
+                if(weight > 0){
+                    count++;
+                }
+            }
+            unmaskedPatternCount = count;
+        }
+        return unmaskedPatternCount;
+    }
+
+    /*
+     * Adds the work done since the last call to the statistics and resets the counts.
+     */
+    void collectStatistics(ClusterLikelihoodStatistics statistics){
+        statistics.add(ClusterLikelihoodStatistics.DIRTY_CLUSTERS, calculationCount);
+        statistics.add(ClusterLikelihoodStatistics.PATTERNS_RECOMPUTED, patternsRecomputedCount);
+        statistics.add(ClusterLikelihoodStatistics.NODES_TRAVERSED, partialsUpdateCount);
+        statistics.add(ClusterLikelihoodStatistics.MATRICES_RECOMPUTED, matrixUpdateCount);
+        statistics.add(ClusterLikelihoodStatistics.SCALING_TOGGLES, scalingToggleCount);
+        calculationCount = 0;
+        patternsRecomputedCount = 0;
+        partialsUpdateCount = 0;
+        matrixUpdateCount = 0;
+        scalingToggleCount = 0;
+    }
+
     public int weightSum(){
         int sum = 0;
         for(int weight:patternWeights){
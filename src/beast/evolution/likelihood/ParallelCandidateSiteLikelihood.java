@@ -0,0 +1,210 @@
+package beast.evolution.likelihood;
+
+import beast.core.parameter.QuietRealParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.sitemodel.QuietSiteModel;
+import beast.evolution.substitutionmodel.NtdBMA;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Tree;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Calculates the site log-likelihoods of the candidates in the full conditional of a DPP Gibbs sampler on
+ * several threads. Each worker owns copies of the substitution model and the site model and evaluates a fixed
+ * block of the candidates, so the log-likelihoods are exactly those calculated on a single thread. The workers
+ * run on the shared pool with one thread per worker.
+ */
+public class ParallelCandidateSiteLikelihood {
+    private NtdBMA substModel;
+    private QuietSiteModel siteModel;
+    private BranchRateModel.Base branchRateModel;
+    private Worker[] workers;
+    // Sized by the thread count, independently of the threads given to BEAST.
+    private ForkJoinPool pool;
+
+    // The arguments of the current evaluation, read by the workers.
+    private RealParameter[] modelParameters;
+    private RealParameter[] modelCodes;
+    private RealParameter[] freqs;
+    private RealParameter[] rateParameters;
+    private int patternIndex;
+    private double[] logPs;
+
+    public ParallelCandidateSiteLikelihood(Alignment alignment,
+                                           Tree tree,
+                                           boolean useAmbiguities,
+                                           QuietSiteModel siteModel,
+                                           BranchRateModel.Base branchRateModel,
+                                           int threadCount){
+        if(!canCopy(siteModel.getSubstitutionModel())){
+            throw new RuntimeException("Only NtdBMA substitution models can be evaluated on several threads.");
+        }
+        substModel = (NtdBMA)siteModel.getSubstitutionModel();
+        this.siteModel = siteModel;
+        this.branchRateModel = branchRateModel;
+        workers = new Worker[threadCount];
+        for(int i = 0; i < workers.length; i++){
+            workers[i] = new Worker(alignment, tree, useAmbiguities);
+        }
+        pool = SharedForkJoinPools.getPool(threadCount);
+    }
+
+    /*
+     * Only the models whose state is fully described by their parameters can be copied for the workers.
+     */
+    public static boolean canCopy(SubstitutionModel substModel){
+        return substModel != null && substModel.getClass() == NtdBMA.class;
+    }
+
+    /*
+     * Calculates the log-likelihoods of a pattern under each of the candidates from start (inclusive) to end (exclusive),
+     * and stores them in logPs at the same indices.
+     * If the model parameters or the rates are null, the current values of the shared models are used.
+     */
+    public void calculateLogPs(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCodes,
+            RealParameter[] freqs,
+            RealParameter[] rateParameters,
+            int start,
+            int end,
+            int patternIndex,
+            double[] logPs){
+        this.modelParameters = modelParameters;
+        this.modelCodes = modelCodes;
+        this.freqs = freqs;
+        this.rateParameters = rateParameters;
+        this.patternIndex = patternIndex;
+        this.logPs = logPs;
+
+        int workerCount = Math.min(workers.length, end - start);
+        int blockSize = (end - start + workerCount - 1) / workerCount;
+        for(int i = 0; i < workerCount; i++){
+            workers[i].setBlock(start + i * blockSize, Math.min(end, start + (i + 1) * blockSize));
+        }
+        if(pool.isShutdown()){
+            pool = SharedForkJoinPools.getPool(workers.length);
+        }
+        try{
+            pool.invoke(new BlockTask(0, workerCount));
+        }finally{
+            this.modelParameters = null;
+            this.modelCodes = null;
+            this.freqs = null;
+            this.rateParameters = null;
+            this.logPs = null;
+        }
+    }
+
+    class BlockTask extends RecursiveAction {
+        private final int start;
+        private final int end;
+
+        BlockTask(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute(){
+            if(end - start == 1){
+                workers[start].calculateLogPs();
+            }else{
+                int split = (start + end) >>> 1;
+                invokeAll(new BlockTask(start, split), new BlockTask(split, end));
+            }
+        }
+    }
+
+    /*
+     * The thread-confined models and workspace of one block of candidates.
+     */
+    class Worker {
+        private final NtdBMA workerSubstModel;
+        private final QuietSiteModel workerSiteModel;
+        private final MultiCandidateSiteLikelihood candidateLik;
+        private int start;
+        private int end;
+
+        Worker(Alignment alignment, Tree tree, boolean useAmbiguities){
+            workerSubstModel = new NtdBMA(
+                    copyOf(substModel.getLogKappa()),
+                    copyOf(substModel.getLogTN()),
+                    copyOf(substModel.getLogAC()),
+                    copyOf(substModel.getLogAT()),
+                    copyOf(substModel.getLogGC()),
+                    copyOf(substModel.getModelChoose()),
+                    copyOf(substModel.getFreqs())
+            );
+            workerSiteModel = siteModel.copy(workerSubstModel);
+            candidateLik = new MultiCandidateSiteLikelihood(alignment, tree, useAmbiguities);
+        }
+
+        void setBlock(int start, int end){
+            this.start = start;
+            this.end = end;
+        }
+
+        void calculateLogPs(){
+            // Start from the current state of the shared models.
+            setSubstModelParameter(substModel.getLogKappa(), substModel.getLogTN(), substModel.getLogAC(),
+                    substModel.getLogAT(), substModel.getLogGC(), substModel.getModelChoose(), substModel.getFreqs());
+            workerSiteModel.copyRates(siteModel);
+
+            candidateLik.setCandidateCount(end - start, workerSiteModel.getCategoryCount());
+            for(int i = start; i < end; i++){
+                if(modelParameters != null){
+                    RealParameter parameters = modelParameters[i];
+                    setValue(workerSubstModel.getLogKappa(), parameters.getValue(0));
+                    setValue(workerSubstModel.getLogTN(), parameters.getValue(1));
+                    setValue(workerSubstModel.getLogAC(), parameters.getValue(2));
+                    setValue(workerSubstModel.getLogAT(), parameters.getValue(3));
+                    setValue(workerSubstModel.getLogGC(), parameters.getValue(4));
+                    setValue(workerSubstModel.getModelChoose(), modelCodes[i].getValue());
+                    for(int j = 0; j < NtdBMA.STATE_COUNT; j++){
+                        workerSubstModel.getFreqs().setValueQuietly(j, freqs[i].getValue(j));
+                    }
+                    workerSubstModel.setUpdateMatrix(true);
+                }
+                if(rateParameters != null){
+                    workerSiteModel.getRateParameter().setValueQuietly(0, rateParameters[i].getValue());
+                }
+                candidateLik.setCandidateModel(i - start, workerSubstModel, workerSiteModel, branchRateModel);
+            }
+            candidateLik.calculateLogLikelihoods(patternIndex, logPs, start);
+        }
+
+        private void setSubstModelParameter(QuietRealParameter logKappa,
+                                            QuietRealParameter logTN,
+                                            QuietRealParameter logAC,
+                                            QuietRealParameter logAT,
+                                            QuietRealParameter logGC,
+                                            QuietRealParameter modelChoose,
+                                            QuietRealParameter frequencies){
+            setValue(workerSubstModel.getLogKappa(), logKappa.getValue());
+            setValue(workerSubstModel.getLogTN(), logTN.getValue());
+            setValue(workerSubstModel.getLogAC(), logAC.getValue());
+            setValue(workerSubstModel.getLogAT(), logAT.getValue());
+            setValue(workerSubstModel.getLogGC(), logGC.getValue());
+            setValue(workerSubstModel.getModelChoose(), modelChoose.getValue());
+            for(int j = 0; j < frequencies.getDimension(); j++){
+                workerSubstModel.getFreqs().setValueQuietly(j, frequencies.getValue(j));
+            }
+            workerSubstModel.setUpdateMatrix(true);
+        }
+
+        private void setValue(QuietRealParameter parameter, double value){
+            parameter.setValueQuietly(0, value);
+        }
+    }
+
+    private static QuietRealParameter copyOf(QuietRealParameter parameter){
+        QuietRealParameter copy = new QuietRealParameter(parameter.getValues());
+        copy.setBounds(parameter.getLower(), parameter.getUpper());
+        return copy;
+    }
+}
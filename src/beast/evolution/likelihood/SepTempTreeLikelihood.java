@@ -57,7 +57,7 @@ public class SepTempTreeLikelihood extends TempTreeLikelihood{
             //Retrieve the pattern
             int iPat = alignment.getPatternIndex(siteIndex);
             //System.out.println("recompute:");
-            logP = treeLiks[iPat].calculateLogP();
+            logP = getSiteTreeLikelihood(iPat).calculateLogP();
         }catch(Exception e){
             throw new RuntimeException(e);
 
@@ -98,7 +98,7 @@ public class SepTempTreeLikelihood extends TempTreeLikelihood{
             siteModelInput.get().substModelInput.setValue(substModel,siteModelInput.get());
 
             int iPat = alignment.getPatternIndex(siteIndex);
-            logP = treeLiks[iPat].calculateLogP();
+            logP = getSiteTreeLikelihood(iPat).calculateLogP();
         }catch(Exception e){
             throw new RuntimeException(e);
 
@@ -106,6 +106,16 @@ public class SepTempTreeLikelihood extends TempTreeLikelihood{
         return logP;
     }
 
-
+    public void calculateLogPs(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCodes,
+            RealParameter[] freqs,
+            RealParameter[] rateParameters,
+            int start,
+            int end,
+            int site,
+            double[] logPs){
+        calculateLogPsSequentially(modelParameters, modelCodes, freqs, rateParameters, start, end, site, logPs);
+    }
 
 }
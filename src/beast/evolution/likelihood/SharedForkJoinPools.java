@@ -0,0 +1,41 @@
+package beast.evolution.likelihood;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The work-stealing thread pools shared by the likelihoods, one for each number of threads. Every likelihood
+ * that asks for the same number of threads gets the same pool, so the threads persist across the MCMC steps and
+ * are not created again for each likelihood. The worker threads are daemon threads, so the pools do not keep
+ * the JVM alive, but shutdown() releases them when several analyses are run in one JVM.
+ */
+public class SharedForkJoinPools {
+    private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+    private SharedForkJoinPools(){
+    }
+
+    /*
+     * Returns the pool with the given number of threads, creating it if there is none or it has been shut down.
+     */
+    public static synchronized ForkJoinPool getPool(int threadCount){
+        threadCount = Math.max(1, threadCount);
+        ForkJoinPool pool = pools.get(threadCount);
+        if(pool == null || pool.isShutdown()){
+            pool = new ForkJoinPool(threadCount);
+            pools.put(threadCount, pool);
+        }
+        return pool;
+    }
+
+    /*
+     * Shuts down all the pools. The pools are created again when they are next asked for.
+     */
+    public static synchronized void shutdown(){
+        for(ForkJoinPool pool : pools.values()){
+            pool.shutdown();
+        }
+        pools.clear();
+    }
+}
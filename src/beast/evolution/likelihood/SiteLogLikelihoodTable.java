@@ -0,0 +1,177 @@
+package beast.evolution.likelihood;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Memoizes the site log-likelihoods of the clusters in a DP mixture, keyed by the ID numbers of the substitution
+ * model and the rate of a cluster and by the pattern index. The rows of a cluster are discarded when the parameters
+ * of the cluster change, and every row is discarded when the tree changes. The rows discarded since the last store
+ * are discarded again on restore, as they may have been filled for the rejected state.
+ */
+public class SiteLogLikelihoodTable {
+    private final int patternCount;
+    private long version = 0;
+    private final HashMap<Long, Row> rows = new HashMap<Long, Row>();
+
+    // What has been discarded since the last store.
+    private boolean allInvalidated;
+    private final ArrayList<Long> invalidatedKeys = new ArrayList<Long>();
+    private final ArrayList<Integer> invalidatedSubstModels = new ArrayList<Integer>();
+    private final ArrayList<Integer> invalidatedRates = new ArrayList<Integer>();
+
+    public SiteLogLikelihoodTable(int patternCount){
+        this.patternCount = patternCount;
+    }
+
+    /*
+     * Combines the ID numbers of the substitution model and the rate of a cluster into a key.
+     * A negative ID number means that part of the model is not clustered.
+     */
+    public static long getKey(int substModelIDNumber, int rateIDNumber){
+        return ((long)substModelIDNumber << 32) | (rateIDNumber & 0xffffffffL);
+    }
+
+    public static boolean isValidKey(int substModelIDNumber, int rateIDNumber){
+        return substModelIDNumber > -1 || rateIDNumber > -1;
+    }
+
+    /*
+     * Returns the memoized log-likelihood of the pattern in the cluster, or NaN if there is none.
+     */
+    public double getLogLikelihood(long key, int patternIndex){
+        Row row = rows.get(key);
+        if(row == null || row.version != version){
+            return Double.NaN;
+        }
+        return row.logLiks[patternIndex];
+    }
+
+    public void setLogLikelihood(long key, int patternIndex, double logLik){
+        getRow(key).logLiks[patternIndex] = logLik;
+    }
+
+    /*
+     * Memoizes the log-likelihoods of the patterns with a positive weight in a cluster likelihood.
+     */
+    public void setLogLikelihoods(long key, NewWVTreeLikelihood treeLik){
+        double[] logLiks = getRow(key).logLiks;
+        int[] patternWeights = treeLik.getPatternWeights();
+        int count = Math.min(patternCount, patternWeights.length);
+        for(int i = 0; i < count; i++){
+            if(patternWeights[i] > 0){
+                double logLik = treeLik.getPatternLogLikelihood(i);
+                if(!Double.isNaN(logLik)){
+                    logLiks[i] = logLik;
+                }
+            }
+        }
+    }
+
+    private Row getRow(long key){
+        Row row = rows.get(key);
+        if(row == null){
+            row = new Row();
+            rows.put(key, row);
+        }
+        if(row.version != version){
+            Arrays.fill(row.logLiks, Double.NaN);
+            row.version = version;
+        }
+        return row;
+    }
+
+    /*
+     * Discards the row of a single combination of substitution model and rate.
+     */
+    public void invalidate(long key){
+        rows.remove(key);
+        invalidatedKeys.add(key);
+    }
+
+    /*
+     * Discards the rows of the clusters with the given substitution model.
+     */
+    public void invalidateSubstModel(int substModelIDNumber){
+        removeSubstModel(substModelIDNumber);
+        invalidatedSubstModels.add(substModelIDNumber);
+    }
+
+    /*
+     * Discards the rows of the clusters with the given rate.
+     */
+    public void invalidateRate(int rateIDNumber){
+        removeRate(rateIDNumber);
+        invalidatedRates.add(rateIDNumber);
+    }
+
+    /*
+     * Discards all the rows. The arrays are kept and cleared when they are next written.
+     */
+    public void invalidateAll(){
+        version++;
+        allInvalidated = true;
+    }
+
+    public void store(){
+        clearInvalidated();
+    }
+
+    /*
+     * Discards again what has been discarded since the last store,
+     * since those rows may have been filled with the log-likelihoods of the rejected state.
+     */
+    public void restore(){
+        if(allInvalidated){
+            version++;
+        }else{
+            for(Long key : invalidatedKeys){
+                rows.remove(key);
+            }
+            for(Integer substModelIDNumber : invalidatedSubstModels){
+                removeSubstModel(substModelIDNumber);
+            }
+            for(Integer rateIDNumber : invalidatedRates){
+                removeRate(rateIDNumber);
+            }
+        }
+        clearInvalidated();
+    }
+
+    private void clearInvalidated(){
+        allInvalidated = false;
+        invalidatedKeys.clear();
+        invalidatedSubstModels.clear();
+        invalidatedRates.clear();
+    }
+
+    private void removeSubstModel(int substModelIDNumber){
+        Iterator<Long> keys = rows.keySet().iterator();
+        while(keys.hasNext()){
+            if((int)(keys.next() >> 32) == substModelIDNumber){
+                keys.remove();
+            }
+        }
+    }
+
+    private void removeRate(int rateIDNumber){
+        Iterator<Long> keys = rows.keySet().iterator();
+        while(keys.hasNext()){
+            if((int)keys.next().longValue() == rateIDNumber){
+                keys.remove();
+            }
+        }
+    }
+
+    class Row {
+        long version;
+        final double[] logLiks = new double[patternCount];
+
+        Row(){
+            Arrays.fill(logLiks, Double.NaN);
+            version = SiteLogLikelihoodTable.this.version;
+        }
+    }
+}
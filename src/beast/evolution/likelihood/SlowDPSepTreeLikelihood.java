@@ -36,6 +36,7 @@ public class SlowDPSepTreeLikelihood extends SlowDPTreeLikelihood{
 
         alignment = dataInput.get();
         int patternCount = alignment.getPatternCount();
+        siteLogLikTable = new SiteLogLikelihoodTable(patternCount);
         if(!(siteModelInput.get() instanceof DPNtdRateSepSiteModel)){
             throw new RuntimeException("DPNtdRateSepSiteModel object is required for site model");
         }
@@ -271,7 +272,10 @@ public class SlowDPSepTreeLikelihood extends SlowDPTreeLikelihood{
                 WVTreeLikelihood tmpTL = treeLiksMatrix[clusterID][currClusters[DPNtdRateSepSiteModel.RATES]];
                 //System.out.println("clusterID: "+clusterID+" "+prevClusters[DPNtdRateSepSiteModel.RATES]+" "+alignment.getPatternIndex(siteIndex));
                 //tmpTL.printThings();
-                return tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(siteIndex));
+                double siteLogLik = tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(siteIndex));
+                if(!Double.isNaN(siteLogLik)){
+                    return siteLogLik;
+                }
 
             }
         }else{
@@ -280,14 +284,31 @@ public class SlowDPSepTreeLikelihood extends SlowDPTreeLikelihood{
                 //WVTreeLikelihood tmpTL = treeLiksMatrix[prevClusters[DPNtdRateSepSiteModel.NTDBMA]][clusterID];
                 //System.out.println("hi!!");
                 WVTreeLikelihood tmpTL = treeLiksMatrix[currClusters[DPNtdRateSepSiteModel.NTDBMA]][clusterID];
-                return tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(siteIndex));
+                double siteLogLik = tmpTL.getPatternLogLikelihood(alignment.getPatternIndex(siteIndex));
+                if(!Double.isNaN(siteLogLik)){
+                    return siteLogLik;
+                }
             }
+            return lookUpSiteLogLikelihood(currClusters[DPNtdRateSepSiteModel.NTDBMA], clusterID, alignment.getPatternIndex(siteIndex));
         }
 
-        return Double.NaN;
+        // The site is not in this combination of clusters, but it may have been evaluated before.
+        return lookUpSiteLogLikelihood(clusterID, currClusters[DPNtdRateSepSiteModel.RATES], alignment.getPatternIndex(siteIndex));
 
     }
 
+    /*
+     * Memoizes the log-likelihood of a site under the given cluster and the current cluster of the site for the other input.
+     */
+    public void setSiteLogLikelihood(int inputType, int clusterID, int siteIndex, double siteLogLik){
+        int[] currClusters = dpSiteModel.getCurrClusters(siteIndex);
+        if(inputType == DPNtdRateSepSiteModel.NTDBMA){
+            memoizeSiteLogLikelihood(clusterID, currClusters[DPNtdRateSepSiteModel.RATES], alignment.getPatternIndex(siteIndex), siteLogLik);
+        }else{
+            memoizeSiteLogLikelihood(currClusters[DPNtdRateSepSiteModel.NTDBMA], clusterID, alignment.getPatternIndex(siteIndex), siteLogLik);
+        }
+    }
+
 
 
 
@@ -356,6 +377,8 @@ public class SlowDPSepTreeLikelihood extends SlowDPTreeLikelihood{
             for(TreeLikelihood treeLik:treeLiks){
                 MCMCNodeFactory.checkDirtiness(treeLik);
             }
+            // This likelihood recalculates every cluster, so the memoized site log-likelihoods are not kept across steps.
+            siteLogLikTable.invalidateAll();
         }
         return recalculate;
     }
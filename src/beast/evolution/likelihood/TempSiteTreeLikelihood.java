@@ -2,6 +2,7 @@ package beast.evolution.likelihood;
 
 import beast.core.Description;
 import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.AlignmentSubset;
 import beast.evolution.branchratemodel.BranchRateModel;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.tree.Tree;
@@ -23,6 +24,31 @@ public class TempSiteTreeLikelihood extends QuietTreeLikelihood{
 
     }
 
+    /*
+     * Points the likelihood at another site of the full alignment, so that one likelihood core
+     * can be shared by all the patterns. Only the leaf states depend on the site, since the
+     * partials are recomputed from the leaves every time the likelihood is calculated.
+     */
+    public void setSite(int siteIndex){
+        if(!(data instanceof AlignmentSubset)){
+            throw new RuntimeException("The data of the site tree likelihood must be an AlignmentSubset.");
+        }
+        AlignmentSubset sitePattern = (AlignmentSubset)data;
+        if(sitePattern.siteIndex == siteIndex){
+            return;
+        }
+        sitePattern.siteIndex = siteIndex;
+        if (useAmbiguities) {
+            setPartials(tree.getRoot(), 1);
+        } else {
+            setStates(tree.getRoot(), 1);
+        }
+        if (proportionInvariant > 0) {
+            calcConstantPatternIndices(1, data.getMaxStateCount());
+        }
+        hasDirt = Tree.IS_FILTHY;
+    }
+
     
 
     @Override
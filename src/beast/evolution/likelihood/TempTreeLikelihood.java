@@ -14,6 +14,7 @@ import beast.evolution.substitutionmodel.NtdBMA;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.tree.Tree;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -56,10 +57,27 @@ public class TempTreeLikelihood extends Distribution {
             false
     );
 
+    public Input<Integer> threadsInput = new Input<>(
+            "threads",
+            "number of threads used to evaluate the candidates of a Gibbs sampler, on a pool with that many threads " +
+                    "that does not depend on the threads given to BEAST, only used with an NtdBMA substitution model (default 1)",
+            1
+    );
+
     protected RealParameter defaultMu;
     protected Alignment alignment;
-    protected TempSiteTreeLikelihood[] treeLiks;
+    // The first site of each pattern.
+    protected int[] firstPatternOccur;
+    // A single tree likelihood shared by all the patterns, created on first use.
+    private TempSiteTreeLikelihood siteTreeLik;
+    private Tree tree;
+    private boolean useAmbiguities;
+    private SiteModel siteModel;
     protected SubstitutionModel substModel;
+    protected BranchRateModel.Base branchRateModel;
+    protected MultiCandidateSiteLikelihood candidateLik;
+    // Null unless the candidates are evaluated on several threads.
+    protected ParallelCandidateSiteLikelihood parallelCandidateLik;
 
     public TempTreeLikelihood(){}
 
@@ -68,80 +86,77 @@ public class TempTreeLikelihood extends Distribution {
                               boolean useAmbiguities,
                               SiteModel siteModel,
                               BranchRateModel.Base branchRateModel){
-        int siteCount = alignment.getSiteCount();
-        int patternCount = alignment.getPatternCount();
-        treeLiks = new TempSiteTreeLikelihood[patternCount];
-
-        int[] firstPatternOccur = new int[patternCount];
-        for(int iPat = 0; iPat < firstPatternOccur.length; iPat++){
-            firstPatternOccur[iPat] = -1;
-        }
-        for(int iSite = 0; iSite < siteCount; iSite++){
-
-            int iPat = alignment.getPatternIndex(iSite);
-            if(firstPatternOccur[iPat] == -1){
-                firstPatternOccur[iPat] = iSite;
-            }
-        }
-        for(int i = 0; i < firstPatternOccur.length; i++){
-            AlignmentSubset sitePattern = new AlignmentSubset(alignment,firstPatternOccur[i]);
-            TempSiteTreeLikelihood treeLik = new TempSiteTreeLikelihood(
-                    sitePattern,
-                    tree,
-                    useAmbiguities,
-                    siteModel,
-                    branchRateModel
-
-            );
-
-            treeLiks[i] = treeLik;
-        }
-
-        substModel = siteModelInput.get().getSubstitutionModel();
+        this.alignment = alignment;
+        firstPatternOccur = getFirstPatternOccurrences(alignment);
+        this.tree = tree;
+        this.useAmbiguities = useAmbiguities;
+        this.siteModel = siteModel;
+        this.branchRateModel = branchRateModel;
+        candidateLik = new MultiCandidateSiteLikelihood(alignment, tree, useAmbiguities);
+        substModel = siteModel.getSubstitutionModel();
 
     }
     
     public void initAndValidate() {
         defaultMu = new RealParameter(new Double[]{1.0});
         alignment = dataInput.get();
-        int siteCount = alignment.getSiteCount();
-        int patternCount = alignment.getPatternCount();
-        treeLiks = new TempSiteTreeLikelihood[patternCount];
-
-        //
-        int[] firstPatternOccur = new int[patternCount];
-        for(int iPat = 0; iPat < firstPatternOccur.length; iPat++){
-            firstPatternOccur[iPat] = -1;
+        firstPatternOccur = getFirstPatternOccurrences(alignment);
+        tree = treeInput.get();
+        useAmbiguities = useAmbiguitiesInput.get();
+        siteModel = siteModelInput.get();
+
+        branchRateModel = branchRateModelInput.get() != null
+                ? branchRateModelInput.get()
+                : trueLikelihoodInput.get().branchRateModelInput.get();
+        candidateLik = new MultiCandidateSiteLikelihood(alignment, treeInput.get(), useAmbiguitiesInput.get());
+        substModel = siteModelInput.get().getSubstitutionModel();
+        if(threadsInput.get() > 1 && ParallelCandidateSiteLikelihood.canCopy(substModel)){
+            parallelCandidateLik = new ParallelCandidateSiteLikelihood(
+                    alignment,
+                    tree,
+                    useAmbiguities,
+                    siteModelInput.get(),
+                    branchRateModel,
+                    threadsInput.get()
+            );
         }
-        for(int iSite = 0; iSite < siteCount; iSite++){
+        
 
+    }
+
+    /*
+     * Returns the index of the first site of each pattern in the alignment.
+     */
+    protected static int[] getFirstPatternOccurrences(Alignment alignment){
+        int[] firstPatternOccur = new int[alignment.getPatternCount()];
+        Arrays.fill(firstPatternOccur, -1);
+        for(int iSite = 0; iSite < alignment.getSiteCount(); iSite++){
             int iPat = alignment.getPatternIndex(iSite);
             if(firstPatternOccur[iPat] == -1){
                 firstPatternOccur[iPat] = iSite;
             }
         }
+        return firstPatternOccur;
+    }
 
-
-        for(int i = 0; i < firstPatternOccur.length; i++){
-            AlignmentSubset sitePattern = new AlignmentSubset(alignment,firstPatternOccur[i]);
-            BranchRateModel.Base brModel = branchRateModelInput.get() != null
-                    ? branchRateModelInput.get()
-                    : trueLikelihoodInput.get().branchRateModelInput.get();
-
-            TempSiteTreeLikelihood treeLik = new TempSiteTreeLikelihood(
-                    sitePattern,
-                    treeInput.get(),
-                    useAmbiguitiesInput.get(),
-                    siteModelInput.get(),
-                    brModel
+    /*
+     * Returns the tree likelihood of the given pattern.
+     * Rather than keeping a likelihood core for every pattern, one tree likelihood is created
+     * when it is first needed and its leaf states are reset whenever it is asked for another pattern.
+     */
+    protected TempSiteTreeLikelihood getSiteTreeLikelihood(int iPat){
+        if(siteTreeLik == null){
+            siteTreeLik = new TempSiteTreeLikelihood(
+                    new AlignmentSubset(alignment, firstPatternOccur[iPat]),
+                    tree,
+                    useAmbiguities,
+                    siteModel,
+                    branchRateModel
             );
-
-            treeLiks[i] = treeLik;
+        }else{
+            siteTreeLik.setSite(firstPatternOccur[iPat]);
         }
-
-        substModel = siteModelInput.get().getSubstitutionModel();
-        
-
+        return siteTreeLik;
     }
 
     public void setSubstModelParameter(
@@ -173,7 +188,7 @@ public class TempTreeLikelihood extends Distribution {
     public double calculateLogP(int site){
         try{
             int iPat = alignment.getPatternIndex(site);
-            logP = treeLiks[iPat].calculateLogP();
+            logP = getSiteTreeLikelihood(iPat).calculateLogP();
         }catch(Exception e){
             throw new RuntimeException(e);
         }
@@ -211,9 +226,9 @@ public class TempTreeLikelihood extends Distribution {
                     "substModel", ntdBMA
             );*/
             int iPat = alignment.getPatternIndex(site);
-            //treeLiks[iPat].setSiteModel(siteModel);
+            //getSiteTreeLikelihood(iPat).setSiteModel(siteModel);
             ((NtdBMA)substModel).setUpdateMatrix(true);
-            logP = treeLiks[iPat].calculateLogP();
+            logP = getSiteTreeLikelihood(iPat).calculateLogP();
         }catch(Exception e){
             throw new RuntimeException(e);
 
@@ -254,7 +269,7 @@ public class TempTreeLikelihood extends Distribution {
             ((NtdBMA)substModel).setUpdateMatrix(true);
             siteModelInput.get().getRateParameter().setValueQuietly(0,rate.getValue());
             int iPat = alignment.getPatternIndex(site);         
-            logP = treeLiks[iPat].calculateLogP();
+            logP = getSiteTreeLikelihood(iPat).calculateLogP();
 
         }catch(Exception e){
             throw new RuntimeException(e);
@@ -272,7 +287,7 @@ public class TempTreeLikelihood extends Distribution {
         try{
             siteModelInput.get().getRateParameter().setValueQuietly(0,rateParameter.getValue());
             int iPat = alignment.getPatternIndex(site);
-            logP = treeLiks[iPat].calculateLogP();
+            logP = getSiteTreeLikelihood(iPat).calculateLogP();
         }catch(Exception e){
             throw new RuntimeException(e);
 
@@ -280,8 +295,91 @@ public class TempTreeLikelihood extends Distribution {
         return logP;
     }
 
+    public void calculateLogPs(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCodes,
+            RealParameter[] freqs,
+            int start,
+            int end,
+            int site,
+            double[] logPs){
+        calculateLogPs(modelParameters, modelCodes, freqs, null, start, end, site, logPs);
+    }
 
- 
+    public void calculateLogPs(
+            RealParameter[] rateParameters,
+            int start,
+            int end,
+            int site,
+            double[] logPs){
+        calculateLogPs(null, null, null, rateParameters, start, end, site, logPs);
+    }
+
+    /*
+     * Calculates the log-likelihoods of a site under each of the candidates from start (inclusive) to end (exclusive),
+     * and stores them in logPs at the same indices.
+     * The transition matrices of all the candidates are set up first, and then all the candidates are pruned in one traversal.
+     * If the model parameters or the rates are null, the current values are kept.
+     * With more than one thread the candidates are split into blocks with their own copies of the models,
+     * which gives the same log-likelihoods.
+     */
+    public void calculateLogPs(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCodes,
+            RealParameter[] freqs,
+            RealParameter[] rateParameters,
+            int start,
+            int end,
+            int site,
+            double[] logPs){
+        if(end <= start){
+            return;
+        }
+        if(parallelCandidateLik != null && end - start > 1){
+            parallelCandidateLik.calculateLogPs(modelParameters, modelCodes, freqs, rateParameters,
+                    start, end, alignment.getPatternIndex(site), logPs);
+            return;
+        }
+        try{
+            candidateLik.setCandidateCount(end - start, siteModelInput.get().getCategoryCount());
+            for(int i = start; i < end; i++){
+                if(modelParameters != null){
+                    setSubstModelParameter(modelParameters[i], modelCodes[i], freqs[i]);
+                }
+                if(rateParameters != null){
+                    setRateParameter(rateParameters[i]);
+                }
+                candidateLik.setCandidateModel(i - start, substModel, siteModelInput.get(), branchRateModel);
+            }
+            candidateLik.calculateLogLikelihoods(alignment.getPatternIndex(site), logPs, start);
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Calculates the log-likelihoods of the candidates one at a time,
+     * for the subclasses that set up the models differently for each site.
+     */
+    protected void calculateLogPsSequentially(
+            RealParameter[] modelParameters,
+            RealParameter[] modelCodes,
+            RealParameter[] freqs,
+            RealParameter[] rateParameters,
+            int start,
+            int end,
+            int site,
+            double[] logPs){
+        for(int i = start; i < end; i++){
+            if(modelParameters == null){
+                logPs[i] = calculateLogP(rateParameters[i], site);
+            }else if(rateParameters == null){
+                logPs[i] = calculateLogP(modelParameters[i], modelCodes[i], freqs[i], site);
+            }else{
+                logPs[i] = calculateLogP(modelParameters[i], modelCodes[i], freqs[i], rateParameters[i], site);
+            }
+        }
+    }
 
     public List<String> getConditions(){
         return null;
@@ -15,6 +15,8 @@ import beast.core.Input;
 import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
 
+import java.util.Arrays;
+
 /**
  * @author Chieh-Hsi Wu
  */
@@ -25,6 +27,10 @@ public class TempWVTreeLikelihood extends NewWVTreeLikelihood{
             "The weight of each pattern as an integer"
     );
 
+    // The patterns given a weight by setupPatternWeightsFromSites, a negative count means the weights were set otherwise.
+    private int[] sitePatterns;
+    private int sitePatternCount = -1;
+
     public TempWVTreeLikelihood(){}
 
     public TempWVTreeLikelihood(int[] patternWeights,
@@ -209,11 +215,26 @@ public class TempWVTreeLikelihood extends NewWVTreeLikelihood{
             RealParameter freqs,
         int[] sites) throws Exception{
         double[] siteLogP = new double[sites.length];
+        calculateLogP(modelParameters,modelCode,freqs,sites,sites.length,siteLogP);
+        return siteLogP;
+    }
+
+    /*
+     * Calculates the log-likelihoods of the first siteCount sites and stores them in siteLogP,
+     * so that an operator can reuse its own arrays.
+     */
+    public void calculateLogP(
+            RealParameter modelParameters,
+            RealParameter modelCode,
+            RealParameter freqs,
+            int[] sites,
+            int siteCount,
+            double[] siteLogP) throws Exception{
         calculateLogP(modelParameters,modelCode,freqs);
-        for(int i = 0; i < sites.length;i++){
-            siteLogP[i] = patternLogLikelihoods[dataInput.get().getPatternIndex(sites[i])];
+        Alignment data = dataInput.get();
+        for(int i = 0; i < siteCount;i++){
+            siteLogP[i] = patternLogLikelihoods[data.getPatternIndex(sites[i])];
         }
-        return siteLogP;
     }
 
     public double calculateLogP(
@@ -301,14 +322,86 @@ public class TempWVTreeLikelihood extends NewWVTreeLikelihood{
 
 
     public void setupPatternWeightsFromSites(int[] sites){
-        int[] tempWeights = new int[dataInput.get().getPatternCount()];
+        setupPatternWeightsFromSites(sites, sites.length);
+    }
+
+    /*
+     * Gives a weight of one to the patterns of the first siteCount sites and masks all the other patterns.
+     * Only the patterns set by the previous call are cleared, so the cost depends on the number of sites
+     * rather than the number of patterns in the alignment.
+     */
+    public void setupPatternWeightsFromSites(int[] sites, int siteCount){
+        if(sitePatterns == null){
+            sitePatterns = new int[patternWeights.length];
+        }
+        if(sitePatternCount < 0){
+            // The weights have been set in some other way, so every pattern is masked through the core.
+            Arrays.fill(patternWeights, 0);
+            m_likelihoodCore.setUnmasked(new boolean[patternWeights.length]);
+        }else{
+            for(int i = 0; i < sitePatternCount; i++){
+                patternWeights[sitePatterns[i]] = 0;
+                m_likelihoodCore.setUnmasked(sitePatterns[i], false);
+            }
+        }
+
+        Alignment data = dataInput.get();
+        sitePatternCount = 0;
         int patIndex;
-        for(int i = 0; i < sites.length; i++){
-            patIndex = dataInput.get().getPatternIndex(sites[i]);
-            tempWeights[patIndex] = 1;
+        for(int i = 0; i < siteCount; i++){
+            patIndex = data.getPatternIndex(sites[i]);
+            if(patternWeights[patIndex] == 0){
+                patternWeights[patIndex] = 1;
+                m_likelihoodCore.setUnmasked(patIndex, true);
+                sitePatterns[sitePatternCount++] = patIndex;
+            }
+        }
+        unmaskedPatternCount = sitePatternCount;
+    }
+
+    /*
+     * Only the patterns set from the sites have positive weights, so the others are skipped.
+     */
+    @Override
+    protected void calcLogP() {
+        if(sitePatternCount < 0 || useAscertainedSitePatterns){
+            super.calcLogP();
+            return;
         }
+        logP = 0.0;
+        for(int i = 0; i < sitePatternCount; i++){
+            logP += patternLogLikelihoods[sitePatterns[i]] * patternWeights[sitePatterns[i]];
+        }
+    }
+
+    @Override
+    public void setPatternWeights(int[] newPatternWeights){
+        super.setPatternWeights(newPatternWeights);
+        sitePatternCount = -1;
+    }
+
+    @Override
+    public void addWeight(int patId, int dweight){
+        super.addWeight(patId, dweight);
+        sitePatternCount = -1;
+    }
+
+    @Override
+    public void removeWeight(int patId, int dweight){
+        super.removeWeight(patId, dweight);
+        sitePatternCount = -1;
+    }
+
+    @Override
+    public void setWeight(int patId, int weight){
+        super.setWeight(patId, weight);
+        sitePatternCount = -1;
+    }
 
-        setPatternWeights(tempWeights);
+    @Override
+    public void restore(){
+        super.restore();
+        sitePatternCount = -1;
     }
 
     public double getCurrSiteLikelihood(int siteIndex){
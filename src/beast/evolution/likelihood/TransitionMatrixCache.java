@@ -0,0 +1,142 @@
+package beast.evolution.likelihood;
+
+import beast.evolution.substitutionmodel.NtdBMA;
+import beast.evolution.tree.Node;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the transition probability matrices of the substitution models in a DP mixture. The matrices are keyed
+ * by the ID number of the substitution model, the matrix version of the model and the effective branch length
+ * (rate x time), so the tree likelihoods that share a substitution model but have different rates can reuse each
+ * other's matrices. Matrices of earlier versions are kept until they are evicted, so the matrices of a version
+ * that is restored after a rejected proposal are still found. Each model keeps at most a fixed number of
+ * matrices, and the least recently used are evicted first.
+ */
+public class TransitionMatrixCache {
+    public static final int DEFAULT_MAX_MATRICES_PER_MODEL = 4096;
+
+    private final int maxMatricesPerModel;
+    private final ConcurrentHashMap<Integer, ModelMatrices> modelMatrices = new ConcurrentHashMap<Integer, ModelMatrices>();
+
+    public TransitionMatrixCache(){
+        this(DEFAULT_MAX_MATRICES_PER_MODEL);
+    }
+
+    public TransitionMatrixCache(int maxMatricesPerModel){
+        this.maxMatricesPerModel = maxMatricesPerModel;
+    }
+
+    /*
+     * Fills in the transition probabilities of the substitution model for the given branch,
+     * either from the cache or by calculating them and adding them to the cache.
+     */
+    public void getTransitionProbabilities(NtdBMA substModel, Node node, double fStartTime, double fEndTime, double fRate, double[] matrix){
+        int idNumber = substModel.getIDNumber();
+        if(idNumber < 0 || fRate < 0.0){
+            substModel.getTransitionProbabilities(node, fStartTime, fEndTime, fRate, matrix);
+            return;
+        }
+
+        ModelMatrices matrices = modelMatrices.get(idNumber);
+        if(matrices == null){
+            ModelMatrices newMatrices = new ModelMatrices(maxMatricesPerModel);
+            matrices = modelMatrices.putIfAbsent(idNumber, newMatrices);
+            if(matrices == null){
+                matrices = newMatrices;
+            }
+        }
+
+        // The same expression as in the substitution models.
+        long version = substModel.getMatrixVersion();
+        long branchLength = Double.doubleToLongBits((fStartTime - fEndTime) * fRate);
+        if(matrices.get(version, branchLength, matrix)){
+            return;
+        }
+
+        substModel.getTransitionProbabilities(node, fStartTime, fEndTime, fRate, matrix);
+        matrices.put(version, branchLength, matrix);
+    }
+
+    /*
+     * Removes the matrices of all the substitution models.
+     */
+    public void clear(){
+        modelMatrices.clear();
+    }
+
+    public int getMatrixCount(int idNumber){
+        ModelMatrices matrices = modelMatrices.get(idNumber);
+        return matrices == null ? 0 : matrices.size();
+    }
+
+    /**
+     * The matrices of one substitution model, in the order in which they were last used. The tree likelihoods
+     * of the clusters may look up the matrices from several threads, so all access is synchronized.
+     */
+    static class ModelMatrices extends LinkedHashMap<MatrixKey, double[]> {
+        private final int maxMatrices;
+        // The key of the lookups, so that a key is only created when a matrix is added.
+        private final MatrixKey lookupKey = new MatrixKey(0L, 0L);
+
+        ModelMatrices(int maxMatrices){
+            super(16, 0.75f, true);
+            this.maxMatrices = maxMatrices;
+        }
+
+        /*
+         * Copies the matrix of the given version and branch length to matrix, and returns whether it was found.
+         */
+        synchronized boolean get(long version, long branchLength, double[] matrix){
+            lookupKey.version = version;
+            lookupKey.branchLength = branchLength;
+            double[] cached = get(lookupKey);
+            if(cached == null || cached.length != matrix.length){
+                return false;
+            }
+            System.arraycopy(cached, 0, matrix, 0, matrix.length);
+            return true;
+        }
+
+        synchronized void put(long version, long branchLength, double[] matrix){
+            put(new MatrixKey(version, branchLength), matrix.clone());
+        }
+
+        @Override
+        public synchronized int size(){
+            return super.size();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<MatrixKey, double[]> eldest){
+            return size() > maxMatrices;
+        }
+    }
+
+    static class MatrixKey {
+        long version;
+        long branchLength;
+
+        MatrixKey(long version, long branchLength){
+            this.version = version;
+            this.branchLength = branchLength;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof MatrixKey)){
+                return false;
+            }
+            MatrixKey key = (MatrixKey) o;
+            return version == key.version && branchLength == key.branchLength;
+        }
+
+        @Override
+        public int hashCode(){
+            long hash = version * 31 + branchLength;
+            return (int)(hash ^ (hash >>> 32));
+        }
+    }
+}
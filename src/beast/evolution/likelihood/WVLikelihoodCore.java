@@ -1,12 +1,26 @@
 package beast.evolution.likelihood;
 
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
 /**
  * @author Chieh-Hsi Wu
  */
 public class WVLikelihoodCore extends BeerLikelihoodCore{
+    // The minimum number of patterns in a block processed by a thread.
+    public static final int MIN_BLOCK_SIZE = 64;
+    public static final int BLOCKS_PER_THREAD = 4;
+
     protected boolean[] unmasked;
     private boolean[] storedUnmasked;
     private double m_fScalingThreshold = 1.0E-100;
+    private int threadCount = 1;
+    // The first pattern of each block followed by the pattern count; null when the patterns are processed sequentially.
+    private int[] blockBoundaries;
+    // The shared pool with threadCount threads on which the blocks run; null when the patterns are processed sequentially.
+    private ForkJoinPool pool;
     public WVLikelihoodCore(int nStateCount, boolean[] unmasked) {
 		super(nStateCount);
         this.unmasked = unmasked;
@@ -36,6 +50,161 @@ public class WVLikelihoodCore extends BeerLikelihoodCore{
             throw new RuntimeException("The length of the unmasked ("+unmasked.length+
                     ") array needs to be the same as the number of patterns("+nrOfPatterns+").");
         }
+        setupPatternBlocks();
+    }
+
+    /*
+     * Sets the number of threads used to process contiguous blocks of patterns in parallel.
+     * The blocks run on a shared pool with this number of threads, unless the likelihood is already calculated
+     * on a worker of a pool (e.g. by ClusterLikelihoodEvaluator), in which case they run on that pool.
+     * With a single thread the patterns are processed sequentially.
+     */
+    public void setThreadCount(int threadCount){
+        this.threadCount = Math.max(1, threadCount);
+        pool = this.threadCount > 1 ? SharedForkJoinPools.getPool(this.threadCount) : null;
+        setupPatternBlocks();
+    }
+
+    public int getThreadCount(){
+        return threadCount;
+    }
+
+    private void setupPatternBlocks(){
+        blockBoundaries = null;
+        if(threadCount <= 1 || nrOfPatterns < 2 * MIN_BLOCK_SIZE){
+            return;
+        }
+
+        // More blocks than threads, so that blocks with few unmasked patterns can be balanced by work stealing.
+        int blockCount = Math.min(threadCount * BLOCKS_PER_THREAD, nrOfPatterns / MIN_BLOCK_SIZE);
+        blockBoundaries = new int[blockCount + 1];
+        for(int i = 0; i <= blockCount; i++){
+            blockBoundaries[i] = (int)((long) nrOfPatterns * i / blockCount);
+        }
+    }
+
+    /*
+     * Calculates the partials of node 3 from its children nodes 1 and 2.
+     * Each block of patterns is pruned and scaled independently.
+     */
+    @Override
+    public void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3) {
+        if(blockBoundaries == null){
+            calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3, 0, nrOfPatterns);
+        }else{
+            invokeBlocks(new PartialsBlockTask(nodeIndex1, nodeIndex2, nodeIndex3, 0, blockBoundaries.length - 1));
+        }
+    }
+
+    protected void calculatePartials(int nodeIndex1, int nodeIndex2, int nodeIndex3, int startPattern, int endPattern) {
+        double[] fPartials3 = partials[currentPartialsIndex[nodeIndex3]][nodeIndex3];
+        if (states[nodeIndex1] != null) {
+            if (states[nodeIndex2] != null) {
+                calculateStatesStatesPruning(
+                        states[nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                        states[nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                        fPartials3, startPattern, endPattern);
+            } else {
+                calculateStatesPartialsPruning(
+                        states[nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                        partials[currentPartialsIndex[nodeIndex2]][nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                        fPartials3, startPattern, endPattern);
+            }
+        } else {
+            if (states[nodeIndex2] != null) {
+                calculateStatesPartialsPruning(
+                        states[nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                        partials[currentPartialsIndex[nodeIndex1]][nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                        fPartials3, startPattern, endPattern);
+            } else {
+                calculatePartialsPartialsPruning(
+                        partials[currentPartialsIndex[nodeIndex1]][nodeIndex1], matrices[currentMatrixIndex[nodeIndex1]][nodeIndex1],
+                        partials[currentPartialsIndex[nodeIndex2]][nodeIndex2], matrices[currentMatrixIndex[nodeIndex2]][nodeIndex2],
+                        fPartials3, startPattern, endPattern);
+            }
+        }
+
+        if (useScaling) {
+            scalePartials(nodeIndex3, startPattern, endPattern);
+        }
+    }
+
+    private void invokeBlocks(PatternBlockTask task){
+        if(ForkJoinTask.inForkJoinPool()){
+            // Already on a worker (e.g. the cluster is evaluated by ClusterLikelihoodEvaluator).
+            task.invoke();
+        }else{
+            if(pool.isShutdown()){
+                pool = SharedForkJoinPools.getPool(threadCount);
+            }
+            pool.invoke(task);
+        }
+    }
+
+    /*
+     * Processes the pattern blocks from fromBlock (inclusive) to toBlock (exclusive)
+     * by recursively halving the range of blocks.
+     */
+    abstract class PatternBlockTask extends RecursiveAction {
+        protected final int fromBlock;
+        protected final int toBlock;
+
+        PatternBlockTask(int fromBlock, int toBlock){
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+
+        @Override
+        protected void compute(){
+            if(toBlock - fromBlock == 1){
+                computeBlock(blockBoundaries[fromBlock], blockBoundaries[toBlock]);
+            }else{
+                int mid = (fromBlock + toBlock) >>> 1;
+                invokeAll(createSubtask(fromBlock, mid), createSubtask(mid, toBlock));
+            }
+        }
+
+        protected abstract PatternBlockTask createSubtask(int fromBlock, int toBlock);
+
+        protected abstract void computeBlock(int startPattern, int endPattern);
+    }
+
+    class PartialsBlockTask extends PatternBlockTask {
+        private final int nodeIndex1, nodeIndex2, nodeIndex3;
+
+        PartialsBlockTask(int nodeIndex1, int nodeIndex2, int nodeIndex3, int fromBlock, int toBlock){
+            super(fromBlock, toBlock);
+            this.nodeIndex1 = nodeIndex1;
+            this.nodeIndex2 = nodeIndex2;
+            this.nodeIndex3 = nodeIndex3;
+        }
+
+        protected PatternBlockTask createSubtask(int fromBlock, int toBlock){
+            return new PartialsBlockTask(nodeIndex1, nodeIndex2, nodeIndex3, fromBlock, toBlock);
+        }
+
+        protected void computeBlock(int startPattern, int endPattern){
+            calculatePartials(nodeIndex1, nodeIndex2, nodeIndex3, startPattern, endPattern);
+        }
+    }
+
+    class LogLikelihoodsBlockTask extends PatternBlockTask {
+        private final double[] fPartials, fFrequencies, fOutLogLikelihoods;
+
+        LogLikelihoodsBlockTask(double[] fPartials, double[] fFrequencies, double[] fOutLogLikelihoods, int fromBlock, int toBlock){
+            super(fromBlock, toBlock);
+            this.fPartials = fPartials;
+            this.fFrequencies = fFrequencies;
+            this.fOutLogLikelihoods = fOutLogLikelihoods;
+        }
+
+        protected PatternBlockTask createSubtask(int fromBlock, int toBlock){
+            return new LogLikelihoodsBlockTask(fPartials, fFrequencies, fOutLogLikelihoods, fromBlock, toBlock);
+        }
+
+        protected void computeBlock(int startPattern, int endPattern){
+            calculateLogLikelihoods(fPartials, fFrequencies, fOutLogLikelihoods, startPattern, endPattern);
+        }
     }
 
 	/**
@@ -44,11 +213,22 @@ public class WVLikelihoodCore extends BeerLikelihoodCore{
 	protected void calculateStatesStatesPruning(int[] iStates1, double[] fMatrices1,
 												int[] iStates2, double[] fMatrices2,
 												double[] fPartials3){
-		int v = 0;
+		calculateStatesStatesPruning(iStates1, fMatrices1, iStates2, fMatrices2, fPartials3, 0, nrOfPatterns);
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have states,
+	 * for the patterns from startPattern (inclusive) to endPattern (exclusive).
+	 */
+	protected void calculateStatesStatesPruning(int[] iStates1, double[] fMatrices1,
+												int[] iStates2, double[] fMatrices2,
+												double[] fPartials3, int startPattern, int endPattern){
+		int v;
 
 		for (int l = 0; l < nrOfMatrices; l++) {
+			v = (l * nrOfPatterns + startPattern) * nrOfStates;
 
-			for (int k = 0; k < nrOfPatterns; k++) {
+			for (int k = startPattern; k < endPattern; k++) {
                 if(unmasked[k]){
 				    int state1 = iStates1[k];
 				    int state2 = iStates2[k];
@@ -106,14 +286,24 @@ public class WVLikelihoodCore extends BeerLikelihoodCore{
 	protected void calculateStatesPartialsPruning(	int[] iStates1, double[] fMatrices1,
 													double[] fPartials2, double[] fMatrices2,
 													double[] fPartials3){
+		calculateStatesPartialsPruning(iStates1, fMatrices1, fPartials2, fMatrices2, fPartials3, 0, nrOfPatterns);
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when one child has states and one has partials,
+	 * for the patterns from startPattern (inclusive) to endPattern (exclusive).
+	 */
+	protected void calculateStatesPartialsPruning(	int[] iStates1, double[] fMatrices1,
+													double[] fPartials2, double[] fMatrices2,
+													double[] fPartials3, int startPattern, int endPattern){
 
 		double sum, tmp;
 
-		int u = 0;
-		int v = 0;
+		int u, v;
 
 		for (int l = 0; l < nrOfMatrices; l++) {
-			for (int k = 0; k < nrOfPatterns; k++) {
+			u = v = (l * nrOfPatterns + startPattern) * nrOfStates;
+			for (int k = startPattern; k < endPattern; k++) {
                 if(unmasked[k]){
 				    int state1 = iStates1[k];
 
@@ -168,15 +358,26 @@ public class WVLikelihoodCore extends BeerLikelihoodCore{
 	protected void calculatePartialsPartialsPruning(double[] fPartials1, double[] fMatrices1,
 													double[] fPartials2, double[] fMatrices2,
 													double[] fPartials3)
+	{
+		calculatePartialsPartialsPruning(fPartials1, fMatrices1, fPartials2, fMatrices2, fPartials3, 0, nrOfPatterns);
+	}
+
+	/**
+	 * Calculates partial likelihoods at a node when both children have partials,
+	 * for the patterns from startPattern (inclusive) to endPattern (exclusive).
+	 */
+	protected void calculatePartialsPartialsPruning(double[] fPartials1, double[] fMatrices1,
+													double[] fPartials2, double[] fMatrices2,
+													double[] fPartials3, int startPattern, int endPattern)
 	{
 		double sum1, sum2;
 
-		int u = 0;
-		int v = 0;
+		int u, v;
 
 		for (int l = 0; l < nrOfMatrices; l++) {
+			u = v = (l * nrOfPatterns + startPattern) * nrOfStates;
 
-			for (int k = 0; k < nrOfPatterns; k++) {
+			for (int k = startPattern; k < endPattern; k++) {
                 if(unmasked[k]){
                     int w = l * matrixSize;
 
@@ -417,8 +618,21 @@ public class WVLikelihoodCore extends BeerLikelihoodCore{
 	 * @param fOutLogLikelihoods an array into which the likelihoods will go
 	 */
 	public void calculateLogLikelihoods(double[] fPartials, double[] fFrequencies, double[] fOutLogLikelihoods){
-        int v = 0;
-		for (int k = 0; k < nrOfPatterns; k++) {
+        if(blockBoundaries == null){
+            calculateLogLikelihoods(fPartials, fFrequencies, fOutLogLikelihoods, 0, nrOfPatterns);
+        }else{
+            invokeBlocks(new LogLikelihoodsBlockTask(fPartials, fFrequencies, fOutLogLikelihoods, 0, blockBoundaries.length - 1));
+        }
+    }
+
+	/**
+	 * Calculates pattern log likelihoods at a node,
+	 * for the patterns from startPattern (inclusive) to endPattern (exclusive).
+	 */
+	protected void calculateLogLikelihoods(double[] fPartials, double[] fFrequencies, double[] fOutLogLikelihoods,
+                                           int startPattern, int endPattern){
+        int v = startPattern * nrOfStates;
+		for (int k = startPattern; k < endPattern; k++) {
             if(unmasked[k]){
                 double sum = 0.0;
 			    for (int i = 0; i < nrOfStates; i++) {
@@ -472,9 +686,17 @@ public class WVLikelihoodCore extends BeerLikelihoodCore{
      * @param iNodeIndex
      */
     protected void scalePartials(int iNodeIndex) {
-        int u = 0;
+        scalePartials(iNodeIndex, 0, nrOfPatterns);
+    }
+
+    /**
+     * Scale the partials at a given node for the patterns
+     * from startPattern (inclusive) to endPattern (exclusive).
+     */
+    protected void scalePartials(int iNodeIndex, int startPattern, int endPattern) {
+        int u = startPattern * nrOfStates;
 
-        for (int i = 0; i < nrOfPatterns; i++) {
+        for (int i = startPattern; i < endPattern; i++) {
             if(unmasked[i]){
                 double scaleFactor = 0.0;
                 int v = u;
@@ -512,6 +734,264 @@ public class WVLikelihoodCore extends BeerLikelihoodCore{
 
 
 
+    /*
+     * Pre-order partials.
+     * The pre-order partials of a node are the likelihoods of the data outside the subtree of the node,
+     * given each state at the node (i.e. at the bottom of the branch above it).
+     * They are calculated from the root towards the tips, after the (post-order) partials are up to date,
+     * and have the same layout as the partials.
+     * The site likelihood of a pattern can then be obtained at any node from its pre-order and post-order partials,
+     * so a change to a single branch only needs the pre-order partials of the parent and the sibling of that branch.
+     */
+    protected double[][] preOrderPartials;
+    protected double[][] preOrderScalingFactors;
+    protected double[] preOrderScratch;
+    protected double[] preOrderBranchScratch;
+
+    public void createPreOrderPartials(){
+        if(preOrderPartials == null){
+            preOrderPartials = new double[nrOfNodes][partialsSize];
+            preOrderScalingFactors = new double[nrOfNodes][nrOfPatterns];
+            preOrderScratch = new double[nrOfStates];
+            preOrderBranchScratch = new double[nrOfStates];
+        }
+    }
+
+    public double[] getPreOrderPartials(int iNode){
+        return preOrderPartials[iNode];
+    }
+
+    /**
+     * Sets the pre-order partials of the root, which are the state frequencies for every category.
+     * @param iRoot the root node index
+     * @param fFrequencies an array of state frequencies
+     */
+    public void calculateRootPreOrderPartials(int iRoot, double[] fFrequencies){
+        createPreOrderPartials();
+        double[] fPreOrderPartials = preOrderPartials[iRoot];
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int v = l * nrOfPatterns * nrOfStates;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                if(unmasked[k]){
+                    System.arraycopy(fFrequencies, 0, fPreOrderPartials, v, nrOfStates);
+                }
+                v += nrOfStates;
+            }
+        }
+        Arrays.fill(preOrderScalingFactors[iRoot], 0.0);
+    }
+
+    /**
+     * Calculates the pre-order partials of a node from the pre-order partials of its parent
+     * and the partials of its sibling.
+     * @param iParent the parent node index
+     * @param iSibling the sibling node index
+     * @param iNode the node index
+     */
+    public void calculatePreOrderPartials(int iParent, int iSibling, int iNode){
+        double[] fParentPreOrderPartials = preOrderPartials[iParent];
+        double[] fMatrices = matrices[currentMatrixIndex[iNode]][iNode];
+        double[] fPreOrderPartials = preOrderPartials[iNode];
+        double[] fAbove = preOrderScratch;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int v = l * nrOfPatterns * nrOfStates;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                if(unmasked[k]){
+                    // The likelihood of everything outside the branch, for each state at the parent.
+                    calculateSiblingFactors(iSibling, l, k, fAbove);
+                    for (int i = 0; i < nrOfStates; i++) {
+                        fAbove[i] *= fParentPreOrderPartials[v + i];
+                    }
+
+                    for (int j = 0; j < nrOfStates; j++) {
+                        int w = l * matrixSize + j;
+                        double sum = 0.0;
+                        for (int i = 0; i < nrOfStates; i++) {
+                            sum += fAbove[i] * fMatrices[w];
+                            w += nrOfStates;
+                        }
+                        fPreOrderPartials[v + j] = sum;
+                    }
+                }
+                v += nrOfStates;
+            }
+        }
+
+        scalePreOrderPartials(iParent, iNode);
+    }
+
+    /*
+     * Calculates the product of the transition matrix of the sibling and its partials
+     * for the given category and pattern, i.e. the contribution of the sibling to each state at the parent.
+     */
+    protected void calculateSiblingFactors(int iSibling, int l, int k, double[] fOut){
+        double[] fMatrices = matrices[currentMatrixIndex[iSibling]][iSibling];
+        calculateBranchFactors(iSibling, fMatrices, l, k, fOut);
+    }
+
+    /*
+     * Calculates the product of the given transition matrices and the partials (or states) of the node
+     * for the given category and pattern.
+     */
+    protected void calculateBranchFactors(int iNode, double[] fMatrices, int l, int k, double[] fOut){
+        int w = l * matrixSize;
+        if(states[iNode] != null){
+            int state = states[iNode][k];
+            for (int i = 0; i < nrOfStates; i++) {
+                fOut[i] = state < nrOfStates ? fMatrices[w + state] : 1.0;
+                w += nrOfStates;
+            }
+        }else{
+            double[] fPartials = partials[currentPartialsIndex[iNode]][iNode];
+            int v = (l * nrOfPatterns + k) * nrOfStates;
+            for (int i = 0; i < nrOfStates; i++) {
+                double sum = 0.0;
+                for (int j = 0; j < nrOfStates; j++) {
+                    sum += fMatrices[w] * fPartials[v + j];
+                    w++;
+                }
+                fOut[i] = sum;
+            }
+        }
+    }
+
+    /*
+     * Rescales the pre-order partials of a node in the same way as scalePartials.
+     * The scaling factors are accumulated from the root, so those of the parent are carried over.
+     */
+    protected void scalePreOrderPartials(int iParent, int iNode){
+        double[] fPreOrderPartials = preOrderPartials[iNode];
+        double[] fParentScalingFactors = preOrderScalingFactors[iParent];
+        double[] fScalingFactors = preOrderScalingFactors[iNode];
+        for (int k = 0; k < nrOfPatterns; k++) {
+            if(unmasked[k]){
+                fScalingFactors[k] = fParentScalingFactors[k];
+                if(useScaling){
+                    double scaleFactor = 0.0;
+                    int v = k * nrOfStates;
+                    for (int l = 0; l < nrOfMatrices; l++) {
+                        for (int i = 0; i < nrOfStates; i++) {
+                            if (fPreOrderPartials[v + i] > scaleFactor) {
+                                scaleFactor = fPreOrderPartials[v + i];
+                            }
+                        }
+                        v += nrOfPatterns * nrOfStates;
+                    }
+
+                    if (scaleFactor < m_fScalingThreshold && scaleFactor > 0.0) {
+                        v = k * nrOfStates;
+                        for (int l = 0; l < nrOfMatrices; l++) {
+                            for (int i = 0; i < nrOfStates; i++) {
+                                fPreOrderPartials[v + i] /= scaleFactor;
+                            }
+                            v += nrOfPatterns * nrOfStates;
+                        }
+                        fScalingFactors[k] += Math.log(scaleFactor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculates pattern log likelihoods at a node from its pre-order partials and its partials.
+     * @param iNode the node index
+     * @param iAncestors the indices of the ancestors of the node
+     * @param nAncestorCount the number of ancestors of the node
+     * @param fProportions the proportions of sites in each category
+     * @param fInvariantLikelihoods the likelihoods of the patterns at the invariant sites, or null
+     * @param fOutLogLikelihoods an array into which the likelihoods will go
+     */
+    public void calculatePreOrderLogLikelihoods(int iNode, int[] iAncestors, int nAncestorCount,
+                                                double[] fProportions, double[] fInvariantLikelihoods,
+                                                double[] fOutLogLikelihoods){
+        double[] fPreOrderPartials = preOrderPartials[iNode];
+        int[] iStates = states[iNode];
+        double[] fPartials = iStates == null ? partials[currentPartialsIndex[iNode]][iNode] : null;
+
+        for (int k = 0; k < nrOfPatterns; k++) {
+            if(unmasked[k]){
+                double sum = fInvariantLikelihoods == null ? 0.0 : fInvariantLikelihoods[k];
+                for (int l = 0; l < nrOfMatrices; l++) {
+                    int v = (l * nrOfPatterns + k) * nrOfStates;
+                    double sumCat = 0.0;
+                    if(iStates != null){
+                        int state = iStates[k];
+                        if(state < nrOfStates){
+                            sumCat = fPreOrderPartials[v + state];
+                        }else{
+                            for (int i = 0; i < nrOfStates; i++) {
+                                sumCat += fPreOrderPartials[v + i];
+                            }
+                        }
+                    }else{
+                        for (int i = 0; i < nrOfStates; i++) {
+                            sumCat += fPreOrderPartials[v + i] * fPartials[v + i];
+                        }
+                    }
+                    sum += sumCat * fProportions[l];
+                }
+                fOutLogLikelihoods[k] = Math.log(sum) + getPreOrderLogScalingFactor(iNode, iAncestors, nAncestorCount, k);
+            }
+        }
+    }
+
+    /**
+     * Calculates pattern log likelihoods with the given transition matrices on the branch above a node,
+     * from the pre-order partials of the parent and the partials of the sibling and the node.
+     * Nothing needs to be recalculated elsewhere in the tree.
+     * @param iParent the parent node index
+     * @param iSibling the sibling node index
+     * @param iNode the node index
+     * @param iAncestors the indices of the ancestors of the node
+     * @param nAncestorCount the number of ancestors of the node
+     * @param fMatrices the transition matrices of the branch, one for each category
+     * @param fProportions the proportions of sites in each category
+     * @param fInvariantLikelihoods the likelihoods of the patterns at the invariant sites, or null
+     * @param fOutLogLikelihoods an array into which the likelihoods will go
+     */
+    public void calculateBranchLogLikelihoods(int iParent, int iSibling, int iNode,
+                                              int[] iAncestors, int nAncestorCount,
+                                              double[] fMatrices, double[] fProportions, double[] fInvariantLikelihoods,
+                                              double[] fOutLogLikelihoods){
+        double[] fParentPreOrderPartials = preOrderPartials[iParent];
+        double[] fAbove = preOrderScratch;
+        double[] fBelow = preOrderBranchScratch;
+
+        for (int k = 0; k < nrOfPatterns; k++) {
+            if(unmasked[k]){
+                double sum = fInvariantLikelihoods == null ? 0.0 : fInvariantLikelihoods[k];
+                for (int l = 0; l < nrOfMatrices; l++) {
+                    int v = (l * nrOfPatterns + k) * nrOfStates;
+                    calculateSiblingFactors(iSibling, l, k, fAbove);
+                    calculateBranchFactors(iNode, fMatrices, l, k, fBelow);
+                    double sumCat = 0.0;
+                    for (int i = 0; i < nrOfStates; i++) {
+                        sumCat += fParentPreOrderPartials[v + i] * fAbove[i] * fBelow[i];
+                    }
+                    sum += sumCat * fProportions[l];
+                }
+                fOutLogLikelihoods[k] = Math.log(sum) + getPreOrderLogScalingFactor(iParent, iAncestors, nAncestorCount, k);
+            }
+        }
+    }
+
+    /*
+     * The log scaling factor of a pattern when the likelihood is calculated from the pre-order partials of a node.
+     * The partials of the ancestors are not used, so their scaling factors are taken out of the total.
+     */
+    protected double getPreOrderLogScalingFactor(int iNode, int[] iAncestors, int nAncestorCount, int k){
+        if(!useScaling){
+            return 0.0;
+        }
+        double logScalingFactor = getLogScalingFactor(k) + preOrderScalingFactors[iNode][k];
+        for(int i = 0; i < nAncestorCount; i++){
+            logScalingFactor -= scalingFactors[currentPartialsIndex[iAncestors[i]]][iAncestors[i]][k];
+        }
+        return logScalingFactor;
+    }
+
     public void store(){
         System.arraycopy(unmasked, 0, storedUnmasked, 0, unmasked.length);
         super.store();
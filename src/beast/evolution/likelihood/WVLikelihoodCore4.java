@@ -14,18 +14,20 @@ public class WVLikelihoodCore4 extends WVLikelihoodCore{
 	}
 
 	/**
-	 * Calculates partial likelihoods at a node when both children have states.
+	 * Calculates partial likelihoods at a node when both children have states,
+	 * for the patterns from startPattern (inclusive) to endPattern (exclusive).
 	 */
 	protected void calculateStatesStatesPruning(int[] iStates1, double[] fMatrices1,
 												int[] iStates2, double[] fMatrices2,
-												double[] fPartials3)
+												double[] fPartials3, int startPattern, int endPattern)
 	{
 
-		int v = 0;
+		int v;
 
 		for (int l = 0; l < nrOfMatrices; l++) {
+			v = (l * nrOfPatterns + startPattern) * 4;
 
-			for (int k = 0; k < nrOfPatterns; k++) {
+			for (int k = startPattern; k < endPattern; k++) {
 
                 if(unmasked[k]){
 				    int state1 = iStates1[k];
@@ -88,20 +90,21 @@ public class WVLikelihoodCore4 extends WVLikelihoodCore{
 	}
 
 	/**
-	 * Calculates partial likelihoods at a node when one child has states and one has partials.
+	 * Calculates partial likelihoods at a node when one child has states and one has partials,
+	 * for the patterns from startPattern (inclusive) to endPattern (exclusive).
 	 */
 	protected void calculateStatesPartialsPruning(	int[] iStates1, double[] fMatrices1,
 													double[] fPartials2, double[] fMatrices2,
-													double[] fPartials3)
+													double[] fPartials3, int startPattern, int endPattern)
 	{
 
 		double sum;//, tmp;
 
-		int u = 0;
-		int v = 0;
+		int u, v;
 
 		for (int l = 0; l < nrOfMatrices; l++) {
-			for (int k = 0; k < nrOfPatterns; k++) {
+			u = v = (l * nrOfPatterns + startPattern) * 4;
+			for (int k = startPattern; k < endPattern; k++) {
                 if(unmasked[k]){
 				    int state1 = iStates1[k];
                     //System.out.println("k: "+k);
@@ -178,20 +181,21 @@ public class WVLikelihoodCore4 extends WVLikelihoodCore{
 
 
 	/**
-	 * Calculates partial likelihoods at a node when both children have partials.
+	 * Calculates partial likelihoods at a node when both children have partials,
+	 * for the patterns from startPattern (inclusive) to endPattern (exclusive).
 	 */
 	protected void calculatePartialsPartialsPruning(double[] fPartials1, double[] fMatrices1,
 													double[] fPartials2, double[] fMatrices2,
-													double[] fPartials3)
+													double[] fPartials3, int startPattern, int endPattern)
 	{
 		double sum1, sum2;
 
-		int u = 0;
-		int v = 0;
+		int u, v;
 
 		for (int l = 0; l < nrOfMatrices; l++) {
+			u = v = (l * nrOfPatterns + startPattern) * 4;
 
-			for (int k = 0; k < nrOfPatterns; k++) {
+			for (int k = startPattern; k < endPattern; k++) {
                 if(unmasked[k]){
                     int w = l * matrixSize;
 
@@ -244,62 +248,55 @@ public class WVLikelihoodCore4 extends WVLikelihoodCore{
 		}
 	}
 
-	/*@Override
-    public void calcRootPsuedoRootPartials(double[] fFrequencies, int iNode, double [] fPseudoPartials) {
-		int u = 0;
-		double [] fInPartials = m_fPartials[m_iCurrentPartials[iNode]][iNode];
-		for (int i = 0; i < nrOfPatterns; i++) {
-            if(unmasked[i]){
-                for(int j = 0; j < nrOfMatrices; j++){
-			        fPseudoPartials[u] = fInPartials[u] * fFrequencies[0];
-			        fPseudoPartials[u+1] = fInPartials[u+1] * fFrequencies[1];
-			        fPseudoPartials[u+2] = fInPartials[u+2] * fFrequencies[2];
-			        fPseudoPartials[u+3] = fInPartials[u+3] * fFrequencies[3];
-			        u+=4;
+	/**
+	 * Calculates the pre-order partials of a node from the pre-order partials of its parent
+	 * and the partials of its sibling.
+	 * @param iParent the parent node index
+	 * @param iSibling the sibling node index
+	 * @param iNode the node index
+	 */
+	@Override
+    public void calculatePreOrderPartials(int iParent, int iSibling, int iNode) {
+		double [] fParentPreOrderPartials = preOrderPartials[iParent];
+		double [] fMatrices = matrices[currentMatrixIndex[iNode]][iNode];
+		double [] fPreOrderPartials = preOrderPartials[iNode];
+		double [] fAbove = preOrderScratch;
+
+		for (int l = 0; l < nrOfMatrices; l++) {
+			int v = l * nrOfPatterns * 4;
+			for (int k = 0; k < nrOfPatterns; k++) {
+                if(unmasked[k]){
+                    calculateSiblingFactors(iSibling, l, k, fAbove);
+                    double a0 = fAbove[0] * fParentPreOrderPartials[v];
+                    double a1 = fAbove[1] * fParentPreOrderPartials[v + 1];
+                    double a2 = fAbove[2] * fParentPreOrderPartials[v + 2];
+                    double a3 = fAbove[3] * fParentPreOrderPartials[v + 3];
+
+			    	int w = l * matrixSize;
+			    	fPreOrderPartials[v] = a0 * fMatrices[w] +
+			    		a1 * fMatrices[w + 4] +
+			    		a2 * fMatrices[w + 8] +
+			    		a3 * fMatrices[w + 12];
+			    	fPreOrderPartials[v + 1] = a0 * fMatrices[w + 1] +
+			    		a1 * fMatrices[w + 5] +
+			    		a2 * fMatrices[w + 9] +
+			    		a3 * fMatrices[w + 13];
+			    	fPreOrderPartials[v + 2] = a0 * fMatrices[w + 2] +
+			    		a1 * fMatrices[w + 6] +
+			    		a2 * fMatrices[w + 10] +
+			    		a3 * fMatrices[w + 14];
+			    	fPreOrderPartials[v + 3] = a0 * fMatrices[w + 3] +
+			    		a1 * fMatrices[w + 7] +
+			    		a2 * fMatrices[w + 11] +
+			    		a3 * fMatrices[w + 15];
                 }
-            }else{
-                u+=4*nrOfMatrices;
-            }
+                v += 4;
+			}
 		}
+
+        scalePreOrderPartials(iParent, iNode);
     }
 
-	@Override
-    public void calcPsuedoRootPartials(double [] fParentPseudoPartials, int iNode, double [] fPseudoPartials) {
-		int v = 0;
-		int u = 0;
-		double [] fMatrices = m_fMatrices[m_iCurrentMatrices[iNode]][iNode];
-		for (int k = 0; k < nrOfPatterns; k++) {
-            if(unmasked[k]){
-			    for (int l = 0; l < nrOfMatrices; l++) {
-			    	int w = l * m_nMatrixSize;
-			    	fPseudoPartials[v] = fParentPseudoPartials[u] * fMatrices[w] +
-			    		fParentPseudoPartials[u+1] * fMatrices[w+1] +
-			    		fParentPseudoPartials[u+2] * fMatrices[w+2] +
-			    		fParentPseudoPartials[u+3] * fMatrices[w+3];
-			    	w += 4;
-			    	fPseudoPartials[v+1] = fParentPseudoPartials[u] * fMatrices[w] +
-			    			fParentPseudoPartials[u+1] * fMatrices[w+1] +
-			    			fParentPseudoPartials[u+2] * fMatrices[w+2] +
-			    			fParentPseudoPartials[u+3] * fMatrices[w+3];
-			    	w += 4;
-			    	fPseudoPartials[v+1] = fParentPseudoPartials[u] * fMatrices[w] +
-			    		fParentPseudoPartials[u+1] * fMatrices[w+1] +
-			    		fParentPseudoPartials[u+2] * fMatrices[w+2] +
-			    		fParentPseudoPartials[u+3] * fMatrices[w+3];
-			    	w += 4;
-			    	fPseudoPartials[v+1] = fParentPseudoPartials[u] * fMatrices[w] +
-			    		fParentPseudoPartials[u+1] * fMatrices[w+1] +
-			    		fParentPseudoPartials[u+2] * fMatrices[w+2] +
-			    		fParentPseudoPartials[u+3] * fMatrices[w+3];
-			    	v += 4;
-			    	u += 4;
-			    }
-            }else{
-                u += 4*nrOfMatrices;
-                v += 4*nrOfMatrices;
-            }
-		}
-    } */
 	/**
 	 * Calculates pattern log likelihoods at a node.
 	 * @param fPartials the partials used to calculate the likelihoods
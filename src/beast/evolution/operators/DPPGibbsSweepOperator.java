@@ -0,0 +1,244 @@
+package beast.evolution.operators;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Operator;
+import beast.core.parameter.*;
+import beast.evolution.likelihood.DPSepTreeLikelihood;
+import beast.evolution.likelihood.DPTreeLikelihood;
+import beast.evolution.likelihood.SlowDPSepTreeLikelihood;
+import beast.evolution.likelihood.TempTreeLikelihood;
+import beast.util.Randomizer;
+
+@Description("Systematic-scan Gibbs sweep that reassigns a block of sites among the existing clusters of a DP partitioning in one proposal. " +
+        "Sites that are the only member of their cluster are left to the samplers that can remove clusters, " +
+        "so the number of clusters is unchanged and all the moves are made in a single change to the pointers.")
+public class DPPGibbsSweepOperator extends Operator {
+    public Input<DPPointer> parameterPointersInput = new Input<DPPointer>(
+            "parameterPointers",
+            "array which points a set of unique substitution model parameter values"
+    );
+    public Input<ParameterList> parameterListInput = new Input<ParameterList>(
+            "parameterList",
+            "list of unique substitution model parameter values"
+    );
+
+    public Input<DPPointer> modelPointersInput = new Input<DPPointer>(
+            "modelPointers",
+            "array which points a set of unique model indicators"
+    );
+    public Input<ParameterList> modelListInput = new Input<ParameterList>(
+            "modelList",
+            "list of unique model indicators"
+    );
+
+    public Input<DPPointer> freqPointersInput = new Input<DPPointer>(
+            "freqPointers",
+            "array which points a set of unique frequencies"
+    );
+    public Input<ParameterList> freqsListInput = new Input<ParameterList>(
+            "freqsList",
+            "list of unique frequencies"
+    );
+
+    public Input<DPPointer> ratePointersInput = new Input<DPPointer>(
+            "ratePointers",
+            "array which points a set of unique rates"
+    );
+    public Input<ParameterList> rateListInput = new Input<ParameterList>(
+            "rateList",
+            "list of unique rates"
+    );
+
+    public Input<TempTreeLikelihood> tempLikelihoodInput = new Input<TempTreeLikelihood>(
+            "tempLikelihood",
+            "The temporary likelihood given the data at site i",
+            Input.Validate.REQUIRED
+    );
+
+    public Input<DPTreeLikelihood> dpTreeLikelihoodInput = new Input<DPTreeLikelihood>(
+            "dpTreeLik",
+            "Tree likelihood that handle DPP",
+            Input.Validate.REQUIRED
+    );
+
+    public Input<Integer> blockSizeInput = new Input<Integer>(
+            "blockSize",
+            "The number of sites reassigned in one proposal, zero or less means all the sites (default 0)",
+            0
+    );
+
+    private boolean hasSubstModel;
+    private boolean hasRate;
+    private TempTreeLikelihood tempLik;
+    private DPTreeLikelihood dpTreeLikelihood;
+    // The site at which the next sweep starts.
+    private int nextSite = 0;
+
+    public void initAndValidate(){
+        hasSubstModel = freqsListInput.get() != null;
+        hasRate = rateListInput.get() != null;
+        if(hasSubstModel && (parameterPointersInput.get() == null || parameterListInput.get() == null ||
+                modelPointersInput.get() == null || modelListInput.get() == null || freqPointersInput.get() == null)){
+            throw new RuntimeException("The pointers and lists of the substitution model parameters, " +
+                    "model indicators and frequencies must all be provided.");
+        }
+        if(hasRate && ratePointersInput.get() == null){
+            throw new RuntimeException("The rate pointers must be provided with the rate list.");
+        }
+        if(!hasSubstModel && !hasRate){
+            throw new RuntimeException("Either the substitution model or the rate partitioning must be provided.");
+        }
+
+        tempLik = tempLikelihoodInput.get();
+        dpTreeLikelihood = dpTreeLikelihoodInput.get();
+        if(dpTreeLikelihood instanceof DPSepTreeLikelihood || dpTreeLikelihood instanceof SlowDPSepTreeLikelihood){
+            throw new RuntimeException("The sweep can only be used when all the parameters share one partitioning.");
+        }
+    }
+
+    public double proposal(){
+        DPPointer pointers = hasSubstModel ? freqPointersInput.get() : ratePointersInput.get();
+        ParameterList list = hasSubstModel ? freqsListInput.get() : rateListInput.get();
+
+        int siteCount = pointers.getDimension();
+        int clusterCount = list.getDimension();
+        if(clusterCount < 2){
+            return Double.POSITIVE_INFINITY;
+        }
+        int blockSize = blockSizeInput.get();
+        if(blockSize <= 0 || blockSize > siteCount){
+            blockSize = siteCount;
+        }
+
+        //Count the number of sites in each cluster, these are updated as the sites are reassigned
+        int[] clusterCounts = new int[clusterCount];
+        for(int i = 0; i < clusterCount; i++){
+            clusterCounts[i] = pointers.getClusterSize(list.getParameter(i));
+        }
+
+        int[] sites = new int[blockSize];
+        int[] prevClusters = new int[blockSize];
+        int[] currClusters = new int[blockSize];
+        double[] logFullCond = new double[clusterCount];
+        double[] fullConditional = new double[clusterCount];
+
+        for(int i = 0; i < blockSize; i++){
+            int site = (nextSite + i) % siteCount;
+            int prevCluster = pointers.indexInList(site, list);
+            sites[i] = site;
+            prevClusters[i] = prevCluster;
+            currClusters[i] = prevCluster;
+            if(clusterCounts[prevCluster] == 1){
+                continue;
+            }
+
+            //Every cluster still has at least one member, so the concentration only scales all the terms
+            clusterCounts[prevCluster]--;
+            double maxVal = Double.NEGATIVE_INFINITY;
+            for(int j = 0; j < clusterCount; j++){
+                logFullCond[j] = Math.log(clusterCounts[j]) + getSiteLogLikelihood(j, site);
+                if(Double.isNaN(logFullCond[j])){
+                    logFullCond[j] = Double.NEGATIVE_INFINITY;
+                }
+                if(logFullCond[j] > maxVal){
+                    maxVal = logFullCond[j];
+                }
+            }
+            if(maxVal == Double.NEGATIVE_INFINITY){
+                clusterCounts[prevCluster]++;
+                continue;
+            }
+            for(int j = 0; j < clusterCount; j++){
+                fullConditional[j] = Math.exp(logFullCond[j] - maxVal);
+            }
+            int currCluster = Randomizer.randomChoicePDF(fullConditional);
+            clusterCounts[currCluster]++;
+            currClusters[i] = currCluster;
+        }
+        nextSite = (nextSite + blockSize) % siteCount;
+
+        //Group the sites that have moved by the cluster they have moved to
+        int[] movedCounts = new int[clusterCount];
+        int groupCount = 0;
+        for(int i = 0; i < blockSize; i++){
+            if(currClusters[i] != prevClusters[i] && movedCounts[currClusters[i]]++ == 0){
+                groupCount++;
+            }
+        }
+        if(groupCount == 0){
+            return Double.POSITIVE_INFINITY;
+        }
+
+        int[] groupClusters = new int[groupCount];
+        int[][] movedSites = new int[groupCount][];
+        int[] groupIndices = new int[clusterCount];
+        int k = 0;
+        for(int j = 0; j < clusterCount; j++){
+            if(movedCounts[j] > 0){
+                groupClusters[k] = j;
+                movedSites[k] = new int[movedCounts[j]];
+                groupIndices[j] = k++;
+                movedCounts[j] = 0;
+            }
+        }
+        for(int i = 0; i < blockSize; i++){
+            if(currClusters[i] != prevClusters[i]){
+                int group = groupIndices[currClusters[i]];
+                movedSites[group][movedCounts[currClusters[i]]++] = sites[i];
+            }
+        }
+
+        if(hasSubstModel){
+            movePointers(parameterPointersInput.get(this), parameterListInput.get(), movedSites, groupClusters);
+            movePointers(modelPointersInput.get(this), modelListInput.get(), movedSites, groupClusters);
+            movePointers(freqPointersInput.get(this), freqsListInput.get(), movedSites, groupClusters);
+        }
+        if(hasRate){
+            movePointers(ratePointersInput.get(this), rateListInput.get(), movedSites, groupClusters);
+        }
+
+        return Double.POSITIVE_INFINITY;
+    }
+
+    private void movePointers(DPPointer pointers, ParameterList list, int[][] movedSites, int[] groupClusters){
+        QuietRealParameter[] parameters = new QuietRealParameter[groupClusters.length];
+        for(int i = 0; i < parameters.length; i++){
+            parameters[i] = list.getParameter(groupClusters[i]);
+        }
+        pointers.multiPointerChanges(movedSites, parameters);
+    }
+
+    /*
+     * Returns the log-likelihood of the site under the cluster, memoized in the DP tree likelihood.
+     * The clusters do not change during the sweep, so the memoized values stay valid.
+     */
+    private double getSiteLogLikelihood(int clusterIndex, int siteIndex){
+        double siteLogLik = dpTreeLikelihood.getSiteLogLikelihood(clusterIndex, siteIndex);
+        if(Double.isNaN(siteLogLik)){
+            if(hasSubstModel && hasRate){
+                siteLogLik = tempLik.calculateLogP(
+                        parameterListInput.get().getParameter(clusterIndex),
+                        modelListInput.get().getParameter(clusterIndex),
+                        freqsListInput.get().getParameter(clusterIndex),
+                        rateListInput.get().getParameter(clusterIndex),
+                        siteIndex
+                );
+            }else if(hasSubstModel){
+                siteLogLik = tempLik.calculateLogP(
+                        parameterListInput.get().getParameter(clusterIndex),
+                        modelListInput.get().getParameter(clusterIndex),
+                        freqsListInput.get().getParameter(clusterIndex),
+                        siteIndex
+                );
+            }else{
+                siteLogLik = tempLik.calculateLogP(
+                        rateListInput.get().getParameter(clusterIndex),
+                        siteIndex
+                );
+            }
+            dpTreeLikelihood.setSiteLogLikelihood(clusterIndex, siteIndex, siteLogLik);
+        }
+        return siteLogLik;
+    }
+}
@@ -4,6 +4,7 @@ import beast.core.Description;
 import beast.core.Input;
 import beast.core.Operator;
 import beast.core.parameter.ParameterList;
+import beast.core.parameter.ParameterListStatistics;
 import beast.core.parameter.RealParameter;
 import beast.math.distributions.MultivariateNormal;
 import beast.math.matrixAlgebra1.Matrix;
@@ -86,13 +87,11 @@ public class MeanMVNSampler extends Operator{
         //System.out.println("flag1");
         int obsCount = x.getDimension();
 
+        //The sum of the observations is kept by the list, so the clusters are not visited here
+        ParameterListStatistics statistics = x.getStatistics();
         double[] obsMean = new double[dim];
         for(int i = 0; i < dim; i++){
-            for(int j = 0; j < obsCount; j++){
-                //System.out.println(i+" "+j);
-                obsMean[i] += x.getValue(j,i);
-            }
-            obsMean[i] = obsMean[i]/obsCount;
+            obsMean[i] = statistics.getSum(i)/obsCount;
         }
 
         //System.out.println("flag2");
@@ -90,6 +90,8 @@ public class NtdBMADPPGibbsSampler extends Operator implements Loggable {
 
     private CompoundDirichletProcess dp;
     private int sampleSize;
+    // The log-likelihoods of the proposals, so that an array is not created on every proposal.
+    private double[] proposalLogLiks;
     private ParametricDistribution paramBaseDistr;
     private ParametricDistribution modelBaseDistr;
     private ParametricDistribution freqsBaseDistr;
@@ -106,6 +108,7 @@ public class NtdBMADPPGibbsSampler extends Operator implements Loggable {
         freqsBaseDistr = distrs.get(2);
         
         sampleSize = sampleSizeInput.get();
+        proposalLogLiks = new double[sampleSize];
         dpVal = dpValuableInput.get();
         dpTreeLikelihood = dpTreeLikelihoodInput.get();
 
@@ -279,16 +282,21 @@ public class NtdBMADPPGibbsSampler extends Operator implements Loggable {
                 //logFullCond[i] = logFullCond[i]+ dpTreeLikelihood.getSiteLogLikelihood(zeroCount,index);
                 i++;
             }
+            //Evaluate all the remaining proposals together
+            tempLik.calculateLogPs(
+                    paramPreProposals,
+                    modelPreProposals,
+                    freqsPreProposals,
+                    i-counter,
+                    sampleSize,
+                    index,
+                    proposalLogLiks
+            );
             for(; i < logFullCond.length; i++){
 
                 logFullCond[i] = Math.log(concVal/sampleSize/(dimPointer - 1 + concVal));
 
-                logFullCond[i] = logFullCond[i]+tempLik.calculateLogP(
-                                paramPreProposals[i-counter],
-                                modelPreProposals[i-counter],
-                                freqsPreProposals[i-counter],
-                                index
-                );
+                logFullCond[i] = logFullCond[i]+proposalLogLiks[i-counter];
                 if(Double.isNaN(logFullCond[i])){
 
                     System.err.println(logFullCond[i]+" "+logFullCond[i]);
@@ -510,6 +518,12 @@ public class NtdBMADPPGibbsSampler extends Operator implements Loggable {
                         freqs,
                         siteIndex
                 );//todo need a new temp likelihood
+                ((DPSepTreeLikelihood)dpTreeLikelihood).setSiteLogLikelihood(
+                        DPNtdRateSepSiteModel.NTDBMA,
+                        freqs.getIDNumber(),
+                        siteIndex,
+                        siteLogLik
+                );
 
             }
         }else if(dpTreeLikelihood instanceof SlowDPSepTreeLikelihood){
@@ -526,6 +540,12 @@ public class NtdBMADPPGibbsSampler extends Operator implements Loggable {
                         freqs,
                         siteIndex
                 );//todo need a new temp likelihood
+                ((SlowDPSepTreeLikelihood)dpTreeLikelihood).setSiteLogLikelihood(
+                        DPNtdRateSepSiteModel.NTDBMA,
+                        freqs.getIDNumber(),
+                        siteIndex,
+                        siteLogLik
+                );
 
             }
         }else{
@@ -539,6 +559,7 @@ public class NtdBMADPPGibbsSampler extends Operator implements Loggable {
                         freqs,
                         siteIndex
                 );//todo need a new temp likelihood
+                dpTreeLikelihood.setSiteLogLikelihood(clusterIndex, siteIndex, siteLogLik);
 
             }
         }
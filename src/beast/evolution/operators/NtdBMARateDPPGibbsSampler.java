@@ -98,6 +98,8 @@ public class NtdBMARateDPPGibbsSampler  extends Operator implements Loggable {
     int tempCount = 1;
     private CompoundDirichletProcess dp;
     private int sampleSize;
+    // The log-likelihoods of the proposals, so that an array is not created on every proposal.
+    private double[] proposalLogLiks;
     private ParametricDistribution paramBaseDistr;
     private ParametricDistribution modelBaseDistr;
     private ParametricDistribution freqsBaseDistr;
@@ -114,6 +116,7 @@ public class NtdBMARateDPPGibbsSampler  extends Operator implements Loggable {
         ratesBaseDistr = distrs.get(3);
 
         sampleSize = sampleSizeInput.get();
+        proposalLogLiks = new double[sampleSize];
         dpVal = dpValuableInput.get();
         dpTreeLikelihood = dpTreeLikelihoodInput.get();
 
@@ -277,6 +280,17 @@ public class NtdBMARateDPPGibbsSampler  extends Operator implements Loggable {
                 );
                 i++;
             }
+            //Evaluate all the remaining proposals together
+            tempLik.calculateLogPs(
+                    paramPreProposals,
+                    modelPreProposals,
+                    freqsPreProposals,
+                    ratesPreProposals,
+                    i-counter,
+                    sampleSize,
+                    index,
+                    proposalLogLiks
+            );
             for(; i < logFullCond.length; i++){
 
                 logFullCond[i] = Math.log(concVal/sampleSize/(dimPointer - 1 + concVal));
@@ -287,13 +301,7 @@ public class NtdBMARateDPPGibbsSampler  extends Operator implements Loggable {
                                 index
                         );*/
 
-                logFullCond[i] = logFullCond[i]+tempLik.calculateLogP(
-                        paramPreProposals[i-counter],
-                        modelPreProposals[i-counter],
-                        freqsPreProposals[i-counter],
-                        ratesPreProposals[i-counter],
-                        index
-                );
+                logFullCond[i] = logFullCond[i]+proposalLogLiks[i-counter];
                 if(Double.isNaN(logFullCond[i])){
 
                     System.err.println(logFullCond[i]+" "+logFullCond[i]);
@@ -550,7 +550,7 @@ public class NtdBMARateSAMSPriorOperator extends Operator {
                 psi2 = cluster2Count*lik2[shuffle[i]];
 
                  /*testCorrectness(i,cluster,
-                        clusterIndex1,clusterIndex2,shuffle, mergedClusterSites,
+                        clusterIndex1,clusterIndex2,shuffle, mergedClusterSites, mergedClusterSites.length,
                          lik1,lik2);*/
 
                 cluster1Prob = psi1/(psi1+psi2);
@@ -606,6 +606,7 @@ public class NtdBMARateSAMSPriorOperator extends Operator {
             int clusterIndex2,
             int[] shuffle,
             int[] mergedClusterSites,
+            int siteCount,
             double[] lik1,
             double[] lik2) throws Exception{
 
@@ -629,11 +630,11 @@ public class NtdBMARateSAMSPriorOperator extends Operator {
             System.out.println("shuffle_i: "+shuffle[i]);
             System.out.println("mergedClusterSites[shuffle]: "+mergedClusterSites[shuffle[i]]);
             System.out.println("cluster: "+cluster);
-            System.out.println(+mergedClusterSites.length+" "+lik1.length);
-            for(int j = 0; j < lik1.length;j++){
+            System.out.println(siteCount+" "+lik1.length);
+            for(int j = 0; j < siteCount;j++){
                 System.out.println("merged lik1: "+mergedClusterSites[j]+" "+lik1[j]);
             }
-            for(int j = 0; j < lik2.length;j++){
+            for(int j = 0; j < siteCount;j++){
                 System.out.println("merged lik2: "+mergedClusterSites[j]+" "+lik2[j]);
             }
             throw new RuntimeException(temp1+" "+lik1[shuffle[i]]+" "+temp2+" "+lik2[shuffle[i]]);
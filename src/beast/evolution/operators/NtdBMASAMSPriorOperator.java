@@ -108,6 +108,18 @@ public class NtdBMASAMSPriorOperator extends Operator {
 
     private boolean testCorrect;
 
+    // Scratch arrays with one entry per site, allocated once so that a move does not allocate per site.
+    private int[] scratchSites;
+    private int[] newAssignment;
+    private int[] shuffle;
+    private int[] unknownSites;
+    private int[] unknownPositions;
+    private double[] unknownLogLiks;
+    private double[] logLik1;
+    private double[] logLik2;
+    private double[] lik1;
+    private double[] lik2;
+
     public void initAndValidate(){
         testCorrect = testCorrectInput.get();
         paramList = paramListInput.get();
@@ -119,6 +131,16 @@ public class NtdBMASAMSPriorOperator extends Operator {
         freqsPointers = freqsPointersInput.get();
 
         pointerCount = paramPointers.getDimension();
+        scratchSites = new int[pointerCount];
+        newAssignment = new int[pointerCount];
+        shuffle = new int[pointerCount];
+        unknownSites = new int[pointerCount];
+        unknownPositions = new int[pointerCount];
+        unknownLogLiks = new double[pointerCount];
+        logLik1 = new double[pointerCount];
+        logLik2 = new double[pointerCount];
+        lik1 = new double[pointerCount];
+        lik2 = new double[pointerCount];
 
 
 
@@ -217,69 +239,36 @@ public class NtdBMASAMSPriorOperator extends Operator {
             //freqsList.splitParameter(clusterIndex,newFreqs);
 
             //Remove the index 1 and index 2 from the cluster
-            int[] clusterSites = new int[initClusterSites.length -2];
-            int k = 0;
+            int[] clusterSites = scratchSites;
+            int siteCount = 0;
             for(int i = 0 ; i < initClusterSites.length;i++){
                 if(initClusterSites[i] != index1 && initClusterSites[i] != index2){
-                    clusterSites[k++] = initClusterSites[i];
+                    clusterSites[siteCount++] = initClusterSites[i];
                 }
             }
-            //Form a new cluster with index 1
-            //paramPointers.point(index1,newParam);
-            //modelPointers.point(index1,newModel);
-            //freqsPointers.point(index1,newFreqs);
 
             //Shuffle the cluster_-{index_1,index_2} to obtain a random permutation
-            Randomizer.shuffle(clusterSites);
-
-            //Create the weight vector of site patterns according to the order of the shuffled index.
-            /*int[] tempWeights = new int[tempLikelihood.m_data.get().getPatternCount()];
-            int patIndex;
-            for(int i = 0; i < clusterSites.length; i++){
-                patIndex = tempLikelihood.m_data.get().getPatternIndex(clusterSites[i]);
-                tempWeights[patIndex] = 1;
-            }*/
+            shuffle(clusterSites, siteCount);
 
-            tempLikelihood.setupPatternWeightsFromSites(clusterSites);
+            //Only the patterns of the cluster are evaluated under the new parameters
+            tempLikelihood.setupPatternWeightsFromSites(clusterSites, siteCount);
 
             //Site log likelihoods in the order of the shuffled sites
-            double[] logLik1 = tempLikelihood.calculateLogP(
+            tempLikelihood.calculateLogP(
                     newParam,
                     newModel,
                     newFreqs,
-                    clusterSites
+                    clusterSites,
+                    siteCount,
+                    logLik1
             );
-            double[] logLik2 = new double[clusterSites.length];
-            for(int i = 0; i < logLik2.length; i++){
-                //logLik2[i] = dpTreeLikelihood.getSiteLogLikelihood(clusterIndex,clusterSites[i]);
-                logLik2[i] = getSiteLogLikelihood(paramList.getParameter(clusterIndex).getIDNumber(),clusterIndex,clusterSites[i]);
+            //The likelihoods under the current parameters have already been calculated by the cluster
+            int substModelIDNumber = paramList.getParameter(clusterIndex).getIDNumber();
+            for(int i = 0; i < siteCount; i++){
+                logLik2[i] = getSiteLogLikelihood(substModelIDNumber,clusterIndex,clusterSites[i]);
             }
 
-
-
-            double[] lik1 = new double[logLik1.length];
-            double[] lik2 = new double[logLik2.length];
-
-            double maxLog;
-            //scale it so it may be more accurate
-            for(int i = 0; i < logLik1.length; i++){
-                maxLog = Math.max(logLik1[i],logLik2[i]);
-                if(Math.exp(maxLog) < 1e-100){
-                    if(maxLog == logLik1[i]){
-                        lik1[i] = 1.0;
-                        lik2[i] = Math.exp(logLik2[i] - maxLog);
-                    }else{
-                        lik1[i] = Math.exp(logLik1[i] - maxLog);
-                        lik2[i] = 1.0;
-                    }
-                }else{
-
-                    lik1[i] = Math.exp(logLik1[i]);
-                    lik2[i] = Math.exp(logLik2[i]);
-
-                }
-
-            }
+            scaleLikelihoods(siteCount);
 
             /*boolean ohCrap = false;
             for(int i = 0; i < logLik1.length; i++){
@@ -320,8 +309,7 @@ public class NtdBMASAMSPriorOperator extends Operator {
             //Assign members of the existing cluster (except for indice 1 and 2) randomly
             //to the existing and the new cluster
             double psi1, psi2, newClusterProb, draw;
-            int[] newAssignment = new int[clusterSites.length];
-            for(int i = 0;i < clusterSites.length; i++){
+            for(int i = 0;i < siteCount; i++){
 
                 psi1 = cluster1Count*lik1[i];
                 psi2 = cluster2Count*lik2[i];
@@ -391,213 +379,85 @@ public class NtdBMASAMSPriorOperator extends Operator {
 
         double logqMerge = 0.0;
 
-
-        HashMap<Integer,Integer> siteMap = new HashMap<Integer, Integer>();
-
         //The value of the merged cluster will have that of cluster 2 before the merge.
         QuietRealParameter mergedParam = paramList.getParameter(clusterIndex2);
         QuietRealParameter mergedModel = modelList.getParameter(clusterIndex2);
         QuietRealParameter mergedFreqs = freqsList.getParameter(clusterIndex2);
+        QuietRealParameter removedParam = paramList.getParameter(clusterIndex1);
+        QuietRealParameter removedModel = modelList.getParameter(clusterIndex1);
+        QuietRealParameter removedFreqs = freqsList.getParameter(clusterIndex1);
 
-        //Create a vector that combines the site indices of the two clusters
-        int[] mergedClusterSites = new int[cluster1Sites.length+cluster2Sites.length-2];
-
+        // Create a vector that combines the site indices of the two clusters except for index 1 and index 2.
+        // The members of cluster 1 come first, so the cluster of a site before the merge is given by its position.
+        int[] mergedClusterSites = scratchSites;
         int k = 0;
         for(int i = 0; i < cluster1Sites.length;i++){
-
             if(cluster1Sites[i] != index1){
-                // For all members that are not index 1,
-                // record the cluster in which they have been before the merge,
-                // and assign them to the combined vector.
-                siteMap.put(cluster1Sites[i],clusterIndex1);
                 mergedClusterSites[k++] = cluster1Sites[i];
             }
         }
-
-
+        int cluster1SiteCount = k;
         for(int i = 0; i < cluster2Sites.length;i++){
             //All members in cluster 2 remains in cluster2 so no new pointer assignments
             if(cluster2Sites[i] != index2){
-                // For all members that are not index 2,
-                // record the cluster in which they have been before the merge,
-                // and assign them to the combined vector.
-                siteMap.put(cluster2Sites[i],clusterIndex2);
-                try{
-                    mergedClusterSites[k++] = cluster2Sites[i];
-                }catch(Exception e){
-                    System.out.println("k: "+k);
-                    System.out.println("i: "+i);
-                    System.out.println("cluster2Sites.length: "+cluster2Sites.length);
-                    System.out.println("index2: "+index2);
-                    for(int index:cluster2Sites){
-                        System.out.print(index+" ");
-                    }
-                    System.out.println();
-                    throw new RuntimeException("");
-                }
+                mergedClusterSites[k++] = cluster2Sites[i];
             }
         }
-
-
+        int mergedSiteCount = k;
 
 
         try{
 
-            // Create a weight vector of patterns to inform the temporary tree likelihood
-            // which set of pattern likelihoods are to be computed.
-            //int[] tempWeights = dpTreeLikelihood.getClusterWeights(clusterIndex1);
-            /*int[] tempWeights = new int[tempLikelihood.m_data.get().getPatternCount()];
-            for(int i = 0; i < cluster1Sites.length; i++){
-                int patIndex = tempLikelihood.m_data.get().getPatternIndex(cluster1Sites[i]);
-                tempWeights[patIndex] = 1;
-            }
-            tempLikelihood.setPatternWeights(tempWeights);
-            double[] cluster1SitesCluster2ParamLogLik = tempLikelihood.calculateLogP(
-                    mergedParam,
-                    mergedModel,
-                    mergedFreqs,
-                    cluster1Sites,
-                    index1
-            );*/
-
-            k = 0;
-            int[] sCluster1Sites = new int[cluster1Sites.length - 1];
-            for(int i = 0 ; i < cluster1Sites.length; i++){
-                if(cluster1Sites[i] != index1){
-                    sCluster1Sites[k++] = cluster1Sites[i];
-                }
-            }
-
-            tempLikelihood.setupPatternWeightsFromSites(sCluster1Sites);
-            double[] cluster1SitesCluster2ParamLogLik = tempLikelihood.calculateLogP(
-                    mergedParam,
-                    mergedModel,
-                    mergedFreqs,
-                    sCluster1Sites
-            );
-
-            //tempWeights = dpTreeLikelihood.getClusterWeights(clusterIndex2);
-            /*tempWeights = new int[tempLikelihood.m_data.get().getPatternCount()];
-            for(int i = 0; i < cluster2Sites.length; i++){
-                int patIndex = tempLikelihood.m_data.get().getPatternIndex(cluster2Sites[i]);
-                tempWeights[patIndex] = 1;
-            }
-            tempLikelihood.setPatternWeights(tempWeights);
-            QuietRealParameter removedParam = paramList.getParameter(clusterIndex1);
-            QuietRealParameter removedModel = modelList.getParameter(clusterIndex1);
-            QuietRealParameter removedFreqs = freqsList.getParameter(clusterIndex1);
-            double[] cluster2SitesCluster1ParamLogLik = tempLikelihood.calculateLogP(
-                    removedParam,
-                    removedModel,
-                    removedFreqs,
-                    cluster2Sites,
-                    index2
-            ); */
-
-            k = 0;
-            int[] sCluster2Sites = new int[cluster2Sites.length - 1];
-            for(int i = 0; i < cluster2Sites.length; i++){
-                if(cluster2Sites[i] != index2){
-                    sCluster2Sites[k++] = cluster2Sites[i];
-                }
+            // The likelihoods of the members of each cluster under its own parameters are already known,
+            // only those of the members of the other cluster need to be looked up or calculated.
+            for(int i = 0; i < cluster1SiteCount; i++){
+                logLik1[i] = getSiteLogLikelihood(removedParam.getIDNumber(),clusterIndex1,mergedClusterSites[i]);
             }
-            tempLikelihood.setupPatternWeightsFromSites(sCluster2Sites);
-            QuietRealParameter removedParam = paramList.getParameter(clusterIndex1);
-            QuietRealParameter removedModel = modelList.getParameter(clusterIndex1);
-            QuietRealParameter removedFreqs = freqsList.getParameter(clusterIndex1);
-            double[] cluster2SitesCluster1ParamLogLik = tempLikelihood.calculateLogP(
+            getOtherClusterSiteLogLikelihoods(
+                    clusterIndex1,
                     removedParam,
                     removedModel,
                     removedFreqs,
-                    sCluster2Sites
+                    mergedClusterSites,
+                    cluster1SiteCount,
+                    mergedSiteCount,
+                    logLik1
             );
 
-            //System.out.println("populate logLik1:");
-            double[] logLik1 = new double[mergedClusterSites.length];
-            for(int i = 0; i < (cluster1Sites.length-1); i++){
-                //System.out.println(clusterIndex1+" "+mergedClusterSites[i]);
-
-                 //logLik1[i] = dpTreeLikelihood.getSiteLogLikelihood(clusterIndex1,mergedClusterSites[i]);
-                logLik1[i] = getSiteLogLikelihood(removedParam.getIDNumber(),clusterIndex1,mergedClusterSites[i]);
-            }
-            /*System.out.println(cluster2SitesCluster1ParamLogLik.length);
-            System.out.println(logLik1.length);
-            System.out.println(cluster1Sites.length-1);
-            System.out.println(cluster2SitesCluster1ParamLogLik.length);*/
-            System.arraycopy(cluster2SitesCluster1ParamLogLik,0,logLik1,cluster1Sites.length-1,cluster2SitesCluster1ParamLogLik.length);
-
-            double[] logLik2 = new double[mergedClusterSites.length];
-            System.arraycopy(cluster1SitesCluster2ParamLogLik,0,logLik2,0,cluster1SitesCluster2ParamLogLik.length);
-
-            //System.out.println("populate logLik2:");
-            for(int i = cluster1SitesCluster2ParamLogLik.length; i < logLik2.length; i++){
-                //System.out.println(clusterIndex2+" "+mergedClusterSites[i-cluster1SitesCluster2ParamLogLik.length]);
-                //logLik2[i] = dpTreeLikelihood.getSiteLogLikelihood(clusterIndex2,mergedClusterSites[i]);
+            getOtherClusterSiteLogLikelihoods(
+                    clusterIndex2,
+                    mergedParam,
+                    mergedModel,
+                    mergedFreqs,
+                    mergedClusterSites,
+                    0,
+                    cluster1SiteCount,
+                    logLik2
+            );
+            for(int i = cluster1SiteCount; i < mergedSiteCount; i++){
                 logLik2[i] = getSiteLogLikelihood(mergedParam.getIDNumber(),clusterIndex2,mergedClusterSites[i]);
             }
 
-
-
-            double[] lik1 = new double[logLik1.length];
-            double[] lik2 = new double[logLik2.length];
-
-            //scale it so it may be more accuate
-            double maxLog;
-            //scale it so it may be more accurate
-            for(int i = 0; i < logLik1.length; i++){
-                maxLog = Math.max(logLik1[i],logLik2[i]);
-                if(Math.exp(maxLog) < 1e-100){
-                    if(maxLog == logLik1[i]){
-                        lik1[i] = 1.0;
-                        lik2[i] = Math.exp(logLik2[i] - maxLog);
-                    }else{
-                        lik1[i] = Math.exp(logLik1[i] - maxLog);
-                        lik2[i] = 1.0;
-                    }
-                }else{
-
-                    lik1[i] = Math.exp(logLik1[i]);
-                    lik2[i] = Math.exp(logLik2[i]);
-
-                }
-
-            }
-
-            /*for(int i = 0; i < logLik1.length; i++){
-                if(Double.isNaN(logLik1[i])){
-                    //System.out.println("logLik1: "+logLik1[i]);
-                    return Double.NEGATIVE_INFINITY;
-
-                }
-                if(Double.isNaN(logLik2[i])){
-                    //System.out.println("logLik2: "+logLik2[i]);
-                    return Double.NEGATIVE_INFINITY;
-
-                }
-                lik1[i] = Math.exp(logLik1[i]);
-                lik2[i] = Math.exp(logLik2[i]);
-                //System.out.println(lik1[i]+" "+lik2[i]);
-            } */
+            scaleLikelihoods(mergedSiteCount);
 
             //Create a set of indices for random permutation
-            int[] shuffle = new int[mergedClusterSites.length];
-            for(int i = 0; i < shuffle.length;i++){
+            for(int i = 0; i < mergedSiteCount;i++){
                 shuffle[i] = i;
             }
-            Randomizer.shuffle(shuffle);
+            shuffle(shuffle, mergedSiteCount);
 
             int cluster1Count = 1;
             int cluster2Count = 1;
             int cluster;
             double psi1, psi2, cluster1Prob;
-            for(int i = 0; i < mergedClusterSites.length;i++){
-                cluster = siteMap.get(mergedClusterSites[shuffle[i]]);
+            for(int i = 0; i < mergedSiteCount;i++){
+                cluster = shuffle[i] < cluster1SiteCount ? clusterIndex1 : clusterIndex2;
                 psi1 = cluster1Count*lik1[shuffle[i]];
                 psi2 = cluster2Count*lik2[shuffle[i]];
 
                 if(testCorrect){
                     testCorrectness(i,cluster,
-                            clusterIndex1,clusterIndex2,shuffle, mergedClusterSites,
+                            clusterIndex1,clusterIndex2,shuffle, mergedClusterSites, mergedSiteCount,
                              lik1,lik2);
                 }
 
@@ -606,12 +466,10 @@ public class NtdBMASAMSPriorOperator extends Operator {
                     logqMerge += Math.log(cluster1Prob);
                     cluster1Count++;
 
-                }else if(cluster == clusterIndex2){
+                }else{
                     logqMerge += Math.log(1-cluster1Prob);
                     cluster2Count++;
 
-                }else{
-                    throw new RuntimeException("Something is wrong.");
                 }
 
             }
@@ -639,6 +497,80 @@ public class NtdBMASAMSPriorOperator extends Operator {
 
     }
 
+    /*
+     * Fills siteLogLiks from start to end with the log-likelihoods of the sites under the parameters of a cluster
+     * the sites do not belong to. The values memoized by the DP tree likelihood are reused,
+     * and only the patterns of the remaining sites are evaluated by the temporary likelihood.
+     */
+    private void getOtherClusterSiteLogLikelihoods(
+            int clusterIndex,
+            QuietRealParameter param,
+            QuietRealParameter model,
+            QuietRealParameter freqs,
+            int[] sites,
+            int start,
+            int end,
+            double[] siteLogLiks) throws Exception{
+        boolean memoized = !(dpTreeLikelihood instanceof DPSepTreeLikelihood) &&
+                !(dpTreeLikelihood instanceof SlowDPSepTreeLikelihood);
+        int unknownCount = 0;
+        for(int i = start; i < end; i++){
+            siteLogLiks[i] = memoized ? dpTreeLikelihood.getSiteLogLikelihood(clusterIndex, sites[i]) : Double.NaN;
+            if(Double.isNaN(siteLogLiks[i])){
+                unknownSites[unknownCount] = sites[i];
+                unknownPositions[unknownCount++] = i;
+            }
+        }
+        if(unknownCount == 0){
+            return;
+        }
+
+        tempLikelihood.setupPatternWeightsFromSites(unknownSites, unknownCount);
+        tempLikelihood.calculateLogP(param, model, freqs, unknownSites, unknownCount, unknownLogLiks);
+        for(int i = 0; i < unknownCount; i++){
+            siteLogLiks[unknownPositions[i]] = unknownLogLiks[i];
+            if(memoized){
+                dpTreeLikelihood.setSiteLogLikelihood(clusterIndex, unknownSites[i], unknownLogLiks[i]);
+            }
+        }
+    }
+
+    /*
+     * Exponentiates the first count entries of logLik1 and logLik2 into lik1 and lik2,
+     * scaling a pair by its maximum if it is too small to be accurate.
+     */
+    private void scaleLikelihoods(int count){
+        double maxLog;
+        for(int i = 0; i < count; i++){
+            maxLog = Math.max(logLik1[i],logLik2[i]);
+            if(Math.exp(maxLog) < 1e-100){
+                if(maxLog == logLik1[i]){
+                    lik1[i] = 1.0;
+                    lik2[i] = Math.exp(logLik2[i] - maxLog);
+                }else{
+                    lik1[i] = Math.exp(logLik1[i] - maxLog);
+                    lik2[i] = 1.0;
+                }
+            }else{
+                lik1[i] = Math.exp(logLik1[i]);
+                lik2[i] = Math.exp(logLik2[i]);
+            }
+        }
+    }
+
+    /*
+     * Shuffles the first count entries of the array in the same way as Randomizer.shuffle shuffles a whole array.
+     */
+    private static void shuffle(int[] array, int count){
+        int index, temp;
+        for(int i = 0; i < count; i++){
+            index = Randomizer.nextInt(count - i) + i;
+            temp = array[index];
+            array[index] = array[i];
+            array[i] = temp;
+        }
+    }
+
     public double getSiteLogLikelihood(
             int substModelIDNumber,
             int clusterIndex,
@@ -675,6 +607,7 @@ public class NtdBMASAMSPriorOperator extends Operator {
             int clusterIndex2,
             int[] shuffle,
             int[] mergedClusterSites,
+            int siteCount,
             double[] lik1,
             double[] lik2) throws Exception{
         //System.out.println("testCorrectness: ");
@@ -700,11 +633,11 @@ public class NtdBMASAMSPriorOperator extends Operator {
             System.out.println("shuffle_i: "+shuffle[i]);
             System.out.println("mergedClusterSites[shuffle]: "+mergedClusterSites[shuffle[i]]);
             System.out.println("cluster: "+cluster);
-            System.out.println(+mergedClusterSites.length+" "+lik1.length);
-            for(int j = 0; j < lik1.length;j++){
+            System.out.println(siteCount+" "+lik1.length);
+            for(int j = 0; j < siteCount;j++){
                 System.out.println("merged lik1: "+mergedClusterSites[j]+" "+lik1[j]);
             }
-            for(int j = 0; j < lik2.length;j++){
+            for(int j = 0; j < siteCount;j++){
                 System.out.println("merged lik2: "+mergedClusterSites[j]+" "+lik2[j]);
             }
             throw new RuntimeException(temp1+" "+lik1[shuffle[i]]+" "+temp2+" "+lik2[shuffle[i]]);
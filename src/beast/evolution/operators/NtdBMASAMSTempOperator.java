@@ -591,6 +591,7 @@ public class NtdBMASAMSTempOperator extends Operator {
             int clusterIndex2,
             int[] shuffle,
             int[] mergedClusterSites,
+            int siteCount,
             double[] lik1,
             double[] lik2) throws Exception{
 
@@ -612,11 +613,11 @@ public class NtdBMASAMSTempOperator extends Operator {
             System.out.println("shuffle_i: "+shuffle[i]);
             System.out.println("mergedClusterSites[shuffle]: "+mergedClusterSites[shuffle[i]]);
             System.out.println("cluster: "+cluster);
-            System.out.println(+mergedClusterSites.length+" "+lik1.length);
-            for(int j = 0; j < lik1.length;j++){
+            System.out.println(siteCount+" "+lik1.length);
+            for(int j = 0; j < siteCount;j++){
                 System.out.println("merged lik1: "+mergedClusterSites[j]+" "+lik1[j]);
             }
-            for(int j = 0; j < lik2.length;j++){
+            for(int j = 0; j < siteCount;j++){
                 System.out.println("merged lik2: "+mergedClusterSites[j]+" "+lik2[j]);
             }
             throw new RuntimeException(temp1+" "+lik1[shuffle[i]]+" "+temp2+" "+lik2[shuffle[i]]);
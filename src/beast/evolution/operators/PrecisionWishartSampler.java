@@ -4,6 +4,7 @@ import beast.core.Description;
 import beast.core.Input;
 import beast.core.Operator;
 import beast.core.parameter.ParameterList;
+import beast.core.parameter.ParameterListStatistics;
 import beast.core.parameter.RealParameter;
 import beast.math.distributions.Wishart;
 import beast.math.matrixAlgebra1.Matrix;
@@ -47,27 +48,20 @@ public class PrecisionWishartSampler extends Operator {
 
     public double proposal(){
         int obsCount = x.getDimension();
-        double[][] centredObs = new double[obsCount][dim];
-        for(int j = 0; j < dim; j++){
-            double colMean = mean.getValue(j);
-            for(int i = 0; i < obsCount; i++){
-                centredObs[i][j] = x.getValue(i,j) - colMean;
-
-            }
-        }
 
+        //The sum of the outer products of the centred observations is obtained from the sums kept by the list
+        ParameterListStatistics statistics = x.getStatistics();
         double[][] newScale = new double[dim][dim];
         for(int i = 0; i < dim; i++){
+            double meanI = mean.getValue(i);
             for(int j = 0; j < dim; j++){
-                for(int k = 0; k < obsCount; k++){
-                    //System.out.println(i+" "+j+" "+k);
-                    newScale[i][j] += centredObs[k][i]*centredObs[k][j];
-                }
+                double meanJ = mean.getValue(j);
+                newScale[i][j] = statistics.getOuterProductSum(i,j)
+                        - meanI*statistics.getSum(j) - statistics.getSum(i)*meanJ
+                        + obsCount*meanI*meanJ;
 
                 newScale[i][j] +=scaleMatrixInv[i][j];
-                //System.out.print(newScale[i][j]+" ");
             }
-            //System.out.println();
         }
         newScale = (new Matrix(newScale)).inverse().toComponents();
 
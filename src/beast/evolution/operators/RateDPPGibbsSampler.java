@@ -62,6 +62,8 @@ public class RateDPPGibbsSampler extends Operator{
 
     private DirichletProcess dp;
     private int sampleSize;
+    // The log-likelihoods of the proposals, so that an array is not created on every proposal.
+    private double[] proposalLogLiks;
     private ParametricDistribution rateBaseDistr;
     private DPValuable dpVal;
     private DPTreeLikelihood dpTreeLikelihood;
@@ -69,6 +71,7 @@ public class RateDPPGibbsSampler extends Operator{
         dp = dpInput.get();
 
         sampleSize = sampleSizeInput.get();
+        proposalLogLiks = new double[sampleSize];
         rateBaseDistr = dp.getBaseDistribution();
 
         dpVal = dpValuableInput.get();
@@ -201,6 +204,14 @@ public class RateDPPGibbsSampler extends Operator{
                 );
                 i++;
             }
+            //Evaluate all the remaining proposals together
+            tempLik.calculateLogPs(
+                    ratePreProposals,
+                    i-counter,
+                    sampleSize,
+                    index,
+                    proposalLogLiks
+            );
             for(; i < logFullCond.length; i++){
 
                 logFullCond[i] = Math.log(concVal/sampleSize/(dimPointer - 1 + concVal));
@@ -228,10 +239,7 @@ public class RateDPPGibbsSampler extends Operator{
                 }
 
                 logFullCond[i] = logFullCond[i]+temp1;*/
-                logFullCond[i] = logFullCond[i]+tempLik.calculateLogP(
-                        ratePreProposals[i-counter],
-                        index
-                );
+                logFullCond[i] = logFullCond[i]+proposalLogLiks[i-counter];
                 if(Double.isNaN(logFullCond[i])){
                     return Double.NEGATIVE_INFINITY;
                     //System.err.println(logFullCond[i]+" "+i);
@@ -4,10 +4,10 @@ import beast.core.Description;
 import beast.core.MCMCNodeFactory;
 import beast.core.parameter.*;
 import beast.core.Input;
+import beast.core.util.JournaledList;
+import beast.core.util.ObjectPool;
 import beast.evolution.substitutionmodel.DPNtdBMA;
 
-import java.util.ArrayList;
-
 /**
  * @author Chieh-Hsi Wu
  */
@@ -38,7 +38,8 @@ public class DPNtdRateSiteModel extends DPRateSiteModel{
         }
 
         //Setting up site models
-        siteModels = new ArrayList<QuietSiteModel>();
+        siteModels = new JournaledList<QuietSiteModel>();
+        siteModelPool = new ObjectPool<QuietSiteModel>();
 
         for(int i = 0;i < ntdBMACount; i++){
             QuietRealParameter muParameter = rateList.getParameter(ratePointers.indexInList(i,rateList));
@@ -54,7 +55,7 @@ public class DPNtdRateSiteModel extends DPRateSiteModel{
 
             QuietRealParameter muParameter = rateList.getParameter(rateList.getDimension()-1);
 
-            QuietSiteModel siteModel = new QuietSiteModel(dpNtdBMA.getModel(dpNtdBMA.getDimension()-1),muParameter);
+            QuietSiteModel siteModel = createSiteModel(dpNtdBMA.getModel(dpNtdBMA.getDimension()-1),muParameter);
             siteModels.add(siteModel);
         }catch(Exception e){
             throw new RuntimeException(e);
@@ -5,6 +5,7 @@ import beast.core.Input;
 import beast.core.MCMCNodeFactory;
 import beast.core.parameter.ChangeType;
 import beast.core.parameter.QuietRealParameter;
+import beast.core.util.ObjectPool;
 import beast.evolution.substitutionmodel.DPNtdBMA;
 
 /**
@@ -38,6 +39,7 @@ public class DPNtdSiteModel extends DPSingleAlignSiteModel {
         dpNtdBMA = dpNtdBMAInput.get();
         muParameter = muParameterInput.get();
         int ntdBMACount = dpNtdBMA.getDimension();
+        siteModelPool = new ObjectPool<QuietSiteModel>();
 
 
 
@@ -86,7 +88,7 @@ public class DPNtdSiteModel extends DPSingleAlignSiteModel {
 
     protected void addSiteModel(){
         try{
-            QuietSiteModel siteModel = new QuietSiteModel(dpNtdBMA.getModel(dpNtdBMA.getDimension()-1), muParameter);
+            QuietSiteModel siteModel = createSiteModel(dpNtdBMA.getModel(dpNtdBMA.getDimension()-1), muParameter);
             siteModels.add(siteModel);
             siteModel.setID(""+counter++);
         }catch(Exception e){
@@ -148,6 +150,9 @@ public class DPNtdSiteModel extends DPSingleAlignSiteModel {
             }else if(changeType == ChangeType.POINTER_CHANGED){
                 this.changeType = ChangeType.POINTER_CHANGED;
 
+            }else if(changeType == ChangeType.MULTIPLE_POINTERS_CHANGED){
+                this.changeType = ChangeType.MULTIPLE_POINTERS_CHANGED;
+
             }else{
                 this.changeType = ChangeType.ALL;
                 for(SiteModel siteModel:siteModels){
@@ -5,6 +5,7 @@ import beast.core.Input;
 import beast.core.MCMCNodeFactory;
 import beast.core.PluginList;
 import beast.core.parameter.*;
+import beast.core.util.ObjectPool;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 
 import java.util.ArrayList;
@@ -60,6 +61,7 @@ public class DPRateSiteModel extends DPSingleAlignSiteModel implements PluginLis
             siteModels.add(siteModel);
         }
         pointerIndices = new int[ratePointers.getDimension()];
+        siteModelPool = new ObjectPool<QuietSiteModel>();
 
     }
 
@@ -68,7 +70,7 @@ public class DPRateSiteModel extends DPSingleAlignSiteModel implements PluginLis
     protected void addSiteModel(){
         try{
             QuietRealParameter muParameter = rateList.getParameter(rateList.getDimension()-1);
-            QuietSiteModel siteModel = new QuietSiteModel(substModel, muParameter);
+            QuietSiteModel siteModel = createSiteModel(substModel, muParameter);
             siteModels.add(siteModel);
         }catch(Exception e){
             throw new RuntimeException(e);
@@ -135,6 +137,10 @@ public class DPRateSiteModel extends DPSingleAlignSiteModel implements PluginLis
             int changedIndex = ratePointers.getLastDirty();
             prevCluster = pointerIndices[changedIndex];
             pointerIndices[changedIndex] = ratePointers.indexInList(changedIndex,rateList);
+        }else if (changeType == ChangeType.MULTIPLE_POINTERS_CHANGED){
+            for(int changedIndex: ratePointers.getLastDirtySites()){
+                pointerIndices[changedIndex] = ratePointers.indexInList(changedIndex,rateList);
+            }
         }else if (changeType == ChangeType.REMOVED){
             resetAllPointerIndices();
         }else if (changeType == ChangeType.ALL){
@@ -189,7 +195,11 @@ public class DPRateSiteModel extends DPSingleAlignSiteModel implements PluginLis
 
             //System.err.println("pointer changed ");
             recalculate = true;
-            changeType = ChangeType.POINTER_CHANGED;
+            if(ratePointers.getChangeType() == ChangeType.MULTIPLE_POINTERS_CHANGED){
+                changeType = ChangeType.MULTIPLE_POINTERS_CHANGED;
+            }else{
+                changeType = ChangeType.POINTER_CHANGED;
+            }
             setupPointerIndices();
 
         }
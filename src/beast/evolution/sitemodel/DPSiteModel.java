@@ -5,11 +5,13 @@ import beast.core.Description;
 import beast.core.PluginList;
 import beast.core.Input;
 import beast.core.parameter.ChangeType;
+import beast.core.parameter.QuietRealParameter;
 import beast.core.parameter.RealParameter;
+import beast.core.util.JournaledList;
+import beast.core.util.ObjectPool;
 import beast.evolution.datatype.DataType;
 import beast.evolution.substitutionmodel.DPNtdBMA;
-
-import java.util.ArrayList;
+import beast.evolution.substitutionmodel.SubstitutionModel;
 
 /**
  * @author Chieh-Hsi Wu
@@ -17,12 +19,27 @@ import java.util.ArrayList;
 @Description("Parent class of all DP site models.")
 public abstract class DPSiteModel extends CalculationNode implements PluginList, SiteModelInterface {
 
-    protected ArrayList<QuietSiteModel> siteModels;
-    protected ArrayList<QuietSiteModel> storedSiteModels;
+    // Only the site models added and removed since the last store are replayed on store and restore.
+    protected JournaledList<QuietSiteModel> siteModels;
     protected ChangeType changeType = ChangeType.ALL;
+    // The site models that are no longer used by any cluster; null if the site models are not reused.
+    protected ObjectPool<QuietSiteModel> siteModelPool;
 
     public void initAndValidate() {
-        siteModels = new ArrayList<QuietSiteModel>();
+        siteModels = new JournaledList<QuietSiteModel>();
+    }
+
+    /*
+     * Creates a site model for a new cluster, reusing a site model of a removed cluster if there is one.
+     */
+    protected QuietSiteModel createSiteModel(SubstitutionModel substModel, QuietRealParameter muParameter){
+        if(siteModelPool != null){
+            QuietSiteModel siteModel = siteModelPool.take();
+            if(siteModel != null && siteModel.reuse(substModel, muParameter)){
+                return siteModel;
+            }
+        }
+        return new QuietSiteModel(substModel, muParameter);
     }
 
     @Override
@@ -70,11 +87,11 @@ public abstract class DPSiteModel extends CalculationNode implements PluginList,
     }
 
     protected void store(){
-
-        storedSiteModels = new ArrayList<QuietSiteModel>();
-        for(QuietSiteModel siteModel:siteModels){
-            storedSiteModels.add(siteModel);
+        // The site models removed by the accepted proposal can be reused.
+        if(siteModelPool != null && siteModels.hasChanged()){
+            siteModelPool.releaseAll(siteModels.getRemovedElements());
         }
+        siteModels.store();
 
         super.store();
         //System.out.println("storing");
@@ -82,10 +99,11 @@ public abstract class DPSiteModel extends CalculationNode implements PluginList,
 
 
     public void restore(){
-
-        ArrayList<QuietSiteModel> tempList = storedSiteModels;
-        storedSiteModels = siteModels;
-        siteModels = tempList;
+        // The site models added by the rejected proposal can be reused.
+        if(siteModelPool != null && siteModels.hasChanged()){
+            siteModelPool.releaseAll(siteModels.getAddedElements());
+        }
+        siteModels.restore();
         changeType = ChangeType.ALL;
         super.restore();
        //System.out.println("restoring");
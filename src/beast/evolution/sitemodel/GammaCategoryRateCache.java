@@ -0,0 +1,141 @@
+package beast.evolution.sitemodel;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.GammaDistribution;
+import org.apache.commons.math.distribution.GammaDistributionImpl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the quantiles that discretise the gamma distribution of the site rates, shared by all the site
+ * models. The quantiles only depend on the shape and the number of categories, so the proportion invariant and the
+ * model choice are applied to the cached values by the site models. When the cache is full the quantiles that were
+ * used least recently are dropped.
+ */
+public class GammaCategoryRateCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final GammaCategoryRateCache instance = new GammaCategoryRateCache(DEFAULT_CAPACITY);
+
+    public static GammaCategoryRateCache getInstance(){
+        return instance;
+    }
+
+    // In the order in which they were last used. The site models may be calculated on several threads,
+    // so all access is synchronized on the map.
+    private final LinkedHashMap<Key, double[]> quantiles;
+    // The key of the lookups, so that a key is only created when quantiles are added.
+    private final Key lookupKey = new Key(0.0, 0, false);
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public GammaCategoryRateCache(final int capacity){
+        quantiles = new LinkedHashMap<Key, double[]>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest){
+                return size() > capacity;
+            }
+        };
+    }
+
+    /*
+     * Returns the quantiles at (2i+1)/(2*categoryCount) of the gamma distribution with the given shape and mean one.
+     * The returned array is shared and must not be modified.
+     */
+    public double[] getQuantiles(double shape, int categoryCount, boolean useBeast1StyleGamma) throws MathException{
+        synchronized(quantiles){
+            lookupKey.set(shape, categoryCount, useBeast1StyleGamma);
+            double[] values = quantiles.get(lookupKey);
+            if(values != null){
+                hitCount++;
+                return values;
+            }
+            missCount++;
+        }
+
+        //Solved without holding the lock, so two threads may both solve for the same quantiles
+        double[] values = calculateQuantiles(shape, categoryCount, useBeast1StyleGamma);
+        synchronized(quantiles){
+            Key key = new Key(shape, categoryCount, useBeast1StyleGamma);
+            double[] storedValues = quantiles.get(key);
+            if(storedValues != null){
+                return storedValues;
+            }
+            quantiles.put(key, values);
+            return values;
+        }
+    }
+
+    /*
+     * Solves for the quantiles as in the site models of BEAST.
+     */
+    public static double[] calculateQuantiles(double shape, int categoryCount, boolean useBeast1StyleGamma) throws MathException{
+        double[] values = new double[categoryCount];
+        GammaDistribution g = useBeast1StyleGamma ? null : new GammaDistributionImpl(shape, 1.0 / shape);
+        for(int i = 0; i < categoryCount; i++){
+            double p = (2.0 * i + 1.0) / (2.0 * categoryCount);
+            if(useBeast1StyleGamma){
+                values[i] = SiteModel.GammaDistributionQuantile(p, shape, 1.0 / shape);
+            }else{
+                values[i] = g.inverseCumulativeProbability(p);
+            }
+        }
+        return values;
+    }
+
+    public int size(){
+        synchronized(quantiles){
+            return quantiles.size();
+        }
+    }
+
+    public long getHitCount(){
+        synchronized(quantiles){
+            return hitCount;
+        }
+    }
+
+    public long getMissCount(){
+        synchronized(quantiles){
+            return missCount;
+        }
+    }
+
+    public void clear(){
+        synchronized(quantiles){
+            quantiles.clear();
+        }
+    }
+
+    static class Key {
+        private long shapeBits;
+        private int categoryCount;
+        private boolean useBeast1StyleGamma;
+
+        Key(double shape, int categoryCount, boolean useBeast1StyleGamma){
+            set(shape, categoryCount, useBeast1StyleGamma);
+        }
+
+        void set(double shape, int categoryCount, boolean useBeast1StyleGamma){
+            shapeBits = Double.doubleToLongBits(shape);
+            this.categoryCount = categoryCount;
+            this.useBeast1StyleGamma = useBeast1StyleGamma;
+        }
+
+        public boolean equals(Object o){
+            if(!(o instanceof Key)){
+                return false;
+            }
+            Key key = (Key)o;
+            return shapeBits == key.shapeBits && categoryCount == key.categoryCount &&
+                    useBeast1StyleGamma == key.useBeast1StyleGamma;
+        }
+
+        public int hashCode(){
+            int hash = (int)(shapeBits ^ (shapeBits >>> 32));
+            hash = 31 * hash + categoryCount;
+            return 31 * hash + (useBeast1StyleGamma ? 1 : 0);
+        }
+    }
+}
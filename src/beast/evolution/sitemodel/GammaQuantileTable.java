@@ -0,0 +1,105 @@
+package beast.evolution.sitemodel;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tabulates the logs of the quantiles that discretise the gamma distribution of the site rates on a grid of log
+ * shapes, and interpolates between the grid points with cubic splines. This is an approximation of the
+ * quantiles, only used by the site models that ask for it.
+ */
+public class GammaQuantileTable {
+    public static final double MIN_SHAPE = 0.05;
+    public static final double MAX_SHAPE = 100.0;
+    public static final int GRID_SIZE = 1024;
+
+    // The tables of each category count and quantile method, built when they are first used.
+    private static final ConcurrentHashMap<Integer, GammaQuantileTable> tables = new ConcurrentHashMap<Integer, GammaQuantileTable>();
+
+    public static GammaQuantileTable getTable(int categoryCount, boolean useBeast1StyleGamma){
+        Integer key = 2 * categoryCount + (useBeast1StyleGamma ? 1 : 0);
+        GammaQuantileTable table = tables.get(key);
+        if(table == null){
+            synchronized(tables){
+                table = tables.get(key);
+                if(table == null){
+                    table = new GammaQuantileTable(categoryCount, useBeast1StyleGamma);
+                    tables.put(key, table);
+                }
+            }
+        }
+        return table;
+    }
+
+    public static boolean covers(double shape){
+        return shape >= MIN_SHAPE && shape <= MAX_SHAPE;
+    }
+
+    private final int categoryCount;
+    private final boolean useBeast1StyleGamma;
+    private final double minLogShape;
+    private final double step;
+    // logQuantiles[i][j] is the log of the jth quantile at the ith grid point.
+    private final double[][] logQuantiles;
+
+    private GammaQuantileTable(int categoryCount, boolean useBeast1StyleGamma){
+        this.categoryCount = categoryCount;
+        this.useBeast1StyleGamma = useBeast1StyleGamma;
+        minLogShape = Math.log(MIN_SHAPE);
+        step = (Math.log(MAX_SHAPE) - minLogShape) / (GRID_SIZE - 1);
+        logQuantiles = new double[GRID_SIZE][];
+        try{
+            for(int i = 0; i < GRID_SIZE; i++){
+                double[] quantiles = GammaCategoryRateCache.calculateQuantiles(
+                        Math.exp(minLogShape + i * step), categoryCount, useBeast1StyleGamma);
+                logQuantiles[i] = new double[categoryCount];
+                for(int j = 0; j < categoryCount; j++){
+                    logQuantiles[i][j] = Math.log(quantiles[j]);
+                }
+            }
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getCategoryCount(){
+        return categoryCount;
+    }
+
+    public boolean useBeast1StyleGamma(){
+        return useBeast1StyleGamma;
+    }
+
+    /*
+     * Interpolates the quantiles at the shape into the array,
+     * the shape has to be within the range covered by the table.
+     */
+    public void getQuantiles(double shape, double[] quantiles){
+        if(!covers(shape)){
+            throw new RuntimeException("The shape " + shape + " is outside of the range of the table.");
+        }
+        double x = (Math.log(shape) - minLogShape) / step;
+        int i = Math.min((int)x, GRID_SIZE - 2);
+        double t = x - i;
+        double[] y1 = logQuantiles[i];
+        double[] y2 = logQuantiles[i + 1];
+        if(i == 0 || i == GRID_SIZE - 2){
+            //Linear interpolation in the end intervals
+            for(int j = 0; j < categoryCount; j++){
+                quantiles[j] = Math.exp(y1[j] + t * (y2[j] - y1[j]));
+            }
+            return;
+        }
+
+        //Catmull-Rom spline through the four nearest grid points
+        double[] y0 = logQuantiles[i - 1];
+        double[] y3 = logQuantiles[i + 2];
+        double t2 = t * t;
+        double t3 = t2 * t;
+        for(int j = 0; j < categoryCount; j++){
+            quantiles[j] = Math.exp(0.5 * (2.0 * y1[j] +
+                    (y2[j] - y0[j]) * t +
+                    (2.0 * y0[j] - 5.0 * y1[j] + 4.0 * y2[j] - y3[j]) * t2 +
+                    (3.0 * y1[j] - y0[j] - 3.0 * y2[j] + y3[j]) * t3));
+        }
+    }
+}
@@ -7,8 +7,6 @@ import beast.core.parameter.QuietRealParameter;
 import beast.core.parameter.RealParameter;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.tree.Node;
-import org.apache.commons.math.distribution.GammaDistribution;
-import org.apache.commons.math.distribution.GammaDistributionImpl;
 
 /**
  * @author Chieh-Hsi Wu
@@ -291,31 +289,26 @@ public class QuietGammaSiteBMA extends QuietSiteModel {
             double mean = 0.0;
             final int gammaCatCount = categoryCount - cat;
             //System.out.println("a: "+a);
-            final GammaDistribution g = new GammaDistributionImpl(a, 1.0 / a);
-            //System.out.println("gammaCatCount:"+gammaCatCount);
-            //if(gammaCatCount == 3){
-                //throw new RuntimeException("");
-            //}
-            for (int i = 0; i < gammaCatCount; i++) {
+            //The quantiles are shared by all the site models with the same shape and number of categories
+            double[] quantiles = null;
+            if(a >= 1e-3 && a <= 1e10){
                 try {
-                    // RRB: alternative implementation that seems equally good in
-                    // the first 5 significant digits, but uses a standard distribution object
-                    if(a < 1e-3){
-
-                        categoryRates[i + cat] = Double.NEGATIVE_INFINITY;
-                    }else if(a > 1e10){
-                        categoryRates[i + cat] = 1.0;
-                    }else if (useBeast1StyleGamma) {
-                        categoryRates[i + cat] = GammaDistributionQuantile((2.0 * i + 1.0) / (2.0 * gammaCatCount), a, 1.0 / a);
-                	} else {
-                		categoryRates[i + cat] = g.inverseCumulativeProbability((2.0 * i + 1.0) / (2.0 * gammaCatCount));
-                	}
-
+                    quantiles = getGammaQuantiles(a, gammaCatCount);
                 } catch (Exception e) {
                     e.printStackTrace();
                     System.err.println("Something went wrong with the gamma distribution calculation");
                     System.exit(-1);
                 }
+            }
+            for (int i = 0; i < gammaCatCount; i++) {
+                if(a < 1e-3){
+
+                    categoryRates[i + cat] = Double.NEGATIVE_INFINITY;
+                }else if(a > 1e10){
+                    categoryRates[i + cat] = 1.0;
+                }else{
+                    categoryRates[i + cat] = quantiles[i];
+                }
                 mean += categoryRates[i + cat];
 
                 categoryProportions[i + cat] = propVariable / gammaCatCount;
@@ -1,11 +1,15 @@
 package beast.evolution.sitemodel;
 
 import beast.core.Description;
+import beast.core.Input;
 import beast.core.StateNode;
 import beast.core.parameter.QuietRealParameter;
 import beast.core.parameter.RealParameter;
+import beast.evolution.substitutionmodel.NtdBMA;
 import beast.evolution.substitutionmodel.SubstitutionModel;
 import beast.evolution.substitutionmodel.SwitchingNtdBMA;
+import beast.evolution.tree.Node;
+import org.apache.commons.math.MathException;
 
 import java.util.ArrayList;
 
@@ -14,10 +18,26 @@ import java.util.ArrayList;
  */
 @Description("This site model is used to be created internally on the fly during the MCMC.")
 public class QuietSiteModel extends SiteModel {
+    public Input<Boolean> interpolateGammaRatesInput = new Input<Boolean>(
+            "interpolateGammaRates",
+            "Whether the quantiles of the gamma distribution are interpolated from a table instead of being solved for " +
+                    "when the shape is within the range of the table (default false)",
+            false
+    );
+
+    // Whether the quantiles of the gamma distribution are interpolated from a table.
+    protected boolean interpolateGammaRates = false;
+    // The interpolated quantiles, so that an array is not created on every calculation.
+    private double[] interpolatedQuantiles;
+    // The shape of the last quantiles returned, so that they are not looked up again while the shape is unchanged.
+    private double lastShape = Double.NaN;
+    private double[] lastQuantiles;
+
     @Override
     public void initAndValidate() {
         //System.out.println(getID()+": "+m_pSubstModel.get());
         substitutionModel = (SubstitutionModel.Base) substModelInput.get();
+        interpolateGammaRates = interpolateGammaRatesInput.get();
 
     	useBeast1StyleGamma = true; // useBeast1StyleGammaInput.get();
         muParameter = muParameterInput.get();
@@ -129,6 +149,132 @@ public class QuietSiteModel extends SiteModel {
     }
 
 
+    /*
+     * Re-initialises a site model that is no longer used by any cluster for a new cluster.
+     * Only the site models without a gamma shape parameter can be reused.
+     */
+    public boolean reuse(SubstitutionModel substModel, QuietRealParameter muParameter){
+        if(shapeParameter != null || muParameter == null){
+            return false;
+        }
+        substitutionModel = (SubstitutionModel.Base)substModel;
+        this.muParameter = muParameter;
+        muParameter.setBounds(Math.max(muParameter.getLower(), 0.0), Math.min(muParameter.getUpper(), Double.POSITIVE_INFINITY));
+
+        conditions = null;
+        addCondition(muParameter);
+        addCondition(invarParameter);
+
+        calculateCategoryRates(null);
+        makeAccept();
+        return true;
+    }
+
+
+    /*
+     * Returns a copy with its own rate parameter and the given substitution model,
+     * so that candidates can be evaluated on another thread. The shape and invariant parameters are only read.
+     */
+    public QuietSiteModel copy(SubstitutionModel substModel){
+        QuietRealParameter mu = new QuietRealParameter(new Double[]{muParameter.getValue()});
+        QuietSiteModel copy = new QuietSiteModel(substModel, mu, shapeParameter, invarParameter, useBeast1StyleGamma, gammaCatCount);
+        copy.setPropInvariantIsCategory(hasPropInvariantCategory);
+        copy.setInterpolateGammaRates(interpolateGammaRates);
+        return copy;
+    }
+
+    public void setInterpolateGammaRates(boolean interpolate){
+        if(interpolateGammaRates != interpolate){
+            interpolateGammaRates = interpolate;
+            lastQuantiles = null;
+            ratesKnown = false;
+        }
+    }
+
+    /*
+     * Returns the quantiles at (2i+1)/(2*gammaCatCount) of the gamma distribution with the given shape and mean one,
+     * taken from the shared cache or the interpolation table. The returned array must not be modified.
+     */
+    protected double[] getGammaQuantiles(double shape, int gammaCatCount) throws MathException {
+        if(shape == lastShape && lastQuantiles != null && lastQuantiles.length == gammaCatCount){
+            return lastQuantiles;
+        }
+        if(interpolateGammaRates && GammaQuantileTable.covers(shape)){
+            if(interpolatedQuantiles == null || interpolatedQuantiles.length != gammaCatCount){
+                interpolatedQuantiles = new double[gammaCatCount];
+            }
+            GammaQuantileTable.getTable(gammaCatCount, useBeast1StyleGamma).getQuantiles(shape, interpolatedQuantiles);
+            lastQuantiles = interpolatedQuantiles;
+        }else{
+            lastQuantiles = GammaCategoryRateCache.getInstance().getQuantiles(shape, gammaCatCount, useBeast1StyleGamma);
+        }
+        lastShape = shape;
+        return lastQuantiles;
+    }
+
+    /**
+     * discretization of gamma distribution with equal proportions in each
+     * category, as in SiteModel but with the quantiles taken from the shared cache
+     */
+    @Override
+    protected void calculateCategoryRates(Node node) {
+        double propVariable = 1.0;
+        int cat = 0;
+
+        if (invarParameter.getValue() > 0) {
+            if (hasPropInvariantCategory) {
+                categoryRates[0] = 0.0;
+                categoryProportions[0] = invarParameter.getValue();
+            }
+            propVariable = 1.0 - invarParameter.getValue();
+            if (hasPropInvariantCategory) {
+                cat = 1;
+            }
+        }
+
+        if (shapeParameter != null) {
+
+            final double a = shapeParameter.getValue();
+            double mean = 0.0;
+            final int gammaCatCount = categoryCount - cat;
+
+            double[] quantiles = null;
+            try {
+                quantiles = getGammaQuantiles(a, gammaCatCount);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.err.println("Something went wrong with the gamma distribution calculation");
+                System.exit(-1);
+            }
+            for (int i = 0; i < gammaCatCount; i++) {
+                categoryRates[i + cat] = quantiles[i];
+                mean += categoryRates[i + cat];
+
+                categoryProportions[i + cat] = propVariable / gammaCatCount;
+            }
+
+            mean = (propVariable * mean) / gammaCatCount;
+
+            for (int i = 0; i < gammaCatCount; i++) {
+
+                categoryRates[i + cat] /= mean;
+            }
+        } else {
+            categoryRates[cat] = 1.0 / propVariable;
+            categoryProportions[cat] = propVariable;
+        }
+
+        ratesKnown = true;
+    }
+
+    /*
+     * Takes the rate of the given site model and recalculates the category rates from the shared parameters.
+     */
+    public void copyRates(QuietSiteModel siteModel){
+        getRateParameter().setValueQuietly(0, siteModel.muParameter.getValue());
+        ratesKnown = false;
+    }
+
     @Override
     protected void refresh() {
         if (shapeParameter != null) {
@@ -174,6 +320,20 @@ public class QuietSiteModel extends SiteModel {
         return (QuietRealParameter)muParameter;
     }
 
+    /*
+     * The ID number of the rate parameter, or -1 if the rate is not a clustered parameter.
+     */
+    public int getRateIDNumber(){
+        return muParameter instanceof QuietRealParameter ? ((QuietRealParameter)muParameter).getIDNumber() : -1;
+    }
+
+    /*
+     * The ID number of the substitution model, or -1 if the substitution model is not clustered.
+     */
+    public int getSubstModelIDNumber(){
+        return substitutionModel instanceof NtdBMA ? ((NtdBMA)substitutionModel).getIDNumber() : -1;
+    }
+
     @Override
     protected boolean requiresRecalculation() {
         // do explicit check whether any of the non-substitution model parameters changed
@@ -16,6 +16,7 @@ import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.linalg.Property;
 
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Chieh-Hsi Wu
@@ -92,6 +93,23 @@ public class NtdBMA extends SubstitutionModel.Base{
         return IDNumber;
     }
 
+    /*
+     * Changes whenever the transition probabilities of this model may have changed,
+     * so that transition probabilities cached elsewhere can be recognised as out of date.
+     * The versions are unique across all models, as ID numbers are reused when models are replaced.
+     */
+    private static final AtomicLong matrixVersionCount = new AtomicLong();
+    private long matrixVersion = -1;
+    private long storedMatrixVersion = -1;
+
+    protected void updateMatrixVersion(){
+        matrixVersion = matrixVersionCount.incrementAndGet();
+    }
+
+    public long getMatrixVersion(){
+        return matrixVersion;
+    }
+
     double [][] m_rateMatrix;
     protected double[] relativeRates;
     protected double[] storedRelativeRates;
@@ -156,6 +174,7 @@ public class NtdBMA extends SubstitutionModel.Base{
                     //"where "+ JC69 + " and " + GTR +" represents JC and GTR repectively");
         }
         updateMatrix = true;
+        updateMatrixVersion();
 
         //eigenSystem = new DefaultEigenSystem(STATE_COUNT);
         m_rateMatrix = new double[STATE_COUNT][STATE_COUNT];
@@ -308,7 +327,6 @@ public class NtdBMA extends SubstitutionModel.Base{
 
         }
 
-        updateMatrix = false;
         //wellConditioned = true;
 
 	} // setupRateMatrix
@@ -358,12 +376,16 @@ public class NtdBMA extends SubstitutionModel.Base{
         }*/
         if(recalculate){
             updateMatrix = true;
+            updateMatrixVersion();
         }
         return recalculate;
     }
 
     public void setUpdateMatrix(boolean update){
         updateMatrix = update;
+        if(update){
+            updateMatrixVersion();
+        }
 
     }
 
@@ -396,57 +418,100 @@ public class NtdBMA extends SubstitutionModel.Base{
             //System.out.println("Get probs: "+frequencies);
         double distance = (fStartTime - fEndTime) * fRate;
 
-        int i, j, k;
-        double temp;
-
-        // this must be synchronized to avoid being called simultaneously by
-        // two different likelihood threads - AJD
-        synchronized (this) {
-            if (updateMatrix) {
-                //System.out.println("UPDATE MATRIX");
-            	setupRelativeRates();
-            	setupRateMatrix();
-
-            	updateMatrix = false;
-            }
-        }
-
-        if (!wellConditioned) {
+        EigenSnapshot eigen = getEigenSnapshot();
+        if (!eigen.wellConditioned) {
             System.err.println("THIS IS BOTHERSOME");
             System.err.println("distance: "+distance);
             printDetails();
             Arrays.fill(matrix, 0.0);
             return;
         }
-        double[][] iexp = new double[STATE_COUNT][STATE_COUNT];//popiexp();
+        calculateTransitionProbabilities(eigen, distance, matrix);
 
+    } // getTransitionProbabilities
 
+    /*
+     * P(t) = Evec * exp(Eval * t) * Ievc, with the 4 x 4 product unrolled so that nothing is allocated.
+     * The terms are summed in the same order as the loops this replaces.
+     */
+    protected static void calculateTransitionProbabilities(EigenSnapshot eigen, double distance, double[] matrix){
+        final double[] eval = eigen.eval;
+        final double[] evec = eigen.evec;
+        final double[] ievc = eigen.ievc;
+
+        final double exp0 = Math.exp(distance * eval[0]);
+        final double exp1 = Math.exp(distance * eval[1]);
+        final double exp2 = Math.exp(distance * eval[2]);
+        final double exp3 = Math.exp(distance * eval[3]);
+
+        for (int j = 0; j < STATE_COUNT; j++) {
+            final double iexp0 = ievc[j] * exp0;
+            final double iexp1 = ievc[STATE_COUNT + j] * exp1;
+            final double iexp2 = ievc[2 * STATE_COUNT + j] * exp2;
+            final double iexp3 = ievc[3 * STATE_COUNT + j] * exp3;
+
+            for (int i = 0; i < STATE_COUNT; i++) {
+                final int w = i * STATE_COUNT;
+                final double temp = evec[w] * iexp0 + evec[w + 1] * iexp1 + evec[w + 2] * iexp2 + evec[w + 3] * iexp3;
+                matrix[w + j] = temp < 0.0 ? minProb : temp;
+            }
+        }
+    }
 
+    /*
+     * Returns the current eigen system, setting it up first if the model has changed.
+     * Once set up, the snapshot is read without locking, so threads sharing this model do not wait on each other.
+     */
+    protected EigenSnapshot getEigenSnapshot(){
+        EigenSnapshot eigen;
+        if(!updateMatrix && (eigen = eigenSnapshot) != null){
+            return eigen;
+        }
 
-        for (i = 0; i < STATE_COUNT; i++) {
-            temp = Math.exp(distance * Eval[i]);
-            for (j = 0; j < STATE_COUNT; j++) {
-                iexp[i][j] = Ievc[i][j] * temp;
+        synchronized (this) {
+            if (updateMatrix || eigenSnapshot == null) {
+                setupRelativeRates();
+                setupRateMatrix();
+                // Published before the flag is cleared, so a reader that sees the flag cleared sees the new snapshot.
+                eigenSnapshot = new EigenSnapshot(Eval, Evec, Ievc, wellConditioned);
+                updateMatrix = false;
             }
+            return eigenSnapshot;
         }
+    }
 
+    /*
+     * An immutable copy of the eigen system, with the matrices flattened in row-major order.
+     */
+    protected static final class EigenSnapshot {
+        final double[] eval;
+        final double[] evec;
+        final double[] ievc;
+        final boolean wellConditioned;
+        private volatile EigenDecomposition eigenDecomposition;
+
+        EigenSnapshot(double[] eval, double[][] evec, double[][] ievc, boolean wellConditioned){
+            this.eval = eval.clone();
+            this.evec = new double[STATE_COUNT * STATE_COUNT];
+            this.ievc = new double[STATE_COUNT * STATE_COUNT];
+            for(int i = 0; i < STATE_COUNT; i++){
+                System.arraycopy(evec[i], 0, this.evec, i * STATE_COUNT, STATE_COUNT);
+                System.arraycopy(ievc[i], 0, this.ievc, i * STATE_COUNT, STATE_COUNT);
+            }
+            this.wellConditioned = wellConditioned;
+        }
 
-        int u = 0;
-        for (i = 0; i < STATE_COUNT; i++) {
-            for (j = 0; j < STATE_COUNT; j++) {
-                temp = 0.0;
-                for (k = 0; k < STATE_COUNT; k++) {
-                    temp += Evec[i][k] * iexp[k][j];
-                }
-                if (temp < 0.0)
-                    matrix[u] = minProb;
-                else
-                    matrix[u] = temp;
-                u++;
+        EigenDecomposition getEigenDecomposition(){
+            EigenDecomposition decomposition = eigenDecomposition;
+            if(decomposition == null){
+                // Copies, as the decomposition hands out its arrays.
+                decomposition = new EigenDecomposition(evec.clone(), ievc.clone(), eval.clone());
+                eigenDecomposition = decomposition;
             }
+            return decomposition;
         }
+    }
 
-    } // getTransitionProbabilities
 
     public QuietRealParameter getLogKappa(){
         return logKappa;
@@ -482,6 +547,8 @@ public class NtdBMA extends SubstitutionModel.Base{
     protected double[][] storedEvec;
     protected double[][] Ievc;
     protected double[][] storedIevc;
+    protected volatile EigenSnapshot eigenSnapshot;
+    private EigenSnapshot storedEigenSnapshot;
 
     /**
      * allocate memory for the Eigen routines
@@ -499,6 +566,7 @@ public class NtdBMA extends SubstitutionModel.Base{
 
 
         updateMatrix = true;
+        updateMatrixVersion();
     }
 
 
@@ -510,6 +578,9 @@ public class NtdBMA extends SubstitutionModel.Base{
 
     public void restore() {
 
+        EigenSnapshot tmp0 = storedEigenSnapshot;
+        storedEigenSnapshot = eigenSnapshot;
+        eigenSnapshot = tmp0;
         updateMatrix = storedUpdateMatrix;
         wellConditioned = storedWellConditioned;
 
@@ -530,6 +601,9 @@ public class NtdBMA extends SubstitutionModel.Base{
         storedRelativeRates = relativeRates;
         relativeRates = tmp4;
 
+        // The stored version still identifies the restored matrices, so those cached under it stay valid.
+        matrixVersion = storedMatrixVersion;
+
         super.restore();
 
     }
@@ -537,6 +611,8 @@ public class NtdBMA extends SubstitutionModel.Base{
     public void store() {
 
         storedUpdateMatrix = updateMatrix;
+        storedMatrixVersion = matrixVersion;
+        storedEigenSnapshot = eigenSnapshot;
 
 //        if(updateMatrix)
 //            System.err.println("Storing updatable state!");
@@ -572,21 +648,10 @@ public class NtdBMA extends SubstitutionModel.Base{
      */
     @Override
     public EigenDecomposition getEigenDecomposition(Node node) {
-
-        EigenSystem eigenSystem =  new DefaultEigenSystem(STATE_COUNT);
-        synchronized (this) {
-            if (updateMatrix) {
-            	setupRelativeRates();
-                setupRateMatrix();
-
-                updateMatrix = false;
-            }
-        }
-        //EigenDecomposition eigenDecomposition = eigenSystem.decomposeMatrix(m_rateMatrix);
-        return eigenSystem.decomposeMatrix(m_rateMatrix);
+        return getEigenSnapshot().getEigenDecomposition();
     }
 
-    protected boolean updateMatrix = true;
+    protected volatile boolean updateMatrix = true;
     protected boolean storedUpdateMatrix = true;
     protected boolean wellConditioned = true;
     private boolean storedWellConditioned;
@@ -0,0 +1,132 @@
+package beast.math.distributions;
+
+import beast.core.parameter.ChangeType;
+import beast.core.parameter.ParameterList;
+import beast.core.parameter.QuietRealParameter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Caches the base log-densities of the clusters of a Dirichlet process, keyed by the ID numbers of their
+ * parameters. Only the parameters added to or changed in the list since it was last stored are evaluated again.
+ */
+public class BaseLogDensityCache {
+    private double[] logPs = new double[16];
+    private double[] storedLogPs = new double[16];
+    private double logPSum;
+    private double storedLogPSum;
+    private boolean known = false;
+    private boolean storedKnown = false;
+
+    // The ID numbers whose log-densities have been set since the last store.
+    private int[] changedIDs = new int[16];
+    private int changedIDCount = 0;
+    private boolean allChanged = false;
+
+    /*
+     * Returns the sum of the base log-densities of the parameters in the list.
+     * Every parameter is evaluated again if the base distribution has changed.
+     */
+    public double getLogP(ParameterList list, ParametricDistribution distr, boolean distrChanged){
+        if(!known || !storedKnown || distrChanged ||
+                (list.somethingIsDirty() && list.getChangeType() == ChangeType.ALL)){
+            recalculate(list, distr);
+        }else if(list.somethingIsDirty()){
+            update(list, distr);
+        }
+        return logPSum;
+    }
+
+    private void recalculate(ParameterList list, ParametricDistribution distr){
+        logPSum = 0.0;
+        for(int i = 0; i < list.getDimension(); i++){
+            QuietRealParameter parameter = list.getParameter(i);
+            ensureCapacity(parameter.getIDNumber());
+            logPs[parameter.getIDNumber()] = distr.calcLogP(parameter);
+            logPSum += logPs[parameter.getIDNumber()];
+        }
+        known = true;
+        allChanged = true;
+    }
+
+    /*
+     * Adjusts the sum at the stored state by the parameters removed, added or changed since then,
+     * so that the result does not depend on how many times this is called before the next store.
+     */
+    private void update(ParameterList list, ParametricDistribution distr){
+        List<QuietRealParameter> removed = list.getRemovedParameters();
+        List<QuietRealParameter> added = list.getAddedParameters();
+        double sum = storedLogPSum;
+        for(QuietRealParameter parameter: removed){
+            sum -= storedLogPs[parameter.getIDNumber()];
+        }
+        for(QuietRealParameter parameter: added){
+            sum += setLogP(parameter.getIDNumber(), distr.calcLogP(parameter));
+        }
+        for(QuietRealParameter parameter: list.getValueChangedParameters()){
+            if(!containsParameter(removed, parameter) && !containsParameter(added, parameter)){
+                int id = parameter.getIDNumber();
+                sum += setLogP(id, distr.calcLogP(parameter)) - storedLogPs[id];
+            }
+        }
+        logPSum = sum;
+    }
+
+    private double setLogP(int id, double logP){
+        ensureCapacity(id);
+        logPs[id] = logP;
+        if(!allChanged){
+            if(changedIDCount == changedIDs.length){
+                changedIDs = Arrays.copyOf(changedIDs, changedIDCount * 2);
+            }
+            changedIDs[changedIDCount++] = id;
+        }
+        return logP;
+    }
+
+    private void ensureCapacity(int id){
+        if(id >= logPs.length){
+            int capacity = Math.max(id + 1, logPs.length * 2);
+            logPs = Arrays.copyOf(logPs, capacity);
+            storedLogPs = Arrays.copyOf(storedLogPs, capacity);
+        }
+    }
+
+    private static boolean containsParameter(List<QuietRealParameter> parameters, QuietRealParameter parameter){
+        for(QuietRealParameter p: parameters){
+            if(p == parameter){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void store(){
+        if(allChanged){
+            System.arraycopy(logPs, 0, storedLogPs, 0, logPs.length);
+        }else{
+            for(int i = 0; i < changedIDCount; i++){
+                storedLogPs[changedIDs[i]] = logPs[changedIDs[i]];
+            }
+        }
+        storedLogPSum = logPSum;
+        storedKnown = known;
+        changedIDCount = 0;
+        allChanged = false;
+    }
+
+    public void restore(){
+        if(allChanged){
+            System.arraycopy(storedLogPs, 0, logPs, 0, logPs.length);
+        }else{
+            for(int i = 0; i < changedIDCount; i++){
+                logPs[changedIDs[i]] = storedLogPs[changedIDs[i]];
+            }
+        }
+        logPSum = storedLogPSum;
+        known = storedKnown;
+        changedIDCount = 0;
+        allChanged = false;
+    }
+}
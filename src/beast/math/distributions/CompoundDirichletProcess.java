@@ -43,7 +43,8 @@ public class CompoundDirichletProcess extends ParametricDistribution{
     DPValuable dpValuable;
     double denominator;
     double storedDenominator;
-    double[] gammas;
+    // The base log-densities of the clusters in each list, so only the changed clusters are evaluated again.
+    private List<BaseLogDensityCache> baseLogPs = new ArrayList<BaseLogDensityCache>();
 
 
     public void initAndValidate(){
@@ -66,12 +67,6 @@ public class CompoundDirichletProcess extends ParametricDistribution{
         //So there won't be any clusters of size 0.
         //But for the sake of convenience for later computation I'm going to start from 0.
         refresh();
-        gammas = new double[dpValuable.getPointerDimension()+1];
-        gammas[0] = Double.NaN;
-        gammas[1] = 0;
-        for(int i = 2; i < gammas.length; i++){
-            gammas[i] = gammas[i-1]+Math.log(i-1);
-        }
     }
 
     public void refresh(){
@@ -96,21 +91,17 @@ public class CompoundDirichletProcess extends ParametricDistribution{
         double logP = 0.0;
 
         for(int i = 0; i < listCount;i++){
-            int dimParam = xLists.get(i).getDimension();
-            for(int j = 0; j < dimParam; j ++){
-                logP += baseDistributions.get(i).calcLogP((xLists.get(i)).getParameter(j));
+            if(baseLogPs.size() == i){
+                baseLogPs.add(new BaseLogDensityCache());
             }
+            ParametricDistribution baseDistr = baseDistributions.get(i);
+            logP += baseLogPs.get(i).getLogP(xLists.get(i), baseDistr, baseDistr.isDirtyCalculation());
         }
         //System.err.println("flag1: "+logP);
 
-        int[] counts = dpValuable.getClusterCounts();
-
-        logP+=counts.length*Math.log(alpha.getValue());
-        //System.err.println("flag2: "+logP);
-
-        for(int count: counts){
-            logP+=gammas[count];
-        }
+        // The pointers keep the sizes of the clusters, so the count terms do not depend on the number of clusters.
+        logP+=dpValuable.getCategoryCount()*Math.log(alpha.getValue());
+        logP+=dpValuable.getLogCountFactorialSum();
         //System.err.println("flag3: "+logP);
         logP-=denominator;
         //System.err.println("flag4: "+logP);
@@ -153,11 +144,17 @@ public class CompoundDirichletProcess extends ParametricDistribution{
 
     public void store(){
         storedDenominator = denominator;
+        for(BaseLogDensityCache cache: baseLogPs){
+            cache.store();
+        }
         super.store();
     }
 
     public void restore(){
         denominator = storedDenominator;
+        for(BaseLogDensityCache cache: baseLogPs){
+            cache.restore();
+        }
         super.restore();
     }
 
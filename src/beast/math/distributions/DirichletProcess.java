@@ -36,7 +36,8 @@ public class DirichletProcess extends ParametricDistribution{
     DPValuable dpValuable;
     double denominator;
     double storedDenominator;
-    double[] gammas;
+    // The base log-densities of the clusters, so only the changed clusters are evaluated again.
+    private BaseLogDensityCache baseLogPs = new BaseLogDensityCache();
 
 
     public void initAndValidate(){
@@ -59,12 +60,6 @@ public class DirichletProcess extends ParametricDistribution{
         //So there won't be any clusters of size 0.
         //But for the sake of convenience for later computation I'm going to start from 0.
         refresh();
-        gammas = new double[dpValuable.getPointerDimension()+1];
-        gammas[0] = Double.NaN;
-        gammas[1] = 0;
-        for(int i = 2; i < gammas.length; i++){
-            gammas[i] = gammas[i-1]+Math.log(i-1);
-        }
     }
 
     public void refresh(){
@@ -84,23 +79,12 @@ public class DirichletProcess extends ParametricDistribution{
         if(requiresRecalculation()){
             refresh();
         }
-        int dimParam = xList.getDimension();
-        double logP = 0.0;
-        for(int i = 0; i < dimParam; i ++){
-            //System.out.println(getID()+" "+((ParameterList)xList).getParameter(i));
-            logP+= baseDistribution.calcLogP(((ParameterList)xList).getParameter(i));
-        }
+        double logP = baseLogPs.getLogP((ParameterList)xList, baseDistribution, baseDistribution.isDirtyCalculation());
         //System.out.println("flag1: "+logP);
 
-        int[] counts = dpValuable.getClusterCounts();
-
-        logP+=counts.length*Math.log(alpha.getValue());
-        //System.err.println("flag2: "+logP+" counts: "+counts.length+" a: "+alpha.getValue());
-
-        for(int count: counts){
-            //System.err.println(count+" "+gammas[count]);
-            logP+=gammas[count];
-        }
+        // The pointers keep the sizes of the clusters, so the count terms do not depend on the number of clusters.
+        logP+=dpValuable.getCategoryCount()*Math.log(alpha.getValue());
+        logP+=dpValuable.getLogCountFactorialSum();
         //System.err.println("flag3: "+logP);
         logP-=denominator;
 
@@ -113,11 +97,13 @@ public class DirichletProcess extends ParametricDistribution{
 
     public void store(){
         storedDenominator = denominator;
+        baseLogPs.store();
         super.store();
     }
 
     public void restore(){
         denominator = storedDenominator;
+        baseLogPs.restore();
         super.restore();
     }
 
@@ -19,11 +19,21 @@ import org.apache.commons.math.distribution.ContinuousDistribution;
 public class MultivariateNormal extends ParametricDistribution implements MultivariateDistribution{
     public Input<RealParameter> meanVec = new Input<RealParameter>("mean","Mean vector of the multivariate normal distribution", Input.Validate.REQUIRED);
     public Input<RealParameter> precisionMatrixInput = new Input<RealParameter>("precision", "Precision matrix of the multivariate normal distribution", Input.Validate.REQUIRED);
-    private double[] mean;
-    private double[][] precision;
-    private double[][] variance = null;
-    private double[][] cholesky = null;
-    private double logDet;
+    // Two buffers of each, so that the stored values are kept by reference when the current values are recalculated.
+    private double[][] means = new double[2][];
+    private double[][] precisions = new double[2][];
+    // The lower triangular Cholesky factor of the precision matrix in row-major order.
+    private double[][] choleskys = new double[2][];
+    private double[] logDets = new double[2];
+    private int meanIndex = 0;
+    private int factorIndex = 0;
+    private int storedMeanIndex = -1;
+    private int storedFactorIndex = -1;
+    private boolean meanKnown = false;
+    private boolean factorKnown = false;
+    private boolean storedMeanKnown = false;
+    private boolean storedFactorKnown = false;
+    private int dim;
 
     private RealParameter precisionMatrix;
 
@@ -31,103 +41,144 @@ public class MultivariateNormal extends ParametricDistribution implements Multiv
 	public void initAndValidate() {
         System.err.println("Using multivariate normal");
         precisionMatrix = precisionMatrixInput.get();
+        dim = meanVec.get().getDimension();
+        if(dim * dim != precisionMatrix.getDimension()){
+            throw new RuntimeException("The precision matrix must have "+(dim * dim)+" elements.");
+        }
+        for(int i = 0; i < 2; i++){
+            means[i] = new double[dim];
+            precisions[i] = new double[dim * dim];
+            choleskys[i] = new double[dim * dim];
+        }
 
         refresh();
 	}
 
     public boolean requiresRecalculation(){
-        refresh();
-        return true;
+        if(meanVec.get().somethingIsDirty()){
+            meanKnown = false;
+        }
+        if(precisionMatrix.somethingIsDirty()){
+            factorKnown = false;
+        }
+        return !meanKnown || !factorKnown;
     }
 
     public void refresh(){
+        refreshMean();
+        refreshFactorisation();
+    }
+
+    /*
+     * Brings the mean and the factorisation up to date if their parameters have changed.
+     */
+    private void update(){
+        if(!meanKnown){
+            refreshMean();
+        }
+        if(!factorKnown){
+            refreshFactorisation();
+        }
+    }
+
+    private void refreshMean(){
+        if(meanIndex == storedMeanIndex){
+            meanIndex = 1 - meanIndex;
+        }
         RealParameter meanVec = this.meanVec.get();
-        mean = new double[meanVec.getDimension()];
-        for(int i = 0; i < mean.length;i++){
+        double[] mean = means[meanIndex];
+        for(int i = 0; i < dim;i++){
             mean[i] = meanVec.getValue(i);
-            
         }
+        meanKnown = true;
+    }
 
-        int dim = (int)Math.sqrt(precisionMatrix.getDimension());
-        int k = 0;
-        precision = new double[dim][dim];
+    /*
+     * Copies the precision matrix and recalculates its Cholesky factor,
+     * which gives both the log-determinant and the draws.
+     */
+    private void refreshFactorisation(){
+        if(factorIndex == storedFactorIndex){
+            factorIndex = 1 - factorIndex;
+        }
+        double[] precision = precisions[factorIndex];
         for(int i = 0; i < precision.length;i++){
-            for(int j = 0; j < precision[i].length;j++){
-                precision[i][j] = precisionMatrix.getValue(k++);
+            precision[i] = precisionMatrix.getValue(i);
+        }
+        double[] cholesky = choleskys[factorIndex];
+        if(choleskyDecomposition(precision, cholesky, dim)){
+            double logDet = 0.0;
+            for(int i = 0; i < dim; i++){
+                logDet += Math.log(cholesky[i * dim + i]);
             }
-
+            logDets[factorIndex] = 2.0 * logDet;
+        }else{
+            logDets[factorIndex] = Double.NEGATIVE_INFINITY;
         }
-
-        logDet = Math.log(calculatePrecisionMatrixDeterminate(precision));
-        variance = new SymmetricMatrix(precision).inverse().toComponents();
-        cholesky = getCholeskyDecomposition(variance);
-
-        storedMean = new double[mean.length];
-        storedPrecision = new double[precision.length][precision.length];
-        storedVariance = new double[variance.length][variance.length];
-        storedCholesky = new double[cholesky.length][cholesky.length];
-
-
-
-
+        factorKnown = true;
+    }
+
+    /*
+     * Calculates the lower triangular l such that a = l l^T for the row-major dim x dim matrix a.
+     * Returns false if a is not positive definite.
+     */
+    private static boolean choleskyDecomposition(double[] a, double[] l, int dim){
+        for(int j = 0; j < dim; j++){
+            double sum = a[j * dim + j];
+            for(int k = 0; k < j; k++){
+                sum -= l[j * dim + k] * l[j * dim + k];
+            }
+            if(!(sum > 0.0)){
+                return false;
+            }
+            double ljj = Math.sqrt(sum);
+            l[j * dim + j] = ljj;
+            for(int i = j + 1; i < dim; i++){
+                sum = a[i * dim + j];
+                for(int k = 0; k < j; k++){
+                    sum -= l[i * dim + k] * l[j * dim + k];
+                }
+                l[i * dim + j] = sum / ljj;
+                l[j * dim + i] = 0.0;
+            }
+        }
+        return true;
     }
 
-    private double[] storedMean;
-    private double[][] storedPrecision;
-    private double storedLogDet;
-    private double[][] storedVariance;
-    private double[][] storedCholesky;
-
     public void store(){
-        System.arraycopy(mean,0,storedMean,0,mean.length);
-
-        for(int i = 0; i < storedPrecision.length; i++){
-            System.arraycopy(precision[i],0,storedPrecision[i],0,precision[i].length);
-        }
-
-        storedLogDet = logDet;
-
-        for(int i = 0; i < storedVariance.length; i++){
-            System.arraycopy(variance[i],0,storedVariance[i],0,variance[i].length);
-        }
-
-        for(int i = 0; i < storedCholesky.length; i++){
-            System.arraycopy(cholesky[i],0,storedCholesky[i],0,cholesky[i].length);
-        }
-
+        storedMeanIndex = meanIndex;
+        storedFactorIndex = factorIndex;
+        storedMeanKnown = meanKnown;
+        storedFactorKnown = factorKnown;
+        super.store();
     }
 
     public void restore(){
-        double[] tmp1 = mean;
-        mean = storedMean;
-        storedMean = tmp1;
-
-        double[][] tmp2 = precision;
-        precision = storedPrecision;
-        storedPrecision = tmp2;
-
-        double[][] tmp3 = storedVariance;
-        variance = storedVariance;
-        storedVariance = tmp3;
-
-        double[][] tmp4 = storedCholesky;
-        cholesky = storedCholesky;
-        storedCholesky = tmp4;
-
-        logDet = storedLogDet;
-
-
+        meanIndex = storedMeanIndex;
+        factorIndex = storedFactorIndex;
+        meanKnown = storedMeanKnown;
+        factorKnown = storedFactorKnown;
+        super.restore();
     }
 
     public double calcLogP(Function x) {
-        if(requiresRecalculation()){
-            refresh();
-        }
-        double[] xVals = new double[x.getDimension()];
-        for(int i = 0;i < xVals.length;i++){
-            xVals[i] = x.getArrayValue(i);
+        update();
+        double logDet = logDets[factorIndex];
+        if (logDet == Double.NEGATIVE_INFINITY)
+            return logDet;
+
+        double[] mean = means[meanIndex];
+        double[] precision = precisions[factorIndex];
+        double SSE = 0;
+        for(int i = 0; i < dim; i++){
+            double deltaI = x.getArrayValue(i) - mean[i];
+            double tmp = 0;
+            for(int j = 0; j < dim; j++){
+                tmp += precision[i * dim + j] * (x.getArrayValue(j) - mean[j]);
+            }
+            SSE += tmp * deltaI;
         }
-		return logPdf(xVals);
+        return dim * logNormalize + 0.5 * (logDet - SSE);
     }
 
 	@Override
@@ -144,47 +195,39 @@ public class MultivariateNormal extends ParametricDistribution implements Multiv
     }
 
 
+    /*
+     * Returns a new copy of the precision matrix on every call, as the matrix is kept in a flat array
+     * that is overwritten when the precision changes. Callers that use it repeatedly should keep the copy.
+     */
     public double[][] getScaleMatrix() {
+        update();
+        double[][] precision = new double[dim][dim];
+        for(int i = 0; i < dim; i++){
+            System.arraycopy(precisions[factorIndex], i * dim, precision[i], 0, dim);
+        }
         return precision;
     }
 
     public double[] getMeanVector() {
-        return mean;
+        update();
+        return means[meanIndex];
     }
 
     public Double[][] sample(int size){
-        Double[][] samples = new Double[size][];
-        try{
-            for(int i =0; i < samples.length;i++){
-                double[] sample = nextMultivariateNormal();
-                Double[] sampleVals = new Double[sample.length];
-                for(int j = 0; j < sampleVals.length;j++){
-                    sampleVals[j] = sample[j];
-                }
-                samples[i] = sampleVals;
-            }
-        }catch(Exception e){
-            throw new RuntimeException(e);
-
-        }
-        return samples;
-
+        return sample(size, 1.0);
     }
 
     public Double[][] sample(int size, double scale){
+        update();
         Double[][] samples = new Double[size][];
-        try{
-            for(int i =0; i < samples.length;i++){
-                double[] sample = nextScaledMultivariateNormal(mean,scale);
-                Double[] sampleVals = new Double[sample.length];
-                for(int j = 0; j < sampleVals.length;j++){
-                    sampleVals[j] = sample[j];
-                }
-                samples[i] = sampleVals;
+        double[] sample = new double[dim];
+        for(int i =0; i < samples.length;i++){
+            nextScaledMultivariateNormal(means[meanIndex], scale, sample);
+            Double[] sampleVals = new Double[dim];
+            for(int j = 0; j < sampleVals.length;j++){
+                sampleVals[j] = sample[j];
             }
-        }catch(Exception e){
-            throw new RuntimeException(e);
-
+            samples[i] = sampleVals;
         }
         return samples;
 
@@ -195,21 +238,48 @@ public class MultivariateNormal extends ParametricDistribution implements Multiv
     }
 
     public double[] nextMultivariateNormal() {
-        return nextMultivariateNormalCholesky(mean, cholesky, 1.0);
+        update();
+        return nextMultivariateNormal(means[meanIndex]);
     }
 
     public double[] nextMultivariateNormal(double[] x) {
-        return nextMultivariateNormalCholesky(x, cholesky, 1.0);
+        double[] result = new double[dim];
+        nextScaledMultivariateNormal(x, 1.0, result);
+        return result;
     }
 
     // Scale lives in variance-space
     public double[] nextScaledMultivariateNormal(double[] mean, double scale) {
-        return nextMultivariateNormalCholesky(mean, cholesky, Math.sqrt(scale));
+        double[] result = new double[dim];
+        nextScaledMultivariateNormal(mean, scale, result);
+        return result;
     }
 
+    /*
+     * Draws mean + sqrt(scale) * L^-T epsilon, where L is the Cholesky factor of the precision,
+     * so that the variance is scale times the inverse of the precision.
+     */
     // Scale lives in variance-space
     public void nextScaledMultivariateNormal(double[] mean, double scale, double[] result) {
-        nextMultivariateNormalCholesky(mean, cholesky, Math.sqrt(scale), result);
+        update();
+        if(logDets[factorIndex] == Double.NEGATIVE_INFINITY){
+            throw new RuntimeException("The precision matrix is not positive definite.");
+        }
+        double[] cholesky = choleskys[factorIndex];
+        double sqrtScale = Math.sqrt(scale);
+        for (int i = 0; i < dim; i++)
+            result[i] = Randomizer.nextGaussian() * sqrtScale;
+
+        // Solve L^T y = epsilon by back substitution, in place.
+        for (int i = dim - 1; i >= 0; i--) {
+            double sum = result[i];
+            for (int k = i + 1; k < dim; k++) {
+                sum -= cholesky[k * dim + i] * result[k];
+            }
+            result[i] = sum / cholesky[i * dim + i];
+        }
+        for (int i = 0; i < dim; i++)
+            result[i] += mean[i];
     }
 
 
@@ -223,11 +293,26 @@ public class MultivariateNormal extends ParametricDistribution implements Multiv
 
 
     public double logPdf(double[] x, double scale){
-        return  logPdf(x, mean, precision, logDet, scale);
+        update();
+        double logDet = logDets[factorIndex];
+        if (logDet == Double.NEGATIVE_INFINITY)
+            return logDet;
+
+        double[] mean = means[meanIndex];
+        double[] precision = precisions[factorIndex];
+        double SSE = 0;
+        for(int i = 0; i < dim; i++){
+            double tmp = 0;
+            for(int j = 0; j < dim; j++){
+                tmp += precision[i * dim + j] * (x[j] - mean[j]);
+            }
+            SSE += tmp * (x[i] - mean[i]);
+        }
+        return dim * logNormalize + 0.5 * (logDet - dim * Math.log(scale) - SSE / scale);
 
     }
     public double logPdf(double[] x) {
-        return logPdf(x, mean, precision, logDet, 1.0);
+        return logPdf(x, 1.0);
     }
 
     public static double logPdf(double[] x, double[] mean, double[][] precision,
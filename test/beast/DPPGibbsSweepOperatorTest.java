@@ -0,0 +1,248 @@
+package beast;
+
+import beast.core.State;
+import beast.core.parameter.ChangeType;
+import beast.core.parameter.DPPointer;
+import beast.core.parameter.DPValuable;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.ParameterList;
+import beast.core.parameter.QuietRealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.likelihood.DPTreeLikelihood;
+import beast.evolution.likelihood.TempTreeLikelihood;
+import beast.evolution.operators.DPPGibbsSweepOperator;
+import beast.evolution.sitemodel.DPRateSiteModel;
+import beast.evolution.sitemodel.QuietSiteModel;
+import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class DPPGibbsSweepOperatorTest extends TestCase {
+    private static final int SITE_COUNT = 6;
+    private static final double[] RATES = {0.5, 1.0, 2.0};
+
+    private ParameterList rateList;
+    private DPPointer ratePointers;
+    private DPTreeLikelihood dpTreeLik;
+    private TempTreeLikelihood tempLik;
+    private State state;
+    private int sample = 0;
+
+    /*
+     * A rate partitioning of six sites into three clusters of two sites.
+     */
+    private void setup() throws Exception{
+        Randomizer.setSeed(127);
+        Alignment data = TempTreeLikelihoodTest.getAlignment(5, SITE_COUNT);
+        Tree tree = TempTreeLikelihoodTest.getCaterpillarTree(data, 5, 0.1);
+
+        rateList = new ParameterList();
+        ratePointers = new DPPointer();
+        Object[] pointerInputs = new Object[2 * RATES.length + 2];
+        for(int i = 0; i < RATES.length; i++){
+            QuietRealParameter rate = new QuietRealParameter(new Double[]{RATES[i]});
+            rateList.setInputValue("parameter", rate);
+            pointerInputs[2 * i] = "uniqueParameter";
+            pointerInputs[2 * i + 1] = rate;
+        }
+        rateList.initAndValidate();
+        pointerInputs[2 * RATES.length] = "initialAssignment";
+        pointerInputs[2 * RATES.length + 1] = new IntegerParameter(new Integer[]{0, 1, 2, 0, 1, 2});
+        ratePointers.initByName(pointerInputs);
+
+        DPValuable dpVal = new DPValuable();
+        dpVal.initByName(
+                "paramList", rateList,
+                "pointers", ratePointers
+        );
+        DPRateSiteModel dpSiteModel = new DPRateSiteModel();
+        dpSiteModel.initByName(
+                "ratesList", rateList,
+                "ratesPointers", ratePointers,
+                "substModel", TempTreeLikelihoodTest.getNtdBMA()
+        );
+        dpTreeLik = new DPTreeLikelihood();
+        dpTreeLik.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", dpSiteModel,
+                "branchRateModel", new StrictClockModel(),
+                "dpVal", dpVal
+        );
+
+        QuietSiteModel siteModel = new QuietSiteModel();
+        siteModel.initByName(
+                "substModel", TempTreeLikelihoodTest.getNtdBMA(),
+                "mutationRate", new QuietRealParameter(new Double[]{1.0})
+        );
+        tempLik = new TempTreeLikelihood();
+        tempLik.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "branchRateModel", new StrictClockModel()
+        );
+
+        state = new State();
+        state.initByName(
+                "stateNode", ratePointers,
+                "stateNode", rateList
+        );
+        state.initialise();
+        state.setPosterior(dpTreeLik);
+        dpTreeLik.calculateLogP();
+    }
+
+    private DPPGibbsSweepOperator getOperator(int blockSize) throws Exception{
+        DPPGibbsSweepOperator operator = new DPPGibbsSweepOperator();
+        operator.initByName(
+                "ratePointers", ratePointers,
+                "rateList", rateList,
+                "tempLikelihood", tempLik,
+                "dpTreeLik", dpTreeLik,
+                "blockSize", blockSize,
+                "weight", 1.0
+        );
+        return operator;
+    }
+
+    /*
+     * The first half of a step of the chain, up to the proposal.
+     */
+    private void propose(DPPGibbsSweepOperator operator){
+        state.store(sample++);
+        state.storeCalculationNodes();
+        operator.proposal();
+    }
+
+    /*
+     * The second half of a step of the chain, from the calculation of the posterior.
+     */
+    private void finishStep(boolean accept){
+        state.checkCalculationNodesDirtiness();
+        dpTreeLik.calculateLogP();
+        if(accept){
+            state.acceptCalculationNodes();
+        }else{
+            state.restore();
+            state.restoreCalculationNodes();
+        }
+        state.setEverythingDirty(false);
+    }
+
+    private int[] getAssignment(){
+        int[] assignment = new int[SITE_COUNT];
+        for(int i = 0; i < SITE_COUNT; i++){
+            assignment[i] = ratePointers.indexInList(i, rateList);
+        }
+        return assignment;
+    }
+
+    private void assertConsistent(){
+        assertEquals(RATES.length, rateList.getDimension());
+        int siteCount = 0;
+        for(int i = 0; i < rateList.getDimension(); i++){
+            QuietRealParameter rate = rateList.getParameter(i);
+            int[] sites = ratePointers.getClusterSites(rate);
+            assertEquals(sites.length, ratePointers.getClusterSize(rate));
+            assertTrue(sites.length > 0);
+            for(int site : sites){
+                assertSame(rate, ratePointers.getParameter(site));
+                assertEquals(i, ratePointers.indexInList(site, rateList));
+            }
+            siteCount += sites.length;
+        }
+        assertEquals(SITE_COUNT, siteCount);
+    }
+
+    /*
+     * Over accepted and rejected sweeps, the pointers and the list agree and no cluster is emptied.
+     */
+    public void testPointersAndListConsistent() throws Exception{
+        setup();
+        DPPGibbsSweepOperator operator = getOperator(0);
+        for(int i = 0; i < 200; i++){
+            int[] storedAssignment = getAssignment();
+            propose(operator);
+            assertConsistent();
+            boolean accept = i % 2 == 0;
+            finishStep(accept);
+            assertConsistent();
+            if(!accept){
+                assertTrue(Arrays.equals(storedAssignment, getAssignment()));
+            }
+        }
+    }
+
+    /*
+     * All the sites moved by a sweep are reported in one change of the pointers.
+     */
+    public void testSingleChangeReported() throws Exception{
+        setup();
+        DPPGibbsSweepOperator operator = getOperator(0);
+        int movedSweepCount = 0;
+        for(int i = 0; i < 50; i++){
+            int[] storedAssignment = getAssignment();
+            propose(operator);
+            int[] assignment = getAssignment();
+            int movedCount = 0;
+            for(int j = 0; j < SITE_COUNT; j++){
+                if(assignment[j] != storedAssignment[j]){
+                    movedCount++;
+                }
+            }
+            if(movedCount > 0){
+                movedSweepCount++;
+                assertEquals(ChangeType.MULTIPLE_POINTERS_CHANGED, ratePointers.getChangeType());
+                int[] dirtySites = ratePointers.getLastDirtySites();
+                assertEquals(movedCount, dirtySites.length);
+                for(int site : dirtySites){
+                    assertTrue(assignment[site] != storedAssignment[site]);
+                }
+            }
+            finishStep(false);
+        }
+        assertTrue(movedSweepCount > 0);
+    }
+
+    /*
+     * Each site is reassigned with the probabilities of its full conditional,
+     * the size of each cluster without the site times the likelihood of the site under the cluster.
+     */
+    public void testFullConditionalFrequencies() throws Exception{
+        setup();
+        DPPGibbsSweepOperator operator = getOperator(1);
+        int[] assignment = getAssignment();
+        double[][] fullConditionals = new double[SITE_COUNT][RATES.length];
+        for(int i = 0; i < SITE_COUNT; i++){
+            double sum = 0.0;
+            for(int j = 0; j < RATES.length; j++){
+                int clusterSize = ratePointers.getClusterSize(rateList.getParameter(j)) - (assignment[i] == j ? 1 : 0);
+                fullConditionals[i][j] = clusterSize * Math.exp(tempLik.calculateLogP(rateList.getParameter(j), i));
+                sum += fullConditionals[i][j];
+            }
+            for(int j = 0; j < RATES.length; j++){
+                fullConditionals[i][j] /= sum;
+            }
+        }
+
+        // Every sweep moves one site and is rejected, so each site is always drawn from the same state.
+        int drawCount = 5000;
+        int[][] counts = new int[SITE_COUNT][RATES.length];
+        for(int i = 0; i < drawCount * SITE_COUNT; i++){
+            int site = i % SITE_COUNT;
+            propose(operator);
+            counts[site][ratePointers.indexInList(site, rateList)]++;
+            finishStep(false);
+        }
+        for(int i = 0; i < SITE_COUNT; i++){
+            for(int j = 0; j < RATES.length; j++){
+                assertEquals("site " + i + ", cluster " + j,
+                        fullConditionals[i][j], (double) counts[i][j] / drawCount, 0.025);
+            }
+        }
+    }
+}
@@ -87,6 +87,226 @@ public class DPPointerTest extends TestCase {
 
 
 
+    public void testClusterMembership(){
+        test0.setup();
+        DPPointer pointer = test0.getDPPointer();
+        ParameterList paramList = test0.getParameterList();
+        QuietRealParameter parameter1 = paramList.getParameter(0);
+        QuietRealParameter parameter2 = paramList.getParameter(1);
+        QuietRealParameter parameter3 = paramList.getParameter(2);
+
+        assertClusterSites(pointer, parameter1, new int[]{0});
+        assertClusterSites(pointer, parameter2, new int[]{2,3});
+        assertClusterSites(pointer, parameter3, new int[]{1,4});
+
+        pointer.store();
+        pointer.point(0, parameter2);
+        assertClusterSites(pointer, parameter1, new int[]{});
+        assertClusterSites(pointer, parameter2, new int[]{0,2,3});
+
+        pointer.swapPointers(2, 4);
+        assertClusterSites(pointer, parameter2, new int[]{0,3,4});
+        assertClusterSites(pointer, parameter3, new int[]{1,2});
+        assertClusterSites(pointer.getStoredClusterSites(parameter2), new int[]{2,3});
+
+        pointer.restore();
+        assertClusterSites(pointer, parameter1, new int[]{0});
+        assertClusterSites(pointer, parameter2, new int[]{2,3});
+        assertClusterSites(pointer, parameter3, new int[]{1,4});
+
+    }
+
+    public void testStoreRestore() throws Exception{
+        test0.setup();
+        DPPointer pointer = test0.getDPPointer();
+        ParameterList paramList = test0.getParameterList();
+        QuietRealParameter parameter1 = paramList.getParameter(0);
+        QuietRealParameter parameter2 = paramList.getParameter(1);
+        QuietRealParameter parameter3 = paramList.getParameter(2);
+
+        // The list is stored when it is initialised.
+        pointer.store();
+        QuietRealParameter newVal = new QuietRealParameter(new Double[]{3.0});
+        pointer.point(1, newVal);
+        paramList.addParameter(newVal);
+        pointer.point(0, parameter2);
+        paramList.removeParameter(0);
+        paramList.setValue(1, 0, 5.0);
+        assertEquals(0, paramList.storedIndexOf(parameter1));
+        assertClusterSites(pointer.getStoredClusterSites(parameter3), new int[]{1,4});
+
+        pointer.restore();
+        paramList.restore();
+        assertEquals(3, paramList.getDimension());
+        assertTrue(paramList.getParameter(0) == parameter1);
+        assertTrue(paramList.getParameter(1) == parameter2);
+        assertTrue(paramList.getParameter(2) == parameter3);
+        assertEquals(2.0, paramList.getValue(2), 0.0);
+        assertEquals(-1, paramList.indexOf(newVal));
+        assertTrue(pointer.sameParameter(0, parameter1));
+        assertTrue(pointer.sameParameter(1, parameter3));
+        assertClusterSites(pointer, newVal, new int[]{});
+
+        // The restored state is also the stored state.
+        paramList.removeParameter(2);
+        assertEquals(2, paramList.storedIndexOf(parameter3));
+        assertEquals(-1, paramList.indexOf(parameter3));
+
+    }
+
+    public void testLogCountFactorialSum(){
+        test0.setup();
+        DPPointer pointer = test0.getDPPointer();
+        ParameterList paramList = test0.getParameterList();
+        QuietRealParameter parameter2 = paramList.getParameter(1);
+
+        assertEquals(3, pointer.getClusterCount());
+        assertEquals(0.0, pointer.getLogCountFactorialSum(), 1e-12);
+
+        pointer.store();
+        pointer.point(0, parameter2);
+        assertEquals(2, pointer.getClusterCount());
+        assertEquals(Math.log(2.0), pointer.getLogCountFactorialSum(), 1e-12);
+
+        pointer.swapPointers(2, 4);
+        assertEquals(Math.log(2.0), pointer.getLogCountFactorialSum(), 1e-12);
+
+        pointer.restore();
+        assertEquals(3, pointer.getClusterCount());
+        assertEquals(0.0, pointer.getLogCountFactorialSum(), 0.0);
+    }
+
+    /*
+     * The running sum stays close to the sum calculated from the cluster sizes over more moves
+     * than it takes for the sum to be calculated again.
+     */
+    public void testLogCountFactorialSumDrift() throws Exception{
+        int siteCount = 40;
+        QuietRealParameter[] parameters = new QuietRealParameter[5];
+        Integer[] assignment = new Integer[siteCount];
+        for(int i = 0; i < parameters.length; i++){
+            parameters[i] = new QuietRealParameter(new Double[]{(double)i});
+        }
+        for(int i = 0; i < siteCount; i++){
+            assignment[i] = i % parameters.length;
+        }
+        DPPointer pointer = new DPPointer();
+        pointer.initByName(
+                "uniqueParameter", parameters[0],
+                "uniqueParameter", parameters[1],
+                "uniqueParameter", parameters[2],
+                "uniqueParameter", parameters[3],
+                "uniqueParameter", parameters[4],
+                "initialAssignment", new IntegerParameter(assignment)
+        );
+
+        java.util.Random random = new java.util.Random(127);
+        for(int i = 1; i <= DPPointer.MAX_UPDATE_COUNT + DPPointer.MAX_UPDATE_COUNT / 2; i++){
+            pointer.point(random.nextInt(siteCount), parameters[random.nextInt(parameters.length)]);
+            if(i % 10000 == 0){
+                assertEquals(calculateLogCountFactorialSum(pointer, parameters), pointer.getLogCountFactorialSum(), 1e-9);
+            }
+        }
+        assertEquals(calculateLogCountFactorialSum(pointer, parameters), pointer.getLogCountFactorialSum(), 1e-9);
+    }
+
+    /*
+     * The members of the clusters, now and at the last store, are those found by going through the sites,
+     * in ascending order whatever proposals were rejected before.
+     */
+    public void testClusterSitesAfterRejections() throws Exception{
+        int siteCount = 30;
+        QuietRealParameter[] parameters = new QuietRealParameter[4];
+        Integer[] assignment = new Integer[siteCount];
+        for(int i = 0; i < parameters.length; i++){
+            parameters[i] = new QuietRealParameter(new Double[]{(double)i});
+        }
+        for(int i = 0; i < siteCount; i++){
+            assignment[i] = i % parameters.length;
+        }
+        DPPointer pointer = new DPPointer();
+        pointer.initByName(
+                "uniqueParameter", parameters[0],
+                "uniqueParameter", parameters[1],
+                "uniqueParameter", parameters[2],
+                "uniqueParameter", parameters[3],
+                "initialAssignment", new IntegerParameter(assignment)
+        );
+
+        QuietRealParameter[] storedPointers = new QuietRealParameter[siteCount];
+        java.util.Random random = new java.util.Random(127);
+        for(int step = 0; step < 2000; step++){
+            pointer.store();
+            for(int i = 0; i < siteCount; i++){
+                storedPointers[i] = pointer.getParameter(i);
+            }
+            // Mostly a few changes, sometimes more than there are sites
+            int changeCount = step % 100 == 0 ? 2 * siteCount : 1 + random.nextInt(5);
+            for(int k = 0; k < changeCount; k++){
+                if(random.nextBoolean()){
+                    pointer.point(random.nextInt(siteCount), parameters[random.nextInt(parameters.length)]);
+                }else{
+                    pointer.swapPointers(random.nextInt(siteCount), random.nextInt(siteCount));
+                }
+            }
+            for(QuietRealParameter parameter: parameters){
+                assertClusterSites(pointer.getStoredClusterSites(parameter), collectSites(storedPointers, parameter));
+            }
+            if(random.nextBoolean()){
+                pointer.restore();
+            }
+            QuietRealParameter[] pointers = new QuietRealParameter[siteCount];
+            for(int i = 0; i < siteCount; i++){
+                pointers[i] = pointer.getParameter(i);
+            }
+            for(QuietRealParameter parameter: parameters){
+                assertClusterSites(pointer, parameter, collectSites(pointers, parameter));
+            }
+        }
+    }
+
+    private int[] collectSites(QuietRealParameter[] pointers, QuietRealParameter parameter){
+        int count = 0;
+        for(QuietRealParameter pointer: pointers){
+            if(pointer == parameter){
+                count++;
+            }
+        }
+        int[] sites = new int[count];
+        count = 0;
+        for(int i = 0; i < pointers.length; i++){
+            if(pointers[i] == parameter){
+                sites[count++] = i;
+            }
+        }
+        return sites;
+    }
+
+    private double calculateLogCountFactorialSum(DPPointer pointer, QuietRealParameter[] parameters){
+        double sum = 0.0;
+        for(QuietRealParameter parameter: parameters){
+            for(int k = 1; k < pointer.getClusterSize(parameter); k++){
+                sum += Math.log(k);
+            }
+        }
+        return sum;
+    }
+
+    private void assertClusterSites(DPPointer pointer, QuietRealParameter parameter, int[] expectedSites){
+        assertEquals(expectedSites.length, pointer.getClusterSize(parameter));
+        assertClusterSites(pointer.getClusterSites(parameter), expectedSites);
+        for(int site: expectedSites){
+            assertTrue(pointer.sameParameter(site, parameter));
+        }
+    }
+
+    private void assertClusterSites(int[] sites, int[] expectedSites){
+        assertEquals(expectedSites.length, sites.length);
+        for(int i = 0; i < sites.length; i++){
+            assertEquals(expectedSites[i], sites[i]);
+        }
+    }
+
     public void operationEx1(DPPointer pointer,ParameterList paramList){
         try{
 
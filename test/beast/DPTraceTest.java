@@ -0,0 +1,174 @@
+package beast;
+
+import beast.core.util.DPTraceReader;
+import beast.core.util.DPTraceWriter;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class DPTraceTest extends TestCase {
+    private static final int SAMPLE_COUNT = 250;
+    private static final int SITE_COUNT = 40;
+
+    private int[][][] assignments = new int[SAMPLE_COUNT][][];
+    private int[][][] parameterIDs = new int[SAMPLE_COUNT][][];
+    private double[][][][] parameterValues = new double[SAMPLE_COUNT][][][];
+
+    private void generateSamples(){
+        Random random = new Random(127);
+        int[] assignment = new int[SITE_COUNT];
+        int[] ids = new int[]{0, 1, 2};
+        double[][] values = new double[][]{{0.5, 1.5}, {1.0, 2.0}, {-1.0, 3.0}};
+        int nextID = 3;
+
+        for(int s = 0; s < SAMPLE_COUNT; s++){
+            // Move a few sites, sometimes all of them
+            int moveCount = s % 50 == 7 ? SITE_COUNT : random.nextInt(3);
+            for(int m = 0; m < moveCount; m++){
+                assignment[random.nextInt(SITE_COUNT)] = ids[random.nextInt(ids.length)];
+            }
+            // Change a value, and sometimes replace a cluster
+            values[random.nextInt(values.length)][random.nextInt(2)] = random.nextGaussian();
+            if(s % 20 == 10){
+                int k = random.nextInt(ids.length);
+                for(int j = 0; j < SITE_COUNT; j++){
+                    if(assignment[j] == ids[k]){
+                        assignment[j] = nextID;
+                    }
+                }
+                ids[k] = nextID++;
+            }
+
+            assignments[s] = new int[][]{assignment.clone()};
+            parameterIDs[s] = new int[][]{ids.clone()};
+            parameterValues[s] = new double[][][]{new double[][]{values[0].clone(), values[1].clone(), values[2].clone()}};
+        }
+    }
+
+    private DPTraceWriter createWriter(File file, int blockSize, boolean append) throws Exception{
+        return new DPTraceWriter(file.getPath(),
+                new String[]{"pointers"}, new int[]{SITE_COUNT}, new int[]{0},
+                new String[]{"paramList"}, blockSize, append);
+    }
+
+    private void writeSamples(DPTraceWriter writer, int start, int end) throws Exception{
+        for(int s = start; s < end; s++){
+            writer.writeSample(s * 1000L, assignments[s], parameterIDs[s], parameterValues[s]);
+        }
+    }
+
+    private File writeTrace(int blockSize) throws Exception{
+        generateSamples();
+        File file = File.createTempFile("dptrace", ".bin");
+        file.deleteOnExit();
+        DPTraceWriter writer = createWriter(file, blockSize, false);
+        writeSamples(writer, 0, SAMPLE_COUNT);
+        writer.close();
+        return file;
+    }
+
+    private void assertSample(DPTraceReader reader, int s){
+        assertEquals(s * 1000L, reader.getSampleNumber());
+        int[] assignment = reader.getAssignment(0);
+        for(int j = 0; j < SITE_COUNT; j++){
+            assertEquals(assignments[s][0][j], assignment[j]);
+        }
+        int[] ids = reader.getParameterIDs(0);
+        assertEquals(parameterIDs[s][0].length, ids.length);
+        for(int k = 0; k < ids.length; k++){
+            assertEquals(parameterIDs[s][0][k], ids[k]);
+            double[] values = reader.getParameterValues(0, ids[k]);
+            assertEquals(2, values.length);
+            assertEquals(parameterValues[s][0][k][0], values[0], 0.0);
+            assertEquals(parameterValues[s][0][k][1], values[1], 0.0);
+        }
+    }
+
+    public void testReadAll() throws Exception{
+        DPTraceReader reader = new DPTraceReader(writeTrace(16).getPath());
+        assertEquals(SAMPLE_COUNT, reader.getSampleCount());
+        assertEquals("pointers", reader.getPointerName(0));
+        assertEquals(SITE_COUNT, reader.getSiteCount(0));
+        assertEquals(0, reader.getPointerListIndex(0));
+        assertEquals("paramList", reader.getListName(0));
+        for(int s = 0; s < SAMPLE_COUNT; s++){
+            assertTrue(reader.next());
+            assertSample(reader, s);
+        }
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    public void testSeek() throws Exception{
+        DPTraceReader reader = new DPTraceReader(writeTrace(16).getPath());
+
+        assertTrue(reader.seek(100000));
+        assertTrue(reader.next());
+        assertSample(reader, 100);
+
+        // Not a sample number, the next sample is returned
+        assertTrue(reader.seek(37500));
+        assertTrue(reader.next());
+        assertSample(reader, 38);
+        assertTrue(reader.next());
+        assertSample(reader, 39);
+
+        // Backwards and within the first block
+        assertTrue(reader.seek(3000));
+        assertTrue(reader.next());
+        assertSample(reader, 3);
+
+        assertTrue(reader.seek((SAMPLE_COUNT - 1) * 1000L));
+        assertTrue(reader.next());
+        assertSample(reader, SAMPLE_COUNT - 1);
+        assertFalse(reader.next());
+
+        assertFalse(reader.seek(SAMPLE_COUNT * 1000L));
+        reader.close();
+    }
+    /*
+     * A run that stopped in the middle of writing a block is resumed from the last complete block.
+     */
+    public void testResume() throws Exception{
+        generateSamples();
+        File file = File.createTempFile("dptrace", ".bin");
+        file.deleteOnExit();
+        DPTraceWriter writer = createWriter(file, 16, false);
+        writeSamples(writer, 0, 200);
+        writer.close();
+        // Cut the last block, which holds the samples from 192 on
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        writer = createWriter(file, 16, true);
+        writeSamples(writer, 192, SAMPLE_COUNT);
+        writer.close();
+
+        DPTraceReader reader = new DPTraceReader(file.getPath());
+        assertEquals(SAMPLE_COUNT, reader.getSampleCount());
+        assertEquals(file.length(), reader.getDataEnd());
+        for(int s = 0; s < SAMPLE_COUNT; s++){
+            assertTrue(reader.next());
+            assertSample(reader, s);
+        }
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    public void testResumeOtherTrace() throws Exception{
+        File file = writeTrace(16);
+        long length = file.length();
+        try{
+            new DPTraceWriter(file.getPath(),
+                    new String[]{"pointers"}, new int[]{SITE_COUNT + 1}, new int[]{0},
+                    new String[]{"paramList"}, 16, true);
+            fail("A trace of other pointers was resumed.");
+        }catch(RuntimeException e){
+            // expected
+        }
+        assertEquals(length, file.length());
+    }
+}
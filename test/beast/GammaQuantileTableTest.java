@@ -0,0 +1,78 @@
+package beast;
+
+import beast.evolution.sitemodel.GammaCategoryRateCache;
+import beast.evolution.sitemodel.GammaQuantileTable;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class GammaQuantileTableTest extends TestCase {
+    // The largest relative error of an interpolated quantile, the end intervals of the table are interpolated linearly.
+    private static final double MAX_RELATIVE_ERROR = 1e-3;
+    // The inverse cumulative probability of the gamma distribution is only solved to about 1e-9.
+    private static final double ABSOLUTE_ACCURACY = 1e-8;
+
+    private void assertInterpolationError(int categoryCount, boolean useBeast1StyleGamma) throws Exception{
+        GammaQuantileTable table = GammaQuantileTable.getTable(categoryCount, useBeast1StyleGamma);
+        assertEquals(categoryCount, table.getCategoryCount());
+        assertEquals(useBeast1StyleGamma, table.useBeast1StyleGamma());
+
+        Random random = new Random(127);
+        double minLogShape = Math.log(GammaQuantileTable.MIN_SHAPE);
+        double logShapeRange = Math.log(GammaQuantileTable.MAX_SHAPE) - minLogShape;
+        double[] interpolated = new double[categoryCount];
+        for(int k = 0; k < 500; k++){
+            // Include the ends of the range and the intervals next to them
+            double shape;
+            if(k == 0){
+                shape = GammaQuantileTable.MIN_SHAPE;
+            }else if(k == 1){
+                shape = GammaQuantileTable.MAX_SHAPE;
+            }else if(k < 50){
+                shape = Math.exp(minLogShape + random.nextDouble() * logShapeRange / (GammaQuantileTable.GRID_SIZE - 1));
+            }else{
+                shape = Math.exp(minLogShape + random.nextDouble() * logShapeRange);
+            }
+            table.getQuantiles(shape, interpolated);
+            double[] expected = GammaCategoryRateCache.calculateQuantiles(shape, categoryCount, useBeast1StyleGamma);
+            for(int j = 0; j < categoryCount; j++){
+                assertEquals("shape " + shape + ", category " + j,
+                        expected[j], interpolated[j], MAX_RELATIVE_ERROR * expected[j] + ABSOLUTE_ACCURACY);
+            }
+        }
+    }
+
+    public void testBeast1StyleGamma() throws Exception{
+        assertInterpolationError(4, true);
+        assertInterpolationError(8, true);
+    }
+
+    public void testGamma() throws Exception{
+        assertInterpolationError(4, false);
+        assertInterpolationError(8, false);
+    }
+
+    public void testTablesOfEachStyle(){
+        assertNotSame(GammaQuantileTable.getTable(4, true), GammaQuantileTable.getTable(4, false));
+        assertSame(GammaQuantileTable.getTable(4, false), GammaQuantileTable.getTable(4, false));
+    }
+
+    /*
+     * When the cache is full, the quantiles used least recently are dropped.
+     */
+    public void testCacheEviction() throws Exception{
+        GammaCategoryRateCache cache = new GammaCategoryRateCache(2);
+        double[] quantiles = cache.getQuantiles(0.5, 4, false);
+        cache.getQuantiles(1.0, 4, false);
+        assertSame(quantiles, cache.getQuantiles(0.5, 4, false));
+        cache.getQuantiles(2.0, 4, false);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+
+        assertSame(quantiles, cache.getQuantiles(0.5, 4, false));
+        cache.getQuantiles(1.0, 4, false);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+    }
+}
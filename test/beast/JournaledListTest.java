@@ -0,0 +1,185 @@
+package beast;
+
+import beast.core.util.JournaledList;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+public class JournaledListTest extends TestCase {
+
+    private static List<String> getElements(int count){
+        List<String> elements = new ArrayList<String>();
+        for(int i = 0; i < count; i++){
+            elements.add(new String("e" + i));
+        }
+        return elements;
+    }
+
+    /*
+     * Makes a random add, insert, remove or set to both lists.
+     */
+    private static void edit(List<String> list, List<String> expected, Random random, int step){
+        int change = expected.size() == 0 ? 0 : random.nextInt(4);
+        String element = new String("n" + step);
+        if(change == 0){
+            list.add(element);
+            expected.add(element);
+        }else if(change == 1){
+            int index = random.nextInt(expected.size() + 1);
+            list.add(index, element);
+            expected.add(index, element);
+        }else if(change == 2){
+            int index = random.nextInt(expected.size());
+            assertSame(expected.remove(index), list.remove(index));
+        }else{
+            int index = random.nextInt(expected.size());
+            assertSame(expected.set(index, element), list.set(index, element));
+        }
+    }
+
+    private static void assertSameElements(List<String> expected, List<String> list){
+        assertEquals(expected.size(), list.size());
+        for(int i = 0; i < expected.size(); i++){
+            assertSame("index " + i, expected.get(i), list.get(i));
+        }
+    }
+
+    public void testAddRemoveSet(){
+        List<String> elements = getElements(4);
+        JournaledList<String> list = new JournaledList<String>(elements);
+        assertFalse(list.hasChanged());
+
+        String a = new String("a");
+        String b = new String("b");
+        list.add(a);
+        list.add(1, b);
+        assertSame(elements.get(2), list.remove(3));
+        assertTrue(list.remove(elements.get(0)));
+        assertFalse(list.remove(new String("e0")));
+        assertSame(elements.get(3), list.set(2, elements.get(0)));
+        assertTrue(list.hasChanged());
+        assertSameElements(Arrays.asList(b, elements.get(1), elements.get(0), a), list);
+        assertSameElements(elements, list.getStoredList());
+
+        list.restore();
+        assertFalse(list.hasChanged());
+        assertSameElements(elements, list);
+
+        list.add(a);
+        list.remove(0);
+        list.store();
+        assertFalse(list.hasChanged());
+        List<String> expected = Arrays.asList(elements.get(1), elements.get(2), elements.get(3), a);
+        assertSameElements(expected, list);
+        assertSameElements(expected, list.getStoredList());
+        list.restore();
+        assertSameElements(expected, list);
+    }
+
+    /*
+     * The journal starts small and grows with the number of changes, until it is replaced by copying the whole list.
+     */
+    public void testJournalGrowth(){
+        for(int changeCount : new int[]{15, 16, 17, 100, JournaledList.MAX_JOURNAL_SIZE - 1, JournaledList.MAX_JOURNAL_SIZE + 10}){
+            List<String> elements = getElements(20);
+            JournaledList<String> list = new JournaledList<String>(elements);
+            List<String> expected = new ArrayList<String>(elements);
+            Random random = new Random(changeCount);
+            for(int i = 0; i < changeCount; i++){
+                list.add(new String("n" + i));
+            }
+            assertTrue(list.hasChanged());
+            list.restore();
+            assertSameElements(expected, list);
+
+            for(int i = 0; i < changeCount; i++){
+                edit(list, expected, random, i);
+            }
+            assertSameElements(expected, list);
+            list.store();
+            assertSameElements(expected, list.getStoredList());
+        }
+    }
+
+    /*
+     * Restoring undoes any mix of changes, including the bulk changes that are not journaled.
+     */
+    public void testMixedEditsRestore(){
+        Random random = new Random(127);
+        List<String> elements = getElements(10);
+        JournaledList<String> list = new JournaledList<String>(elements);
+        List<String> stored = new ArrayList<String>(elements);
+        for(int k = 0; k < 200; k++){
+            List<String> expected = new ArrayList<String>(stored);
+            int editCount = random.nextInt(10);
+            for(int i = 0; i < editCount; i++){
+                edit(list, expected, random, i);
+            }
+            if(random.nextInt(5) == 0){
+                List<String> added = getElements(3);
+                list.addAll(added);
+                expected.addAll(added);
+            }
+            if(random.nextInt(10) == 0 && expected.size() > 0){
+                String element = expected.get(0);
+                list.removeAll(Arrays.asList(element));
+                expected.removeAll(Arrays.asList(element));
+            }
+            assertSameElements(expected, list);
+            assertSameElements(stored, list.getStoredList());
+
+            if(random.nextBoolean()){
+                list.store();
+                stored = expected;
+            }else{
+                list.restore();
+            }
+            assertFalse(list.hasChanged());
+            assertSameElements(stored, list);
+            assertSameElements(stored, list.getStoredList());
+        }
+    }
+
+    private static void assertElements(List<String> expected, List<String> elements){
+        assertEquals(expected.size(), elements.size());
+        assertEquals(new HashSet<String>(expected), new HashSet<String>(elements));
+    }
+
+    /*
+     * Only the elements in one of the list and the stored list are reported,
+     * whether the changes are journaled or the whole list is compared.
+     */
+    public void testChangedElements(){
+        for(boolean overflow : new boolean[]{false, true}){
+            List<String> elements = getElements(5);
+            JournaledList<String> list = new JournaledList<String>(elements);
+            String a = new String("a");
+            String b = new String("b");
+            String c = new String("c");
+
+            list.add(a);
+            list.remove(elements.get(1));
+            list.set(2, b);
+            // Added and removed again
+            list.add(0, c);
+            list.remove(0);
+            // Removed and added again
+            list.remove(elements.get(0));
+            list.add(elements.get(0));
+            if(overflow){
+                list.addAll(new ArrayList<String>());
+            }
+
+            assertElements(Arrays.asList(a, b), list.getAddedElements());
+            assertElements(Arrays.asList(elements.get(1), elements.get(3)), list.getRemovedElements());
+
+            list.store();
+            assertEquals(0, list.getAddedElements().size());
+            assertEquals(0, list.getRemovedElements().size());
+        }
+    }
+}
@@ -3,6 +3,8 @@ package beast;
 import beast.core.parameter.RealParameter;
 import beast.math.distributions.MultivariateNormal;
 import beast.math.distributions.Normal;
+import beast.math.matrixAlgebra1.SymmetricMatrix;
+import beast.util.Randomizer;
 import junit.framework.TestCase;
 
 /**
@@ -178,4 +180,95 @@ public class MultivariateNormalTest extends TestCase {
         }
     }
 
+    private MultivariateNormal createDistribution(Instance test) throws Exception{
+        RealParameter mean = new RealParameter();
+        mean.initByName(
+                "value",test.getMean(),
+                "lower",Double.NEGATIVE_INFINITY,
+                "upper",Double.POSITIVE_INFINITY);
+        MultivariateNormal multiNorm = new MultivariateNormal();
+        multiNorm.initByName(
+                "mean",mean,
+                "precision", test.getPrecision());
+        return multiNorm;
+    }
+
+    private double[] toArray(String values){
+        String[] strs = values.trim().split("\\s+");
+        double[] array = new double[strs.length];
+        for(int i = 0; i < strs.length; i++){
+            array[i] = Double.parseDouble(strs[i]);
+        }
+        return array;
+    }
+
+    /*
+     * The log densities calculated from the cached factorisation agree with those of the
+     * static logPdf, which inverts nothing and takes the determinant from the matrix itself.
+     */
+    public void testLogPdf() throws Exception{
+        double[] scales = new double[]{1.0, 0.2, 3.5};
+        for(Instance test: all){
+            MultivariateNormal multiNorm = createDistribution(test);
+            double[] mean = toArray(test.getMean());
+            double[][] precision = multiNorm.getScaleMatrix();
+            double logDet = Math.log(MultivariateNormal.calculatePrecisionMatrixDeterminate(precision));
+
+            for(String xStr: test.getX()){
+                double[] x = toArray(xStr);
+                for(double scale: scales){
+                    double expected = MultivariateNormal.logPdf(x, mean, precision, logDet, scale);
+                    assertEquals(expected, multiNorm.logPdf(x, scale), 1e-10);
+                }
+                assertEquals(MultivariateNormal.logPdf(x, mean, precision, logDet, 1.0), multiNorm.logPdf(x), 1e-10);
+            }
+        }
+    }
+
+    /*
+     * The sample mean and covariance of the draws agree with the mean and scale times the inverse of the precision.
+     */
+    public void testSampleMoments() throws Exception{
+        int sampleCount = 100000;
+        double[] scales = new double[]{1.0, 0.2};
+        for(Instance test: all){
+            MultivariateNormal multiNorm = createDistribution(test);
+            double[] mean = toArray(test.getMean());
+            double[][] variance = new SymmetricMatrix(multiNorm.getScaleMatrix()).inverse().toComponents();
+            int dim = mean.length;
+
+            for(double scale: scales){
+                Randomizer.setSeed(127);
+                Double[][] samples = multiNorm.sample(sampleCount, scale);
+                double[] sampleMean = new double[dim];
+                for(Double[] sample: samples){
+                    for(int i = 0; i < dim; i++){
+                        sampleMean[i] += sample[i];
+                    }
+                }
+                for(int i = 0; i < dim; i++){
+                    sampleMean[i] /= sampleCount;
+                }
+                double[][] sampleCovariance = new double[dim][dim];
+                for(Double[] sample: samples){
+                    for(int i = 0; i < dim; i++){
+                        for(int j = 0; j < dim; j++){
+                            sampleCovariance[i][j] += (sample[i] - sampleMean[i]) * (sample[j] - sampleMean[j]);
+                        }
+                    }
+                }
+
+                // About six standard errors of the sample moments
+                for(int i = 0; i < dim; i++){
+                    double sdI = Math.sqrt(scale * variance[i][i]);
+                    assertEquals(mean[i], sampleMean[i], 0.02 * sdI);
+                    for(int j = 0; j < dim; j++){
+                        double sdJ = Math.sqrt(scale * variance[j][j]);
+                        assertEquals(scale * variance[i][j], sampleCovariance[i][j] / (sampleCount - 1), 0.03 * sdI * sdJ);
+                    }
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,413 @@
+package beast;
+
+import beast.core.State;
+import beast.core.parameter.DPPointer;
+import beast.core.parameter.DPValuable;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.ParameterList;
+import beast.core.parameter.QuietRealParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.likelihood.DPTreeLikelihood;
+import beast.evolution.likelihood.TempWVTreeLikelihood;
+import beast.evolution.operators.NtdBMASAMSPriorOperator;
+import beast.evolution.sitemodel.DPNtdSiteModel;
+import beast.evolution.sitemodel.QuietSiteModel;
+import beast.evolution.substitutionmodel.DPNtdBMA;
+import beast.evolution.substitutionmodel.SwitchingNtdBMA;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.CategoricalDistribution;
+import beast.math.distributions.CompoundDirichletProcess;
+import beast.math.distributions.DirichletDistribution;
+import beast.math.distributions.MultivariateNormal;
+import beast.math.distributions.ParametricDistribution;
+import beast.util.Randomizer;
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.Random;
+
+public class NtdBMASAMSPriorOperatorTest extends TestCase {
+    private static final int TAXON_COUNT = 6;
+    private static final int SITE_COUNT = 30;
+    private static final String[] PARAMS = {"1.0 0.2 -0.5 -0.3 0.1", "0.5 -0.2 0.3 0.1 -0.4", "1.5 0.4 0.0 -0.6 0.3"};
+    private static final String[] MODELS = {"5.0", "3.0", "4.0"};
+    private static final String[] FREQS = {"0.25 0.25 0.25 0.25", "0.4 0.2 0.2 0.2", "0.1 0.3 0.3 0.3"};
+
+    private Alignment data;
+    private ParameterList paramList;
+    private ParameterList modelList;
+    private ParameterList freqsList;
+    private DPPointer paramPointers;
+    private DPValuable dpVal;
+    private DPTreeLikelihood dpTreeLik;
+    private TempWVTreeLikelihood tempLik;
+    private List<ParametricDistribution> baseDistrs;
+    private NtdBMASAMSPriorOperator operator;
+    private State state;
+    private int sample = 0;
+
+    private static QuietRealParameter getParameter(String value, double lower, double upper) throws Exception{
+        QuietRealParameter parameter = new QuietRealParameter();
+        parameter.initByName(
+                "value", value,
+                "lower", lower,
+                "upper", upper
+        );
+        return parameter;
+    }
+
+    private static DPPointer getPointers(ParameterList list, IntegerParameter assignment) throws Exception{
+        DPPointer pointers = new DPPointer();
+        for(int i = 0; i < list.getDimension(); i++){
+            pointers.setInputValue("uniqueParameter", list.getParameter(i));
+        }
+        pointers.setInputValue("initialAssignment", assignment);
+        pointers.initAndValidate();
+        return pointers;
+    }
+
+    private static SwitchingNtdBMA getSwitchingNtdBMA() throws Exception{
+        SwitchingNtdBMA ntdBMA = new SwitchingNtdBMA();
+        ntdBMA.initByName(
+                "logKappa", new QuietRealParameter(new Double[]{1.0}),
+                "logTN", new QuietRealParameter(new Double[]{0.2}),
+                "logAC", new QuietRealParameter(new Double[]{-0.5}),
+                "logAT", new QuietRealParameter(new Double[]{-0.3}),
+                "logGC", new QuietRealParameter(new Double[]{0.1}),
+                "modelChoose", new QuietRealParameter(new Double[]{5.0}),
+                "frequenciesParameter", new QuietRealParameter(new Double[]{0.25, 0.25, 0.25, 0.25})
+        );
+        return ntdBMA;
+    }
+
+    /*
+     * A substitution model partitioning of thirty sites into three clusters of ten sites.
+     */
+    private void setup() throws Exception{
+        data = TempTreeLikelihoodTest.getAlignment(TAXON_COUNT, SITE_COUNT);
+        Tree tree = TempTreeLikelihoodTest.getCaterpillarTree(data, TAXON_COUNT, 0.1);
+
+        paramList = new ParameterList();
+        modelList = new ParameterList();
+        freqsList = new ParameterList();
+        for(int i = 0; i < PARAMS.length; i++){
+            paramList.setInputValue("parameter", getParameter(PARAMS[i], Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+            modelList.setInputValue("parameter", getParameter(MODELS[i], 1.0, 5.0));
+            freqsList.setInputValue("parameter", getParameter(FREQS[i], 0.0, 1.0));
+        }
+        paramList.initAndValidate();
+        modelList.initAndValidate();
+        freqsList.initAndValidate();
+
+        Integer[] assignment = new Integer[SITE_COUNT];
+        for(int i = 0; i < SITE_COUNT; i++){
+            assignment[i] = i % PARAMS.length;
+        }
+        paramPointers = getPointers(paramList, new IntegerParameter(assignment));
+        DPPointer modelPointers = getPointers(modelList, new IntegerParameter(assignment));
+        DPPointer freqPointers = getPointers(freqsList, new IntegerParameter(assignment));
+
+        dpVal = new DPValuable();
+        dpVal.initByName(
+                "paramList", freqsList,
+                "pointers", freqPointers
+        );
+        DPNtdBMA dpNtdBMA = new DPNtdBMA();
+        dpNtdBMA.initByName(
+                "paramList", paramList,
+                "modelList", modelList,
+                "freqsList", freqsList,
+                "pointers", freqPointers
+        );
+        DPNtdSiteModel dpSiteModel = new DPNtdSiteModel();
+        dpSiteModel.initByName(
+                "ntdBMAList", dpNtdBMA,
+                "mu", new QuietRealParameter(new Double[]{1.0})
+        );
+        dpTreeLik = new DPTreeLikelihood();
+        dpTreeLik.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", dpSiteModel,
+                "branchRateModel", new StrictClockModel(),
+                "dpVal", dpVal
+        );
+
+        QuietSiteModel siteModel = new QuietSiteModel();
+        siteModel.initByName(
+                "substModel", getSwitchingNtdBMA(),
+                "mutationRate", new QuietRealParameter(new Double[]{1.0})
+        );
+        tempLik = new TempWVTreeLikelihood();
+        tempLik.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "branchRateModel", new StrictClockModel()
+        );
+
+        Double[] precision = new Double[25];
+        for(int i = 0; i < precision.length; i++){
+            precision[i] = i % 6 == 0 ? 1.0 : 0.0;
+        }
+        MultivariateNormal paramBaseDistr = new MultivariateNormal();
+        paramBaseDistr.initByName(
+                "mean", new RealParameter(new Double[]{0.0, 0.0, 0.0, 0.0, 0.0}),
+                "precision", new RealParameter(precision)
+        );
+        CategoricalDistribution modelBaseDistr = new CategoricalDistribution();
+        modelBaseDistr.initByName(
+                "probs", new RealParameter(new Double[]{0.2, 0.2, 0.2, 0.2, 0.2}),
+                "offset", 1.0
+        );
+        DirichletDistribution freqsBaseDistr = new DirichletDistribution();
+        freqsBaseDistr.initByName(
+                "alpha", new RealParameter(new Double[]{0.25, 0.25, 0.25, 0.25}),
+                "scale", new RealParameter(new Double[]{40.0})
+        );
+        CompoundDirichletProcess dp = new CompoundDirichletProcess();
+        dp.initByName(
+                "dpVal", dpVal,
+                "baseDistr", paramBaseDistr,
+                "baseDistr", modelBaseDistr,
+                "baseDistr", freqsBaseDistr,
+                "alpha", new RealParameter(new Double[]{0.5})
+        );
+        baseDistrs = dp.getBaseDistributions();
+
+        operator = new NtdBMASAMSPriorOperator();
+        operator.initByName(
+                "parameterPointers", paramPointers,
+                "parameterList", paramList,
+                "modelPointers", modelPointers,
+                "modelList", modelList,
+                "freqPointers", freqPointers,
+                "freqsList", freqsList,
+                "dirichletProcess", dp,
+                "tempLikelihood", tempLik,
+                "dpVal", dpVal,
+                "dpTreeLik", dpTreeLik,
+                "weight", 1.0
+        );
+
+        state = new State();
+        state.initByName(
+                "stateNode", paramPointers,
+                "stateNode", modelPointers,
+                "stateNode", freqPointers,
+                "stateNode", paramList,
+                "stateNode", modelList,
+                "stateNode", freqsList
+        );
+        state.initialise();
+        state.setPosterior(dpTreeLik);
+        dpTreeLik.calculateLogP();
+    }
+
+    /*
+     * The site log-likelihoods as they were calculated before the operator reused its arrays:
+     * the pattern weights are set from a new array and the log-likelihoods are returned in a new array.
+     */
+    private double[] getSiteLogLikelihoods(QuietRealParameter param, QuietRealParameter model, QuietRealParameter freqs,
+                                           int[] sites) throws Exception{
+        int[] weights = new int[data.getPatternCount()];
+        for(int site : sites){
+            weights[data.getPatternIndex(site)] = 1;
+        }
+        tempLik.setPatternWeights(weights);
+        return tempLik.calculateLogP(param, model, freqs, sites);
+    }
+
+    private static void scaleLikelihoods(double[] logLik1, double[] logLik2, double[] lik1, double[] lik2){
+        for(int i = 0; i < logLik1.length; i++){
+            double maxLog = Math.max(logLik1[i], logLik2[i]);
+            if(Math.exp(maxLog) < 1e-100){
+                lik1[i] = Math.exp(logLik1[i] - maxLog);
+                lik2[i] = Math.exp(logLik2[i] - maxLog);
+            }else{
+                lik1[i] = Math.exp(logLik1[i]);
+                lik2[i] = Math.exp(logLik2[i]);
+            }
+        }
+    }
+
+    private static int[] getSitesExcept(int[] sites, int site){
+        int[] otherSites = new int[sites.length - 1];
+        int k = 0;
+        for(int s : sites){
+            if(s != site){
+                otherSites[k++] = s;
+            }
+        }
+        return otherSites;
+    }
+
+    /*
+     * The log Hastings ratio of the proposal made with the given seed, with the random draws in the same order
+     * as the operator and the likelihoods calculated with new arrays on every call. The state is not changed.
+     */
+    private double getExpectedLogq(long seed) throws Exception{
+        Randomizer.setSeed(seed);
+        int index1 = Randomizer.nextInt(SITE_COUNT);
+        int index2 = index1;
+        while(index2 == index1){
+            index2 = Randomizer.nextInt(SITE_COUNT);
+        }
+        int clusterIndex1 = paramPointers.indexInList(index1, paramList);
+        int clusterIndex2 = paramPointers.indexInList(index2, paramList);
+        if(clusterIndex1 == clusterIndex2){
+            return getExpectedSplitLogq(index1, index2, clusterIndex1);
+        }
+        return getExpectedMergeLogq(index1, index2, clusterIndex1, clusterIndex2);
+    }
+
+    private double getExpectedSplitLogq(int index1, int index2, int clusterIndex) throws Exception{
+        QuietRealParameter newParam = QuietRealParameter.getSample(baseDistrs.get(0), paramList.getUpper(), paramList.getLower());
+        QuietRealParameter newModel = QuietRealParameter.getSample(baseDistrs.get(1), modelList.getUpper(), modelList.getLower());
+        QuietRealParameter newFreqs = QuietRealParameter.getSample(baseDistrs.get(2), freqsList.getUpper(), freqsList.getLower());
+
+        int[] clusterSites = getSitesExcept(getSitesExcept(dpVal.getClusterSites(clusterIndex), index1), index2);
+        Randomizer.shuffle(clusterSites);
+        double[] logLik1 = getSiteLogLikelihoods(newParam, newModel, newFreqs, clusterSites);
+        double[] logLik2 = new double[clusterSites.length];
+        for(int i = 0; i < clusterSites.length; i++){
+            logLik2[i] = dpTreeLik.getSiteLogLikelihood(clusterIndex, clusterSites[i]);
+        }
+        double[] lik1 = new double[clusterSites.length];
+        double[] lik2 = new double[clusterSites.length];
+        scaleLikelihoods(logLik1, logLik2, lik1, lik2);
+
+        double logq = 0.0;
+        int cluster1Count = 1;
+        int cluster2Count = 1;
+        for(int i = 0; i < clusterSites.length; i++){
+            double newClusterProb = cluster1Count * lik1[i] / (cluster1Count * lik1[i] + cluster2Count * lik2[i]);
+            if(Randomizer.nextDouble() < newClusterProb){
+                logq += Math.log(newClusterProb);
+                cluster1Count++;
+            }else{
+                logq += Math.log(1.0 - newClusterProb);
+                cluster2Count++;
+            }
+        }
+        logq += baseDistrs.get(0).calcLogP(newParam) + baseDistrs.get(1).calcLogP(newModel) + baseDistrs.get(2).calcLogP(newFreqs);
+        return -logq;
+    }
+
+    private double getExpectedMergeLogq(int index1, int index2, int clusterIndex1, int clusterIndex2) throws Exception{
+        int[] cluster1Sites = getSitesExcept(dpVal.getClusterSites(clusterIndex1), index1);
+        int[] cluster2Sites = getSitesExcept(dpVal.getClusterSites(clusterIndex2), index2);
+        int siteCount = cluster1Sites.length + cluster2Sites.length;
+
+        double[] cluster1SitesCluster2LogLik = getSiteLogLikelihoods(paramList.getParameter(clusterIndex2),
+                modelList.getParameter(clusterIndex2), freqsList.getParameter(clusterIndex2), cluster1Sites);
+        double[] cluster2SitesCluster1LogLik = getSiteLogLikelihoods(paramList.getParameter(clusterIndex1),
+                modelList.getParameter(clusterIndex1), freqsList.getParameter(clusterIndex1), cluster2Sites);
+        double[] logLik1 = new double[siteCount];
+        double[] logLik2 = new double[siteCount];
+        for(int i = 0; i < cluster1Sites.length; i++){
+            logLik1[i] = dpTreeLik.getSiteLogLikelihood(clusterIndex1, cluster1Sites[i]);
+            logLik2[i] = cluster1SitesCluster2LogLik[i];
+        }
+        for(int i = 0; i < cluster2Sites.length; i++){
+            logLik1[cluster1Sites.length + i] = cluster2SitesCluster1LogLik[i];
+            logLik2[cluster1Sites.length + i] = dpTreeLik.getSiteLogLikelihood(clusterIndex2, cluster2Sites[i]);
+        }
+        double[] lik1 = new double[siteCount];
+        double[] lik2 = new double[siteCount];
+        scaleLikelihoods(logLik1, logLik2, lik1, lik2);
+
+        int[] shuffle = new int[siteCount];
+        for(int i = 0; i < siteCount; i++){
+            shuffle[i] = i;
+        }
+        Randomizer.shuffle(shuffle);
+        double logq = 0.0;
+        int cluster1Count = 1;
+        int cluster2Count = 1;
+        for(int i = 0; i < siteCount; i++){
+            int j = shuffle[i];
+            double cluster1Prob = cluster1Count * lik1[j] / (cluster1Count * lik1[j] + cluster2Count * lik2[j]);
+            if(j < cluster1Sites.length){
+                logq += Math.log(cluster1Prob);
+                cluster1Count++;
+            }else{
+                logq += Math.log(1 - cluster1Prob);
+                cluster2Count++;
+            }
+        }
+        logq += baseDistrs.get(0).calcLogP(paramList.getParameter(clusterIndex1)) +
+                baseDistrs.get(1).calcLogP(modelList.getParameter(clusterIndex1)) +
+                baseDistrs.get(2).calcLogP(freqsList.getParameter(clusterIndex1));
+        return logq;
+    }
+
+    /*
+     * The site log-likelihoods written into the arrays of the caller, with the weights set incrementally,
+     * are those returned in new arrays with the weights set from a new array.
+     */
+    public void testSiteLogLikelihoods() throws Exception{
+        setup();
+        Random random = new Random(127);
+        int[] sites = new int[SITE_COUNT];
+        double[] siteLogLiks = new double[SITE_COUNT];
+        for(int k = 0; k < 50; k++){
+            int cluster = random.nextInt(PARAMS.length);
+            int siteCount = 1 + random.nextInt(SITE_COUNT);
+            for(int i = 0; i < siteCount; i++){
+                sites[i] = random.nextInt(SITE_COUNT);
+            }
+            tempLik.setupPatternWeightsFromSites(sites, siteCount);
+            tempLik.calculateLogP(paramList.getParameter(cluster), modelList.getParameter(cluster),
+                    freqsList.getParameter(cluster), sites, siteCount, siteLogLiks);
+
+            int[] expectedSites = new int[siteCount];
+            System.arraycopy(sites, 0, expectedSites, 0, siteCount);
+            double[] expected = getSiteLogLikelihoods(paramList.getParameter(cluster), modelList.getParameter(cluster),
+                    freqsList.getParameter(cluster), expectedSites);
+            for(int i = 0; i < siteCount; i++){
+                assertEquals("site " + sites[i], expected[i], siteLogLiks[i], 1e-12 * Math.abs(expected[i]));
+            }
+        }
+    }
+
+    /*
+     * With a fixed seed, the splits and merges have the log Hastings ratios of the calculation that allocates
+     * its arrays on every call, over a chain in which some of the proposals are accepted.
+     */
+    public void testSplitMergeLogq() throws Exception{
+        setup();
+        int splitCount = 0;
+        int mergeCount = 0;
+        for(int i = 0; i < 100; i++){
+            long seed = 1000 + i;
+            int clusterCount = paramList.getDimension();
+            double expected = getExpectedLogq(seed);
+
+            Randomizer.setSeed(seed);
+            state.store(sample++);
+            state.storeCalculationNodes();
+            double logq = operator.proposal();
+            assertEquals("proposal " + i, expected, logq, 1e-9 * Math.abs(expected));
+            if(paramList.getDimension() > clusterCount){
+                splitCount++;
+            }else if(paramList.getDimension() < clusterCount){
+                mergeCount++;
+            }
+
+            state.checkCalculationNodesDirtiness();
+            dpTreeLik.calculateLogP();
+            if(i % 3 == 0){
+                state.acceptCalculationNodes();
+            }else{
+                state.restore();
+                state.restoreCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+        }
+        assertTrue(splitCount > 0);
+        assertTrue(mergeCount > 0);
+    }
+}
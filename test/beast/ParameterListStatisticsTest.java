@@ -0,0 +1,80 @@
+package beast;
+
+import beast.core.parameter.ParameterList;
+import beast.core.parameter.ParameterListStatistics;
+import beast.core.parameter.QuietRealParameter;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ParameterListStatisticsTest extends TestCase {
+
+    private ParameterList createList(double[][] values) throws Exception{
+        ParameterList paramList = new ParameterList();
+        Object[] arguments = new Object[values.length * 2];
+        for(int i = 0; i < values.length; i++){
+            Double[] parameterValues = new Double[values[i].length];
+            for(int j = 0; j < values[i].length; j++){
+                parameterValues[j] = values[i][j];
+            }
+            arguments[2 * i] = "parameter";
+            arguments[2 * i + 1] = new QuietRealParameter(parameterValues);
+        }
+        paramList.initByName(arguments);
+        paramList.setID("parameterList");
+        return paramList;
+    }
+
+    public void testStoreRestore() throws Exception{
+        ParameterList paramList = createList(new double[][]{{0.0}, {1.0}, {2.0}});
+
+        // The list is stored when it is initialised.
+        assertEquals(3.0, paramList.getStatistics().getSum(0), 0.0);
+        assertEquals(5.0, paramList.getStatistics().getOuterProductSum(0, 0), 0.0);
+
+        paramList.addParameter(new QuietRealParameter(new Double[]{3.0}));
+        paramList.removeParameter(0);
+        paramList.setValue(1, 0, 5.0);
+        assertEquals(9.0, paramList.getStatistics().getSum(0), 1e-10);
+        assertEquals(35.0, paramList.getStatistics().getOuterProductSum(0, 0), 1e-10);
+
+        paramList.restore();
+        assertEquals(3.0, paramList.getStatistics().getSum(0), 0.0);
+        assertEquals(5.0, paramList.getStatistics().getOuterProductSum(0, 0), 0.0);
+    }
+
+    /*
+     * The running sums stay close to the sums over the parameters in the list over more updates
+     * than it takes for the sums to be calculated again.
+     */
+    public void testDrift() throws Exception{
+        ParameterList paramList = createList(new double[][]{{0.5, -1.0}, {1.5, 2.0}, {-2.5, 0.25}, {3.0, 1.0}});
+        Random random = new Random(127);
+        for(int i = 1; i <= ParameterListStatistics.MAX_UPDATE_COUNT + ParameterListStatistics.MAX_UPDATE_COUNT / 2; i++){
+            paramList.setValue(random.nextInt(paramList.getDimension()), random.nextInt(2), 10.0 * random.nextGaussian());
+            if(i % 10000 == 0){
+                assertStatistics(paramList);
+            }
+        }
+        assertStatistics(paramList);
+    }
+
+    private void assertStatistics(ParameterList paramList){
+        ParameterListStatistics statistics = paramList.getStatistics();
+        int dim = statistics.getDimension();
+        for(int i = 0; i < dim; i++){
+            double sum = 0.0;
+            for(int k = 0; k < paramList.getDimension(); k++){
+                sum += paramList.getParameter(k).getValue(i);
+            }
+            assertEquals(sum, statistics.getSum(i), 1e-9 * Math.max(1.0, Math.abs(sum)));
+            for(int j = 0; j < dim; j++){
+                double outerProductSum = 0.0;
+                for(int k = 0; k < paramList.getDimension(); k++){
+                    outerProductSum += paramList.getParameter(k).getValue(i) * paramList.getParameter(k).getValue(j);
+                }
+                assertEquals(outerProductSum, statistics.getOuterProductSum(i, j), 1e-9 * Math.max(1.0, Math.abs(outerProductSum)));
+            }
+        }
+    }
+}
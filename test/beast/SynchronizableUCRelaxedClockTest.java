@@ -0,0 +1,167 @@
+package beast;
+
+import beast.core.State;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.SynchronizableUCRelaxedClock;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.LogNormalDistributionModel;
+import junit.framework.TestCase;
+
+public class SynchronizableUCRelaxedClockTest extends TestCase {
+    private static final int TAXON_COUNT = 6;
+    private static final double BRANCH_LENGTH = 0.1;
+
+    private Tree tree;
+    private IntegerParameter categories;
+    private LogNormalDistributionModel distr;
+    private SynchronizableUCRelaxedClock clock;
+    private State state;
+    private int sample = 0;
+
+    private void setup(boolean normalize) throws Exception{
+        Alignment data = TempTreeLikelihoodTest.getAlignment(TAXON_COUNT, 4);
+        tree = TempTreeLikelihoodTest.getCaterpillarTree(data, TAXON_COUNT, BRANCH_LENGTH);
+        categories = new IntegerParameter(new Integer[]{0});
+        distr = new LogNormalDistributionModel();
+        distr.initByName(
+                "M", new RealParameter(new Double[]{1.0}),
+                "S", new RealParameter(new Double[]{0.5}),
+                "meanInRealSpace", true
+        );
+        clock = new SynchronizableUCRelaxedClock();
+        clock.initByName(
+                "distr", distr,
+                "rateCategories", categories,
+                "tree", tree,
+                "normalize", normalize
+        );
+
+        state = new State();
+        state.initByName(
+                "stateNode", tree,
+                "stateNode", categories
+        );
+        state.initialise();
+        state.setPosterior(clock);
+    }
+
+    /*
+     * The rate of every branch calculated from scratch from the categories and the branch lengths.
+     */
+    private void assertRates(String message) throws Exception{
+        int categoryCount = categories.getDimension();
+        double[] rates = new double[categoryCount];
+        for(int i = 0; i < categoryCount; i++){
+            rates[i] = distr.inverseCumulativeProbability((i + 0.5) / categoryCount);
+        }
+        int rootNr = tree.getRoot().getNr();
+        double[] branchRates = new double[tree.getNodeCount()];
+        double treeRate = 0.0;
+        double treeTime = 0.0;
+        for(int i = 0; i < branchRates.length; i++){
+            if(i == rootNr){
+                continue;
+            }
+            // The category of the root nr belongs to the node numbered #categories
+            branchRates[i] = rates[categories.getValue(i == categoryCount ? rootNr : i)];
+            treeRate += branchRates[i] * tree.getNode(i).getLength();
+            treeTime += tree.getNode(i).getLength();
+        }
+        double scaleFactor = clock.normalizeInput.get() ? treeTime / treeRate : 1.0;
+
+        assertEquals(message + ", root", 1.0, clock.getRateForBranch(tree.getRoot()), 0.0);
+        for(int i = 0; i < branchRates.length; i++){
+            if(i != rootNr){
+                double expected = branchRates[i] * scaleFactor;
+                assertEquals(message + ", node " + i, expected, clock.getRateForBranch(tree.getNode(i)), 1e-10 * expected);
+            }
+        }
+    }
+
+    private void startStep(){
+        state.store(sample++);
+        state.storeCalculationNodes();
+    }
+
+    private void endStep(boolean accept){
+        if(accept){
+            state.acceptCalculationNodes();
+        }else{
+            state.restore();
+            state.restoreCalculationNodes();
+        }
+        state.setEverythingDirty(false);
+    }
+
+    /*
+     * Moves the internal child of the root above the root, so that the root is a different node.
+     */
+    private void changeRoot(){
+        Node root = tree.getRoot();
+        Node child = root.getLeft().isLeaf() ? root.getRight() : root.getLeft();
+        Node grandchild = child.getLeft().isLeaf() ? child.getLeft() : child.getRight();
+        double rootHeight = root.getHeight();
+
+        child.removeChild(grandchild);
+        root.removeChild(child);
+        root.addChild(grandchild);
+        child.addChild(root);
+        child.setParent(null);
+        root.setHeight(2 * BRANCH_LENGTH);
+        child.setHeight(rootHeight);
+        tree.setRoot(child);
+    }
+
+    private void checkChanges(boolean normalize) throws Exception{
+        setup(normalize);
+        assertRates("initial");
+
+        startStep();
+        categories.setValue(2, 4);
+        categories.setValue(4, 2);
+        state.checkCalculationNodesDirtiness();
+        assertRates("category change");
+        endStep(true);
+
+        startStep();
+        Node node = tree.getRoot().getLeft().isLeaf() ? tree.getRoot().getRight() : tree.getRoot().getLeft();
+        node.setHeight(node.getHeight() - 0.5 * BRANCH_LENGTH);
+        state.checkCalculationNodesDirtiness();
+        assertRates("branch length change");
+        endStep(true);
+
+        startStep();
+        changeRoot();
+        state.checkCalculationNodesDirtiness();
+        assertRates("root change");
+        endStep(true);
+
+        // Rejected changes of both kinds are undone
+        startStep();
+        categories.setValue(0, 3);
+        categories.setValue(3, 0);
+        Node leaf = tree.getNode(1);
+        leaf.getParent().setHeight(leaf.getParent().getHeight() + 0.1 * BRANCH_LENGTH);
+        state.checkCalculationNodesDirtiness();
+        assertRates("before restore");
+        endStep(false);
+        assertRates("restored");
+
+        startStep();
+        categories.setValue(1, 0);
+        state.checkCalculationNodesDirtiness();
+        assertRates("after restore");
+        endStep(true);
+    }
+
+    public void testNormalizedRates() throws Exception{
+        checkChanges(true);
+    }
+
+    public void testRates() throws Exception{
+        checkChanges(false);
+    }
+}
@@ -0,0 +1,172 @@
+package beast;
+
+import beast.core.parameter.QuietRealParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.likelihood.TempTreeLikelihood;
+import beast.evolution.sitemodel.QuietSiteModel;
+import beast.evolution.substitutionmodel.NtdBMA;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class TempTreeLikelihoodTest extends TestCase {
+    private static final char[] NUCLEOTIDES = {'A', 'C', 'G', 'T'};
+
+    /*
+     * The first two sites are constant, the others are drawn at random.
+     */
+    public static Alignment getAlignment(int taxonCount, int siteCount) throws Exception{
+        Random random = new Random(127);
+        Alignment data = new Alignment();
+        char[] sequence = new char[siteCount];
+        for(int i = 0; i < taxonCount; i++){
+            sequence[0] = 'A';
+            sequence[1] = 'C';
+            for(int j = 2; j < siteCount; j++){
+                sequence[j] = NUCLEOTIDES[random.nextInt(4)];
+            }
+            data.setInputValue("sequence", new Sequence("t" + i, new String(sequence)));
+        }
+        data.setInputValue("dataType", "nucleotide");
+        data.initAndValidate();
+        return data;
+    }
+
+    /*
+     * A caterpillar tree with the internal nodes branchLength apart, so that it is as deep as it can be.
+     */
+    public static Tree getCaterpillarTree(Alignment data, int taxonCount, double branchLength) throws Exception{
+        String newick = "(t0:" + branchLength + ",t1:" + branchLength + ")";
+        for(int i = 2; i < taxonCount; i++){
+            newick = "(" + newick + ":" + branchLength + ",t" + i + ":" + (i * branchLength) + ")";
+        }
+        TreeParser tree = new TreeParser();
+        tree.initByName(
+                "taxa", data,
+                "newick", newick + ";"
+        );
+        return tree;
+    }
+
+    public static NtdBMA getNtdBMA() throws Exception{
+        NtdBMA ntdBMA = new NtdBMA();
+        ntdBMA.initByName(
+                "logKappa", new QuietRealParameter(new Double[]{1.0}),
+                "logTN", new QuietRealParameter(new Double[]{0.2}),
+                "logAC", new QuietRealParameter(new Double[]{-0.5}),
+                "logAT", new QuietRealParameter(new Double[]{-0.3}),
+                "logGC", new QuietRealParameter(new Double[]{0.1}),
+                "modelChoose", new QuietRealParameter(new Double[]{5.0}),
+                "frequenciesParameter", new QuietRealParameter(new Double[]{0.25, 0.25, 0.25, 0.25})
+        );
+        return ntdBMA;
+    }
+
+    public static TempTreeLikelihood getTempTreeLikelihood(Alignment data, Tree tree, double proportionInvariant, int threads) throws Exception{
+        QuietSiteModel siteModel = new QuietSiteModel();
+        siteModel.initByName(
+                "substModel", getNtdBMA(),
+                "shape", new RealParameter(new Double[]{0.5}),
+                "gammaCategoryCount", 4,
+                "proportionInvariant", new RealParameter(new Double[]{proportionInvariant})
+        );
+        TempTreeLikelihood tempLik = new TempTreeLikelihood();
+        tempLik.initByName(
+                "data", data,
+                "tree", tree,
+                "siteModel", siteModel,
+                "branchRateModel", new StrictClockModel(),
+                "threads", threads
+        );
+        return tempLik;
+    }
+
+    /*
+     * The model parameters, model codes and frequencies of the candidates, drawn at random.
+     */
+    public static RealParameter[][] getCandidates(int candidateCount, long seed){
+        Random random = new Random(seed);
+        RealParameter[][] candidates = new RealParameter[3][candidateCount];
+        for(int i = 0; i < candidateCount; i++){
+            Double[] modelParameters = new Double[5];
+            for(int j = 0; j < modelParameters.length; j++){
+                modelParameters[j] = random.nextGaussian();
+            }
+            Double[] freqs = new Double[4];
+            double sum = 0.0;
+            for(int j = 0; j < freqs.length; j++){
+                freqs[j] = 0.5 + random.nextDouble();
+                sum += freqs[j];
+            }
+            for(int j = 0; j < freqs.length; j++){
+                freqs[j] /= sum;
+            }
+            candidates[0][i] = new QuietRealParameter(modelParameters);
+            candidates[1][i] = new QuietRealParameter(new Double[]{(double)random.nextInt(6)});
+            candidates[2][i] = new QuietRealParameter(freqs);
+        }
+        return candidates;
+    }
+
+    /*
+     * On a deep tree the partials of the candidates are scaled. The proportion of invariant sites,
+     * which is not scaled, must still be added to the likelihood of the constant sites as it is
+     * by the unscaled likelihood of a single candidate.
+     */
+    public void testScaledInvariantSites() throws Exception{
+        int taxonCount = 250;
+        Alignment data = getAlignment(taxonCount, 4);
+        Tree tree = getCaterpillarTree(data, taxonCount, 0.1);
+        TempTreeLikelihood tempLik = getTempTreeLikelihood(data, tree, 0.4, 1);
+
+        int candidateCount = 5;
+        RealParameter[][] candidates = getCandidates(candidateCount, 127);
+        double[] logPs = new double[candidateCount];
+        for(int site = 0; site < data.getSiteCount(); site++){
+            tempLik.calculateLogPs(candidates[0], candidates[1], candidates[2], 0, candidateCount, site, logPs);
+            for(int i = 0; i < candidateCount; i++){
+                double expected = tempLik.calculateLogP(candidates[0][i], candidates[1][i], candidates[2][i], site);
+                assertEquals("site " + site + ", candidate " + i, expected, logPs[i], 1e-8 * Math.abs(expected));
+                if(site > 1){
+                    // Far below the threshold at which the partials are scaled
+                    assertTrue(expected < Math.log(1e-100));
+                }
+            }
+        }
+    }
+
+    /*
+     * The candidates evaluated in blocks on several threads should have exactly the log-likelihoods
+     * calculated on a single thread.
+     */
+    public void testParallelCandidates() throws Exception{
+        int taxonCount = 20;
+        Alignment data = getAlignment(taxonCount, 10);
+        Tree tree = getCaterpillarTree(data, taxonCount, 0.05);
+        TempTreeLikelihood sequentialLik = getTempTreeLikelihood(data, tree, 0.2, 1);
+        TempTreeLikelihood parallelLik = getTempTreeLikelihood(data, tree, 0.2, 3);
+
+        int candidateCount = 11;
+        RealParameter[][] candidates = getCandidates(candidateCount, 255);
+        double[] sequentialLogPs = new double[candidateCount];
+        double[] parallelLogPs = new double[candidateCount];
+        for(int site = 0; site < data.getSiteCount(); site++){
+            sequentialLik.calculateLogPs(candidates[0], candidates[1], candidates[2], 0, candidateCount, site, sequentialLogPs);
+            parallelLik.calculateLogPs(candidates[0], candidates[1], candidates[2], 0, candidateCount, site, parallelLogPs);
+            for(int i = 0; i < candidateCount; i++){
+                assertEquals("site " + site + ", candidate " + i, sequentialLogPs[i], parallelLogPs[i], 0.0);
+            }
+
+            // A range of the candidates, as used by the samplers.
+            parallelLik.calculateLogPs(candidates[0], candidates[1], candidates[2], 2, 9, site, parallelLogPs);
+            for(int i = 2; i < 9; i++){
+                assertEquals("site " + site + ", candidate " + i, sequentialLogPs[i], parallelLogPs[i], 0.0);
+            }
+        }
+    }
+}
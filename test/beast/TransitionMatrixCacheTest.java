@@ -0,0 +1,62 @@
+package beast;
+
+import beast.evolution.likelihood.TransitionMatrixCache;
+import beast.evolution.substitutionmodel.NtdBMA;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class TransitionMatrixCacheTest extends TestCase {
+
+    /*
+     * The matrices of the stored version are still found after a rejected proposal has been restored.
+     */
+    public void testRestoredVersion() throws Exception{
+        NtdBMA ntdBMA = TempTreeLikelihoodTest.getNtdBMA();
+        ntdBMA.setIDNumber(0);
+        TransitionMatrixCache cache = new TransitionMatrixCache();
+        double[] matrix = new double[16];
+        double[] expected = new double[16];
+
+        cache.getTransitionProbabilities(ntdBMA, null, 0.1, 0.0, 1.0, matrix);
+        ntdBMA.getTransitionProbabilities(null, 0.1, 0.0, 1.0, expected);
+        assertMatrixEquals(expected, matrix);
+        assertEquals(1, cache.getMatrixCount(0));
+
+        ntdBMA.store();
+        ntdBMA.getLogKappa().setValueQuietly(0, 2.0);
+        ntdBMA.setUpdateMatrix(true);
+        cache.getTransitionProbabilities(ntdBMA, null, 0.1, 0.0, 1.0, matrix);
+        assertFalse(Arrays.equals(expected, matrix));
+        assertEquals(2, cache.getMatrixCount(0));
+
+        ntdBMA.getLogKappa().setValueQuietly(0, 1.0);
+        ntdBMA.restore();
+        cache.getTransitionProbabilities(ntdBMA, null, 0.1, 0.0, 1.0, matrix);
+        assertMatrixEquals(expected, matrix);
+        assertEquals(2, cache.getMatrixCount(0));
+    }
+
+    /*
+     * Each model keeps no more than the given number of matrices.
+     */
+    public void testEviction() throws Exception{
+        NtdBMA ntdBMA = TempTreeLikelihoodTest.getNtdBMA();
+        ntdBMA.setIDNumber(0);
+        TransitionMatrixCache cache = new TransitionMatrixCache(3);
+        double[] matrix = new double[16];
+        double[] expected = new double[16];
+        for(int i = 1; i <= 10; i++){
+            cache.getTransitionProbabilities(ntdBMA, null, 0.1 * i, 0.0, 1.0, matrix);
+            ntdBMA.getTransitionProbabilities(null, 0.1 * i, 0.0, 1.0, expected);
+            assertMatrixEquals(expected, matrix);
+            assertEquals(Math.min(i, 3), cache.getMatrixCount(0));
+        }
+    }
+
+    private void assertMatrixEquals(double[] expected, double[] matrix){
+        for(int i = 0; i < expected.length; i++){
+            assertEquals(expected[i], matrix[i], 0.0);
+        }
+    }
+}
@@ -5,14 +5,19 @@ import beast.evolution.alignment.Sequence;
 import beast.util.TreeParser;
 import junit.framework.TestCase;
 import beast.evolution.alignment.Alignment;
+import beast.evolution.tree.Node;
 import beast.evolution.tree.Tree;
 import beast.evolution.substitutionmodel.Frequencies;
 import beast.evolution.substitutionmodel.HKY;
 import beast.evolution.sitemodel.SiteModel;
 import beast.evolution.likelihood.NewWVTreeLikelihood;
 import beast.evolution.likelihood.TreeLikelihood;
+import beast.evolution.likelihood.WVLikelihoodCore;
+import beast.evolution.likelihood.WVLikelihoodCore4;
 import beast.core.parameter.RealParameter;
 
+import java.util.Arrays;
+
 
 /**
  * @author Chieh-Hsi Wu
@@ -329,6 +334,269 @@ public class WVLikelihoodCoreTest extends TestCase {
             throw new RuntimeException(e);
         }
     }
+
+    /*
+     * Same moves as testWVLikelihoodCore5, but with the partials only stored for the unmasked patterns.
+     */
+    public void testCompactWVLikelihoodCore(){
+        try{
+
+            Alignment data = getAlignment();
+            Tree tree = getTree(data);
+
+
+		    SiteModel siteModel = getDefaultSiteModel();
+
+            int[] weights1 = new int[data.getPatternCount()];
+            weights1[0] = 1;
+            weights1[1] = 1;
+            weights1[2] = 1;
+
+            NewWVTreeLikelihood newTreeLik = new NewWVTreeLikelihood(weights1);
+            newTreeLik.initByName(
+                    "data", data,
+                    "tree", tree,
+                    "siteModel", siteModel,
+                    "compactPartials", true
+            );
+
+            assertEquals(newTreeLik.calculateLogP(),-11.97936011489545,1e-10);
+
+            newTreeLik.store();
+            newTreeLik.removeWeight(1, 1);
+            MCMCNodeFactory.checkDirtiness(newTreeLik);
+            assertEquals(newTreeLik.calculateLogP(),-7.167779745726355,1e-10);
+
+            newTreeLik.restore();
+            assertEquals(newTreeLik.calculateLogP(),-11.97936011489545,1e-10);
+
+            newTreeLik.store();
+            newTreeLik.removeWeight(2, 1);
+            MCMCNodeFactory.checkDirtiness(newTreeLik);
+            assertEquals(newTreeLik.calculateLogP(),-6.532640634254436,1e-10);
+
+            newTreeLik.store();
+            newTreeLik.addWeight(0, 2);
+            MCMCNodeFactory.checkDirtiness(newTreeLik);
+            assertEquals(newTreeLik.calculateLogP(),-9.974761164425125,1e-10);
+
+            newTreeLik.store();
+            newTreeLik.addWeight(2, 1);
+            MCMCNodeFactory.checkDirtiness(newTreeLik);
+            assertEquals(newTreeLik.calculateLogP(),-15.421480645066135,1e-10);
+
+            newTreeLik.restore();
+            assertEquals(newTreeLik.calculateLogP(),-9.974761164425125,1e-10);
+
+            tree.setEverythingDirty(true);
+            MCMCNodeFactory.checkDirtiness(newTreeLik);
+            assertEquals(newTreeLik.calculateLogP(),-9.974761164425125,1e-10);
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * The pattern log-likelihoods calculated from the pre-order partials at each node
+     * should be the same as those from the root.
+     */
+    public void testPreOrderPartials(){
+        try{
+
+            Alignment data = getAlignment();
+            Tree tree = getTree(data);
+
+
+		    SiteModel siteModel = getDefaultSiteModel();
+
+            int[] weights1 = new int[data.getPatternCount()];
+            weights1[0] = 1;
+            weights1[1] = 1;
+            weights1[2] = 1;
+
+            NewWVTreeLikelihood newTreeLik = new NewWVTreeLikelihood(weights1);
+            newTreeLik.initByName(
+                    "data", data,
+                    "tree", tree,
+                    "siteModel", siteModel
+            );
+
+            assertEquals(newTreeLik.calculateLogP(),-11.97936011489545,1e-10);
+            newTreeLik.calculatePreOrderPartials();
+            assertPreOrderLogLikelihoods(newTreeLik, tree, new int[]{0, 1, 2});
+            assertEquals(newTreeLik.getPatternLogLikelihood(0),-1.7210602650853448,1e-10);
+
+            newTreeLik.store();
+            newTreeLik.removeWeight(1, 1);
+            MCMCNodeFactory.checkDirtiness(newTreeLik);
+            assertEquals(newTreeLik.calculateLogP(),-7.167779745726355,1e-10);
+            newTreeLik.calculatePreOrderPartials();
+            assertPreOrderLogLikelihoods(newTreeLik, tree, new int[]{0, 2});
+
+            newTreeLik.restore();
+            assertEquals(newTreeLik.calculateLogP(),-11.97936011489545,1e-10);
+            newTreeLik.calculatePreOrderPartials();
+            assertPreOrderLogLikelihoods(newTreeLik, tree, new int[]{0, 1, 2});
+
+            tree.setEverythingDirty(true);
+            MCMCNodeFactory.checkDirtiness(newTreeLik);
+            assertEquals(newTreeLik.calculateLogP(),-11.97936011489545,1e-10);
+            newTreeLik.calculatePreOrderPartials();
+            assertPreOrderLogLikelihoods(newTreeLik, tree, new int[]{0, 1, 2});
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Changing the length of a branch with the pre-order partials
+     * should give the same pattern log-likelihoods as a tree with that branch length.
+     */
+    public void testPreOrderBranchLogLikelihoods(){
+        try{
+
+            Alignment data = getAlignment();
+            Tree tree = getTree(data);
+            TreeParser tree2 = new TreeParser();
+            tree2.initByName("taxa", data,
+                    "newick", "((((human:0.05,(chimp:0.010772,bonobo:0.010772):0.013231):0.012035,gorilla:0.036038):0.033087000000000005,orangutan:0.069125):0.030456999999999998,siamang:0.099582);");
+
+		    SiteModel siteModel = getDefaultSiteModel();
+
+            int[] weights1 = new int[data.getPatternCount()];
+            weights1[0] = 1;
+            weights1[1] = 1;
+            weights1[2] = 1;
+
+            NewWVTreeLikelihood newTreeLik = new NewWVTreeLikelihood(weights1);
+            newTreeLik.initByName(
+                    "data", data,
+                    "tree", tree,
+                    "siteModel", siteModel
+            );
+            NewWVTreeLikelihood newTreeLik2 = new NewWVTreeLikelihood(weights1.clone());
+            newTreeLik2.initByName(
+                    "data", data,
+                    "tree", tree2,
+                    "siteModel", siteModel
+            );
+            newTreeLik.calculateLogP();
+            newTreeLik2.calculateLogP();
+            newTreeLik.calculatePreOrderPartials();
+
+            Node human = null;
+            for(Node node : tree.getExternalNodes()){
+                if(node.getID().equals("human")){
+                    human = node;
+                }
+            }
+
+            double[] matrices = new double[16];
+            ((HKY)siteModel.substModelInput.get()).getTransitionProbabilities(human, 0.05, 0.0, 1.0, matrices);
+            double[] logLiks = new double[data.getPatternCount()];
+            newTreeLik.calculateBranchPatternLogLikelihoods(human, matrices, logLiks);
+            for(int i = 0; i < 3; i++){
+                assertEquals(logLiks[i], newTreeLik2.getPatternLogLikelihood(i), 1e-10);
+            }
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * The partials and the pattern log-likelihoods calculated in blocks of patterns on several threads
+     * should be identical to those calculated sequentially.
+     */
+    public void testBlockedPatterns(){
+        try{
+            Alignment data = TempTreeLikelihoodTest.getAlignment(6, 2000);
+            Tree tree = TempTreeLikelihoodTest.getCaterpillarTree(data, 6, 0.05);
+            int patternCount = data.getPatternCount();
+            assertTrue(patternCount >= 4 * WVLikelihoodCore.MIN_BLOCK_SIZE);
+
+            // Mask some of the patterns, as in a cluster.
+            boolean[] unmasked = new boolean[patternCount];
+            for(int i = 0; i < patternCount; i++){
+                unmasked[i] = i % 3 != 0;
+            }
+
+            WVLikelihoodCore[] sequentialCores = {new WVLikelihoodCore(4, unmasked.clone()), new WVLikelihoodCore4(unmasked.clone())};
+            WVLikelihoodCore[] blockedCores = {new WVLikelihoodCore(4, unmasked.clone()), new WVLikelihoodCore4(unmasked.clone())};
+            HKY hky = (HKY) getDefaultSiteModel().substModelInput.get();
+            for(int i = 0; i < sequentialCores.length; i++){
+                double[] sequentialLogLiks = calculatePatternLogLikelihoods(sequentialCores[i], 1, data, tree, hky);
+                double[] blockedLogLiks = calculatePatternLogLikelihoods(blockedCores[i], 4, data, tree, hky);
+
+                double[] sequentialPartials = new double[patternCount * 4];
+                double[] blockedPartials = new double[patternCount * 4];
+                for(Node node : tree.getNodesAsArray()){
+                    if(!node.isLeaf()){
+                        sequentialCores[i].getNodePartials(node.getNr(), sequentialPartials);
+                        blockedCores[i].getNodePartials(node.getNr(), blockedPartials);
+                        assertTrue(Arrays.equals(sequentialPartials, blockedPartials));
+                    }
+                }
+                assertTrue(Arrays.equals(sequentialLogLiks, blockedLogLiks));
+            }
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Calculates the pattern log-likelihoods with the partials scaled at every node, as in a large tree.
+     */
+    private double[] calculatePatternLogLikelihoods(WVLikelihoodCore core, int threadCount, Alignment data, Tree tree, HKY hky){
+        int patternCount = data.getPatternCount();
+        core.initialize(tree.getNodeCount(), patternCount, 1, true, false);
+        core.setThreadCount(threadCount);
+        core.setUseScaling(1.01);
+        for(Node node : tree.getNodesAsArray()){
+            if(node.isLeaf()){
+                int[] states = new int[patternCount];
+                int iTaxon = data.getTaxonIndex(node.getID());
+                for(int i = 0; i < patternCount; i++){
+                    states[i] = data.getPattern(iTaxon, i);
+                }
+                core.setNodeStates(node.getNr(), states);
+            }else{
+                core.createNodePartials(node.getNr());
+            }
+        }
+
+        double[] matrix = new double[16];
+        calculatePartials(core, tree.getRoot(), hky, matrix);
+
+        double[] rootPartials = new double[patternCount * 4];
+        double[] logLiks = new double[patternCount];
+        core.integratePartials(tree.getRoot().getNr(), new double[]{1.0}, rootPartials);
+        core.calculateLogLikelihoods(rootPartials, hky.getFrequencies(), logLiks);
+        return logLiks;
+    }
+
+    private void calculatePartials(WVLikelihoodCore core, Node node, HKY hky, double[] matrix){
+        if(!node.isRoot()){
+            core.setNodeMatrixForUpdate(node.getNr());
+            hky.getTransitionProbabilities(node, node.getParent().getHeight(), node.getHeight(), 1.0, matrix);
+            core.setNodeMatrix(node.getNr(), 0, matrix);
+        }
+        if(!node.isLeaf()){
+            calculatePartials(core, node.getLeft(), hky, matrix);
+            calculatePartials(core, node.getRight(), hky, matrix);
+            core.setNodePartialsForUpdate(node.getNr());
+            core.calculatePartials(node.getLeft().getNr(), node.getRight().getNr(), node.getNr());
+        }
+    }
+
+    private void assertPreOrderLogLikelihoods(NewWVTreeLikelihood treeLik, Tree tree, int[] patterns){
+        double[] logLiks = new double[treeLik.getPatternWeights().length];
+        for(Node node : tree.getNodesAsArray()){
+            treeLik.calculatePreOrderPatternLogLikelihoods(node, logLiks);
+            for(int pattern : patterns){
+                assertEquals(logLiks[pattern], treeLik.getPatternLogLikelihood(pattern), 1e-10);
+            }
+        }
+    }
     
     static public Alignment getAlignment() throws Exception {
         Sequence human = new Sequence("human", "AGAAATATGTCTGATAAAAGAGTTACTTTGATAGAGTAAATAATAGGAGCTTAAACCCCCTTATTTCTACTAGGACTATGAGAATCGAACCCATCCCTGAGAATCCAAAATTCTCCGTGCCACCTATCACACCCCATCCTAAGTAAGGTCAGCTAAATAAGCTATCGGGCCCATACCCCGAAAATGTTGGTTATACCCTTCCCGTACTAAGAAATTTAGGTTAAATACAGACCAAGAGCCTTCAAAGCCCTCAGTAAGTTG-CAATACTTAATTTCTGTAAGGACTGCAAAACCCCACTCTGCATCAACTGAACGCAAATCAGCCACTTTAATTAAGCTAAGCCCTTCTAGACCAATGGGACTTAAACCCACAAACACTTAGTTAACAGCTAAGCACCCTAATCAAC-TGGCTTCAATCTAAAGCCCCGGCAGG-TTTGAAGCTGCTTCTTCGAATTTGCAATTCAATATGAAAA-TCACCTCGGAGCTTGGTAAAAAGAGGCCTAACCCCTGTCTTTAGATTTACAGTCCAATGCTTCA-CTCAGCCATTTTACCACAAAAAAGGAAGGAATCGAACCCCCCAAAGCTGGTTTCAAGCCAACCCCATGGCCTCCATGACTTTTTCAAAAGGTATTAGAAAAACCATTTCATAACTTTGTCAAAGTTAAATTATAGGCT-AAATCCTATATATCTTA-CACTGTAAAGCTAACTTAGCATTAACCTTTTAAGTTAAAGATTAAGAGAACCAACACCTCTTTACAGTGA");